@@ -0,0 +1,101 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.sanger.arcturus.data.Read;
+import uk.ac.sanger.arcturus.utils.ConsensusAlgorithm;
+
+/**
+ * Measures the cost of the consensus algorithms on synthetic columns of bases,
+ * independently of how the columns are extracted from the mappings.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConsensusAlgorithmBenchmark {
+	private static final int COLUMNS = 1000;
+
+	@Param({ "uk.ac.sanger.arcturus.utils.Gap4BayesianConsensus",
+			"uk.ac.sanger.arcturus.utils.WeightedMajorityVote" })
+	public String algorithmClass;
+
+	@Param({ "10", "100" })
+	public int depth;
+
+	private ConsensusAlgorithm algorithm;
+
+	private char[] bases;
+	private int[] quality;
+	private int[] strand;
+	private int[] chemistry;
+
+	@Setup
+	public void setup() throws Exception {
+		algorithm = (ConsensusAlgorithm) Class.forName(algorithmClass)
+				.newInstance();
+
+		Random random = new Random(42);
+
+		int n = COLUMNS * depth;
+
+		byte[] dna = SyntheticData.randomDNA(random, n);
+		byte[] qual = SyntheticData.randomQuality(random, n);
+
+		bases = new char[n];
+		quality = new int[n];
+		strand = new int[n];
+		chemistry = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			bases[i] = random.nextInt(50) == 0 ? '*' : (char) dna[i];
+			quality[i] = qual[i];
+			strand[i] = random.nextBoolean() ? Read.FORWARD : Read.REVERSE;
+			chemistry[i] = random.nextBoolean() ? Read.DYE_PRIMER
+					: Read.DYE_TERMINATOR;
+		}
+	}
+
+	@Benchmark
+	public int addBase() {
+		int checksum = 0;
+
+		for (int col = 0, k = 0; col < COLUMNS; col++) {
+			algorithm.reset();
+
+			for (int j = 0; j < depth; j++, k++)
+				algorithm.addBase(bases[k], quality[k], strand[k], chemistry[k]);
+
+			checksum += algorithm.getBestBase() + algorithm.getBestScore();
+		}
+
+		return checksum;
+	}
+}
@@ -0,0 +1,145 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.sanger.arcturus.data.Mapping;
+import uk.ac.sanger.arcturus.data.Read;
+import uk.ac.sanger.arcturus.utils.ConsensusAlgorithm;
+import uk.ac.sanger.arcturus.utils.ConsensusColumns;
+import uk.ac.sanger.arcturus.utils.WeightedMajorityVote;
+
+/**
+ * Compares the original consensus sweep, which calls Mapping.getReadOffset
+ * for each read at each contig position, with the pre-expanded columns used
+ * by CalculateConsensus. Both methods calculate the consensus of the same
+ * synthetic contig with the same algorithm, and the setup method checks that
+ * they produce the same result.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConsensusSweepBenchmark {
+	private static final int CONTIG_LENGTH = 20000;
+	private static final int READ_LENGTH = 800;
+
+	@Param({ "10", "50" })
+	public int depth;
+
+	private Mapping[] mappings;
+
+	private int cstart;
+	private int cfinish;
+
+	private ConsensusAlgorithm algorithm = new WeightedMajorityVote();
+
+	@Setup
+	public void setup() {
+		mappings = SyntheticData.createContig(new Random(42), CONTIG_LENGTH,
+				depth, READ_LENGTH);
+
+		cstart = mappings[0].getContigStart();
+		cfinish = cstart;
+
+		for (Mapping mapping : mappings)
+			if (mapping.getContigFinish() > cfinish)
+				cfinish = mapping.getContigFinish();
+
+		if (getReadOffset() != consensusColumns())
+			throw new IllegalStateException(
+					"The two sweeps produced different consensus sequences");
+	}
+
+	/*
+	 * The loop from CalculateConsensus before it used ConsensusColumns.
+	 */
+
+	@Benchmark
+	public int getReadOffset() {
+		int checksum = 0;
+
+		int nreads = mappings.length;
+
+		for (int cpos = cstart, rdleft = 0, rdright = -1; cpos <= cfinish; cpos++) {
+			while (rdleft < nreads
+					&& mappings[rdleft].getContigFinish() < cpos)
+				rdleft++;
+
+			while (rdright < nreads - 1
+					&& mappings[rdright + 1].getContigStart() <= cpos)
+				rdright++;
+
+			algorithm.reset();
+
+			for (int rdid = rdleft; rdid <= rdright; rdid++)
+				processMapping(mappings[rdid], cpos);
+
+			checksum = 31 * checksum + algorithm.getBestBase();
+		}
+
+		return checksum;
+	}
+
+	private void processMapping(Mapping mapping, int cpos) {
+		int rpos = mapping.getReadOffset(cpos);
+
+		int qual = (rpos >= 0) ? mapping.getQuality(rpos) : mapping
+				.getPadQuality(cpos);
+
+		if (qual <= 0)
+			return;
+
+		Read read = mapping.getSequence().getRead();
+
+		int strand = mapping.isForward() ? Read.FORWARD : Read.REVERSE;
+
+		int chemistry = read == null ? Read.UNKNOWN : read.getChemistry();
+
+		char base = (rpos >= 0) ? mapping.getBase(rpos) : '*';
+
+		algorithm.addBase(base, qual, strand, chemistry);
+	}
+
+	@Benchmark
+	public int consensusColumns() {
+		ConsensusColumns columns = new ConsensusColumns(mappings);
+
+		int checksum = 0;
+
+		for (int cpos = cstart; cpos <= cfinish; cpos++) {
+			columns.advanceTo(cpos);
+			algorithm.reset();
+			columns.addBasesAt(cpos, algorithm);
+			checksum = 31 * checksum + algorithm.getBestBase();
+		}
+
+		return checksum;
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the zlib decompression of sequence and quality data, as performed by
+ * the inflate helpers in SequenceManager, ContigManager and OligoFinder, with a
+ * shared Inflater and with a new Inflater for each sequence.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InflateBenchmark {
+	private static final int SEQUENCES = 100;
+
+	@Param({ "800", "100000" })
+	public int length;
+
+	private byte[][] compressedDNA;
+	private byte[][] compressedQuality;
+
+	private Inflater decompresser = new Inflater();
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		Deflater compresser = new Deflater(Deflater.BEST_COMPRESSION);
+
+		compressedDNA = new byte[SEQUENCES][];
+		compressedQuality = new byte[SEQUENCES][];
+
+		for (int i = 0; i < SEQUENCES; i++) {
+			compressedDNA[i] = deflate(compresser, SyntheticData.randomDNA(
+					random, length));
+			compressedQuality[i] = deflate(compresser, SyntheticData
+					.randomQuality(random, length));
+		}
+
+		compresser.end();
+	}
+
+	@TearDown
+	public void tearDown() {
+		decompresser.end();
+	}
+
+	private static byte[] deflate(Deflater compresser, byte[] data) {
+		byte[] buffer = new byte[12 + (5 * data.length) / 4];
+
+		compresser.reset();
+		compresser.setInput(data);
+		compresser.finish();
+
+		int size = compresser.deflate(buffer);
+
+		byte[] compressed = new byte[size];
+
+		System.arraycopy(buffer, 0, compressed, 0, size);
+
+		return compressed;
+	}
+
+	private byte[] inflate(Inflater inflater, byte[] cdata)
+			throws DataFormatException {
+		byte[] data = new byte[length];
+
+		inflater.setInput(cdata, 0, cdata.length);
+		inflater.inflate(data, 0, data.length);
+		inflater.reset();
+
+		return data;
+	}
+
+	@Benchmark
+	public int sharedInflater() throws DataFormatException {
+		int total = 0;
+
+		for (int i = 0; i < SEQUENCES; i++) {
+			total += inflate(decompresser, compressedDNA[i]).length;
+			total += inflate(decompresser, compressedQuality[i]).length;
+		}
+
+		return total;
+	}
+
+	@Benchmark
+	public int newInflater() throws DataFormatException {
+		int total = 0;
+
+		for (int i = 0; i < SEQUENCES; i++) {
+			Inflater inflater = new Inflater();
+
+			total += inflate(inflater, compressedDNA[i]).length;
+			total += inflate(inflater, compressedQuality[i]).length;
+
+			inflater.end();
+		}
+
+		return total;
+	}
+}
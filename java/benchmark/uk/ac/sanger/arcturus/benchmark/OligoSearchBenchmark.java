@@ -0,0 +1,108 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.sanger.arcturus.oligo.Oligo;
+import uk.ac.sanger.arcturus.oligo.OligoMatcher;
+
+/**
+ * Compares the original regular-expression oligo search with the Aho-Corasick
+ * OligoMatcher which OligoFinder now applies to each contig consensus and free
+ * read, on a synthetic sequence.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OligoSearchBenchmark {
+	private static final int SEQUENCE_LENGTH = 1000000;
+	private static final int OLIGO_LENGTH = 25;
+
+	@Param({ "1", "20" })
+	public int oligoCount;
+
+	private String sequence;
+
+	private Oligo[] oligos;
+
+	private OligoMatcher matcher;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		byte[] dna = SyntheticData.randomDNA(random, SEQUENCE_LENGTH);
+
+		sequence = new String(SyntheticData.toCharArray(dna));
+
+		oligos = new Oligo[oligoCount];
+
+		// Each oligo is taken from the sequence, so there is at least one hit.
+		for (int i = 0; i < oligoCount; i++) {
+			int start = random.nextInt(SEQUENCE_LENGTH - OLIGO_LENGTH);
+			oligos[i] = new Oligo("OLIGO" + i, sequence.substring(start, start
+					+ OLIGO_LENGTH));
+		}
+
+		matcher = new OligoMatcher(oligos);
+	}
+
+	@Benchmark
+	public int findMatchesByAutomaton() {
+		return matcher.findMatches(sequence, null);
+	}
+
+	@Benchmark
+	public int findMatchesByRegex() {
+		int hits = 0;
+
+		for (Oligo oligo : oligos) {
+			hits += countMatches(oligo.getForwardPattern());
+
+			if (!oligo.isPalindrome())
+				hits += countMatches(oligo.getReversePattern());
+		}
+
+		return hits;
+	}
+
+	private int countMatches(Pattern pattern) {
+		int hits = 0;
+
+		Matcher matcher = pattern.matcher(sequence);
+
+		while (matcher.find())
+			hits++;
+
+		return hits;
+	}
+}
@@ -0,0 +1,92 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.sanger.arcturus.smithwaterman.Alignment;
+import uk.ac.sanger.arcturus.smithwaterman.ScoringMatrix;
+import uk.ac.sanger.arcturus.smithwaterman.SmithWaterman;
+import uk.ac.sanger.arcturus.smithwaterman.SmithWatermanArrayModel;
+import uk.ac.sanger.arcturus.smithwaterman.SmithWatermanException;
+import uk.ac.sanger.arcturus.smithwaterman.SmithWatermanKernel;
+
+/**
+ * Measures SmithWaterman.calculateMatrix and the linear-memory
+ * SmithWatermanKernel for a read aligned against a slightly mutated copy of
+ * itself, with and without a band.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmithWatermanBenchmark {
+	@Param({ "500", "2000" })
+	public int length;
+
+	@Param({ "0", "20" })
+	public int bandwidth;
+
+	private char[] subject;
+	private char[] query;
+
+	private byte[] encodedSubject;
+	private byte[] encodedQuery;
+
+	private ScoringMatrix smat = new ScoringMatrix();
+
+	private SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		byte[] dna = SyntheticData.randomDNA(random, length);
+
+		subject = SyntheticData.toCharArray(dna);
+		query = SyntheticData.toCharArray(SyntheticData.mutate(random, dna, 50));
+
+		encodedSubject = SmithWatermanKernel.encode(subject);
+		encodedQuery = SmithWatermanKernel.encode(query);
+	}
+
+	@Benchmark
+	public SmithWatermanArrayModel calculateMatrix() {
+		return SmithWaterman.calculateMatrix(subject, query, smat, bandwidth);
+	}
+
+	@Benchmark
+	public int kernelScore() {
+		return kernel.calculateScore(encodedSubject, encodedQuery, bandwidth);
+	}
+
+	@Benchmark
+	public Alignment kernelAlignment() throws SmithWatermanException {
+		return kernel.calculateAlignment(encodedSubject, encodedQuery, bandwidth);
+	}
+}
@@ -0,0 +1,208 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.benchmark;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Vector;
+
+import uk.ac.sanger.arcturus.data.*;
+
+/**
+ * Generates synthetic reads and contigs for the benchmarks. All of the methods
+ * are deterministic for a given Random seed, so that successive benchmark runs
+ * measure the same workload.
+ */
+
+public class SyntheticData {
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	private static final Comparator<Mapping> BY_CONTIG_START = new Comparator<Mapping>() {
+		public int compare(Mapping m1, Mapping m2) {
+			return m1.getContigStart() - m2.getContigStart();
+		}
+	};
+
+	/**
+	 * Returns a random DNA sequence of the specified length.
+	 */
+
+	public static byte[] randomDNA(Random random, int length) {
+		byte[] dna = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			dna[i] = (byte) BASES[random.nextInt(BASES.length)];
+
+		return dna;
+	}
+
+	/**
+	 * Returns a random base quality array of the specified length, with values
+	 * in the range 5 to 60.
+	 */
+
+	public static byte[] randomQuality(Random random, int length) {
+		byte[] quality = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			quality[i] = (byte) (5 + random.nextInt(56));
+
+		return quality;
+	}
+
+	/**
+	 * Returns a copy of the specified DNA sequence in which approximately one
+	 * base in every errorInterval has been replaced by a random base.
+	 */
+
+	public static byte[] mutate(Random random, byte[] dna, int errorInterval) {
+		byte[] copy = dna.clone();
+
+		for (int i = 0; i < copy.length; i++)
+			if (random.nextInt(errorInterval) == 0)
+				copy[i] = (byte) BASES[random.nextInt(BASES.length)];
+
+		return copy;
+	}
+
+	/**
+	 * Returns the read-to-contig mappings of a synthetic contig. Reads are
+	 * sampled uniformly from a random consensus sequence to the specified
+	 * average depth, with a small error rate and an occasional pad.
+	 *
+	 * @param random
+	 *            the random number generator.
+	 * @param contigLength
+	 *            the length of the contig.
+	 * @param depth
+	 *            the average read depth.
+	 * @param readLength
+	 *            the length of each read.
+	 *
+	 * @return the mappings, sorted by contig start position.
+	 */
+
+	public static Mapping[] createContig(Random random, int contigLength,
+			int depth, int readLength) {
+		byte[] consensus = randomDNA(random, contigLength);
+
+		int nreads = (contigLength * depth) / readLength;
+
+		Vector<Mapping> mappings = new Vector<Mapping>(nreads);
+
+		for (int i = 0; i < nreads; i++) {
+			int cstart = 1 + random.nextInt(contigLength - readLength);
+			boolean forward = random.nextBoolean();
+
+			// The read has one pad roughly half-way along it, so it is made of
+			// two segments separated by a single contig position.
+			int split = readLength / 2 + random.nextInt(readLength / 4);
+			int length1 = split;
+			int length2 = readLength - split - 1;
+
+			byte[] dna = new byte[length1 + length2];
+
+			System.arraycopy(consensus, cstart - 1, dna, 0, length1);
+			System.arraycopy(consensus, cstart + length1, dna, length1, length2);
+
+			dna = mutate(random, dna, 100);
+
+			if (!forward)
+				dna = reverseComplement(dna);
+
+			Sequence sequence = new Sequence(i + 1, null, dna, randomQuality(
+					random, dna.length), 0);
+
+			int cfinish = cstart + readLength - 1;
+
+			Mapping mapping = new Mapping(sequence, cstart, cfinish, forward);
+
+			Segment[] segments = new Segment[2];
+
+			if (forward) {
+				segments[0] = new Segment(cstart, 1, length1);
+				segments[1] = new Segment(cstart + length1 + 1, length1 + 1,
+						length2);
+			} else {
+				segments[0] = new Segment(cstart, dna.length, length1);
+				segments[1] = new Segment(cstart + length1 + 1, length2,
+						length2);
+			}
+
+			mapping.setSegments(segments);
+
+			mappings.add(mapping);
+		}
+
+		Mapping[] array = mappings.toArray(new Mapping[mappings.size()]);
+
+		Arrays.sort(array, BY_CONTIG_START);
+
+		return array;
+	}
+
+	/**
+	 * Returns the reverse complement of the specified DNA sequence.
+	 */
+
+	public static byte[] reverseComplement(byte[] dna) {
+		byte[] rc = new byte[dna.length];
+
+		for (int i = 0; i < dna.length; i++) {
+			byte base = dna[dna.length - 1 - i];
+
+			switch (base) {
+				case 'A':
+					rc[i] = 'T';
+					break;
+				case 'C':
+					rc[i] = 'G';
+					break;
+				case 'G':
+					rc[i] = 'C';
+					break;
+				case 'T':
+					rc[i] = 'A';
+					break;
+				default:
+					rc[i] = base;
+					break;
+			}
+		}
+
+		return rc;
+	}
+
+	/**
+	 * Converts a byte array of ASCII bases to a char array.
+	 */
+
+	public static char[] toCharArray(byte[] dna) {
+		char[] chars = new char[dna.length];
+
+		for (int i = 0; i < dna.length; i++)
+			chars[i] = (char) dna[i];
+
+		return chars;
+	}
+}
@@ -0,0 +1,357 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package uk.ac.sanger.arcturus.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+import javax.management.*;
+
+import uk.ac.sanger.arcturus.Arcturus;
+
+/**
+ * A cache which holds at most a fixed number of entries, and at most a fixed
+ * total weight, evicting the least recently used entries when either limit is
+ * exceeded. A limit of zero or less means that there is no limit.
+ * <P>
+ * If soft references are enabled, evicted entries are not discarded at once
+ * but demoted to soft references, so the garbage collector can reclaim them
+ * under memory pressure. A demoted entry which is requested again before it
+ * has been reclaimed is promoted back into the cache.
+ * <P>
+ * The weight of an entry is calculated when it is put into the cache. It is
+ * not re-calculated if the value grows afterwards.
+ * <P>
+ * Hit, miss and eviction counts are available through JMX once the cache has
+ * been registered as an MBean.
+ */
+
+public class ObjectCache<K, V> implements ObjectCacheMBean {
+	public static final int UNLIMITED = 0;
+
+	private final String name;
+	private int maxEntries;
+	private long maxWeight;
+	private final Weigher<? super V> weigher;
+	private final boolean softReferences;
+
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+			16, 0.75f, true);
+	private final HashMap<K, DemotedEntry<K, V>> demoted = new HashMap<K, DemotedEntry<K, V>>();
+	private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+	private long totalWeight = 0;
+
+	private long hits = 0;
+	private long softHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	protected ObjectName mbeanName = null;
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param name
+	 *            the name of the cache, which is used as its MBean name.
+	 * @param maxEntries
+	 *            the maximum number of entries, or UNLIMITED.
+	 * @param maxWeight
+	 *            the maximum total weight of the entries, or UNLIMITED.
+	 * @param weigher
+	 *            the object which calculates the weight of each value. If this
+	 *            is null, the weight limit is not enforced.
+	 * @param softReferences
+	 *            true if evicted entries should be demoted to soft references.
+	 */
+
+	public ObjectCache(String name, int maxEntries, long maxWeight,
+			Weigher<? super V> weigher, boolean softReferences) {
+		this.name = name;
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.softReferences = softReferences;
+	}
+
+	public ObjectCache(String name, int maxEntries) {
+		this(name, maxEntries, UNLIMITED, null, false);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized V get(K key) {
+		purgeDemotedEntries();
+
+		Entry<V> entry = entries.get(key);
+
+		if (entry != null) {
+			hits++;
+			return entry.value;
+		}
+
+		if (softReferences) {
+			DemotedEntry<K, V> ref = demoted.remove(key);
+
+			V value = ref == null ? null : ref.get();
+
+			if (value != null) {
+				softHits++;
+				store(key, value);
+				return value;
+			}
+		}
+
+		misses++;
+
+		return null;
+	}
+
+	public synchronized boolean containsKey(K key) {
+		if (entries.containsKey(key))
+			return true;
+
+		DemotedEntry<K, V> ref = softReferences ? demoted.get(key) : null;
+
+		return ref != null && ref.get() != null;
+	}
+
+	public synchronized void put(K key, V value) {
+		purgeDemotedEntries();
+
+		demoted.remove(key);
+
+		store(key, value);
+	}
+
+	private void store(K key, V value) {
+		long weight = weigher == null ? 0 : weigher.getWeight(value);
+
+		Entry<V> old = entries.put(key, new Entry<V>(value, weight));
+
+		if (old != null)
+			totalWeight -= old.weight;
+
+		totalWeight += weight;
+
+		evictEntries();
+	}
+
+	public synchronized V remove(K key) {
+		Entry<V> entry = entries.remove(key);
+
+		DemotedEntry<K, V> ref = demoted.remove(key);
+
+		if (entry != null) {
+			totalWeight -= entry.weight;
+			return entry.value;
+		}
+
+		return ref == null ? null : ref.get();
+	}
+
+	/**
+	 * Returns a snapshot of the values which are currently held in the cache,
+	 * excluding entries which have been demoted to soft references.
+	 * 
+	 * @return a snapshot of the values held in the cache.
+	 */
+
+	public synchronized Collection<V> values() {
+		List<V> values = new Vector<V>(entries.size());
+
+		for (Entry<V> entry : entries.values())
+			values.add(entry.value);
+
+		return values;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		demoted.clear();
+		totalWeight = 0;
+	}
+
+	private boolean isOverLimit() {
+		if (maxEntries > 0 && entries.size() > maxEntries)
+			return true;
+
+		return maxWeight > 0 && weigher != null && totalWeight > maxWeight
+				&& entries.size() > 1;
+	}
+
+	private void evictEntries() {
+		Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet()
+				.iterator();
+
+		while (isOverLimit() && iterator.hasNext()) {
+			Map.Entry<K, Entry<V>> eldest = iterator.next();
+
+			iterator.remove();
+
+			totalWeight -= eldest.getValue().weight;
+			evictions++;
+
+			if (softReferences)
+				demoted.put(eldest.getKey(), new DemotedEntry<K, V>(eldest
+						.getKey(), eldest.getValue().value, queue));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void purgeDemotedEntries() {
+		DemotedEntry<K, V> ref;
+
+		while ((ref = (DemotedEntry<K, V>) queue.poll()) != null) {
+			if (demoted.get(ref.key) == ref)
+				demoted.remove(ref.key);
+		}
+	}
+
+	public synchronized void setLimits(int maxEntries, long maxWeight) {
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+
+		evictEntries();
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxEntries;
+	}
+
+	public void setMaxSize(int maxEntries) {
+		setLimits(maxEntries, getMaxWeight());
+	}
+
+	public synchronized long getWeight() {
+		return totalWeight;
+	}
+
+	public synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public void setMaxWeight(long maxWeight) {
+		setLimits(getMaxSize(), maxWeight);
+	}
+
+	public synchronized int getDemotedSize() {
+		purgeDemotedEntries();
+		return demoted.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getSoftHitCount() {
+		return softHits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	public synchronized double getHitRate() {
+		long requests = hits + softHits + misses;
+
+		return requests == 0 ? 0.0 : (double) (hits + softHits)
+				/ (double) requests;
+	}
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		softHits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	public void registerAsMBean() {
+		try {
+			mbeanName = new ObjectName("ObjectCache:name=" + name);
+		} catch (MalformedObjectNameException e) {
+			Arcturus.logWarning("Failed to create ObjectName", e);
+			return;
+		}
+
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			mbs.registerMBean(this, mbeanName);
+		} catch (Exception e) {
+			Arcturus.logWarning("Failed to register object cache as MBean", e);
+			mbeanName = null;
+		}
+	}
+
+	public void unregisterAsMBean() {
+		if (mbeanName != null) {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+			try {
+				mbs.unregisterMBean(mbeanName);
+				mbeanName = null;
+			} catch (Exception e) {
+				Arcturus.logWarning("Failed to unregister object cache as MBean", e);
+			}
+		}
+	}
+
+	public String toString() {
+		return "ObjectCache[name=" + name + ", size=" + getSize()
+				+ ", weight=" + getWeight() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount() + "]";
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long weight;
+
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private static class DemotedEntry<K, V> extends SoftReference<V> {
+		final K key;
+
+		DemotedEntry(K key, V value, ReferenceQueue<V> queue) {
+			super(value, queue);
+			this.key = key;
+		}
+	}
+}
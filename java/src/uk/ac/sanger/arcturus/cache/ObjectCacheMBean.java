@@ -0,0 +1,41 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package uk.ac.sanger.arcturus.cache;
+
+public interface ObjectCacheMBean {
+	public String getName();
+	public int getSize();
+	public int getMaxSize();
+	public void setMaxSize(int maxEntries);
+	public long getWeight();
+	public long getMaxWeight();
+	public void setMaxWeight(long maxWeight);
+	public int getDemotedSize();
+	public long getHitCount();
+	public long getSoftHitCount();
+	public long getMissCount();
+	public long getEvictionCount();
+	public double getHitRate();
+	public void resetCounters();
+	public void clear();
+}
@@ -23,14 +23,23 @@ package uk.ac.sanger.arcturus.consensusreadimporter;
 
 import java.io.*;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 
-import com.mysql.jdbc.MysqlErrorNumbers;
-
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 
@@ -40,6 +49,20 @@ import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
 import uk.ac.sanger.arcturus.gui.OrganismChooserPanel;
 
+/**
+ * Imports consensus reads from a FASTA file.
+ *
+ * The import is pipelined. The file is parsed into blocks of reads, and each
+ * block is passed to a pool of worker threads which calculate the MD5 hashes
+ * and compress the sequence and quality data. The blocks are stored in file
+ * order, with multi-row inserts, and each block is committed as a single
+ * transaction.
+ *
+ * A read whose name already exists in the database is not stored. If the
+ * stored read has the same sequence and quality hashes, it is reported as
+ * already stored, otherwise as a name clash.
+ */
+
 public class ConsensusReadImporter {
 	private static final String FASTA_PREFIX = ">";
 
@@ -52,38 +75,46 @@ public class ConsensusReadImporter {
 	private static final String DEFAULT_TAG_COMMENT = "Consensus read";
 	
 	private static final String DEFAULT_CHEMISTRY = "Dye_primer";
+
+	private static final int READS_PER_BLOCK = 500;
+	private static final int BASES_PER_BLOCK = 4000000;
+	private static final int TASKS_PER_THREAD = 4;
+
+	// Limits the size of each multi-row insert into SEQUENCE, to keep it
+	// well within the server's max_allowed_packet.
+	private static final int MAX_SEQUENCE_INSERT_BYTES = 1000000;
 	
 	private PreparedStatement pstmtGetPassStatus = null;
 	private static final String GET_PASS_STATUS = "select status_id from STATUS where name = ?";
 
-	private PreparedStatement pstmtInsertReadInfo = null;
-	private static final String INSERT_READINFO = "insert into READINFO(readname,chemistry,status) values (?,?,?)";
+	private PreparedStatement pstmtGetExistingReads = null;
+	private static final String GET_EXISTING_READS = "select R.readname,S.seq_hash,S.qual_hash"
+			+ " from READINFO R left join (SEQ2READ SR join SEQUENCE S on (SR.seq_id = S.seq_id))"
+			+ " on (R.read_id = SR.read_id) where R.readname in ";
+
+	private PreparedStatement pstmtGetReadIDs = null;
+	private static final String GET_READ_IDS = "select readname,read_id from READINFO where readname in ";
 
-	private PreparedStatement pstmtGetTemplateID = null;
-	private static final String GET_TEMPLATE_ID = "select template_id from TEMPLATE where name = ?";
+	private PreparedStatement pstmtGetTemplateIDs = null;
+	private static final String GET_TEMPLATE_IDS = "select name,template_id from TEMPLATE where name in ";
 
-	private PreparedStatement pstmtInsertTemplate = null;
-	private static final String INSERT_TEMPLATE = "insert into TEMPLATE(name) values (?)";
+	private static final String INSERT_READINFO = "insert into READINFO(readname,chemistry,status,template_id)";
+	private static final String READINFO_ROW = "(?,?,?,?)";
 
-	private PreparedStatement pstmtUpdateReadInfo = null;
-	private static final String UPDATE_READINFO = "update READINFO set template_id = ? where read_id = ?"
-			+ " and template_id is null";
+	private static final String INSERT_TEMPLATE = "insert into TEMPLATE(name)";
+	private static final String TEMPLATE_ROW = "(?)";
 
-	private PreparedStatement pstmtInsertSequence = null;
-	private static final String INSERT_SEQUENCE = "insert into SEQUENCE(seqlen,seq_hash,qual_hash,sequence,quality)"
-			+ " values (?,?,?,?,?)";
+	private static final String INSERT_SEQUENCE = "insert into SEQUENCE(seqlen,seq_hash,qual_hash,sequence,quality)";
+	private static final String SEQUENCE_ROW = "(?,?,?,?,?)";
 
-	private PreparedStatement pstmtInsertSeq2Read = null;
-	private static final String INSERT_SEQ2READ = "insert into SEQ2READ(read_id, seq_id,version)"
-			+ " values (?,?,0)";
+	private static final String INSERT_SEQ2READ = "insert into SEQ2READ(read_id,seq_id,version)";
+	private static final String SEQ2READ_ROW = "(?,?,0)";
 
-	private PreparedStatement pstmtInsertReadTag = null;
-	private static final String INSERT_READTAG = "insert into READTAG(seq_id,tagtype,pstart,pfinal,comment)"
-			+ " values (?,?,?,?,?)";
+	private static final String INSERT_READTAG = "insert into READTAG(seq_id,tagtype,pstart,pfinal,comment)";
+	private static final String READTAG_ROW = "(?,?,?,?,?)";
 
-	private PreparedStatement pstmtInsertQualityClip = null;
-	private static final String INSERT_QUALITYCLIP = "insert into QUALITYCLIP(seq_id,qleft,qright)"
-			+ " values (?,?,?)";
+	private static final String INSERT_QUALITYCLIP = "insert into QUALITYCLIP(seq_id,qleft,qright)";
+	private static final String QUALITYCLIP_ROW = "(?,?,?)";
 
 	private ConsensusReadImporterListener listener = null;
 	private Connection conn = null;
@@ -92,17 +123,70 @@ public class ConsensusReadImporter {
 
 	private int passValue = 0;
 
-	private MessageDigest digester;
-	private Deflater compresser = new Deflater();
+	private int threads = Runtime.getRuntime().availableProcessors();
 
-	public ConsensusReadImporter() {
-		try {
-			digester = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			Arcturus.logWarning(e);
+	private ExecutorService executor;
+	private LinkedList<Future<List<ConsensusRead>>> pending;
+	private List<ConsensusRead> block;
+	private int blockBases;
+
+	private Set<String> readnamesSeen;
+	private List<String> readsLoaded;
+
+	class ConsensusRead {
+		private String readname;
+		private String dna;
+		private int seqlen;
+
+		private byte[] seq_hash;
+		private byte[] qual_hash;
+		private byte[] sequence;
+		private byte[] quality;
+
+		private int template_id;
+		private int read_id;
+		private int seq_id;
+
+		public ConsensusRead(String readname, String dna) {
+			this.readname = readname;
+			this.dna = dna;
+			this.seqlen = dna.length();
+		}
+
+		public String getTemplateName() {
+			return readname.split("\\.")[0];
+		}
+
+		/*
+		 * Calculates the hashes and the compressed form of the sequence and
+		 * quality data. This is called by the worker threads.
+		 */
+
+		public void encode(MessageDigest digester, Deflater compresser) throws UnsupportedEncodingException {
+			byte[] bases = dna.getBytes("US-ASCII");
+			byte[] qual = createQualityArray(seqlen);
+
+			digester.reset();
+			seq_hash = digester.digest(bases);
+
+			digester.reset();
+			qual_hash = digester.digest(qual);
+
+			sequence = compress(compresser, bases);
+			quality = compress(compresser, qual);
+
+			dna = null;
 		}
 	}
 
+	public void setThreads(int threads) {
+		this.threads = threads > 0 ? threads : 1;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
 	public void importReads(ArcturusDatabase adb, File file, int quality,
 			ConsensusReadImporterListener listener) throws 
 			ArcturusDatabaseException {
@@ -125,7 +209,19 @@ public class ConsensusReadImporter {
 			FileReader fr = new FileReader(file);
 			BufferedReader br = new BufferedReader(fr);
 
-			processFASTAFile(br);
+			executor = Executors.newFixedThreadPool(threads);
+
+			try {
+				processFASTAFile(br);
+			} finally {
+				executor.shutdownNow();
+				executor = null;
+
+				pending = null;
+				block = null;
+				readnamesSeen = null;
+				readsLoaded = null;
+			}
 
 			conn.setAutoCommit(oldAutoCommit);
 			conn.setTransactionIsolation(oldTransactionIsolationLevel);
@@ -147,41 +243,77 @@ public class ConsensusReadImporter {
 		catch (IOException ioe) {
 			throw new ArcturusDatabaseException(ioe);
 		}
+		catch (InterruptedException ie) {
+			throw new ArcturusDatabaseException(ie,
+					"The consensus read import was interrupted");
+		}
+		catch (ExecutionException ee) {
+			throw new ArcturusDatabaseException(ee.getCause(),
+					"An error occurred when encoding the consensus reads");
+		}
 	}
 
 	private void prepareStatements() throws SQLException {
 		pstmtGetPassStatus = conn.prepareStatement(GET_PASS_STATUS);
 
-		pstmtInsertReadInfo = conn.prepareStatement(INSERT_READINFO,
-				Statement.RETURN_GENERATED_KEYS);
+		String inList = createPlaceholderList(READS_PER_BLOCK);
 
-		pstmtGetTemplateID = conn.prepareStatement(GET_TEMPLATE_ID);
+		pstmtGetExistingReads = conn.prepareStatement(GET_EXISTING_READS + inList);
 
-		pstmtInsertTemplate = conn.prepareStatement(INSERT_TEMPLATE,
-				Statement.RETURN_GENERATED_KEYS);
+		pstmtGetReadIDs = conn.prepareStatement(GET_READ_IDS + inList);
 
-		pstmtUpdateReadInfo = conn.prepareStatement(UPDATE_READINFO);
+		pstmtGetTemplateIDs = conn.prepareStatement(GET_TEMPLATE_IDS + inList);
+	}
 
-		pstmtInsertSequence = conn.prepareStatement(INSERT_SEQUENCE,
-				Statement.RETURN_GENERATED_KEYS);
+	private void closeStatements() throws SQLException {
+		pstmtGetExistingReads.close();
+		pstmtGetReadIDs.close();
+		pstmtGetTemplateIDs.close();
 
-		pstmtInsertSeq2Read = conn.prepareStatement(INSERT_SEQ2READ);
+		pstmtGetPassStatus = null;
+		pstmtGetExistingReads = null;
+		pstmtGetReadIDs = null;
+		pstmtGetTemplateIDs = null;
+	}
 
-		pstmtInsertReadTag = conn.prepareStatement(INSERT_READTAG);
+	private String createPlaceholderList(int size) {
+		StringBuilder sb = new StringBuilder("(?");
 
-		pstmtInsertQualityClip = conn.prepareStatement(INSERT_QUALITYCLIP);
+		for (int i = 1; i < size; i++)
+			sb.append(",?");
+
+		sb.append(")");
+
+		return sb.toString();
 	}
 
-	private void closeStatements() throws SQLException {
-		pstmtGetPassStatus = null;
-		pstmtInsertReadInfo = null;
-		pstmtGetTemplateID = null;
-		pstmtInsertTemplate = null;
-		pstmtUpdateReadInfo = null;
-		pstmtInsertSequence = null;
-		pstmtInsertSeq2Read = null;
-		pstmtInsertReadTag = null;
-		pstmtInsertQualityClip = null;
+	/*
+	 * Binds the names to a statement which expects exactly READS_PER_BLOCK
+	 * names, padding the list by repeating the last name.
+	 */
+
+	private void bindNames(PreparedStatement pstmt, List<String> names)
+			throws SQLException {
+		String name = null;
+
+		for (int i = 0; i < READS_PER_BLOCK; i++) {
+			if (i < names.size())
+				name = names.get(i);
+
+			pstmt.setString(i + 1, name);
+		}
+	}
+
+	private PreparedStatement prepareMultiRowInsert(String insert, String row,
+			int rows, boolean returnKeys) throws SQLException {
+		StringBuilder sb = new StringBuilder(insert);
+
+		for (int i = 0; i < rows; i++)
+			sb.append(i == 0 ? " values " : ",").append(row);
+
+		return returnKeys ? conn.prepareStatement(sb.toString(),
+				Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sb
+				.toString());
 	}
 
 	private void getPassValue() throws SQLException {
@@ -195,22 +327,24 @@ public class ConsensusReadImporter {
 	}
 
 	private void processFASTAFile(BufferedReader br) throws IOException,
-			SQLException {
+			SQLException, InterruptedException, ExecutionException {
+		pending = new LinkedList<Future<List<ConsensusRead>>>();
+		block = new ArrayList<ConsensusRead>(READS_PER_BLOCK);
+		blockBases = 0;
+
+		readnamesSeen = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		readsLoaded = new Vector<String>();
+
 		StringBuilder sb = null;
 
 		String seqname = null;
 
 		String line;
 
-		List<String> readsLoaded = new Vector<String>();
-
 		while ((line = br.readLine()) != null) {
 			if (line.startsWith(FASTA_PREFIX)) {
-				if (seqname != null) {
-					boolean ok = processSequence(seqname, sb.toString());
-					if (ok)
-						readsLoaded.add(seqname);
-				}
+				if (seqname != null)
+					addRead(new ConsensusRead(seqname, sb.toString()));
 
 				line = line.substring(1);
 
@@ -224,11 +358,14 @@ public class ConsensusReadImporter {
 			}
 		}
 
-		if (seqname != null) {
-			boolean ok = processSequence(seqname, sb.toString());
-			if (ok)
-				readsLoaded.add(seqname);
-		}
+		if (seqname != null)
+			addRead(new ConsensusRead(seqname, sb.toString()));
+
+		if (!block.isEmpty())
+			pending.add(submitBlock(block));
+
+		while (!pending.isEmpty())
+			storeBlock(pending.removeFirst().get());
 
 		if (!readsLoaded.isEmpty()) {
 			notify("\n\nThe following consensus reads were successfully stored:\n");
@@ -240,157 +377,325 @@ public class ConsensusReadImporter {
 		}
 	}
 
+	private void addRead(ConsensusRead read) throws SQLException,
+			InterruptedException, ExecutionException {
+		block.add(read);
+		blockBases += read.seqlen;
+
+		if (block.size() < READS_PER_BLOCK && blockBases < BASES_PER_BLOCK)
+			return;
+
+		pending.add(submitBlock(block));
+
+		block = new ArrayList<ConsensusRead>(READS_PER_BLOCK);
+		blockBases = 0;
+
+		while (pending.size() > TASKS_PER_THREAD * threads)
+			storeBlock(pending.removeFirst().get());
+	}
+
+	private Future<List<ConsensusRead>> submitBlock(
+			final List<ConsensusRead> reads) {
+		return executor.submit(new Callable<List<ConsensusRead>>() {
+			public List<ConsensusRead> call() throws Exception {
+				MessageDigest digester = MessageDigest.getInstance("MD5");
+				Deflater compresser = new Deflater();
+
+				try {
+					for (ConsensusRead read : reads)
+						read.encode(digester, compresser);
+				} finally {
+					compresser.end();
+				}
+
+				return reads;
+			}
+		});
+	}
+
 	private void notify(String message) {
 		if (listener != null)
 			listener.report(message);
 	}
 
-	private boolean processSequence(String seqname, String dna)
-			throws SQLException {
-		notify("\nStoring consensus read \"" + seqname + "\" (" + dna.length()
-				+ " bp)");
+	private void storeBlock(List<ConsensusRead> reads) throws SQLException {
+		Map<String, Boolean> existingReads = findExistingReads(reads);
+
+		List<ConsensusRead> readsToStore = new ArrayList<ConsensusRead>(reads.size());
+
+		for (ConsensusRead read : reads) {
+			notify("\nStoring consensus read \"" + read.readname + "\" ("
+					+ read.seqlen + " bp)");
+
+			Boolean sameSequence = existingReads.get(read.readname);
+
+			if (!readnamesSeen.add(read.readname))
+				notify("  -- A read named " + read.readname
+						+ " occurs more than once in the file");
+			else if (sameSequence == null)
+				readsToStore.add(read);
+			else if (sameSequence)
+				notify("  -- A read named " + read.readname
+						+ " with the same sequence is already stored in the database");
+			else
+				notify("  -- A read named " + read.readname
+						+ " already exists in the database");
+		}
+
+		if (readsToStore.isEmpty())
+			return;
 
 		try {
-			int read_id;
+			assignTemplates(readsToStore);
 
-			try {
-				read_id = insertReadInfo(seqname);
-			} catch (SQLException e) {
-				if (e.getErrorCode() == MysqlErrorNumbers.ER_DUP_ENTRY) {
-					notify("  -- A read named " + seqname
-							+ " already exists in the database");
-					conn.rollback();
-					return false;
-				} else
-					throw e;
-			}
+			insertReadInfo(readsToStore);
 
-			notify("  -- Read ID is " + read_id);
+			insertSequences(readsToStore);
 
-			int template_id;
+			insertSeq2Read(readsToStore);
 
-			String[] words = seqname.split("\\.");
+			insertReadTags(readsToStore);
 
-			String template_name = words[0];
+			insertQualityClips(readsToStore);
 
-			notify("  -- Looking up template " + template_name);
+			conn.commit();
+		} catch (SQLException sqle) {
+			Arcturus.logWarning(sqle);
+			conn.rollback();
+			notify("***** " + readsToStore.size()
+					+ " consensus reads were NOT stored because a database exception occurred : "
+					+ sqle.getMessage() + " *****");
+			return;
+		}
 
-			pstmtGetTemplateID.setString(1, template_name);
+		for (ConsensusRead read : readsToStore) {
+			notify("Consensus read " + read.readname
+					+ " successfully stored with read ID " + read.read_id
+					+ ", template ID " + read.template_id
+					+ " and sequence ID " + read.seq_id + ".");
 
-			ResultSet rs = pstmtGetTemplateID.executeQuery();
+			readsLoaded.add(read.readname);
+		}
+	}
 
-			template_id = rs.next() ? rs.getInt(1) : -1;
+	/*
+	 * Returns a map from the name of each read in the list which already
+	 * exists in the database to true if one of its stored sequences has the
+	 * same sequence and quality hashes as the read, or false otherwise.
+	 * Read names are compared without regard to case, as they are by the
+	 * database.
+	 */
 
-			rs.close();
+	private Map<String, Boolean> findExistingReads(List<ConsensusRead> reads)
+			throws SQLException {
+		Map<String, ConsensusRead> readsByName = new TreeMap<String, ConsensusRead>(
+				String.CASE_INSENSITIVE_ORDER);
 
-			if (template_id < 0) {
-				notify("  -- Creating new template " + template_name);
-				template_id = insertTemplate(template_name);
-			}
+		List<String> names = new ArrayList<String>(reads.size());
 
-			notify("  -- Template ID is " + template_id);
+		for (ConsensusRead read : reads) {
+			readsByName.put(read.readname, read);
+			names.add(read.readname);
+		}
 
-			setTemplateForRead(read_id, template_id);
+		Map<String, Boolean> existingReads = new TreeMap<String, Boolean>(
+				String.CASE_INSENSITIVE_ORDER);
 
-			int seq_id = insertSequence(dna);
+		bindNames(pstmtGetExistingReads, names);
 
-			notify("  -- Sequence ID is " + seq_id);
+		ResultSet rs = pstmtGetExistingReads.executeQuery();
 
-			insertSeq2Read(read_id, seq_id);
+		while (rs.next()) {
+			String readname = rs.getString(1);
 
-			insertReadTag(seq_id, DEFAULT_TAGTYPE, 1, dna.length(),
-					DEFAULT_TAG_COMMENT);
+			ConsensusRead read = readsByName.get(readname);
 
-			insertQualityClip(seq_id, 1, dna.length());
+			if (read == null)
+				continue;
 
-			conn.commit();
+			boolean sameSequence = Arrays.equals(read.seq_hash, rs.getBytes(2))
+					&& Arrays.equals(read.qual_hash, rs.getBytes(3));
 
-			notify("Consensus read " + seqname + " successfully stored.");
+			Boolean previous = existingReads.get(readname);
 
-			return true;
-		} catch (SQLException sqle) {
-			Arcturus.logWarning(sqle);
-			conn.rollback();
-			notify("***** The sequence was NOT stored because a database exception occurred : "
-					+ sqle.getMessage() + " *****");
-			return false;
+			existingReads.put(readname, sameSequence
+					|| (previous != null && previous));
 		}
+
+		rs.close();
+
+		return existingReads;
 	}
 
-	private int insertReadInfo(String readname) throws SQLException {
-		pstmtInsertReadInfo.setString(1, readname);
-		pstmtInsertReadInfo.setString(2, DEFAULT_CHEMISTRY);
-		pstmtInsertReadInfo.setInt(3, passValue);
+	private void assignTemplates(List<ConsensusRead> reads) throws SQLException {
+		// Template names are compared without regard to case, as they are
+		// by the UNIQUE key on TEMPLATE.name.
+		Set<String> templateNames = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
 
-		pstmtInsertReadInfo.executeUpdate();
+		for (ConsensusRead read : reads)
+			templateNames.add(read.getTemplateName());
 
-		ResultSet rs = pstmtInsertReadInfo.getGeneratedKeys();
+		Map<String, Integer> templateIDs = findTemplateIDs(templateNames);
 
-		int read_id = rs.next() ? rs.getInt(1) : -1;
+		Set<String> newTemplates = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
 
-		rs.close();
+		for (String name : templateNames)
+			if (!templateIDs.containsKey(name))
+				newTemplates.add(name);
 
-		return read_id;
-	}
+		if (!newTemplates.isEmpty()) {
+			for (String name : newTemplates)
+				notify("  -- Creating new template " + name);
 
-	private int insertTemplate(String templateName) throws SQLException {
-		pstmtInsertTemplate.setString(1, templateName);
+			PreparedStatement pstmt = prepareMultiRowInsert(INSERT_TEMPLATE,
+					TEMPLATE_ROW, newTemplates.size(), false);
 
-		pstmtInsertTemplate.executeUpdate();
+			int column = 1;
 
-		ResultSet rs = pstmtInsertTemplate.getGeneratedKeys();
+			for (String name : newTemplates)
+				pstmt.setString(column++, name);
 
-		int template_id = rs.next() ? rs.getInt(1) : -1;
+			pstmt.executeUpdate();
+			pstmt.close();
 
-		rs.close();
+			templateIDs.putAll(findTemplateIDs(newTemplates));
+		}
+
+		for (ConsensusRead read : reads) {
+			Integer template_id = templateIDs.get(read.getTemplateName());
 
-		return template_id;
+			if (template_id == null)
+				throw new SQLException("Failed to find or create template "
+						+ read.getTemplateName());
+
+			read.template_id = template_id;
+		}
 	}
 
-	private void setTemplateForRead(int read_id, int template_id)
+	private Map<String, Integer> findTemplateIDs(Iterable<String> names)
 			throws SQLException {
-		pstmtUpdateReadInfo.setInt(1, template_id);
-		pstmtUpdateReadInfo.setInt(2, read_id);
+		List<String> list = new ArrayList<String>();
+
+		for (String name : names)
+			list.add(name);
+
+		bindNames(pstmtGetTemplateIDs, list);
+
+		Map<String, Integer> templateIDs = new TreeMap<String, Integer>(
+				String.CASE_INSENSITIVE_ORDER);
+
+		ResultSet rs = pstmtGetTemplateIDs.executeQuery();
+
+		while (rs.next())
+			templateIDs.put(rs.getString(1), rs.getInt(2));
 
-		pstmtUpdateReadInfo.executeUpdate();
+		rs.close();
+
+		return templateIDs;
 	}
 
-	private int insertSequence(String dna) throws SQLException {
-		int seqlen = dna.length();
+	private void insertReadInfo(List<ConsensusRead> reads) throws SQLException {
+		PreparedStatement pstmt = prepareMultiRowInsert(INSERT_READINFO,
+				READINFO_ROW, reads.size(), false);
 
-		byte[] sequence = null;
+		int column = 1;
 
-		try {
-			sequence = dna.getBytes("US-ASCII");
-		} catch (UnsupportedEncodingException e) {
-			Arcturus.logWarning(e);
+		for (ConsensusRead read : reads) {
+			pstmt.setString(column++, read.readname);
+			pstmt.setString(column++, DEFAULT_CHEMISTRY);
+			pstmt.setInt(column++, passValue);
+			pstmt.setInt(column++, read.template_id);
 		}
 
-		byte[] quality = createQualityArray(seqlen);
-
-		byte[] seq_hash = calculateMD5Hash(sequence);
+		pstmt.executeUpdate();
+		pstmt.close();
 
-		byte[] qual_hash = calculateMD5Hash(quality);
+		Map<String, ConsensusRead> readsByName = new TreeMap<String, ConsensusRead>(
+				String.CASE_INSENSITIVE_ORDER);
 
-		sequence = compress(sequence);
+		List<String> names = new ArrayList<String>(reads.size());
 
-		quality = compress(quality);
+		for (ConsensusRead read : reads) {
+			readsByName.put(read.readname, read);
+			names.add(read.readname);
+			read.read_id = -1;
+		}
 
-		pstmtInsertSequence.setInt(1, seqlen);
-		pstmtInsertSequence.setBytes(2, seq_hash);
-		pstmtInsertSequence.setBytes(3, qual_hash);
-		pstmtInsertSequence.setBytes(4, sequence);
-		pstmtInsertSequence.setBytes(5, quality);
+		bindNames(pstmtGetReadIDs, names);
 
-		pstmtInsertSequence.executeUpdate();
+		ResultSet rs = pstmtGetReadIDs.executeQuery();
 
-		ResultSet rs = pstmtInsertSequence.getGeneratedKeys();
+		while (rs.next()) {
+			ConsensusRead read = readsByName.get(rs.getString(1));
 
-		int seq_id = rs.next() ? rs.getInt(1) : -1;
+			if (read != null)
+				read.read_id = rs.getInt(2);
+		}
 
 		rs.close();
 
-		return seq_id;
+		for (ConsensusRead read : reads)
+			if (read.read_id < 0)
+				throw new SQLException("Failed to find the read ID of "
+						+ read.readname);
+	}
+
+	private void insertSequences(List<ConsensusRead> reads) throws SQLException {
+		int from = 0;
+
+		while (from < reads.size()) {
+			int to = from;
+			int bytes = 0;
+
+			while (to < reads.size()) {
+				ConsensusRead read = reads.get(to);
+
+				int size = read.sequence.length + read.quality.length;
+
+				if (to > from && bytes + size > MAX_SEQUENCE_INSERT_BYTES)
+					break;
+
+				bytes += size;
+				to++;
+			}
+
+			insertSequenceRows(reads.subList(from, to));
+
+			from = to;
+		}
+	}
+
+	private void insertSequenceRows(List<ConsensusRead> reads)
+			throws SQLException {
+		PreparedStatement pstmt = prepareMultiRowInsert(INSERT_SEQUENCE,
+				SEQUENCE_ROW, reads.size(), true);
+
+		int column = 1;
+
+		for (ConsensusRead read : reads) {
+			pstmt.setInt(column++, read.seqlen);
+			pstmt.setBytes(column++, read.seq_hash);
+			pstmt.setBytes(column++, read.qual_hash);
+			pstmt.setBytes(column++, read.sequence);
+			pstmt.setBytes(column++, read.quality);
+		}
+
+		pstmt.executeUpdate();
+
+		// MySQL allocates consecutive IDs to the rows of a multi-row insert,
+		// and returns them in the order in which the rows were listed.
+		ResultSet rs = pstmt.getGeneratedKeys();
+
+		for (ConsensusRead read : reads) {
+			if (!rs.next())
+				throw new SQLException("Expected " + reads.size()
+						+ " sequence IDs from a multi-row insert into SEQUENCE");
+
+			read.seq_id = rs.getInt(1);
+		}
+
+		rs.close();
+		pstmt.close();
 	}
 
 	private byte[] createQualityArray(int seqlen) {
@@ -404,16 +709,7 @@ public class ConsensusReadImporter {
 		return quality;
 	}
 
-	private byte[] calculateMD5Hash(byte[] data) {
-		if (digester == null)
-			return null;
-
-		digester.reset();
-
-		return digester.digest(data);
-	}
-
-	private byte[] compress(byte[] data) {
+	private static byte[] compress(Deflater compresser, byte[] data) {
 		byte[] buffer = new byte[12 + (5 * data.length) / 4];
 
 		compresser.reset();
@@ -424,37 +720,59 @@ public class ConsensusReadImporter {
 
 		byte[] compressedData = new byte[compressedLength];
 
-		for (int i = 0; i < compressedLength; i++)
-			compressedData[i] = buffer[i];
+		System.arraycopy(buffer, 0, compressedData, 0, compressedLength);
 
 		return compressedData;
 	}
 
-	private void insertSeq2Read(int read_id, int seq_id) throws SQLException {
-		pstmtInsertSeq2Read.setInt(1, read_id);
-		pstmtInsertSeq2Read.setInt(2, seq_id);
+	private void insertSeq2Read(List<ConsensusRead> reads) throws SQLException {
+		PreparedStatement pstmt = prepareMultiRowInsert(INSERT_SEQ2READ,
+				SEQ2READ_ROW, reads.size(), false);
+
+		int column = 1;
+
+		for (ConsensusRead read : reads) {
+			pstmt.setInt(column++, read.read_id);
+			pstmt.setInt(column++, read.seq_id);
+		}
 
-		pstmtInsertSeq2Read.executeUpdate();
+		pstmt.executeUpdate();
+		pstmt.close();
 	}
 
-	private void insertReadTag(int seq_id, String tagtype, int pstart,
-			int pfinal, String comment) throws SQLException {
-		pstmtInsertReadTag.setInt(1, seq_id);
-		pstmtInsertReadTag.setString(2, tagtype);
-		pstmtInsertReadTag.setInt(3, pstart);
-		pstmtInsertReadTag.setInt(4, pfinal);
-		pstmtInsertReadTag.setString(5, comment);
+	private void insertReadTags(List<ConsensusRead> reads) throws SQLException {
+		PreparedStatement pstmt = prepareMultiRowInsert(INSERT_READTAG,
+				READTAG_ROW, reads.size(), false);
+
+		int column = 1;
 
-		pstmtInsertReadTag.executeUpdate();
+		for (ConsensusRead read : reads) {
+			pstmt.setInt(column++, read.seq_id);
+			pstmt.setString(column++, DEFAULT_TAGTYPE);
+			pstmt.setInt(column++, 1);
+			pstmt.setInt(column++, read.seqlen);
+			pstmt.setString(column++, DEFAULT_TAG_COMMENT);
+		}
+
+		pstmt.executeUpdate();
+		pstmt.close();
 	}
 
-	private void insertQualityClip(int seq_id, int qleft, int qright)
+	private void insertQualityClips(List<ConsensusRead> reads)
 			throws SQLException {
-		pstmtInsertQualityClip.setInt(1, seq_id);
-		pstmtInsertQualityClip.setInt(2, qleft);
-		pstmtInsertQualityClip.setInt(3, qright);
+		PreparedStatement pstmt = prepareMultiRowInsert(INSERT_QUALITYCLIP,
+				QUALITYCLIP_ROW, reads.size(), false);
+
+		int column = 1;
 
-		pstmtInsertQualityClip.executeUpdate();
+		for (ConsensusRead read : reads) {
+			pstmt.setInt(column++, read.seq_id);
+			pstmt.setInt(column++, 1);
+			pstmt.setInt(column++, read.seqlen);
+		}
+
+		pstmt.executeUpdate();
+		pstmt.close();
 	}
 
 	public static void printUsage(PrintStream ps) {
@@ -462,6 +780,11 @@ public class ConsensusReadImporter {
 		ps.println("\t-instance\tName of instance");
 		ps.println("\t-organism\tName of organism");
 		ps.println("\t-filename\tName of FASTA file to import");
+		ps.println();
+		ps.println("OPTIONAL PARAMETERS:");
+		ps.println("\t-quality\tBase quality of the consensus reads [DEFAULT: "
+				+ DEFAULT_QUALITY + "]");
+		ps.println("\t-threads\tNumber of worker threads [DEFAULT: number of processors]");
 	}
 
 	public static void main(String args[]) {
@@ -469,6 +792,7 @@ public class ConsensusReadImporter {
 		String organism = null;
 		String filename = null;
 		int quality = 2;
+		int threads = 0;
 
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equalsIgnoreCase("-instance"))
@@ -482,6 +806,9 @@ public class ConsensusReadImporter {
 
 			if (args[i].equalsIgnoreCase("-quality"))
 				quality = Integer.parseInt(args[++i]);
+
+			if (args[i].equalsIgnoreCase("-threads"))
+				threads = Integer.parseInt(args[++i]);
 		}
 
 		File file = null;
@@ -530,6 +857,9 @@ public class ConsensusReadImporter {
 
 			ConsensusReadImporter importer = new ConsensusReadImporter();
 
+			if (threads > 0)
+				importer.setThreads(threads);
+
 			ConsensusReadImporterListener listener = new ConsensusReadImporterListener() {
 				public void report(String message) {
 					System.out.println(message);
@@ -31,15 +31,17 @@ import java.util.zip.DataFormatException;
  */
 
 public class Contig extends Core {
-	protected int length;
-	protected int nreads;
-	protected Date updated = null;
-	protected Date created = null;
-	protected Mapping[] mappings = null;
-	protected byte[] dna = null;
-	protected byte[] quality = null;
-	protected Project project = null;
-	protected Vector<Tag> tags = null;
+	// A cached contig may be updated by the managers of several threads when
+	// the database is in concurrent mode, hence the volatile fields.
+	protected volatile int length;
+	protected volatile int nreads;
+	protected volatile Date updated = null;
+	protected volatile Date created = null;
+	protected volatile Mapping[] mappings = null;
+	protected volatile byte[] dna = null;
+	protected volatile byte[] quality = null;
+	protected volatile Project project = null;
+	protected volatile Vector<Tag> tags = null;
 
 	/**
 	 * Constructs a Contig which does not yet have an ID or a name. This
@@ -196,7 +198,7 @@ public class Contig extends Core {
 		this.quality = quality;
 	}
 
-	public void addTag(Tag tag) {
+	public synchronized void addTag(Tag tag) {
 		if (tags == null)
 			tags = new Vector<Tag>();
 		
@@ -29,17 +29,19 @@ import java.util.Vector;
  */
 
 public class Sequence extends Core {
-	protected Read read = null;
-	protected byte[] dna = null;
-	protected byte[] quality = null;
-	protected int length = -1;
-	protected int version;
-	protected Clipping qualityClip = null;
-	protected Clipping cvectorClip = null;
-	protected Clipping svectorClipLeft = null;
-	protected Clipping svectorClipRight = null;
-	protected AlignToSCF[] alignToSCF = null;
-	protected Vector<Tag> tags = null;
+	// The DNA, quality and clipping of a cached sequence may be loaded by one
+	// thread and read by another, so these fields are volatile.
+	protected volatile Read read = null;
+	protected volatile byte[] dna = null;
+	protected volatile byte[] quality = null;
+	protected volatile int length = -1;
+	protected volatile int version;
+	protected volatile Clipping qualityClip = null;
+	protected volatile Clipping cvectorClip = null;
+	protected volatile Clipping svectorClipLeft = null;
+	protected volatile Clipping svectorClipRight = null;
+	protected volatile AlignToSCF[] alignToSCF = null;
+	protected volatile Vector<Tag> tags = null;
 
 	/**
 	 * Construct a Sequence object for the specified read.
@@ -371,7 +373,7 @@ public class Sequence extends Core {
 	 * @param tag the tag to be added to the sequence.
 	 */
 	
-	public void addTag(Tag tag) {
+	public synchronized void addTag(Tag tag) {
 		if (tags == null)
 			tags = new Vector<Tag>();
 		
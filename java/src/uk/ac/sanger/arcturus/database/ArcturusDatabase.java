@@ -131,6 +131,8 @@ public interface ArcturusDatabase {
 	 * Connection object will be cached. The second and subsequent calls will
 	 * return the cached object.
 	 * 
+	 * In concurrent mode, each thread has its own default connection.
+	 * 
 	 * @return a java.sql.Connection which can be used to communicate with the
 	 *         database.
 	 * 
@@ -159,6 +161,29 @@ public interface ArcturusDatabase {
 	public Connection getPooledConnection(Object owner)
 			throws ArcturusDatabaseException;
 
+	/**
+	 * Returns true if this object is in concurrent mode. In concurrent mode,
+	 * each thread is served by its own manager objects, which use their own
+	 * connection from the pool, so that several threads may query the
+	 * database at the same time. Concurrent mode is enabled by setting the
+	 * property arcturus.database.concurrent to true.
+	 * 
+	 * @return true if this object is in concurrent mode.
+	 */
+
+	public boolean isConcurrent();
+
+	/**
+	 * Releases the manager objects which serve the calling thread in
+	 * concurrent mode, and returns their connection to the pool. A worker
+	 * thread should call this method when it has finished using the database.
+	 * The resources of threads which have terminated are also released
+	 * whenever a pooled connection is requested. This method has no effect in
+	 * the default mode.
+	 */
+
+	public void releaseThreadResources();
+
 	/**
 	 * Sets the logger for this object.
 	 * 
@@ -182,6 +207,31 @@ public interface ArcturusDatabase {
 	
 	public void clearCache(int type);
 	
+	/**
+	 * Sets the limits on the cache of objects of the specified type. When a
+	 * limit is exceeded, the least recently used objects are evicted from the
+	 * cache.
+	 * 
+	 * @param type
+	 *            the type of object, such as READ or SEQUENCE.
+	 * @param maxEntries
+	 *            the maximum number of objects, or zero for no limit.
+	 * @param maxWeight
+	 *            the maximum estimated size in bytes of the cached objects, or
+	 *            zero for no limit.
+	 */
+	
+	public void setCacheLimits(int type, int maxEntries, long maxWeight);
+	
+	/**
+	 * Loads every object of the specified type into the cache. If the cache
+	 * has an entry limit which is too small to hold them all, the limit is
+	 * raised, so that the preload does not evict what it has just loaded.
+	 * 
+	 * @param type
+	 *            the type of object, such as READ or TEMPLATE.
+	 */
+	
 	public void preload(int type) throws ArcturusDatabaseException;
 
 	public Clone getCloneByName(String name) throws ArcturusDatabaseException;
@@ -267,6 +317,40 @@ public interface ArcturusDatabase {
 	public void updateContig(Contig contig, int options)
 			throws ArcturusDatabaseException;
 
+	/**
+	 * Updates an array of contigs, fetching each type of data specified by the
+	 * options for a block of contigs at a time rather than for one contig at a
+	 * time.
+	 * 
+	 * @param contigs
+	 *            the contigs to be updated.
+	 * @param options
+	 *            the data to load, as in updateContig.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst loading the data.
+	 */
+
+	public void updateContigs(Contig[] contigs, int options)
+			throws ArcturusDatabaseException;
+
+	/**
+	 * Sets the number of contigs whose data are fetched together by
+	 * updateContigs and by the methods which process contigs by project or
+	 * process all current contigs.
+	 * 
+	 * @param batchSize
+	 *            the number of contigs in each block.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst preparing the new queries.
+	 */
+
+	public void setContigBatchSize(int batchSize)
+			throws ArcturusDatabaseException;
+
+	public int getContigBatchSize();
+
 	public boolean isCurrentContig(int contigid) throws ArcturusDatabaseException;
 
 	public int[] getCurrentContigIDList() throws ArcturusDatabaseException;
@@ -304,6 +388,47 @@ public interface ArcturusDatabase {
 	public Set getContigsByProject(int project_id, int options)
 			throws ArcturusDatabaseException;
 
+	/**
+	 * Returns an iterator which fetches the current contigs in a project one
+	 * block at a time, instead of gathering all of them into a Set. Each
+	 * contig is populated with the data specified by the options. The contigs
+	 * are not cached, so memory use does not grow with the size of the
+	 * project.
+	 * 
+	 * @param project_id
+	 *            the ID of the project.
+	 * @param options
+	 *            the data to load for each contig.
+	 * @param minlen
+	 *            the minimum contig length.
+	 * 
+	 * @return an iterator over the contigs, which must be closed by the caller.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst starting the query.
+	 */
+
+	public ContigIterator iterateContigsByProject(int project_id, int options,
+			int minlen) throws ArcturusDatabaseException;
+
+	/**
+	 * Returns an iterator which fetches all current contigs one block at a
+	 * time, instead of gathering all of them into a Set.
+	 * 
+	 * @param options
+	 *            the data to load for each contig.
+	 * @param minlen
+	 *            the minimum contig length.
+	 * 
+	 * @return an iterator over the contigs, which must be closed by the caller.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst starting the query.
+	 */
+
+	public ContigIterator iterateCurrentContigs(int options, int minlen)
+			throws ArcturusDatabaseException;
+
 	public Set<Contig> getChildContigs(Contig parent)
 			throws ArcturusDatabaseException;
 
@@ -347,13 +472,17 @@ public interface ArcturusDatabase {
 	public ProjectSummary getProjectSummary(Project project)
 			throws ArcturusDatabaseException;
 
-	public Map getProjectSummary(int minlen, int minreads)
-			throws ArcturusDatabaseException;
+	public Map<Integer, ProjectSummary> getProjectSummary(int minlen,
+			int minreads) throws ArcturusDatabaseException;
 
 	public Map getProjectSummary(int minlen) throws ArcturusDatabaseException;
 
 	public Map getProjectSummary() throws ArcturusDatabaseException;
 
+	public Map<Integer, java.util.Date> getContigTransferActivitySince(
+			java.util.Date since, Set<Integer> seenRequests)
+			throws ArcturusDatabaseException;
+
 	public boolean canUserUnlockProject(Project project, Person user)
 			throws ArcturusDatabaseException;
 
@@ -0,0 +1,67 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package uk.ac.sanger.arcturus.database;
+
+import uk.ac.sanger.arcturus.data.Contig;
+
+/**
+ * An iterator over a set of contigs which are fetched from the database as
+ * they are needed, rather than being gathered into a collection first.
+ * 
+ * The caller must call close when it has finished with the iterator, even if
+ * it did not reach the end of the set.
+ */
+
+public interface ContigIterator {
+	/**
+	 * Returns true if there are more contigs.
+	 * 
+	 * @return true if there are more contigs.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst fetching contigs.
+	 */
+
+	public boolean hasNext() throws ArcturusDatabaseException;
+
+	/**
+	 * Returns the next contig, populated with the data specified when the
+	 * iterator was created, or null if there are no more contigs.
+	 * 
+	 * @return the next contig, or null if there are no more contigs.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst fetching contigs.
+	 */
+
+	public Contig next() throws ArcturusDatabaseException;
+
+	/**
+	 * Releases the database resources held by this iterator.
+	 * 
+	 * @throws ArcturusDatabaseException
+	 *             in the event of an error whilst releasing the resources.
+	 */
+
+	public void close() throws ArcturusDatabaseException;
+}
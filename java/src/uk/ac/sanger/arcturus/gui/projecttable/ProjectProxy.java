@@ -35,6 +35,8 @@ import java.util.Date;
 public class ProjectProxy {
 	protected Project project = null;
 	protected ProjectSummary summary = null;
+	protected Date summaryProjectUpdated = null;
+	protected boolean summaryStale = false;
 	protected boolean importing = false;
 	protected boolean exporting = false;
 
@@ -42,22 +44,27 @@ public class ProjectProxy {
 		this.project = project;
 		
 		if (project != null)
-			summary = project.getProjectSummary(minlen, minreads);
+			setSummary(project.getProjectSummary(minlen, minreads));
+	}
+
+	public ProjectProxy(Project project, ProjectSummary summary) {
+		this.project = project;
+		setSummary(summary);
 	}
 
 	public void refreshSummary(int minlen) throws ArcturusDatabaseException {		
 		if (project != null)
-			summary = project.getProjectSummary(minlen);
+			setSummary(project.getProjectSummary(minlen));
 	}
 
 	public void refreshSummary() throws ArcturusDatabaseException {
 		if (project != null)
-			summary = project.getProjectSummary();
+			setSummary(project.getProjectSummary());
 	}
 	
 	public void refreshSummary(int minlen, int minreads) throws ArcturusDatabaseException {
 		if (project != null)
-			summary = project.getProjectSummary(minlen, minreads);
+			setSummary(project.getProjectSummary(minlen, minreads));
 	}
 
 	public String getName() {
@@ -82,6 +89,35 @@ public class ProjectProxy {
 	
 	public void setSummary(ProjectSummary summary) {
 		this.summary = summary;
+		summaryProjectUpdated = (project == null) ? null : project.getUpdated();
+		summaryStale = false;
+	}
+	
+	/**
+	 * Marks the summary as out of date, so that the next incremental refresh
+	 * of the project table will reload it.
+	 */
+	
+	public void invalidateSummary() {
+		summaryStale = true;
+	}
+	
+	/**
+	 * Returns true if the summary may be out of date, because it has been
+	 * invalidated or because the project's update timestamp has changed
+	 * since the summary was loaded.
+	 */
+	
+	public boolean isSummaryStale() {
+		if (summaryStale || project == null)
+			return summaryStale;
+		
+		Date updated = project.getUpdated();
+		
+		if (updated == null || summaryProjectUpdated == null)
+			return updated != summaryProjectUpdated;
+		
+		return updated.getTime() != summaryProjectUpdated.getTime();
 	}
 
 	public String getAssemblyName() {
@@ -31,6 +31,7 @@ import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
 import uk.ac.sanger.arcturus.data.Project;
 import uk.ac.sanger.arcturus.gui.SortableTableModel;
 import uk.ac.sanger.arcturus.people.Person;
+import uk.ac.sanger.arcturus.utils.ProjectSummary;
 
 class ProjectTableModel extends AbstractTableModel implements
 		SortableTableModel {
@@ -39,6 +40,10 @@ class ProjectTableModel extends AbstractTableModel implements
 	public static final int CONTIG_UPDATED_DATE = 3;
 
 	protected Vector<ProjectProxy> projects = new Vector<ProjectProxy>();
+	protected Map<Integer, ProjectProxy> proxies = new HashMap<Integer, ProjectProxy>();
+	protected Date lastContigTransfer = null;
+	protected Set<Integer> transfersSeenAtLast = new HashSet<Integer>();
+	protected boolean fullRefreshNeeded = true;
 	protected ProjectComparator comparator;
 	protected int lastSortColumn = 3;
 	protected ArcturusDatabase adb = null;
@@ -60,6 +65,10 @@ class ProjectTableModel extends AbstractTableModel implements
 	protected static final int OWNER_COLUMN = 7;
 	protected static final int LOCKED_COLUMN = 8;
 	protected static final int STATUS_COLUMN = 9;
+	
+	// If more than one project in this many has changed since the last refresh,
+	// it is quicker to reload every summary using the grouped query.
+	protected static final int FULL_REFRESH_RATIO = 4;
 
 	public ProjectTableModel(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
@@ -74,18 +83,108 @@ class ProjectTableModel extends AbstractTableModel implements
 		sortOnColumn(TOTAL_LENGTH_COLUMN);
 	}
 
+	/**
+	 * Reloads the projects and their summaries. The first refresh, and any
+	 * refresh after the minimum read count or the retired-project filter has
+	 * changed, loads every summary with a single grouped query. Subsequent
+	 * refreshes reload only the summaries of projects whose update timestamp
+	 * has changed, or which have taken part in a contig transfer, since the
+	 * previous refresh.
+	 */
+
 	public void refresh() throws ArcturusDatabaseException {
+		Set<Project> projectset = adb.getAllProjects();
+
+		Map<Integer, Date> transfers = adb.getContigTransferActivitySince(
+				lastContigTransfer, transfersSeenAtLast);
+
+		for (Date closed : transfers.values())
+			if (closed != null
+					&& (lastContigTransfer == null || closed.after(lastContigTransfer)))
+				lastContigTransfer = closed;
+
+		if (fullRefreshNeeded)
+			loadAllSummaries(projectset);
+		else
+			refreshChangedSummaries(projectset, transfers);
+
+		fullRefreshNeeded = false;
+
+		resort();
+	}
+
+	private void loadAllSummaries(Set<Project> projectset)
+			throws ArcturusDatabaseException {
+		Map<Integer, ProjectSummary> summaries = adb.getProjectSummary(minlen,
+				minreads);
+
 		projects.clear();
 
+		for (Project project : projectset) {
+			ProjectSummary summary = summaries.get(project.getID());
 
-		Set<Project> projectset = adb.getAllProjects();
+			if (summary == null)
+				summary = new ProjectSummary();
+
+			ProjectProxy proxy = getProxy(project);
+
+			proxy.setSummary(summary);
+
+			if (displayRetiredProjects || !project.isRetired())
+				projects.add(proxy);
+		}
+	}
+
+	private void refreshChangedSummaries(Set<Project> projectset,
+			Map<Integer, Date> transfers) throws ArcturusDatabaseException {
+		Vector<ProjectProxy> changed = new Vector<ProjectProxy>();
+
+		projects.clear();
 
 		for (Project project : projectset) {
-			if (displayRetiredProjects || !project.isRetired())				
-				projects.add(new ProjectProxy(project, minlen, minreads));
+			if (!displayRetiredProjects && project.isRetired())
+				continue;
+
+			ProjectProxy proxy = getProxy(project);
+
+			if (proxy.getSummary() == null || proxy.isSummaryStale()
+					|| transfers.containsKey(project.getID()))
+				changed.add(proxy);
+
+			projects.add(proxy);
 		}
 
-		resort();
+		if (changed.size() * FULL_REFRESH_RATIO > projects.size()) {
+			loadAllSummaries(projectset);
+			return;
+		}
+
+		for (ProjectProxy proxy : changed)
+			proxy.refreshSummary(minlen, minreads);
+	}
+
+	private ProjectProxy getProxy(Project project) {
+		ProjectProxy proxy = proxies.get(project.getID());
+
+		if (proxy == null) {
+			proxy = new ProjectProxy(project, null);
+			proxies.put(project.getID(), proxy);
+		}
+
+		return proxy;
+	}
+
+	/**
+	 * Marks the summary of the specified project as out of date, so that the
+	 * next refresh will reload it.
+	 */
+
+	public void invalidateSummary(Project project) {
+		ProjectProxy proxy = project == null ? null : proxies.get(project
+				.getID());
+
+		if (proxy != null)
+			proxy.invalidateSummary();
 	}
 
 	private void resort() {
@@ -373,6 +472,7 @@ class ProjectTableModel extends AbstractTableModel implements
 
 	protected void setMinimumReads(int minreads) {
 		this.minreads = minreads;
+		fullRefreshNeeded = true;
 		
 		try {
 			refresh();
@@ -383,6 +483,7 @@ class ProjectTableModel extends AbstractTableModel implements
 
 	public void showRetiredProjects(boolean show) {
 		this.displayRetiredProjects = show;
+		fullRefreshNeeded = true;
 		
 		try {
 			refresh();
@@ -511,6 +511,7 @@ public class ProjectTablePanel extends MinervaPanel implements
 	public void projectChanged(ProjectChangeEvent event) {
 		if (event.getType() == ProjectChangeEvent.CONTIGS_CHANGED)
 			try {
+				model.invalidateSummary(event.getProject());
 				refresh();
 			} catch (ArcturusDatabaseException e) {
 				Arcturus.logWarning("Failed to refresh project table panel", e);
@@ -23,12 +23,21 @@ package uk.ac.sanger.arcturus.jdbc;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
+import uk.ac.sanger.arcturus.Arcturus;
+import uk.ac.sanger.arcturus.cache.ObjectCache;
+import uk.ac.sanger.arcturus.cache.Weigher;
+import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
 
 public abstract class AbstractManager {
-	protected boolean cacheing = true;
+	protected volatile boolean cacheing = true;
 	protected Connection conn;
+	
+	protected Vector<ObjectCache<?, ?>> caches = new Vector<ObjectCache<?, ?>>();
 
 	public void setCacheing(boolean cacheing) {
 		this.cacheing = cacheing;
@@ -48,4 +57,131 @@ public abstract class AbstractManager {
 		this.conn = conn;		
 		prepareConnection();
 	}
+	
+	/**
+	 * Creates a bounded cache for this manager and registers it as an MBean.
+	 * The default limits may be overridden by the Arcturus properties
+	 * arcturus.cache.TYPE.maxentries, arcturus.cache.TYPE.maxweight and
+	 * arcturus.cache.TYPE.softreferences, where TYPE is the type name
+	 * given here.
+	 * 
+	 * @param adb the database to which this manager belongs.
+	 * @param type the type name of the cache, such as "sequence".
+	 * @param index the name of the key by which the cache is indexed.
+	 * @param maxEntries the default maximum number of entries.
+	 * @param maxWeight the default maximum total weight.
+	 * @param weigher the weigher for cached values, or null.
+	 * @param softReferences the default soft reference policy.
+	 * 
+	 * @return the new cache.
+	 */
+	
+	protected <K, V> ObjectCache<K, V> createCache(ArcturusDatabase adb,
+			String type, String index, int maxEntries, long maxWeight,
+			Weigher<? super V> weigher, boolean softReferences) {
+		String prefix = "arcturus.cache." + type + ".";
+		
+		maxEntries = (int)getLongProperty(prefix + "maxentries", maxEntries);
+		maxWeight = getLongProperty(prefix + "maxweight", maxWeight);
+		
+		String soft = Arcturus.getProperty(prefix + "softreferences");
+		
+		if (soft != null)
+			softReferences = soft.equalsIgnoreCase("true");
+		
+		String name = adb.getName() + "." + type + "." + index;
+		
+		ObjectCache<K, V> cache = new ObjectCache<K, V>(name, maxEntries,
+				maxWeight, weigher, softReferences);
+		
+		ObjectCache<K, V> shared = findOrAddSharedObject(adb, name, cache);
+		
+		if (shared == cache)
+			cache.registerAsMBean();
+		
+		caches.add(shared);
+		
+		return shared;
+	}
+	
+	/**
+	 * Creates a thread-safe map for this manager. In concurrent mode, the
+	 * managers which serve different threads share the same map, so that
+	 * there is only one object for each database row.
+	 * 
+	 * @param adb the database to which this manager belongs.
+	 * @param type the type name of the map, such as "clone".
+	 * @param index the name of the key by which the map is indexed.
+	 * 
+	 * @return the new map, or the existing map of the same name.
+	 */
+	
+	protected <K, V> Map<K, V> createMap(ArcturusDatabase adb, String type,
+			String index) {
+		Map<K, V> map = new ConcurrentHashMap<K, V>();
+		
+		return findOrAddSharedObject(adb, type + "." + index, map);
+	}
+	
+	/**
+	 * Returns the object of the given name which is shared by all managers of
+	 * the database, adding the given object under that name if there is none.
+	 */
+	
+	@SuppressWarnings("unchecked")
+	protected <T> T findOrAddSharedObject(ArcturusDatabase adb, String key, T value) {
+		if (adb instanceof ArcturusDatabaseImpl)
+			return (T) ((ArcturusDatabaseImpl) adb).findOrAddSharedObject(key, value);
+		else
+			return value;
+	}
+	
+	private long getLongProperty(String key, long defaultValue) {
+		String str = Arcturus.getProperty(key);
+		
+		if (str == null)
+			return defaultValue;
+		
+		try {
+			return Long.parseLong(str);
+		}
+		catch (NumberFormatException nfe) {
+			Arcturus.logWarning("Error parsing value of " + key, nfe);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Sets the limits of every cache belonging to this manager.
+	 * 
+	 * @param maxEntries the maximum number of entries, or ObjectCache.UNLIMITED.
+	 * @param maxWeight the maximum total weight, or ObjectCache.UNLIMITED.
+	 */
+	
+	public void setCacheLimits(int maxEntries, long maxWeight) {
+		for (ObjectCache<?, ?> cache : caches)
+			cache.setLimits(maxEntries, maxWeight);
+	}
+	
+	/**
+	 * Raises the entry limit of every bounded cache belonging to this manager
+	 * to at least the specified number, so that a preload does not evict the
+	 * objects which it has just loaded.
+	 * 
+	 * @param entries the number of objects which are about to be loaded.
+	 */
+	
+	protected void ensureCacheCapacity(int entries) {
+		for (ObjectCache<?, ?> cache : caches) {
+			int maxEntries = cache.getMaxSize();
+			
+			if (maxEntries != ObjectCache.UNLIMITED && maxEntries < entries)
+				cache.setMaxSize(entries);
+		}
+	}
+	
+	public void unregisterCaches() {
+		for (ObjectCache<?, ?> cache : caches)
+			cache.unregisterAsMBean();
+	}
 }
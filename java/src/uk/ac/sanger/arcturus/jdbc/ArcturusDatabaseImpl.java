@@ -33,7 +33,9 @@ import java.sql.SQLException;
 
 import javax.sql.DataSource;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
@@ -47,6 +49,7 @@ import java.util.logging.*;
 import uk.ac.sanger.arcturus.data.*;
 import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.database.ContigIterator;
 import uk.ac.sanger.arcturus.database.ContigProcessor;
 import uk.ac.sanger.arcturus.database.ProjectLockException;
 import uk.ac.sanger.arcturus.utils.ProjectSummary;
@@ -57,6 +60,7 @@ import uk.ac.sanger.arcturus.contigtransfer.ContigTransferRequest;
 import uk.ac.sanger.arcturus.contigtransfer.ContigTransferRequestException;
 
 import uk.ac.sanger.arcturus.pooledconnection.ConnectionPool;
+import uk.ac.sanger.arcturus.pooledconnection.PooledConnection;
 
 import uk.ac.sanger.arcturus.projectchange.*;
 
@@ -71,7 +75,7 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 
 	protected ArcturusInstance instance;
 
-	protected ConnectionPool connectionPool;
+	protected volatile ConnectionPool connectionPool;
 
 	protected Logger logger = null;
 
@@ -79,6 +83,8 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 
 	protected String defaultDirectory = null;
 
+	protected boolean concurrent = false;
+
 	/**
 	 * Creates a new ArcturusDatabase object from a DataSource, a description
 	 * and a name.
@@ -124,16 +130,35 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 	private void initialise() throws ArcturusDatabaseException {
 		connectionPool = new ConnectionPool(ds);
 
+		String str = Arcturus.getProperty("arcturus.database.concurrent");
+
+		concurrent = str != null && str.equalsIgnoreCase("true");
+
 		try {
 			defaultConnection = connectionPool.getConnection(this);
 		} catch (SQLException e) {
 			throw new ArcturusDatabaseException(e, "Failed to obtain default connection", null, this);
 		}
 
-		createManagers();
+		defaultManagers = new ManagerSet(Thread.currentThread(), defaultConnection);
+
+		if (concurrent)
+			threadManagers.set(defaultManagers);
+
+		defaultManagers.createManagers(this);
 	}
 
 	public synchronized void closeConnectionPool() {
+		for (AbstractManager manager : defaultManagers.managers)
+			manager.unregisterCaches();
+
+		synchronized (threadManagerSets) {
+			for (ManagerSet set : threadManagerSets)
+				set.close();
+
+			threadManagerSets.clear();
+		}
+
 		if (connectionPool != null) {
 			connectionPool.close();
 			connectionPool = null;
@@ -156,21 +181,47 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 		return instance;
 	}
 
-	public synchronized Connection getDefaultConnection() throws ArcturusDatabaseException {
-		if (defaultConnection == null)
-			try {
-				defaultConnection = connectionPool.getConnection(this);
-			} catch (SQLException e) {
-				throw new ArcturusDatabaseException(e, "Failed to obtain default connection", null, this);
-			}
+	public Connection getDefaultConnection() throws ArcturusDatabaseException {
+		if (concurrent) {
+			ManagerSet set = managers();
+
+			if (set != defaultManagers)
+				return set.connection;
+		}
 
-		return defaultConnection;
+		synchronized (this) {
+			if (defaultConnection == null)
+				try {
+					defaultConnection = connectionPool.getConnection(this);
+				} catch (SQLException e) {
+					throw new ArcturusDatabaseException(e, "Failed to obtain default connection", null, this);
+				}
+
+			return defaultConnection;
+		}
 	}
 
-	public synchronized Connection getPooledConnection(Object owner)
+	/*
+	 * This method is deliberately not synchronized, because the caller may
+	 * wait for some time for a connection to become free, and the pool has
+	 * its own queue of waiting threads.
+	 */
+
+	public Connection getPooledConnection(Object owner)
 			throws ArcturusDatabaseException {
+		ConnectionPool pool = connectionPool;
+
+		// Reclaim the connections of worker threads which have finished
+		// without calling releaseThreadResources.
+		if (concurrent)
+			releaseDeadThreadManagers();
+
+		if (pool == null)
+			throw new ArcturusDatabaseException(null,
+					"The connection pool has been closed", null, this);
+
 		try {
-			return connectionPool.getConnection(owner);
+			return pool.getConnection(owner);
 		} catch (SQLException e) {
 			throw new ArcturusDatabaseException(e, "Failed to get a pooled connection", null, this);
 		}
@@ -324,775 +375,1416 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 	 * services to the ArcturusDatabase.
 	 */
 
-	protected CloneManager cloneManager;
-	protected LigationManager ligationManager;
-	protected TemplateManager templateManager;
-	protected ReadManager readManager;
-	protected SequenceManager sequenceManager;
-	protected ContigManager contigManager;
-	protected ProjectManager projectManager;
-	protected AssemblyManager assemblyManager;
-	protected UserManager userManager;
-	protected ContigTransferRequestManager contigTransferRequestManager;
-	
-	protected Set<AbstractManager> managers = new HashSet<AbstractManager>();
+	protected ManagerSet defaultManagers;
 
-	private void createManagers() throws ArcturusDatabaseException {
-		cloneManager = new CloneManager(this);
-		managers.add(cloneManager);
-		
-		ligationManager = new LigationManager(this);
-		managers.add(ligationManager);
-		
-		templateManager = new TemplateManager(this);
-		managers.add(templateManager);
-		
-		readManager = new ReadManager(this);
-		managers.add(readManager);
-		
-		sequenceManager = new SequenceManager(this);
-		managers.add(sequenceManager);
-		
-		contigManager = new ContigManager(this);
-		managers.add(contigManager);
-		
-		projectManager = new ProjectManager(this);
-		managers.add(projectManager);
-		
-		assemblyManager = new AssemblyManager(this);
-		managers.add(assemblyManager);
-		
-		userManager = new UserManager(this);
-		managers.add(userManager);
-		
-		contigTransferRequestManager = new ContigTransferRequestManager(this);
-		managers.add(contigTransferRequestManager);
+	protected ThreadLocal<ManagerSet> threadManagers = new ThreadLocal<ManagerSet>();
+
+	protected Set<ManagerSet> threadManagerSets = new HashSet<ManagerSet>();
+
+	private final Map<String, Object> sharedObjects = new HashMap<String, Object>();
+
+	public boolean isConcurrent() {
+		return concurrent;
 	}
 
-	public synchronized CloneManager getCloneManager() {
-		return cloneManager;
+	/**
+	 * Returns the manager objects which serve the calling thread. In the
+	 * default mode, every thread shares the same managers. In concurrent mode,
+	 * each thread is given managers of its own, which prepare their statements
+	 * on a connection leased from the pool, the first time that it calls a
+	 * method which needs them.
+	 */
+
+	protected ManagerSet managers() {
+		if (!concurrent)
+			return defaultManagers;
+
+		ManagerSet set = threadManagers.get();
+
+		return set == null ? createThreadManagers() : set;
 	}
 
-	public synchronized Clone getCloneByName(String name) throws ArcturusDatabaseException {
+	private ManagerSet createThreadManagers() {
+		releaseDeadThreadManagers();
+
+		Thread thread = Thread.currentThread();
+
+		ManagerSet set = new ManagerSet(thread, null);
+
+		try {
+			set.connection = connectionPool.getConnection(set);
+
+			// The managers obtain their connection from getDefaultConnection,
+			// which must therefore find this set whilst they are created.
+			threadManagers.set(set);
+
+			set.createManagers(this);
+			set.copySettings(defaultManagers);
+		} catch (SQLException e) {
+			return abandonThreadManagers(set, e);
+		} catch (ArcturusDatabaseException e) {
+			return abandonThreadManagers(set, e);
+		}
+
+		synchronized (threadManagerSets) {
+			threadManagerSets.add(set);
+		}
+
+		return set;
+	}
+
+	private ManagerSet abandonThreadManagers(ManagerSet set, Exception e) {
+		threadManagers.remove();
+
+		set.close();
+
+		Arcturus.logWarning("Failed to create the managers for thread "
+				+ set.thread.getName() + ", so it will share the default managers", e);
+
+		return defaultManagers;
+	}
+
+	private void releaseDeadThreadManagers() {
+		synchronized (threadManagerSets) {
+			Iterator<ManagerSet> iter = threadManagerSets.iterator();
+
+			while (iter.hasNext()) {
+				ManagerSet set = iter.next();
+
+				if (!set.thread.isAlive()) {
+					iter.remove();
+					set.close();
+				}
+			}
+		}
+	}
+
+	public void releaseThreadResources() {
+		if (!concurrent)
+			return;
+
+		ManagerSet set = threadManagers.get();
+
+		if (set == null || set == defaultManagers)
+			return;
+
+		threadManagers.remove();
+
+		synchronized (threadManagerSets) {
+			threadManagerSets.remove(set);
+		}
+
+		synchronized (set) {
+			set.close();
+		}
+	}
+
+	/**
+	 * Returns the default managers followed by the managers of every thread.
+	 */
+
+	private Vector<ManagerSet> getAllManagerSets() {
+		Vector<ManagerSet> sets = new Vector<ManagerSet>();
+
+		sets.add(defaultManagers);
+
+		synchronized (threadManagerSets) {
+			sets.addAll(threadManagerSets);
+		}
+
+		return sets;
+	}
+
+	/**
+	 * Returns the object of the given name which is shared by the managers of
+	 * every thread, adding the given object under that name if there is none.
+	 */
+
+	Object findOrAddSharedObject(String key, Object value) {
+		synchronized (sharedObjects) {
+			Object existing = sharedObjects.get(key);
+
+			if (existing != null)
+				return existing;
+
+			sharedObjects.put(key, value);
+
+			return value;
+		}
+	}
+
+	public CloneManager getCloneManager() {
+		return managers().cloneManager;
+	}
+
+	public Clone getCloneByName(String name) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getCloneByName(" + name + ")");
 
-		return cloneManager.getCloneByName(name);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.cloneManager.getCloneByName(name);
+		}
 	}
 
-	public synchronized Clone getCloneByID(int id) throws ArcturusDatabaseException {
+	public Clone getCloneByID(int id) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getCloneByID(" + id + ")");
 
-		return cloneManager.getCloneByID(id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.cloneManager.getCloneByID(id);
+		}
 	}
 
-	public synchronized Ligation getLigationByName(String name)
+	public Ligation getLigationByName(String name)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getLigationByName(" + name + ")");
 
-		return ligationManager.getLigationByName(name);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.ligationManager.getLigationByName(name);
+		}
 	}
 
-	public synchronized Ligation getLigationByID(int id) throws ArcturusDatabaseException {
+	public Ligation getLigationByID(int id) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getLigationByID(" + id + ")");
 
-		return ligationManager.getLigationByID(id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.ligationManager.getLigationByID(id);
+		}
 	}
 
-	public synchronized Template getTemplateByName(String name)
+	public Template getTemplateByName(String name)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getTemplateByName(" + name + ")");
 
-		return templateManager.getTemplateByName(name);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.templateManager.getTemplateByName(name);
+		}
 	}
 
-	public synchronized Template getTemplateByName(String name, boolean autoload)
+	public Template getTemplateByName(String name, boolean autoload)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getTemplateByName(" + name + ", " + autoload + ")");
 
-		return templateManager.getTemplateByName(name, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.templateManager.getTemplateByName(name, autoload);
+		}
 	}
 
-	public synchronized Template getTemplateByID(int id) throws ArcturusDatabaseException {
+	public Template getTemplateByID(int id) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getTemplateByID(" + id + ")");
 
-		return templateManager.getTemplateByID(id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.templateManager.getTemplateByID(id);
+		}
 	}
 
-	public synchronized Template getTemplateByID(int id, boolean autoload)
+	public Template getTemplateByID(int id, boolean autoload)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getTemplateByID(" + id + ", " + autoload + ")");
 
-		return templateManager.getTemplateByID(id, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.templateManager.getTemplateByID(id, autoload);
+		}
 	}
 
 	void registerNewTemplate(Template template) {
-		templateManager.registerNewTemplate(template);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.templateManager.registerNewTemplate(template);
+		}
 	}
 
-	public synchronized Template findOrCreateTemplate(int id, String name,
+	public Template findOrCreateTemplate(int id, String name,
 			Ligation ligation) {
-		return templateManager.findOrCreateTemplate(id, name, ligation);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.templateManager.findOrCreateTemplate(id, name, ligation);
+		}
 	}
 
-	public synchronized Read getReadByName(String name) throws ArcturusDatabaseException {
+	public Read getReadByName(String name) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getReadByName(" + name + ")");
 
-		return readManager.getReadByName(name);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.getReadByName(name);
+		}
 	}
 
-	public synchronized Read getReadByName(String name, boolean autoload)
+	public Read getReadByName(String name, boolean autoload)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getReadByName(" + name + ", " + autoload + ")");
 
-		return readManager.getReadByName(name, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.getReadByName(name, autoload);
+		}
 	}
 
-	public synchronized Read getReadByID(int id) throws ArcturusDatabaseException {
+	public Read getReadByID(int id) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getReadByID(" + id + ")");
 
-		return readManager.getReadByID(id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.getReadByID(id);
+		}
 	}
 
-	public synchronized Read getReadByID(int id, boolean autoload)
+	public Read getReadByID(int id, boolean autoload)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getReadByID(" + id + ", " + autoload + ")");
 
-		return readManager.getReadByID(id, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.getReadByID(id, autoload);
+		}
 	}
 
-	public synchronized int loadReadsByTemplate(int template_id)
+	public int loadReadsByTemplate(int template_id)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("loadReadsByTemplate(" + template_id + ")");
 
-		return readManager.loadReadsByTemplate(template_id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.loadReadsByTemplate(template_id);
+		}
 	}
 
 	void registerNewRead(Read read) {
-		readManager.registerNewRead(read);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.readManager.registerNewRead(read);
+		}
 	}
 
-	public synchronized Read findOrCreateRead(int id, String name,
+	public Read findOrCreateRead(int id, String name,
 			Template template, java.util.Date asped, String strand,
 			String primer, String chemistry) {
-		return readManager.findOrCreateRead(id, name, template, asped, strand,
-				primer, chemistry);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.findOrCreateRead(id, name, template, asped, strand,
+					primer, chemistry);
+		}
 	}
 
-	public synchronized int[] getUnassembledReadIDList() throws ArcturusDatabaseException {
-		return readManager.getUnassembledReadIDList();
+	public int[] getUnassembledReadIDList() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.readManager.getUnassembledReadIDList();
+		}
 	}
 
-	public synchronized Sequence getSequenceByReadID(int readid)
+	public Sequence getSequenceByReadID(int readid)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getSequenceByReadID(" + readid + ")");
 
-		return sequenceManager.getSequenceByReadID(readid);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getSequenceByReadID(readid);
+		}
 	}
 
-	public synchronized Sequence getSequenceByReadID(int readid,
+	public Sequence getSequenceByReadID(int readid,
 			boolean autoload) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger
 					.info("getSequenceByReadID(" + readid + ", " + autoload
 							+ ")");
 
-		return sequenceManager.getSequenceByReadID(readid, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getSequenceByReadID(readid, autoload);
+		}
 	}
 
-	public synchronized Sequence getFullSequenceByReadID(int readid)
+	public Sequence getFullSequenceByReadID(int readid)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getFullSequenceByReadID(" + readid + ")");
 
-		return sequenceManager.getFullSequenceByReadID(readid);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getFullSequenceByReadID(readid);
+		}
 	}
 
-	public synchronized Sequence getFullSequenceByReadID(int readid,
+	public Sequence getFullSequenceByReadID(int readid,
 			boolean autoload) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getFullSequenceByReadID(" + readid + ", " + autoload
 					+ ")");
 
-		return sequenceManager.getFullSequenceByReadID(readid, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getFullSequenceByReadID(readid, autoload);
+		}
 	}
 
-	public synchronized Sequence getSequenceBySequenceID(int seqid)
+	public Sequence getSequenceBySequenceID(int seqid)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getSequenceBySequenceID(" + seqid + ")");
 
-		return sequenceManager.getSequenceBySequenceID(seqid);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getSequenceBySequenceID(seqid);
+		}
 	}
 
-	public synchronized Sequence getSequenceBySequenceID(int seqid,
+	public Sequence getSequenceBySequenceID(int seqid,
 			boolean autoload) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getSequenceBySequenceID(" + seqid + ", " + autoload
 					+ ")");
 
-		return sequenceManager.getSequenceBySequenceID(seqid, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getSequenceBySequenceID(seqid, autoload);
+		}
 	}
 
-	public synchronized Sequence getFullSequenceBySequenceID(int seqid)
+	public Sequence getFullSequenceBySequenceID(int seqid)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getFullSequenceBySequenceID(" + seqid + ")");
 
-		return sequenceManager.getFullSequenceBySequenceID(seqid);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getFullSequenceBySequenceID(seqid);
+		}
 	}
 
-	public synchronized Sequence getFullSequenceBySequenceID(int seqid,
+	public Sequence getFullSequenceBySequenceID(int seqid,
 			boolean autoload) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getFullSequenceBySequenceID(" + seqid + ", "
 					+ autoload + ")");
 
-		return sequenceManager.getFullSequenceBySequenceID(seqid, autoload);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.getFullSequenceBySequenceID(seqid, autoload);
+		}
 	}
 
-	public synchronized void getDNAAndQualityForSequence(Sequence sequence)
+	public void getDNAAndQualityForSequence(Sequence sequence)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getDNAAndQualityForSequence(seqid=" + sequence.getID()
 					+ ")");
 
-		sequenceManager.getDNAAndQualityForSequence(sequence);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.sequenceManager.getDNAAndQualityForSequence(sequence);
+		}
 	}
 
 	void registerNewSequence(Sequence sequence) {
-		sequenceManager.registerNewSequence(sequence);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.sequenceManager.registerNewSequence(sequence);
+		}
 	}
 
 	byte[] decodeCompressedData(byte[] compressed, int length) throws DataFormatException {
-		return sequenceManager.decodeCompressedData(compressed, length);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.decodeCompressedData(compressed, length);
+		}
 	}
 
-	public synchronized Sequence findOrCreateSequence(int seq_id, int length) {
-		return sequenceManager.findOrCreateSequence(seq_id, length);
+	public Sequence findOrCreateSequence(int seq_id, int length) {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.sequenceManager.findOrCreateSequence(seq_id, length);
+		}
 	}
 
-	public synchronized Contig getContigByID(int id, int options)
+	public Contig getContigByID(int id, int options)
 			throws ArcturusDatabaseException {
-		return contigManager.getContigByID(id, options);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getContigByID(id, options);
+		}
 	}
 
-	public synchronized Contig getContigByID(int id) throws ArcturusDatabaseException {
-		return contigManager.getContigByID(id);
+	public Contig getContigByID(int id) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getContigByID(id);
+		}
 	}
 
-	public synchronized Contig getContigByReadName(String readname, int options)
+	public Contig getContigByReadName(String readname, int options)
 			throws ArcturusDatabaseException {
-		return contigManager.getContigByReadName(readname, options);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getContigByReadName(readname, options);
+		}
 	}
 
-	public synchronized Contig getContigByReadName(String readname)
+	public Contig getContigByReadName(String readname)
 			throws ArcturusDatabaseException {
-		return contigManager.getContigByReadName(readname);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getContigByReadName(readname);
+		}
+	}
+
+	public void updateContig(Contig contig, int options)
+			throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigManager.updateContig(contig, options);
+		}
 	}
 
-	public synchronized void updateContig(Contig contig, int options)
+	public void updateContigs(Contig[] contigs, int options)
 			throws ArcturusDatabaseException {
-		contigManager.updateContig(contig, options);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigManager.updateContigs(contigs, options);
+		}
+	}
+
+	public void setContigBatchSize(int batchSize)
+			throws ArcturusDatabaseException {
+		for (ManagerSet m : getAllManagerSets()) {
+			synchronized (m) {
+				m.contigManager.setBatchSize(batchSize);
+			}
+		}
 	}
 
-	public synchronized boolean isCurrentContig(int contigid)
+	public int getContigBatchSize() {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getBatchSize();
+		}
+	}
+
+	public boolean isCurrentContig(int contigid)
 			throws ArcturusDatabaseException {
-		return contigManager.isCurrentContig(contigid);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.isCurrentContig(contigid);
+		}
 	}
 
-	public synchronized int[] getCurrentContigIDList() throws ArcturusDatabaseException {
-		return contigManager.getCurrentContigIDList();
+	public int[] getCurrentContigIDList() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getCurrentContigIDList();
+		}
 	}
 
-	public synchronized int countCurrentContigs(int minlen) throws ArcturusDatabaseException {
-		return contigManager.countCurrentContigs(minlen);
+	public int countCurrentContigs(int minlen) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.countCurrentContigs(minlen);
+		}
 	}
 
-	public synchronized int countCurrentContigs() throws ArcturusDatabaseException {
-		return contigManager.countCurrentContigs(0);
+	public int countCurrentContigs() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.countCurrentContigs(0);
+		}
 	}
 
-	public synchronized int processCurrentContigs(int options, int minlen,
+	public int processCurrentContigs(int options, int minlen,
 			ContigProcessor processor) throws ArcturusDatabaseException {
-		return contigManager.processCurrentContigs(options, minlen, processor);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.processCurrentContigs(options, minlen, processor);
+		}
 	}
 
-	public synchronized int processCurrentContigs(int options,
+	public int processCurrentContigs(int options,
 			ContigProcessor processor) throws ArcturusDatabaseException {
-		return contigManager.processCurrentContigs(options, 0, processor);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.processCurrentContigs(options, 0, processor);
+		}
 	}
 
-	public synchronized Set getCurrentContigs(int options, int minlen)
+	public Set getCurrentContigs(int options, int minlen)
 			throws ArcturusDatabaseException {
-		return contigManager.getCurrentContigs(options, minlen);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getCurrentContigs(options, minlen);
+		}
 	}
 
-	public synchronized Set getCurrentContigs(int options) throws ArcturusDatabaseException {
-		return contigManager.getCurrentContigs(options, 0);
+	public Set getCurrentContigs(int options) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getCurrentContigs(options, 0);
+		}
 	}
 
-	public synchronized int countContigsByProject(int project_id, int minlen)
+	public int countContigsByProject(int project_id, int minlen)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("countContigsByProject(" + project_id + ", " + minlen
 					+ ")");
 
-		return contigManager.countContigsByProject(project_id, minlen);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.countContigsByProject(project_id, minlen);
+		}
 	}
 
-	public synchronized int countContigsByProject(int project_id)
+	public int countContigsByProject(int project_id)
 			throws ArcturusDatabaseException {
 		return countContigsByProject(project_id, 0);
 	}
 
-	public synchronized int processContigsByProject(int project_id,
+	public int processContigsByProject(int project_id,
 			int options, int minlen, ContigProcessor processor)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("processContigsByProject(" + project_id + ", options="
 					+ options + ", minlen=" + minlen + ")");
 
-		return contigManager.processContigsByProject(project_id, options,
-				minlen, processor);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.processContigsByProject(project_id, options,
+					minlen, processor);
+		}
 	}
 
-	public synchronized int processContigsByProject(int project_id,
+	public int processContigsByProject(int project_id,
 			int options, ContigProcessor processor) throws ArcturusDatabaseException {
 		return processContigsByProject(project_id, options, 0, processor);
 	}
 
-	public synchronized Set<Contig> getContigsByProject(int project_id,
+	public Set<Contig> getContigsByProject(int project_id,
 			int options, int minlen) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getContigsByProject(" + project_id + ", options="
 					+ options + ", minlen=" + minlen + ")");
 
-		return contigManager.getContigsByProject(project_id, options, minlen);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getContigsByProject(project_id, options, minlen);
+		}
 	}
 
-	public synchronized Set getContigsByProject(int project_id, int options)
+	public Set getContigsByProject(int project_id, int options)
 			throws ArcturusDatabaseException {
 		return getContigsByProject(project_id, options, 0);
 	}
 
-	public synchronized void addContigManagerEventListener(
+	public ContigIterator iterateContigsByProject(int project_id,
+			int options, int minlen) throws ArcturusDatabaseException {
+		if (logger != null && logger.isLoggable(Level.FINE))
+			logger.info("iterateContigsByProject(" + project_id + ", options="
+					+ options + ", minlen=" + minlen + ")");
+
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.iterateContigsByProject(project_id, options,
+					minlen);
+		}
+	}
+
+	public ContigIterator iterateCurrentContigs(int options,
+			int minlen) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.iterateCurrentContigs(options, minlen);
+		}
+	}
+
+	/**
+	 * Loads the data for a block of streamed contigs through the batch loader
+	 * of the given contig manager, whilst holding the lock on the manager set
+	 * which owns that manager.
+	 */
+
+	void loadContigBlock(ContigManager manager, Contig[] contigs, int options)
+			throws ArcturusDatabaseException {
+		ManagerSet m = findManagerSet(manager);
+
+		if (m == null)
+			throw new ArcturusDatabaseException(null,
+					"The contig stream belongs to a thread whose resources have been released",
+					null, this);
+
+		synchronized (m) {
+			manager.getBatchLoader().updateContigs(contigs, options);
+		}
+	}
+
+	public void addContigManagerEventListener(
 			ManagerEventListener listener) {
-		contigManager.addContigManagerEventListener(listener);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigManager.addContigManagerEventListener(listener);
+		}
 	}
 
-	public synchronized void removeContigManagerEventListener(
+	public void removeContigManagerEventListener(
 			ManagerEventListener listener) {
-		contigManager.removeContigManagerEventListener(listener);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigManager.removeContigManagerEventListener(listener);
+		}
 	}
 
-	public synchronized void clearContigCache() {
-		contigManager.clearCache();
+	public void clearContigCache() {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigManager.clearCache();
+		}
 	}
 	
-	public synchronized Set<Contig> getChildContigs(Contig parent) throws ArcturusDatabaseException {
-		return contigManager.getChildContigs(parent);
+	public Set<Contig> getChildContigs(Contig parent) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigManager.getChildContigs(parent);
+		}
 	}
 
-	public synchronized Project getProjectByID(int id) throws ArcturusDatabaseException {
+	public Project getProjectByID(int id) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getProjectByID(" + id + ")");
 
-		return projectManager.getProjectByID(id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectByID(id);
+		}
 	}
 
-	public synchronized Project getProjectByID(int id, boolean autoload)
+	public Project getProjectByID(int id, boolean autoload)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger
 					.info("getProjectByID(" + id + ", autoload=" + autoload
 							+ ")");
 
-		return projectManager.getProjectByID(id, true);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectByID(id, true);
+		}
 	}
 
-	public synchronized Project getProjectByName(Assembly assembly, String name)
+	public Project getProjectByName(Assembly assembly, String name)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getProjectByName(assembly=" + assembly.getName()
 					+ ", name=" + name + ")");
 
-		return projectManager.getProjectByName(assembly, name);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectByName(assembly, name);
+		}
 	}
 
-	public synchronized Set<Project> getAllProjects() throws ArcturusDatabaseException {
+	public Set<Project> getAllProjects() throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getAllProjects");
 
-		return projectManager.getAllProjects();
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getAllProjects();
+		}
 	}
 
-	public synchronized Set<Project> getProjectsForOwner(Person owner)
+	public Set<Project> getProjectsForOwner(Person owner)
 			throws ArcturusDatabaseException {
-		return projectManager.getProjectsForOwner(owner);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectsForOwner(owner);
+		}
 	}
 
-	public synchronized Set<Project> getBinProjects()
+	public Set<Project> getBinProjects()
 			throws ArcturusDatabaseException {
-		return projectManager.getBinProjects();
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getBinProjects();
+		}
 	}
 
-	public synchronized void refreshProject(Project project)
+	public void refreshProject(Project project)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("refreshProject(" + project + ")");
 
-		projectManager.refreshProject(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.refreshProject(project);
+		}
 	}
 
-	public synchronized void refreshAllProject() throws ArcturusDatabaseException {
+	public void refreshAllProject() throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("refreshAllProjects");
 
-		projectManager.refreshAllProjects();
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.refreshAllProjects();
+		}
 	}
 
-	public synchronized void setAssemblyForProject(Project project,
+	public void setAssemblyForProject(Project project,
 			Assembly assembly) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("setAssemblyForProject(" + project + ", " + assembly
 					+ ")");
 
-		projectManager.setAssemblyForProject(project, assembly);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.setAssemblyForProject(project, assembly);
+		}
 	}
 
-	public synchronized void getProjectSummary(Project project, int minlen,
+	public void getProjectSummary(Project project, int minlen,
 			int minreads, ProjectSummary summary) throws ArcturusDatabaseException {
-		projectManager.getProjectSummary(project, minlen, minreads, summary);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.getProjectSummary(project, minlen, minreads, summary);
+		}
 	}
 
-	public synchronized ProjectSummary getProjectSummary(Project project,
+	public ProjectSummary getProjectSummary(Project project,
 			int minlen, int minreads) throws ArcturusDatabaseException {
-		return projectManager.getProjectSummary(project, minlen, minreads);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectSummary(project, minlen, minreads);
+		}
 	}
 
-	public synchronized void getProjectSummary(Project project, int minlen,
+	public void getProjectSummary(Project project, int minlen,
 			ProjectSummary summary) throws ArcturusDatabaseException {
-		projectManager.getProjectSummary(project, minlen, 0, summary);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.getProjectSummary(project, minlen, 0, summary);
+		}
 	}
 
-	public synchronized void getProjectSummary(Project project,
+	public void getProjectSummary(Project project,
 			ProjectSummary summary) throws ArcturusDatabaseException {
-		projectManager.getProjectSummary(project, summary);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.getProjectSummary(project, summary);
+		}
 	}
 
-	public synchronized ProjectSummary getProjectSummary(Project project,
+	public ProjectSummary getProjectSummary(Project project,
 			int minlen) throws ArcturusDatabaseException {
-		return projectManager.getProjectSummary(project, minlen);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectSummary(project, minlen);
+		}
 	}
 
-	public synchronized ProjectSummary getProjectSummary(Project project)
+	public ProjectSummary getProjectSummary(Project project)
 			throws ArcturusDatabaseException {
-		return projectManager.getProjectSummary(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectSummary(project);
+		}
 	}
 
-	public synchronized Map getProjectSummary(int minlen, int minreads)
-			throws ArcturusDatabaseException {
-		return projectManager.getProjectSummary(minlen, minreads);
+	public Map<Integer, ProjectSummary> getProjectSummary(int minlen,
+			int minreads) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectSummary(minlen, minreads);
+		}
+	}
+
+	public Map getProjectSummary(int minlen) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectSummary(minlen);
+		}
 	}
 
-	public synchronized Map getProjectSummary(int minlen) throws ArcturusDatabaseException {
-		return projectManager.getProjectSummary(minlen);
+	public Map getProjectSummary() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getProjectSummary();
+		}
 	}
 
-	public synchronized Map getProjectSummary() throws ArcturusDatabaseException {
-		return projectManager.getProjectSummary();
+	public Map<Integer, java.util.Date> getContigTransferActivitySince(
+			java.util.Date since, Set<Integer> seenRequests)
+			throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getContigTransferActivitySince(since,
+					seenRequests);
+		}
 	}
 
-	public synchronized boolean canUserUnlockProject(Project project,
+	public boolean canUserUnlockProject(Project project,
 			Person user) throws ArcturusDatabaseException {
-		return projectManager.canUserUnlockProject(project, user);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.canUserUnlockProject(project, user);
+		}
 	}
 
-	public synchronized boolean canUserLockProjectForSelf(Project project, Person user)
+	public boolean canUserLockProjectForSelf(Project project, Person user)
 			throws ArcturusDatabaseException {
-		return projectManager.canUserLockProjectForSelf(project, user);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.canUserLockProjectForSelf(project, user);
+		}
 	}
 
-	public synchronized boolean canUserLockProject(Project project, Person user)
+	public boolean canUserLockProject(Project project, Person user)
 			throws ArcturusDatabaseException {
-		return projectManager.canUserLockProject(project, user);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.canUserLockProject(project, user);
+		}
 	}
 
-	public synchronized boolean canUserLockProjectForOwner(Project project,
+	public boolean canUserLockProjectForOwner(Project project,
 			Person user) throws ArcturusDatabaseException {
-		return projectManager.canUserLockProjectForOwner(project, user);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.canUserLockProjectForOwner(project, user);
+		}
 	}
 
-	public synchronized boolean unlockProject(Project project)
+	public boolean unlockProject(Project project)
 			throws ArcturusDatabaseException, ProjectLockException {
-		return projectManager.unlockProject(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.unlockProject(project);
+		}
 	}
 
-	public synchronized boolean lockProject(Project project)
+	public boolean lockProject(Project project)
 			throws ArcturusDatabaseException, ProjectLockException {
-		return projectManager.lockProject(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.lockProject(project);
+		}
 	}
 
-	public synchronized boolean unlockProjectForExport(Project project)
+	public boolean unlockProjectForExport(Project project)
 			throws ArcturusDatabaseException, ProjectLockException {
-		return projectManager.unlockProjectForExport(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.unlockProjectForExport(project);
+		}
 	}
 
-	public synchronized boolean lockProjectForExport(Project project)
+	public boolean lockProjectForExport(Project project)
 			throws ArcturusDatabaseException, ProjectLockException {
-		return projectManager.lockProjectForExport(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.lockProjectForExport(project);
+		}
 	}
 
-	public synchronized boolean lockProjectForOwner(Project project)
+	public boolean lockProjectForOwner(Project project)
 			throws ArcturusDatabaseException, ProjectLockException {
-		return projectManager.lockProjectForOwner(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.lockProjectForOwner(project);
+		}
 	}
 
-	public synchronized boolean setProjectLockOwner(Project project,
+	public boolean setProjectLockOwner(Project project,
 			Person person) throws ArcturusDatabaseException, ProjectLockException {
-		return (person == null || person.isNobody()) ?
-				projectManager.unlockProject(project) :
-				projectManager.setProjectLockOwner(project, person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return (person == null || person.isNobody()) ?
+					m.projectManager.unlockProject(project) :
+					m.projectManager.setProjectLockOwner(project, person);
+		}
 	}
 
-	public synchronized void setProjectOwner(Project project, Person person)
+	public void setProjectOwner(Project project, Person person)
 			throws ArcturusDatabaseException {
-		projectManager.setProjectOwner(project, person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.projectManager.setProjectOwner(project, person);
+		}
 	}
 
-	public synchronized boolean createNewProject(Assembly assembly,
+	public boolean createNewProject(Assembly assembly,
 			String name, Person owner, String directory) throws ArcturusDatabaseException, IOException {
-		return projectManager
-				.createNewProject(assembly, name, owner, directory);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager
+					.createNewProject(assembly, name, owner, directory);
+		}
 	}
 
 	public boolean canUserChangeProjectStatus(Project project, Person user)
 			throws ArcturusDatabaseException {
-		return projectManager.canUserChangeProjectStatus(project, user);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.canUserChangeProjectStatus(project, user);
+		}
 	}
 
 	public boolean canUserChangeProjectStatus(Project project)
 			throws ArcturusDatabaseException {
-		return projectManager.canUserChangeProjectStatus(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.canUserChangeProjectStatus(project);
+		}
 	}
 
 	public boolean changeProjectStatus(Project project, int status)
 			throws ArcturusDatabaseException {
-		return projectManager.changeProjectStatus(project, status);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.changeProjectStatus(project, status);
+		}
 	}
 
 	public boolean retireProject(Project project) throws ArcturusDatabaseException {
-		return projectManager.retireProject(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.retireProject(project);
+		}
 	}
 
 	public Project getBinForProject(Project project) throws ArcturusDatabaseException {
-		return projectManager.getBinForProject(project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.projectManager.getBinForProject(project);
+		}
 	}
 
-	public synchronized Assembly getAssemblyByID(int id) throws ArcturusDatabaseException {
+	public Assembly getAssemblyByID(int id) throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getAssemblyByID(" + id + ")");
 
-		return assemblyManager.getAssemblyByID(id);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.assemblyManager.getAssemblyByID(id);
+		}
 	}
 
-	public synchronized Assembly getAssemblyByID(int id, boolean autoload)
+	public Assembly getAssemblyByID(int id, boolean autoload)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getAssemblyByID(" + id + ", autoload=" + autoload
 					+ ")");
 
-		return assemblyManager.getAssemblyByID(id, true);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.assemblyManager.getAssemblyByID(id, true);
+		}
 	}
 
-	public synchronized Assembly getAssemblyByName(String name)
+	public Assembly getAssemblyByName(String name)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getAssemblyByName(" + name + ")");
 
-		return assemblyManager.getAssemblyByName(name);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.assemblyManager.getAssemblyByName(name);
+		}
 	}
 
-	public synchronized Assembly[] getAllAssemblies() throws ArcturusDatabaseException {
+	public Assembly[] getAllAssemblies() throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("getAllAssemblies");
 
-		return assemblyManager.getAllAssemblies();
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.assemblyManager.getAllAssemblies();
+		}
 	}
 
-	public synchronized void refreshAssembly(Assembly assembly)
+	public void refreshAssembly(Assembly assembly)
 			throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("refreshAssembly(" + assembly + ")");
 
-		assemblyManager.refreshAssembly(assembly);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.assemblyManager.refreshAssembly(assembly);
+		}
 	}
 
-	public synchronized void refreshAllAssemblies() throws ArcturusDatabaseException {
+	public void refreshAllAssemblies() throws ArcturusDatabaseException {
 		if (logger != null && logger.isLoggable(Level.FINE))
 			logger.info("refreshAllAssemblies");
 
-		assemblyManager.refreshAllAssemblies();
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.assemblyManager.refreshAllAssemblies();
+		}
 	}
 
-	public synchronized boolean hasFullPrivileges(Person person) {
-		return userManager.hasFullPrivileges(person);
+	public boolean hasFullPrivileges(Person person) {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.hasFullPrivileges(person);
+		}
 	}
 
-	public synchronized boolean hasFullPrivileges() throws ArcturusDatabaseException {
-		return userManager.hasFullPrivileges();
+	public boolean hasFullPrivileges() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.hasFullPrivileges();
+		}
 	}
 
-	public synchronized boolean isCoordinator(Person person) throws ArcturusDatabaseException {
-		return userManager.isCoordinator(person);
+	public boolean isCoordinator(Person person) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.isCoordinator(person);
+		}
 	}
 
-	public synchronized boolean isCoordinator() throws ArcturusDatabaseException {
-		return userManager.isCoordinator();
+	public boolean isCoordinator() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.isCoordinator();
+		}
 	}
 
-	public synchronized Person[] getAllUsers(boolean includeNobody)
+	public Person[] getAllUsers(boolean includeNobody)
 			throws ArcturusDatabaseException {
-		return userManager.getAllUsers(includeNobody);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.getAllUsers(includeNobody);
+		}
 	}
 
-	public synchronized Person[] getAllUsers() throws ArcturusDatabaseException {
-		return userManager.getAllUsers(false);
+	public Person[] getAllUsers() throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.getAllUsers(false);
+		}
 	}
 
 	public Person findUser(String username) throws ArcturusDatabaseException {
-		return userManager.findUser(username);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.findUser(username);
+		}
 	}
 	
 	public Person findMe() throws ArcturusDatabaseException {
-		return userManager.findMe();
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.findMe();
+		}
 	}
 	
 	public boolean isMe(Person person) {
-		return userManager.isMe(person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.userManager.isMe(person);
+		}
 	}
 	
-	public synchronized ContigTransferRequestManager getContigTransferRequestManager() {
-		return contigTransferRequestManager;
+	public ContigTransferRequestManager getContigTransferRequestManager() {
+		return managers().contigTransferRequestManager;
 	}
 
-	public synchronized ContigTransferRequest[] getContigTransferRequestsByUser(
+	public ContigTransferRequest[] getContigTransferRequestsByUser(
 			Person user, int mode) throws ArcturusDatabaseException {
-		return contigTransferRequestManager.getContigTransferRequestsByUser(
-				user, mode);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.getContigTransferRequestsByUser(
+					user, mode);
+		}
 	}
 
-	public synchronized ContigTransferRequest createContigTransferRequest(
+	public ContigTransferRequest createContigTransferRequest(
 			Person requester, int contigId, int toProjectId)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		return contigTransferRequestManager.createContigTransferRequest(
-				requester, contigId, toProjectId);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.createContigTransferRequest(
+					requester, contigId, toProjectId);
+		}
 	}
 
-	public synchronized ContigTransferRequest createContigTransferRequest(
+	public ContigTransferRequest createContigTransferRequest(
 			int contigId, int toProjectId)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		return contigTransferRequestManager.createContigTransferRequest(
-				contigId, toProjectId);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.createContigTransferRequest(
+					contigId, toProjectId);
+		}
 	}
 
-	public synchronized ContigTransferRequest createContigTransferRequest(
+	public ContigTransferRequest createContigTransferRequest(
 			Person requester, Contig contig, Project project)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		return contigTransferRequestManager.createContigTransferRequest(
-				requester, contig, project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.createContigTransferRequest(
+					requester, contig, project);
+		}
 	}
 
-	public synchronized ContigTransferRequest createContigTransferRequest(
+	public ContigTransferRequest createContigTransferRequest(
 			Contig contig, Project project)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		return contigTransferRequestManager.createContigTransferRequest(contig,
-				project);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.createContigTransferRequest(contig,
+					project);
+		}
 	}
 
-	public synchronized void reviewContigTransferRequest(
+	public void reviewContigTransferRequest(
 			ContigTransferRequest request, Person reviewer, int newStatus)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		contigTransferRequestManager.reviewContigTransferRequest(request,
-				reviewer, newStatus);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.reviewContigTransferRequest(request,
+					reviewer, newStatus);
+		}
 	}
 
-	public synchronized void reviewContigTransferRequest(int requestId,
+	public void reviewContigTransferRequest(int requestId,
 			Person reviewer, int newStatus)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		contigTransferRequestManager.reviewContigTransferRequest(requestId,
-				reviewer, newStatus);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.reviewContigTransferRequest(requestId,
+					reviewer, newStatus);
+		}
 	}
 
-	public synchronized void reviewContigTransferRequest(int requestId,
+	public void reviewContigTransferRequest(int requestId,
 			int newStatus) throws ContigTransferRequestException, ArcturusDatabaseException {
-		contigTransferRequestManager.reviewContigTransferRequest(requestId,
-				newStatus);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.reviewContigTransferRequest(requestId,
+					newStatus);
+		}
 	}
 
-	public synchronized void executeContigTransferRequest(
+	public void executeContigTransferRequest(
 			ContigTransferRequest request, Person reviewer,
 			boolean notifyListeners) throws ContigTransferRequestException,
 			ArcturusDatabaseException {
-		contigTransferRequestManager.executeContigTransferRequest(request,
-				reviewer, notifyListeners);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.executeContigTransferRequest(request,
+					reviewer, notifyListeners);
+		}
 	}
 
-	public synchronized void executeContigTransferRequest(int requestId,
+	public void executeContigTransferRequest(int requestId,
 			Person reviewer, boolean notifyListeners)
 			throws ContigTransferRequestException, ArcturusDatabaseException {
-		contigTransferRequestManager.executeContigTransferRequest(requestId,
-				reviewer, notifyListeners);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.executeContigTransferRequest(requestId,
+					reviewer, notifyListeners);
+		}
 	}
 
-	public synchronized void executeContigTransferRequest(int requestId,
+	public void executeContigTransferRequest(int requestId,
 			boolean notifyListeners) throws ContigTransferRequestException,
 			ArcturusDatabaseException {
-		contigTransferRequestManager.executeContigTransferRequest(requestId,
-				notifyListeners);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.executeContigTransferRequest(requestId,
+					notifyListeners);
+		}
 	}
 
-	public synchronized void setDebugging(boolean debugging) {
-		contigTransferRequestManager.setDebugging(debugging);
+	public void setDebugging(boolean debugging) {
+		for (ManagerSet m : getAllManagerSets()) {
+			synchronized (m) {
+				m.contigTransferRequestManager.setDebugging(debugging);
+			}
+		}
 	}
 
-	public synchronized boolean canCancelRequest(ContigTransferRequest request,
+	public boolean canCancelRequest(ContigTransferRequest request,
 			Person person) throws ArcturusDatabaseException {
-		return contigTransferRequestManager.canCancelRequest(request, person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.canCancelRequest(request, person);
+		}
 	}
 
-	public synchronized boolean canRefuseRequest(ContigTransferRequest request,
+	public boolean canRefuseRequest(ContigTransferRequest request,
 			Person person) throws ArcturusDatabaseException {
-		return contigTransferRequestManager.canRefuseRequest(request, person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.canRefuseRequest(request, person);
+		}
 	}
 
-	public synchronized boolean canApproveRequest(
+	public boolean canApproveRequest(
 			ContigTransferRequest request, Person person) throws ArcturusDatabaseException {
-		return contigTransferRequestManager.canApproveRequest(request, person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.canApproveRequest(request, person);
+		}
 	}
 
-	public synchronized boolean canExecuteRequest(
+	public boolean canExecuteRequest(
 			ContigTransferRequest request, Person person) throws ArcturusDatabaseException {
-		return contigTransferRequestManager.canExecuteRequest(request, person);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			return m.contigTransferRequestManager.canExecuteRequest(request, person);
+		}
 	}
 
-	public synchronized void moveContigs(Project fromProject, Project toProject)
+	public void moveContigs(Project fromProject, Project toProject)
 			throws ArcturusDatabaseException {
-		contigTransferRequestManager.moveContigs(fromProject, toProject);
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			m.contigTransferRequestManager.moveContigs(fromProject, toProject);
+		}
 	}
 
 	/**
@@ -1149,7 +1841,7 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 		try {
 			Vector<String> dirs = new Vector<String>();
 			
-			Statement stmt = defaultConnection.createStatement();
+			Statement stmt = getDefaultConnection().createStatement();
 
 			ResultSet rs = stmt.executeQuery(query);
 
@@ -1166,65 +1858,52 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 			
 			return dirArray;
 		} catch (SQLException e) {
-			throw new ArcturusDatabaseException(e, "Failed to get all project directories", defaultConnection, this);
+			throw new ArcturusDatabaseException(e, "Failed to get all project directories", null, this);
 		}
 	}
 
 	public boolean isCacheing(int type) {
-		AbstractManager manager = getManagerForType(type);
+		AbstractManager manager = managers().getManagerForType(type);
 		
 		return manager == null ? false : manager.isCacheing();
 	}
 
 	public void setCacheing(int type, boolean cacheing) {
-		AbstractManager manager = getManagerForType(type);
+		for (ManagerSet m : getAllManagerSets()) {
+			AbstractManager manager = m.getManagerForType(type);
 
-		if (manager != null)
-			manager.setCacheing(cacheing);
+			if (manager != null)
+				manager.setCacheing(cacheing);
+		}
 	}
 	
 	public void clearCache(int type) {
-		AbstractManager manager = getManagerForType(type);
+		ManagerSet m = managers();
 
-		if (manager != null)
-			manager.clearCache();	
+		synchronized (m) {
+			AbstractManager manager = m.getManagerForType(type);
+
+			if (manager != null)
+				manager.clearCache();
+		}
 	}
 
-	public void preload(int type) throws ArcturusDatabaseException {
-		AbstractManager manager = getManagerForType(type);
+	public void setCacheLimits(int type, int maxEntries, long maxWeight) {
+		AbstractManager manager = managers().getManagerForType(type);
 
 		if (manager != null)
-			manager.preload();			
+			manager.setCacheLimits(maxEntries, maxWeight);
 	}
 
-	private AbstractManager getManagerForType(int type) {
-		switch (type) {
-			case READ:
-				return readManager;
-				
-			case SEQUENCE:
-				return sequenceManager;
-				
-			case CONTIG:
-				return contigManager;
-				
-			case TEMPLATE:
-				return templateManager;
-				
-			case LIGATION:
-				return ligationManager;
-				
-			case CLONE:
-				return cloneManager;
-				
-			case ASSEMBLY:
-				return assemblyManager;
-				
-			case PROJECT:
-				return projectManager;
+	public void preload(int type) throws ArcturusDatabaseException {
+		ManagerSet m = managers();
+
+		synchronized (m) {
+			AbstractManager manager = m.getManagerForType(type);
+
+			if (manager != null)
+				manager.preload();
 		}
-		
-		return null;
 	}
 
 	/*
@@ -1246,8 +1925,13 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 			Connection conn, Object source) throws ArcturusDatabaseException {
 		// Handle a non-transient communications problem thrown by one of the client manager
 		// objects.		
-		if (isClientManager(source) && isNonTransientCommunicationProblem(e)) {
-			resetDefaultConnection();
+		ManagerSet set = findManagerSet(source);
+
+		if (set != null && isNonTransientCommunicationProblem(e)) {
+			if (set == defaultManagers)
+				resetDefaultConnection();
+			else
+				resetThreadConnection(set);
 		} else
 			throw new ArcturusDatabaseException(e, message, conn, this);
 	}
@@ -1255,7 +1939,10 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 	private void resetDefaultConnection() {
 		if (defaultConnection != null)
 			try {
-				defaultConnection.close();
+				if (defaultConnection instanceof PooledConnection)
+					((PooledConnection) defaultConnection).discard();
+				else
+					defaultConnection.close();
 			} catch (SQLException e) {
 				Arcturus.logSevere("Failed to close the default connection whilst resetting it", e);
 			}
@@ -1280,8 +1967,10 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 			Arcturus.logSevere("Failed to get a connection from the pool.  This is a serious error.", e);
 		}
 		
+		defaultManagers.connection = defaultConnection;
+
 		if (defaultConnection != null) {
-			for (AbstractManager manager : managers) {
+			for (AbstractManager manager : defaultManagers.managers) {
 				try {
 					manager.setConnection(defaultConnection);
 				} catch (SQLException e) {
@@ -1294,8 +1983,39 @@ public class ArcturusDatabaseImpl implements ArcturusDatabase {
 		}
 	}
 
-	private boolean isClientManager(Object source) {
-		return managers.contains(source);
+	private void resetThreadConnection(ManagerSet set) {
+		set.discardConnection();
+
+		Arcturus.logWarning("Thread " + set.thread.getName()
+				+ " has lost its connection to the database and will try to re-connect");
+
+		try {
+			set.setConnection(connectionPool.getConnection(set));
+		} catch (SQLException e) {
+			Arcturus.logSevere("Failed to re-connect the managers for thread "
+					+ set.thread.getName() + ".  This is a serious error.", e);
+		}
+	}
+
+	private ManagerSet findManagerSet(Object source) {
+		if (defaultManagers.contains(source))
+			return defaultManagers;
+
+		if (!concurrent)
+			return null;
+
+		ManagerSet set = threadManagers.get();
+
+		if (set != null && set.contains(source))
+			return set;
+
+		synchronized (threadManagerSets) {
+			for (ManagerSet s : threadManagerSets)
+				if (s.contains(source))
+					return s;
+		}
+
+		return null;
 	}
 
 	private boolean isNonTransientCommunicationProblem(SQLException e) {
@@ -34,7 +34,7 @@ import java.util.*;
 
 public class AssemblyManager extends AbstractManager {
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Assembly> hashByID = new HashMap<Integer, Assembly>();
+	private Map<Integer, Assembly> hashByID;
 	private PreparedStatement pstmtByID;
 	private PreparedStatement pstmtByName;
 
@@ -47,6 +47,8 @@ public class AssemblyManager extends AbstractManager {
 	public AssemblyManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
+		hashByID = createMap(adb, "assembly", "byID");
+
 		try {
 			setConnection(adb.getDefaultConnection());
 		} catch (SQLException e) {
@@ -34,8 +34,8 @@ import java.util.*;
 
 public class CloneManager extends AbstractManager {
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Clone> hashByID;
-	private HashMap<String, Clone> hashByName;
+	private Map<Integer, Clone> hashByID;
+	private Map<String, Clone> hashByName;
 	private PreparedStatement pstmtByID, pstmtByName;
 
 	/**
@@ -47,8 +47,8 @@ public class CloneManager extends AbstractManager {
 	public CloneManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
-		hashByID = new HashMap<Integer, Clone>();
-		hashByName = new HashMap<String, Clone>();
+		hashByID = createMap(adb, "clone", "byID");
+		hashByName = createMap(adb, "clone", "byName");
 
 		try {
 			setConnection(adb.getDefaultConnection());
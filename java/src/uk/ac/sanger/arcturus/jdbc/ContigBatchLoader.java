@@ -0,0 +1,707 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package uk.ac.sanger.arcturus.jdbc;
+
+import uk.ac.sanger.arcturus.data.*;
+import uk.ac.sanger.arcturus.database.ArcturusDatabase;
+import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+
+import java.sql.*;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+/**
+ * This class loads mapping, segment, sequence, clipping, consensus and tag
+ * data for a block of contigs, using one query per data type for the whole
+ * block instead of one query per data type for each contig.
+ * 
+ * Each query uses a fixed-size "contig_id in (...)" list so that it can be
+ * prepared once. A partially-filled block is padded by repeating its last
+ * contig ID.
+ */
+
+class ContigBatchLoader {
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	private ArcturusDatabase adb;
+	private ContigManager manager;
+	private Connection conn;
+	private int blockSize;
+
+	private Inflater decompresser = new Inflater();
+
+	protected PreparedStatement pstmtMappingData = null;
+	protected PreparedStatement pstmtSegmentData = null;
+	protected PreparedStatement pstmtSequenceData = null;
+	protected PreparedStatement pstmtReadAndTemplateData = null;
+	protected PreparedStatement pstmtQualityClipping = null;
+	protected PreparedStatement pstmtSequenceVector = null;
+	protected PreparedStatement pstmtCloningVector = null;
+	protected PreparedStatement pstmtAlignToSCF = null;
+	protected PreparedStatement pstmtConsensus = null;
+	protected PreparedStatement pstmtTags = null;
+
+	private Comparator<AlignToSCF> alignToSCFComparator = new Comparator<AlignToSCF>() {
+		public int compare(AlignToSCF a1, AlignToSCF a2) {
+			return a1.getStartInSequence() - a2.getStartInSequence();
+		}
+	};
+
+	public ContigBatchLoader(ArcturusDatabase adb, ContigManager manager,
+			int blockSize) {
+		this.adb = adb;
+		this.manager = manager;
+		this.blockSize = blockSize < 1 ? 1 : blockSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public void setConnection(Connection conn) throws SQLException {
+		this.conn = conn;
+		prepareConnection();
+	}
+
+	private String createContigIDList() {
+		StringBuffer sb = new StringBuffer(" contig_id in (?");
+
+		for (int i = 1; i < blockSize; i++)
+			sb.append(",?");
+
+		sb.append(")");
+
+		return sb.toString();
+	}
+
+	protected void prepareConnection() throws SQLException {
+		String idlist = createContigIDList();
+
+		String query;
+
+		query = "select contig_id,MAPPING.seq_id,cstart,cfinish,direction,seqlen"
+				+ " from MAPPING left join SEQUENCE using(seq_id)"
+				+ " where" + idlist;
+
+		pstmtMappingData = conn.prepareStatement(query);
+
+		query = "select contig_id,seq_id,SEGMENT.cstart,rstart,length "
+				+ " from MAPPING left join SEGMENT using(mapping_id) "
+				+ " where" + idlist;
+
+		pstmtSegmentData = conn.prepareStatement(query);
+
+		query = "select contig_id,MAPPING.seq_id,seqlen,sequence,quality "
+				+ " from MAPPING left join SEQUENCE using(seq_id) "
+				+ " where" + idlist;
+
+		pstmtSequenceData = conn.prepareStatement(query);
+
+		query = "select contig_id,MAPPING.seq_id,READINFO.read_id,readname,strand,chemistry,primer,asped,"
+				+ " TEMPLATE.template_id,TEMPLATE.name,ligation_id"
+				+ " from (MAPPING left join (SEQ2READ left join"
+				+ " (READINFO left join TEMPLATE using (template_id))"
+				+ " using (read_id)) using (seq_id))"
+				+ " where" + idlist;
+
+		pstmtReadAndTemplateData = conn.prepareStatement(query);
+
+		query = "select contig_id,MAPPING.seq_id,qleft,qright"
+				+ " from MAPPING left join QUALITYCLIP using(seq_id) where" + idlist;
+
+		pstmtQualityClipping = conn.prepareStatement(query);
+
+		query = "select contig_id,MAPPING.seq_id,svector_id,svleft,svright"
+				+ " from MAPPING left join SEQVEC using(seq_id) where" + idlist
+				+ " and svleft is not null";
+
+		pstmtSequenceVector = conn.prepareStatement(query);
+
+		query = "select contig_id,MAPPING.seq_id,cvector_id,cvleft,cvright"
+				+ " from MAPPING left join CLONEVEC using(seq_id) where" + idlist
+				+ " and cvleft is not null";
+
+		pstmtCloningVector = conn.prepareStatement(query);
+
+		query = "select contig_id,MAPPING.seq_id,startinseq,startinscf,length"
+				+ " from MAPPING left join ALIGN2SCF using(seq_id) where" + idlist
+				+ " and startinseq is not null";
+
+		pstmtAlignToSCF = conn.prepareStatement(query);
+
+		query = "select contig_id,length,sequence,quality from CONSENSUS where" + idlist;
+
+		pstmtConsensus = conn.prepareStatement(query);
+
+		query = "select contig_id,tagtype,cstart,cfinal,tagcomment"
+				+ " from TAG2CONTIG left join CONTIGTAG using(tag_id)"
+				+ " where" + idlist;
+
+		pstmtTags = conn.prepareStatement(query);
+	}
+
+	/**
+	 * Loads the data specified by the options for each of the contigs in the
+	 * array, processing the array in blocks of at most blockSize contigs.
+	 * 
+	 * @param contigs
+	 *            the contigs to be updated.
+	 * @param options
+	 *            the data to load, as in ContigManager.updateContig.
+	 */
+
+	public void updateContigs(Contig[] contigs, int options)
+			throws ArcturusDatabaseException {
+		for (int start = 0; start < contigs.length; start += blockSize) {
+			int end = Math.min(start + blockSize, contigs.length);
+
+			List<Contig> block = new Vector<Contig>(end - start);
+
+			for (int i = start; i < end; i++)
+				if (contigs[i] != null)
+					block.add(contigs[i]);
+
+			if (!block.isEmpty())
+				updateBlock(block, options);
+		}
+	}
+
+	private void updateBlock(List<Contig> block, int options)
+			throws ArcturusDatabaseException {
+		Map<Integer, Contig> contigByID = new HashMap<Integer, Contig>(block.size());
+
+		for (Contig contig : block)
+			contigByID.put(contig.getID(), contig);
+
+		if ((options & ArcturusDatabase.CONTIG_MAPPING_RELATED_DATA) != 0) {
+			List<Contig> unmapped = new Vector<Contig>();
+
+			for (Contig contig : block)
+				if (contig.getMappings() == null)
+					unmapped.add(contig);
+
+			if (!unmapped.isEmpty())
+				getMappings(unmapped, contigByID);
+
+			Map<Integer, Map<Integer, Mapping>> mapmaps = createMappingsMaps(block);
+
+			if ((options & ArcturusDatabase.CONTIG_MAPPINGS_READS_AND_TEMPLATES) != 0)
+				getReadAndTemplateData(block, mapmaps);
+
+			if ((options & ArcturusDatabase.CONTIG_MAPPING_SEGMENTS) != 0)
+				getSegmentData(block, mapmaps);
+
+			if ((options & ArcturusDatabase.CONTIG_SEQUENCE_DNA_AND_QUALITY) != 0)
+				getSequenceData(block, mapmaps);
+
+			if ((options & ArcturusDatabase.CONTIG_SEQUENCE_AUXILIARY_DATA) != 0) {
+				getSequenceVectorData(block, mapmaps);
+				getCloningVectorData(block, mapmaps);
+				getQualityClippingData(block, mapmaps);
+				getAlignToSCF(block, mapmaps);
+			}
+		}
+
+		if ((options & ArcturusDatabase.CONTIG_CONSENSUS) != 0) {
+			List<Contig> noConsensus = new Vector<Contig>();
+
+			for (Contig contig : block)
+				if (contig.getDNA() == null)
+					noConsensus.add(contig);
+
+			if (!noConsensus.isEmpty())
+				loadConsensus(noConsensus, contigByID);
+		}
+
+		if ((options & ArcturusDatabase.CONTIG_TAGS) != 0)
+			loadTags(block, contigByID);
+	}
+
+	private void bindContigIDs(PreparedStatement pstmt, List<Contig> contigs)
+			throws SQLException {
+		int last = 0;
+
+		for (int i = 0; i < blockSize; i++) {
+			if (i < contigs.size())
+				last = contigs.get(i).getID();
+
+			pstmt.setInt(i + 1, last);
+		}
+	}
+
+	private String describe(List<Contig> contigs) {
+		return "block of " + contigs.size() + " contigs starting at contig ID="
+				+ contigs.get(0).getID();
+	}
+
+	private Map<Integer, Map<Integer, Mapping>> createMappingsMaps(
+			List<Contig> block) {
+		Map<Integer, Map<Integer, Mapping>> mapmaps = new HashMap<Integer, Map<Integer, Mapping>>(
+				block.size());
+
+		for (Contig contig : block) {
+			Mapping[] mappings = contig.getMappings();
+
+			Map<Integer, Mapping> mapmap = new HashMap<Integer, Mapping>(
+					mappings.length);
+
+			for (int i = 0; i < mappings.length; i++)
+				mapmap.put(mappings[i].getSequence().getID(), mappings[i]);
+
+			mapmaps.put(contig.getID(), mapmap);
+		}
+
+		return mapmaps;
+	}
+
+	private Mapping findMapping(Map<Integer, Map<Integer, Mapping>> mapmaps,
+			int contig_id, int seq_id) {
+		Map<Integer, Mapping> mapmap = mapmaps.get(contig_id);
+
+		return mapmap == null ? null : mapmap.get(seq_id);
+	}
+
+	private void getMappings(List<Contig> contigs,
+			Map<Integer, Contig> contigByID) throws ArcturusDatabaseException {
+		Map<Integer, Vector<Mapping>> mappingLists = new HashMap<Integer, Vector<Mapping>>(
+				contigs.size());
+
+		for (Contig contig : contigs)
+			mappingLists.put(contig.getID(), new Vector<Mapping>(contig
+					.getReadCount()));
+
+		try {
+			bindContigIDs(pstmtMappingData, contigs);
+
+			ResultSet rs = pstmtMappingData.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+				int cstart = rs.getInt(3);
+				int cfinish = rs.getInt(4);
+				boolean forward = rs.getString(5).equalsIgnoreCase("Forward");
+				int length = rs.getInt(6);
+
+				Vector<Mapping> mappingList = mappingLists.get(contig_id);
+
+				if (mappingList == null)
+					continue;
+
+				Sequence sequence = adb.findOrCreateSequence(seq_id, length);
+
+				mappingList.add(new Mapping(sequence, cstart, cfinish, forward));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to get mappings for "
+					+ describe(contigs), conn, manager);
+		}
+
+		for (Contig contig : contigs) {
+			Vector<Mapping> mappingList = mappingLists.get(contig.getID());
+
+			Mapping[] mappings = mappingList.toArray(new Mapping[mappingList
+					.size()]);
+
+			Arrays.sort(mappings, manager.mappingComparator);
+
+			contig.setMappings(mappings);
+		}
+	}
+
+	private void getReadAndTemplateData(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		try {
+			bindContigIDs(pstmtReadAndTemplateData, block);
+
+			ResultSet rs = pstmtReadAndTemplateData.executeQuery();
+
+			while (rs.next()) {
+				int index = 1;
+
+				int contig_id = rs.getInt(index++);
+				int seq_id = rs.getInt(index++);
+				int read_id = rs.getInt(index++);
+				String readname = rs.getString(index++);
+				String strand = rs.getString(index++);
+				String chemistry = rs.getString(index++);
+				String primer = rs.getString(index++);
+				java.util.Date asped = rs.getTimestamp(index++);
+				int template_id = rs.getInt(index++);
+				String templatename = rs.getString(index++);
+				int ligation_id = rs.getInt(index++);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				Ligation ligation = adb.getLigationByID(ligation_id);
+
+				Template template = adb.findOrCreateTemplate(template_id,
+						templatename, ligation);
+
+				Read read = adb.findOrCreateRead(read_id, readname, template,
+						asped, strand, primer, chemistry);
+
+				mapping.getSequence().setRead(read);
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e,
+					"Failed to get read and template data for "
+							+ describe(block), conn, manager);
+		}
+	}
+
+	private void getSegmentData(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		Map<Mapping, Vector<Segment>> segmentLists = new HashMap<Mapping, Vector<Segment>>();
+
+		try {
+			bindContigIDs(pstmtSegmentData, block);
+
+			ResultSet rs = pstmtSegmentData.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+				int cstart = rs.getInt(3);
+				int rstart = rs.getInt(4);
+				int length = rs.getInt(5);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				Vector<Segment> segv = segmentLists.get(mapping);
+
+				if (segv == null) {
+					segv = new Vector<Segment>();
+					segmentLists.put(mapping, segv);
+				}
+
+				segv.add(new Segment(cstart, rstart, length));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to get segment data for "
+					+ describe(block), conn, manager);
+		}
+
+		for (Map.Entry<Mapping, Vector<Segment>> entry : segmentLists
+				.entrySet()) {
+			Vector<Segment> segv = entry.getValue();
+
+			Segment[] segs = segv.toArray(new Segment[segv.size()]);
+
+			Arrays.sort(segs, manager.segmentComparator);
+
+			entry.getKey().setSegments(segs);
+		}
+	}
+
+	private void getSequenceData(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		try {
+			bindContigIDs(pstmtSequenceData, block);
+
+			ResultSet rs = pstmtSequenceData.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				Sequence sequence = mapping.getSequence();
+
+				int seqlen = rs.getInt(3);
+
+				sequence.setDNA(inflate(rs.getBytes(4), seqlen));
+
+				sequence.setQuality(inflate(rs.getBytes(5), seqlen));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to fetch sequence data for "
+					+ describe(block), conn, manager);
+		} catch (DataFormatException e) {
+			throw new ArcturusDatabaseException(e,
+					"Failed to decompress sequence data for " + describe(block),
+					conn, adb);
+		}
+	}
+
+	private byte[] inflate(byte[] cdata, int length) throws DataFormatException {
+		if (cdata == null)
+			return null;
+
+		byte[] data = new byte[length];
+
+		decompresser.setInput(cdata, 0, cdata.length);
+		decompresser.inflate(data, 0, data.length);
+		decompresser.reset();
+
+		return data;
+	}
+
+	private void getSequenceVectorData(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		try {
+			bindContigIDs(pstmtSequenceVector, block);
+
+			ResultSet rs = pstmtSequenceVector.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+				int svector_id = rs.getInt(3);
+				int svleft = rs.getInt(4);
+				int svright = rs.getInt(5);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				Sequence sequence = mapping.getSequence();
+
+				String svector = manager.svectorByID.get(svector_id);
+
+				Clipping clipping = new Clipping(Clipping.SVEC, svector,
+						svleft, svright);
+
+				if (svleft == 1)
+					sequence.setSequenceVectorClippingLeft(clipping);
+				else
+					sequence.setSequenceVectorClippingRight(clipping);
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e,
+					"Failed to fetch sequence vector data for "
+							+ describe(block), conn, manager);
+		}
+	}
+
+	private void getCloningVectorData(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		try {
+			bindContigIDs(pstmtCloningVector, block);
+
+			ResultSet rs = pstmtCloningVector.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+				int cvector_id = rs.getInt(3);
+				int cvleft = rs.getInt(4);
+				int cvright = rs.getInt(5);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				String cvector = manager.cvectorByID.get(cvector_id);
+
+				mapping.getSequence().setCloningVectorClipping(
+						new Clipping(Clipping.CVEC, cvector, cvleft, cvright));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e,
+					"Failed to fetch cloning vector data for "
+							+ describe(block), conn, manager);
+		}
+	}
+
+	private void getQualityClippingData(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		try {
+			bindContigIDs(pstmtQualityClipping, block);
+
+			ResultSet rs = pstmtQualityClipping.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+				int qleft = rs.getInt(3);
+				int qright = rs.getInt(4);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				mapping.getSequence().setQualityClipping(
+						new Clipping(Clipping.QUAL, null, qleft, qright));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e,
+					"Failed to fetch quality clipping data for "
+							+ describe(block), conn, manager);
+		}
+	}
+
+	private void getAlignToSCF(List<Contig> block,
+			Map<Integer, Map<Integer, Mapping>> mapmaps)
+			throws ArcturusDatabaseException {
+		Map<Sequence, Vector<AlignToSCF>> alignmentLists = new HashMap<Sequence, Vector<AlignToSCF>>();
+
+		try {
+			bindContigIDs(pstmtAlignToSCF, block);
+
+			ResultSet rs = pstmtAlignToSCF.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seq_id = rs.getInt(2);
+				int seqstart = rs.getInt(3);
+				int scfstart = rs.getInt(4);
+				int length = rs.getInt(5);
+
+				Mapping mapping = findMapping(mapmaps, contig_id, seq_id);
+
+				if (mapping == null)
+					continue;
+
+				Sequence sequence = mapping.getSequence();
+
+				Vector<AlignToSCF> alignments = alignmentLists.get(sequence);
+
+				if (alignments == null) {
+					alignments = new Vector<AlignToSCF>();
+					alignmentLists.put(sequence, alignments);
+				}
+
+				alignments.add(new AlignToSCF(seqstart, scfstart, length));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to fetch AlignToSCF data for "
+					+ describe(block), conn, manager);
+		}
+
+		for (Map.Entry<Sequence, Vector<AlignToSCF>> entry : alignmentLists
+				.entrySet()) {
+			Vector<AlignToSCF> alignments = entry.getValue();
+
+			AlignToSCF[] a2scf = alignments.toArray(new AlignToSCF[alignments
+					.size()]);
+
+			Arrays.sort(a2scf, alignToSCFComparator);
+
+			entry.getKey().setAlignToSCF(a2scf);
+		}
+	}
+
+	private void loadConsensus(List<Contig> contigs,
+			Map<Integer, Contig> contigByID) throws ArcturusDatabaseException {
+		try {
+			bindContigIDs(pstmtConsensus, contigs);
+
+			ResultSet rs = pstmtConsensus.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int seqlen = rs.getInt(2);
+
+				Contig contig = contigByID.get(contig_id);
+
+				if (contig == null)
+					continue;
+
+				byte[] dna = inflate(rs.getBytes(3), seqlen);
+				byte[] qual = inflate(rs.getBytes(4), seqlen);
+
+				contig.setConsensus(dna, qual);
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to fetch consensus data for "
+					+ describe(contigs), conn, manager);
+		} catch (DataFormatException e) {
+			throw new ArcturusDatabaseException(e,
+					"Failed to decompress consensus data for "
+							+ describe(contigs), conn, adb);
+		}
+	}
+
+	private void loadTags(List<Contig> block, Map<Integer, Contig> contigByID)
+			throws ArcturusDatabaseException {
+		for (Contig contig : block) {
+			Vector<Tag> tags = contig.getTags();
+
+			if (tags != null)
+				tags.clear();
+		}
+
+		try {
+			bindContigIDs(pstmtTags, block);
+
+			ResultSet rs = pstmtTags.executeQuery();
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				String type = rs.getString(2);
+				int cstart = rs.getInt(3);
+				int cfinal = rs.getInt(4);
+				String comment = rs.getString(5);
+
+				Contig contig = contigByID.get(contig_id);
+
+				if (contig != null)
+					contig.addTag(new Tag(type, cstart, cfinal, comment));
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to load tags for "
+					+ describe(block), conn, manager);
+		}
+	}
+}
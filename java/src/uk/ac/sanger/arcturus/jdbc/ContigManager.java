@@ -24,8 +24,11 @@ package uk.ac.sanger.arcturus.jdbc;
 import uk.ac.sanger.arcturus.data.*;
 import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.database.ContigIterator;
 import uk.ac.sanger.arcturus.database.ContigProcessor;
 
+import uk.ac.sanger.arcturus.cache.ObjectCache;
+
 import java.sql.*;
 import java.util.*;
 import java.util.zip.Inflater;
@@ -36,11 +39,15 @@ import java.util.zip.DataFormatException;
  */
 
 public class ContigManager extends AbstractManager {
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Contig> hashByID;
+	private ObjectCache<Integer, Contig> hashByID;
 
 	private Inflater decompresser = new Inflater();
 
+	private ContigBatchLoader batchLoader;
+
 	protected PreparedStatement pstmtContigData = null;
 	protected PreparedStatement pstmtCurrentContigData = null;
 	protected PreparedStatement pstmtCountMappings = null;
@@ -68,14 +75,14 @@ public class ContigManager extends AbstractManager {
 
 	protected ManagerEvent event = null;
 
-	private transient Vector<ManagerEventListener> eventListeners = new Vector<ManagerEventListener>();
+	private transient Vector<ManagerEventListener> eventListeners;
 
 	protected MappingComparator mappingComparator = new MappingComparator();
 
 	protected SegmentComparatorByContigPosition segmentComparator = new SegmentComparatorByContigPosition();
 
-	protected Map<Integer, String> svectorByID = new HashMap<Integer, String>();
-	protected Map<Integer, String> cvectorByID = new HashMap<Integer, String>();
+	protected Map<Integer, String> svectorByID;
+	protected Map<Integer, String> cvectorByID;
 
 	/**
 	 * Creates a new ContigManager to provide contig management services to an
@@ -87,7 +94,17 @@ public class ContigManager extends AbstractManager {
 
 		event = new ManagerEvent(this);
 
-		hashByID = new HashMap<Integer, Contig>();
+		eventListeners = findOrAddSharedObject(adb, "contig.eventListeners",
+				new Vector<ManagerEventListener>());
+
+		svectorByID = createMap(adb, "sequencevector", "byID");
+		cvectorByID = createMap(adb, "cloningvector", "byID");
+
+		hashByID = createCache(adb, "contig", "byID", DEFAULT_CACHE_SIZE,
+				ObjectCache.UNLIMITED, null, true);
+
+		batchLoader = new ContigBatchLoader(adb, this,
+				ContigBatchLoader.DEFAULT_BLOCK_SIZE);
 
 		try {
 			setConnection(adb.getDefaultConnection());
@@ -216,6 +233,40 @@ public class ContigManager extends AbstractManager {
 		query = "select contig_id from C2CMAPPING where parent_id = ?";
 		
 		pstmtChildContigs = conn.prepareStatement(query);
+
+		batchLoader.setConnection(conn);
+	}
+
+	/**
+	 * Sets the number of contigs whose data are fetched together by
+	 * updateContigs, processContigsByProject and processCurrentContigs.
+	 * 
+	 * @param batchSize
+	 *            the number of contigs to load with each set of queries.
+	 */
+
+	public void setBatchSize(int batchSize) throws ArcturusDatabaseException {
+		if (batchSize == batchLoader.getBlockSize())
+			return;
+
+		ContigBatchLoader loader = new ContigBatchLoader(adb, this, batchSize);
+
+		try {
+			loader.setConnection(conn);
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to set contig batch size to "
+					+ batchSize, conn, this);
+		}
+
+		batchLoader = loader;
+	}
+
+	public int getBatchSize() {
+		return batchLoader.getBlockSize();
+	}
+
+	ContigBatchLoader getBatchLoader() {
+		return batchLoader;
 	}
 
 	protected void preloadSequencingVectors() throws SQLException {
@@ -440,6 +491,55 @@ public class ContigManager extends AbstractManager {
 			loadTagsForContig(contig);
 	}
 
+	/**
+	 * Updates an array of contigs, loading each type of data specified by
+	 * the options for a whole block of contigs with a single query.
+	 * 
+	 * @param contigs
+	 *            the contigs to be updated.
+	 * @param options
+	 *            the data to load, as in updateContig.
+	 */
+
+	public void updateContigs(Contig[] contigs, int options)
+			throws ArcturusDatabaseException {
+		if (options == ArcturusDatabase.CONTIG_BASIC_DATA) {
+			for (int i = 0; i < contigs.length; i++)
+				updateBasicContigData(contigs[i]);
+
+			return;
+		}
+
+		batchLoader.updateContigs(contigs, options);
+	}
+
+	/*
+	 * Loads the data for a block of contigs whose basic data have just been
+	 * read from CURRENTCONTIGS, then passes each one to the processor.
+	 */
+
+	private int processContigBlock(Vector<Contig> block, int options,
+			ContigProcessor processor, int count) throws ArcturusDatabaseException {
+		Contig[] contigs = block.toArray(new Contig[block.size()]);
+
+		block.clear();
+
+		if (options != ArcturusDatabase.CONTIG_BASIC_DATA)
+			batchLoader.updateContigs(contigs, options);
+
+		int processed = 0;
+
+		for (int i = 0; i < contigs.length; i++) {
+			if (processor.processContig(contigs[i]))
+				processed++;
+
+			event.working(++count);
+			fireEvent(event);
+		}
+
+		return processed;
+	}
+
 	private int getMappingCount(int contig_id) throws ArcturusDatabaseException {
 		int count = 0;
 		
@@ -1145,6 +1245,9 @@ public class ContigManager extends AbstractManager {
 		int count = 0;
 		int processed = 0;
 
+		int batchSize = batchLoader.getBlockSize();
+		Vector<Contig> block = new Vector<Contig>(batchSize);
+
 		try {
 			pstmtContigsByProject.setInt(1, project_id);
 			pstmtContigsByProject.setInt(2, minlen);
@@ -1173,16 +1276,18 @@ public class ContigManager extends AbstractManager {
 					contig.setUpdated(updated);
 				}
 
-				updateContig(contig, options);
-
-				if (processor.processContig(contig))
-					processed++;
+				block.add(contig);
 
-				event.working(++count);
-				fireEvent(event);
+				if (block.size() >= batchSize) {
+					processed += processContigBlock(block, options, processor, count);
+					count += batchSize;
+				}
 			}
 
 			rs.close();
+
+			if (!block.isEmpty())
+				processed += processContigBlock(block, options, processor, count);
 		}
 		catch (SQLException e) {
 			adb.handleSQLException(e,
@@ -1196,6 +1301,37 @@ public class ContigManager extends AbstractManager {
 		return processed;
 	}
 
+	/**
+	 * Returns an iterator which streams the current contigs in a project,
+	 * loading the data specified by the options for each block of contigs as
+	 * it is reached. The contigs are not cached by this manager.
+	 */
+
+	public ContigIterator iterateContigsByProject(int project_id, int options,
+			int minlen) throws ArcturusDatabaseException {
+		String query = "select contig_id,gap4name,length,nreads,created,updated,project_id"
+				+ " from CURRENTCONTIGS"
+				+ " where project_id = ? and length > ?";
+
+		return new ContigStreamIterator(adb, this, query, new int[] {
+				project_id, minlen }, options);
+	}
+
+	/**
+	 * Returns an iterator which streams all current contigs, loading the data
+	 * specified by the options for each block of contigs as it is reached.
+	 * The contigs are not cached by this manager.
+	 */
+
+	public ContigIterator iterateCurrentContigs(int options, int minlen)
+			throws ArcturusDatabaseException {
+		String query = "select contig_id,gap4name,length,nreads,created,updated,project_id"
+				+ " from CURRENTCONTIGS" + " where length > ?";
+
+		return new ContigStreamIterator(adb, this, query, new int[] { minlen },
+				options);
+	}
+
 	public boolean isCurrentContig(int contig_id) throws ArcturusDatabaseException {
 		boolean found = false;
 		
@@ -1302,6 +1438,9 @@ public class ContigManager extends AbstractManager {
 
 		int processed = 0;
 
+		int batchSize = batchLoader.getBlockSize();
+		Vector<Contig> block = new Vector<Contig>(batchSize);
+
 		try {
 			pstmtCurrentContigs.setInt(1, minlen);
 
@@ -1314,32 +1453,38 @@ public class ContigManager extends AbstractManager {
 
 				Contig contig = (Contig) hashByID.get(new Integer(contig_id));
 
+				java.util.Date updated = rs.getTimestamp(6);
+				int project_id = rs.getInt(7);
+
+				Project project = adb.getProjectByID(project_id);
+
 				if (contig == null) {
 					String gap4name = rs.getString(2);
 					int ctglen = rs.getInt(3);
 					int nreads = rs.getInt(4);
 					java.util.Date created = rs.getTimestamp(5);
-					java.util.Date updated = rs.getTimestamp(6);
-					int project_id = rs.getInt(7);
-
-					Project project = adb.getProjectByID(project_id);
 
 					contig = new Contig(gap4name, contig_id, ctglen, nreads,
 							created, updated, project, adb);
 
 					registerNewContig(contig);
+				} else {
+					contig.setProject(project);
+					contig.setUpdated(updated);
 				}
 
-				updateContig(contig, options);
-
-				if (processor.processContig(contig))
-					processed++;
+				block.add(contig);
 
-				event.working(++count);
-				fireEvent(event);
+				if (block.size() >= batchSize) {
+					processed += processContigBlock(block, options, processor, count);
+					count += batchSize;
+				}
 			}
 
 			rs.close();
+
+			if (!block.isEmpty())
+				processed += processContigBlock(block, options, processor, count);
 		}
 		catch (SQLException e) {
 			adb.handleSQLException(e,
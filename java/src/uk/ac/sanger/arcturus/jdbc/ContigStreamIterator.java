@@ -0,0 +1,184 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package uk.ac.sanger.arcturus.jdbc;
+
+import uk.ac.sanger.arcturus.data.Contig;
+import uk.ac.sanger.arcturus.data.Project;
+import uk.ac.sanger.arcturus.database.ArcturusDatabase;
+import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.database.ContigIterator;
+
+import java.sql.*;
+
+/**
+ * This class streams contigs from a forward-only result set on its own pooled
+ * connection, loading the requested data for one block of contigs at a time
+ * through the contig manager's batch loader.
+ * 
+ * The contigs are not added to the contig manager's cache, and the iterator
+ * drops its reference to each contig as soon as the next one is requested, so
+ * the memory used by a pass over all contigs is bounded by the block size.
+ * Callers which process a whole organism should also turn off cacheing of
+ * reads, templates and sequences.
+ */
+
+class ContigStreamIterator implements ContigIterator {
+	private ArcturusDatabase adb;
+	private ContigManager manager;
+	private int options;
+
+	private Connection conn;
+	private PreparedStatement pstmt;
+	private ResultSet rs;
+
+	private Contig[] block = new Contig[0];
+	private int blockCount = 0;
+	private int nextIndex = 0;
+	private boolean exhausted = false;
+
+	public ContigStreamIterator(ArcturusDatabase adb, ContigManager manager,
+			String query, int[] parameters, int options)
+			throws ArcturusDatabaseException {
+		this.adb = adb;
+		this.manager = manager;
+		this.options = options;
+
+		conn = adb.getPooledConnection(this);
+
+		try {
+			pstmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+
+			pstmt.setFetchSize(Integer.MIN_VALUE);
+
+			for (int i = 0; i < parameters.length; i++)
+				pstmt.setInt(i + 1, parameters[i]);
+
+			rs = pstmt.executeQuery();
+		} catch (SQLException e) {
+			close();
+			throw new ArcturusDatabaseException(e,
+					"Failed to start streaming contigs", conn, adb);
+		}
+	}
+
+	public boolean hasNext() throws ArcturusDatabaseException {
+		if (nextIndex < blockCount)
+			return true;
+
+		if (exhausted)
+			return false;
+
+		fetchNextBlock();
+
+		return nextIndex < blockCount;
+	}
+
+	public Contig next() throws ArcturusDatabaseException {
+		if (!hasNext())
+			return null;
+
+		Contig contig = block[nextIndex];
+
+		block[nextIndex++] = null;
+
+		return contig;
+	}
+
+	private void fetchNextBlock() throws ArcturusDatabaseException {
+		ContigBatchLoader loader = manager.getBatchLoader();
+
+		int blockSize = loader.getBlockSize();
+
+		if (block.length != blockSize)
+			block = new Contig[blockSize];
+
+		blockCount = 0;
+		nextIndex = 0;
+
+		try {
+			while (blockCount < blockSize && rs.next()) {
+				int contig_id = rs.getInt(1);
+				String gap4name = rs.getString(2);
+				int ctglen = rs.getInt(3);
+				int nreads = rs.getInt(4);
+				java.util.Date created = rs.getTimestamp(5);
+				java.util.Date updated = rs.getTimestamp(6);
+				int project_id = rs.getInt(7);
+
+				Project project = adb.getProjectByID(project_id);
+
+				block[blockCount++] = new Contig(gap4name, contig_id, ctglen,
+						nreads, created, updated, project, adb);
+			}
+		} catch (SQLException e) {
+			throw new ArcturusDatabaseException(e,
+					"Failed to fetch the next block of contigs", conn, adb);
+		}
+
+		if (blockCount < blockSize) {
+			exhausted = true;
+			close();
+		}
+
+		if (blockCount == 0 || options == ArcturusDatabase.CONTIG_BASIC_DATA)
+			return;
+
+		Contig[] contigs = new Contig[blockCount];
+
+		System.arraycopy(block, 0, contigs, 0, blockCount);
+
+		// The batch loader uses the contig manager's prepared statements, so
+		// the load must hold the lock on the manager set which owns them.
+		if (adb instanceof ArcturusDatabaseImpl)
+			((ArcturusDatabaseImpl) adb).loadContigBlock(manager, contigs,
+					options);
+		else
+			synchronized (manager) {
+				loader.updateContigs(contigs, options);
+			}
+	}
+
+	public void close() throws ArcturusDatabaseException {
+		if (conn == null)
+			return;
+
+		try {
+			if (rs != null)
+				rs.close();
+
+			if (pstmt != null)
+				pstmt.close();
+
+			conn.close();
+		} catch (SQLException e) {
+			throw new ArcturusDatabaseException(e,
+					"Failed to close the contig stream", conn, adb);
+		} finally {
+			rs = null;
+			pstmt = null;
+			conn = null;
+			exhausted = true;
+		}
+	}
+}
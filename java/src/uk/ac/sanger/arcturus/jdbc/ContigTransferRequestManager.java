@@ -36,7 +36,7 @@ import java.util.*;
 public class ContigTransferRequestManager extends AbstractManager {
 	protected ArcturusDatabase adb;
 
-	protected HashMap<Integer, ContigTransferRequest> cache = new HashMap<Integer, ContigTransferRequest>();
+	protected Map<Integer, ContigTransferRequest> cache;
 
 	protected PreparedStatement pstmtByRequester = null;
 	protected PreparedStatement pstmtByContigOwner = null;
@@ -78,6 +78,8 @@ public class ContigTransferRequestManager extends AbstractManager {
 			throws ArcturusDatabaseException {
 		this.adb = adb;
 
+		cache = createMap(adb, "contigtransferrequest", "byID");
+
 		try {
 			setConnection(adb.getDefaultConnection());
 		} catch (SQLException e) {
@@ -1003,6 +1005,10 @@ public class ContigTransferRequestManager extends AbstractManager {
 		this.debugging = debugging;
 	}
 
+	public boolean isDebugging() {
+		return debugging;
+	}
+
 	public void moveContigs(Project fromProject, Project toProject) throws ArcturusDatabaseException {
 		if (fromProject == null || toProject == null) {
 			Arcturus.logWarning("Attempted to move contigs from " + 
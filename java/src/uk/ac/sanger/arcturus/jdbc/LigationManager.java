@@ -35,8 +35,8 @@ import java.util.*;
 
 public class LigationManager extends AbstractManager {
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Ligation> hashByID;
-	private HashMap<String, Ligation> hashByName;
+	private Map<Integer, Ligation> hashByID;
+	private Map<String, Ligation> hashByName;
 	private PreparedStatement pstmtByID, pstmtByName;
 
 	/**
@@ -47,8 +47,8 @@ public class LigationManager extends AbstractManager {
 	public LigationManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
-		hashByID = new HashMap<Integer, Ligation>();
-		hashByName = new HashMap<String, Ligation>();
+		hashByID = createMap(adb, "ligation", "byID");
+		hashByName = createMap(adb, "ligation", "byName");
 
 		try {
 			setConnection(adb.getDefaultConnection());
@@ -0,0 +1,211 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.pooledconnection.PooledConnection;
+
+/**
+ * The complete set of manager objects which serve one thread, together with
+ * the connection on which they prepare their statements.
+ * 
+ * The manager objects keep prepared statements and other mutable state, so a
+ * set must only be used by one thread at a time. Callers synchronize on the
+ * set for the duration of each call. In the default mode there is a single
+ * set which is shared by every thread, so the calls are serialized as before.
+ * In concurrent mode, each thread has a set of its own and the lock is never
+ * contended.
+ */
+
+class ManagerSet {
+	protected final Thread thread;
+	protected Connection connection;
+
+	protected CloneManager cloneManager;
+	protected LigationManager ligationManager;
+	protected TemplateManager templateManager;
+	protected ReadManager readManager;
+	protected SequenceManager sequenceManager;
+	protected ContigManager contigManager;
+	protected ProjectManager projectManager;
+	protected AssemblyManager assemblyManager;
+	protected UserManager userManager;
+	protected ContigTransferRequestManager contigTransferRequestManager;
+
+	protected Set<AbstractManager> managers = new HashSet<AbstractManager>();
+
+	ManagerSet(Thread thread, Connection connection) {
+		this.thread = thread;
+		this.connection = connection;
+	}
+
+	/**
+	 * Creates the manager objects. The database must return this set's
+	 * connection from getDefaultConnection whilst this method is running,
+	 * because that is the connection on which each manager prepares its
+	 * statements.
+	 */
+
+	void createManagers(ArcturusDatabaseImpl adb)
+			throws ArcturusDatabaseException {
+		cloneManager = new CloneManager(adb);
+		managers.add(cloneManager);
+
+		ligationManager = new LigationManager(adb);
+		managers.add(ligationManager);
+
+		templateManager = new TemplateManager(adb);
+		managers.add(templateManager);
+
+		readManager = new ReadManager(adb);
+		managers.add(readManager);
+
+		sequenceManager = new SequenceManager(adb);
+		managers.add(sequenceManager);
+
+		contigManager = new ContigManager(adb);
+		managers.add(contigManager);
+
+		projectManager = new ProjectManager(adb);
+		managers.add(projectManager);
+
+		assemblyManager = new AssemblyManager(adb);
+		managers.add(assemblyManager);
+
+		userManager = new UserManager(adb);
+		managers.add(userManager);
+
+		contigTransferRequestManager = new ContigTransferRequestManager(adb);
+		managers.add(contigTransferRequestManager);
+	}
+
+	/**
+	 * Copies the settings which the user may change at run-time from another
+	 * set, so that a new set behaves in the same way as the existing ones.
+	 */
+
+	void copySettings(ManagerSet source) throws ArcturusDatabaseException {
+		for (int type = ArcturusDatabaseImpl.READ; type <= ArcturusDatabaseImpl.ASSEMBLY; type++) {
+			AbstractManager from = source.getManagerForType(type);
+			AbstractManager to = getManagerForType(type);
+
+			if (from != null && to != null)
+				to.setCacheing(from.isCacheing());
+		}
+
+		contigManager.setBatchSize(source.contigManager.getBatchSize());
+
+		contigTransferRequestManager.setDebugging(source.contigTransferRequestManager.isDebugging());
+	}
+
+	AbstractManager getManagerForType(int type) {
+		switch (type) {
+			case ArcturusDatabaseImpl.READ:
+				return readManager;
+
+			case ArcturusDatabaseImpl.SEQUENCE:
+				return sequenceManager;
+
+			case ArcturusDatabaseImpl.CONTIG:
+				return contigManager;
+
+			case ArcturusDatabaseImpl.TEMPLATE:
+				return templateManager;
+
+			case ArcturusDatabaseImpl.LIGATION:
+				return ligationManager;
+
+			case ArcturusDatabaseImpl.CLONE:
+				return cloneManager;
+
+			case ArcturusDatabaseImpl.ASSEMBLY:
+				return assemblyManager;
+
+			case ArcturusDatabaseImpl.PROJECT:
+				return projectManager;
+		}
+
+		return null;
+	}
+
+	boolean contains(Object source) {
+		return managers.contains(source);
+	}
+
+	/**
+	 * Gives every manager in this set a new connection on which to prepare its
+	 * statements.
+	 */
+
+	void setConnection(Connection connection) throws SQLException {
+		this.connection = connection;
+
+		for (AbstractManager manager : managers)
+			manager.setConnection(connection);
+	}
+
+	/**
+	 * Returns this set's connection to the pool. The set must not be used
+	 * afterwards.
+	 */
+
+	void close() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// Do nothing
+			}
+		}
+
+		connection = null;
+	}
+
+	/*
+	 * Returns the connection to the pool as broken, so that the pool closes
+	 * it instead of handing it out again.
+	 */
+
+	void discardConnection() {
+		if (connection != null) {
+			try {
+				if (connection instanceof PooledConnection)
+					((PooledConnection) connection).discard();
+				else
+					connection.close();
+			} catch (SQLException e) {
+				// Do nothing
+			}
+		}
+
+		connection = null;
+	}
+
+	public String toString() {
+		return "ManagerSet[thread=" + thread.getName() + "]";
+	}
+}
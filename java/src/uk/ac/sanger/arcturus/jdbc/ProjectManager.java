@@ -41,7 +41,7 @@ import java.util.*;
 
 public class ProjectManager extends AbstractManager {
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Project> hashByID = new HashMap<Integer, Project>();
+	private Map<Integer, Project> hashByID;
 	private PreparedStatement pstmtByID;
 	private PreparedStatement pstmtByName;
 	private PreparedStatement pstmtByNameAndAssembly;
@@ -50,6 +50,7 @@ public class ProjectManager extends AbstractManager {
 	private PreparedStatement pstmtProjectSummary;
 	private PreparedStatement pstmtLastContigTransferOutByID;
 	private PreparedStatement pstmtLastContigTransferOut;
+	private PreparedStatement pstmtContigTransfersSince;
 	private PreparedStatement pstmtUnlockProject;
 	private PreparedStatement pstmtLockProject;
 	private PreparedStatement pstmtLockProjectForOwner;
@@ -64,6 +65,8 @@ public class ProjectManager extends AbstractManager {
 
 	public ProjectManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
+
+		hashByID = createMap(adb, "project", "byID");
 	
 		try {
 			setConnection(adb.getDefaultConnection());
@@ -107,6 +110,11 @@ public class ProjectManager extends AbstractManager {
 
 		pstmtLastContigTransferOut = conn.prepareStatement(query);
 
+		query = "select request_id,old_project_id,new_project_id,closed from CONTIGTRANSFERREQUEST"
+				+ " where status = 'done' and closed >= ?";
+
+		pstmtContigTransfersSince = conn.prepareStatement(query);
+
 		query = "update PROJECT set lockowner=null,lockdate=null"
 				+ " where project_id=? and lockowner is not null";
 
@@ -557,8 +565,14 @@ public class ProjectManager extends AbstractManager {
 				ProjectSummary summary = (ProjectSummary) map.get(new Integer(
 						project_id));
 
-				if (summary != null)
-					summary.setMostRecentContigTransferOut(rs.getTimestamp(2));
+				// A project which has transferred all of its contigs away has
+				// no row in the first query, but it still has a summary.
+				if (summary == null) {
+					summary = new ProjectSummary();
+					map.put(new Integer(project_id), summary);
+				}
+
+				summary.setMostRecentContigTransferOut(rs.getTimestamp(2));
 			}
 
 			rs.close();
@@ -573,6 +587,85 @@ public class ProjectManager extends AbstractManager {
 		return getProjectSummary(minlen, 0);
 	}
 
+	/**
+	 * Returns the projects which have gained or lost contigs by a completed
+	 * contig transfer at or after the specified time.
+	 * 
+	 * The closing time is only stored to the nearest second, so the search
+	 * includes the specified time itself, and the caller passes the IDs of
+	 * the requests which it has already seen at that time so that they are
+	 * not reported again.
+	 * 
+	 * @param since
+	 *            the time from which to look for transfers, or null to look
+	 *            for all transfers.
+	 * @param seenRequests
+	 *            the IDs of the requests closed at the specified time which
+	 *            have already been reported. These requests are skipped. If
+	 *            any requests are found, the set is replaced by the IDs of the
+	 *            requests closed at the latest closing time found, ready for
+	 *            the next call with that time.
+	 * 
+	 * @return a map from the ID of each project involved in a transfer to the
+	 *         time at which the most recent of its transfers was closed.
+	 */
+
+	public Map<Integer, java.util.Date> getContigTransferActivitySince(
+			java.util.Date since, Set<Integer> seenRequests)
+			throws ArcturusDatabaseException {
+		Map<Integer, java.util.Date> activity = new HashMap<Integer, java.util.Date>();
+
+		java.util.Date latest = null;
+		Set<Integer> latestRequests = new HashSet<Integer>();
+
+		try {
+			pstmtContigTransfersSince.setTimestamp(1, new Timestamp(
+					since == null ? 0L : since.getTime()));
+
+			ResultSet rs = pstmtContigTransfersSince.executeQuery();
+
+			while (rs.next()) {
+				int request_id = rs.getInt(1);
+				java.util.Date closed = rs.getTimestamp(4);
+
+				if (closed != null) {
+					if (latest == null || closed.after(latest)) {
+						latest = closed;
+						latestRequests.clear();
+					}
+
+					if (!closed.before(latest))
+						latestRequests.add(request_id);
+				}
+
+				if (seenRequests.contains(request_id))
+					continue;
+
+				addTransferActivity(activity, rs.getInt(2), closed);
+				addTransferActivity(activity, rs.getInt(3), closed);
+			}
+
+			rs.close();
+		} catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to get contig transfer activity", conn, this);
+		}
+
+		if (latest != null) {
+			seenRequests.clear();
+			seenRequests.addAll(latestRequests);
+		}
+
+		return activity;
+	}
+
+	private void addTransferActivity(Map<Integer, java.util.Date> activity,
+			int project_id, java.util.Date closed) {
+		java.util.Date latest = activity.get(project_id);
+
+		if (latest == null || (closed != null && closed.after(latest)))
+			activity.put(project_id, closed);
+	}
+
 	public Map getProjectSummary() throws ArcturusDatabaseException {
 		return getProjectSummary(0, 0);
 	}
@@ -25,18 +25,32 @@ import uk.ac.sanger.arcturus.data.Read;
 import uk.ac.sanger.arcturus.data.Template;
 import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.cache.ObjectCache;
 
 import java.sql.*;
 import java.util.*;
 
 /**
  * This class manages Read objects.
+ * 
+ * Reads are cached by ID, and the name cache maps each name to an ID, so
+ * that both lookups find the same object for as long as the read remains in
+ * the ID cache. Before a new Read is created, the ID cache is checked for an
+ * existing object.
+ * 
+ * The caches are bounded, so a read which has been evicted is re-created on
+ * its next lookup, as a new object. Read does not override equals, so a
+ * caller which holds reads across many lookups, e.g. in a HashSet or by
+ * comparing them with ==, may see two objects for the same read. Such callers
+ * should raise the cache limits or call preload first.
  */
 
 public class ReadManager extends AbstractManager {
+	public static final int DEFAULT_CACHE_SIZE = 500000;
+
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Read> hashByID;
-	private HashMap<String, Read> hashByName;
+	private ObjectCache<Integer, Read> hashByID;
+	private ObjectCache<String, Integer> hashByName;
 	private PreparedStatement pstmtByID, pstmtByName, pstmtByTemplate;
 
 	/**
@@ -47,8 +61,10 @@ public class ReadManager extends AbstractManager {
 	public ReadManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
-		hashByID = new HashMap<Integer, Read>();
-		hashByName = new HashMap<String, Read>();
+		hashByID = createCache(adb, "read", "byID", DEFAULT_CACHE_SIZE,
+				ObjectCache.UNLIMITED, null, false);
+		hashByName = createCache(adb, "read", "byName", DEFAULT_CACHE_SIZE,
+				ObjectCache.UNLIMITED, null, false);
 		
 		try {
 			setConnection(adb.getDefaultConnection());
@@ -79,9 +95,11 @@ public class ReadManager extends AbstractManager {
 
 	public Read getReadByName(String name, boolean autoload)
 			throws ArcturusDatabaseException {
-		Object obj = hashByName.get(name);
+		Integer id = hashByName.get(name);
+
+		Read read = id == null ? null : hashByID.get(id);
 
-		return (obj == null && autoload) ? loadReadByName(name) : (Read) obj;
+		return (read == null && autoload) ? loadReadByName(name) : read;
 	}
 
 	public Read getReadByID(int id) throws ArcturusDatabaseException {
@@ -221,6 +239,13 @@ public class ReadManager extends AbstractManager {
 	private Read createAndRegisterNewRead(String name, int id, int template_id,
 			java.util.Date asped, int strand, int primer, int chemistry)
 			throws ArcturusDatabaseException {
+		Read cached = hashByID.get(new Integer(id));
+
+		if (cached != null) {
+			registerNewRead(cached);
+			return cached;
+		}
+
 		Template template = adb.getTemplateByID(template_id);
 
 		Read read = new Read(name, id, template, asped, strand, primer,
@@ -233,18 +258,30 @@ public class ReadManager extends AbstractManager {
 
 	void registerNewRead(Read read) {
 		if (cacheing) {
-			hashByName.put(read.getName(), read);
 			hashByID.put(new Integer(read.getID()), read);
+			hashByName.put(read.getName(), new Integer(read.getID()));
 		}
 	}
 
+	/**
+	 * Pre-loads all reads into the cache, raising the limit on the size of the
+	 * cache if it is too small to hold them all.
+	 */
+
 	public void preload() throws ArcturusDatabaseException {
 		String query = "select read_id,readname,template_id,asped,strand,primer,chemistry from READINFO";
 
 		try {
 			Statement stmt = conn.createStatement();
 
-			ResultSet rs = stmt.executeQuery(query);
+			ResultSet rs = stmt.executeQuery("select count(*) from READINFO");
+
+			if (rs.next())
+				ensureCacheCapacity(rs.getInt(1));
+
+			rs.close();
+
+			rs = stmt.executeQuery(query);
 
 			while (rs.next()) {
 				int id = rs.getInt(1);
@@ -28,6 +28,9 @@ import uk.ac.sanger.arcturus.data.Tag;
 import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
 
+import uk.ac.sanger.arcturus.cache.ObjectCache;
+import uk.ac.sanger.arcturus.cache.Weigher;
+
 import java.sql.*;
 import java.util.*;
 import java.util.zip.*;
@@ -44,12 +47,20 @@ import java.util.zip.*;
  * <P>
  * Sequence objects which have been created without DNA and base quality data
  * can have this information added retrospectively by the SequenceManager.
+ * <P>
+ * Sequences are cached by sequence ID, and the read ID cache maps each read
+ * to the ID of its sequence, so that both lookups return the same object
+ * whilst it is cached. A sequence which has been evicted is re-created as a
+ * new object on its next lookup.
  */
 
 public class SequenceManager extends AbstractManager {
+	public static final int DEFAULT_CACHE_SIZE = 200000;
+	public static final long DEFAULT_CACHE_WEIGHT = 256L * 1024L * 1024L;
+
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Sequence> hashByReadID;
-	private HashMap<Integer, Sequence> hashBySequenceID;
+	private ObjectCache<Integer, Integer> hashByReadID;
+	private ObjectCache<Integer, Sequence> hashBySequenceID;
 	private PreparedStatement pstmtByReadID;
 	private PreparedStatement pstmtFullByReadID;
 	private PreparedStatement pstmtBySequenceID;
@@ -69,8 +80,12 @@ public class SequenceManager extends AbstractManager {
 	public SequenceManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
-		hashByReadID = new HashMap<Integer, Sequence>();
-		hashBySequenceID = new HashMap<Integer, Sequence>();
+		Weigher<Sequence> weigher = new SequenceWeigher();
+
+		hashByReadID = createCache(adb, "sequence", "byReadID",
+				DEFAULT_CACHE_SIZE, ObjectCache.UNLIMITED, null, false);
+		hashBySequenceID = createCache(adb, "sequence", "bySequenceID",
+				DEFAULT_CACHE_SIZE, DEFAULT_CACHE_WEIGHT, weigher, true);
 		
 		try {
 			setConnection(adb.getDefaultConnection());
@@ -141,12 +156,18 @@ public class SequenceManager extends AbstractManager {
 
 	public Sequence getSequenceByReadID(int readid, boolean autoload)
 			throws ArcturusDatabaseException {
-		Object obj = hashByReadID.get(new Integer(readid));
+		Object obj = getCachedSequenceByReadID(readid);
 
 		return (obj == null && autoload) ? loadSequenceByReadID(readid)
 				: (Sequence) obj;
 	}
 
+	private Sequence getCachedSequenceByReadID(int readid) {
+		Integer seqid = hashByReadID.get(new Integer(readid));
+
+		return seqid == null ? null : hashBySequenceID.get(seqid);
+	}
+
 	private Sequence loadSequenceByReadID(int readid) throws ArcturusDatabaseException {
 		Sequence sequence = null;
 
@@ -195,7 +216,7 @@ public class SequenceManager extends AbstractManager {
 	public Sequence getSequenceByRead(Read read, boolean autoload)
 			throws ArcturusDatabaseException {
 		int readid = read.getID();
-		Object obj = hashByReadID.get(new Integer(readid));
+		Object obj = getCachedSequenceByReadID(readid);
 
 		return (obj == null && autoload) ? loadSequenceByRead(read)
 				: (Sequence) obj;
@@ -250,7 +271,7 @@ public class SequenceManager extends AbstractManager {
 
 	public Sequence getFullSequenceByReadID(int readid, boolean autoload)
 			throws ArcturusDatabaseException {
-		Object obj = hashByReadID.get(new Integer(readid));
+		Object obj = getCachedSequenceByReadID(readid);
 
 		if (obj == null)
 			return autoload ? loadFullSequenceByReadID(readid) : null;
@@ -451,7 +472,10 @@ public class SequenceManager extends AbstractManager {
 	}
 
 	/**
-	 * Creates and registers a new Sequence object from the given parameters.
+	 * Creates and registers a new Sequence object from the given parameters,
+	 * unless the sequence is already cached, in which case the cached object
+	 * is updated and returned, so that there is only one object for each
+	 * cached sequence.
 	 * 
 	 * @param seqid
 	 *            the sequence ID of the new sequence.
@@ -467,13 +491,29 @@ public class SequenceManager extends AbstractManager {
 
 	private Sequence createAndRegisterNewSequence(int seqid, Read read,
 			int version, byte[] dna, byte[] quality) {
-		Sequence sequence = new Sequence(seqid, read, dna, quality, version);
+		Sequence sequence = hashBySequenceID.get(new Integer(seqid));
+
+		if (sequence == null)
+			sequence = new Sequence(seqid, read, dna, quality, version);
+		else {
+			if (sequence.getRead() == null)
+				sequence.setRead(read);
+
+			if (dna != null) {
+				sequence.setDNA(dna);
+				sequence.setQuality(quality);
+			}
+		}
+
 		registerNewSequence(sequence);
 		return sequence;
 	}
 
 	/**
-	 * Creates and registers a new Sequence object from the given parameters.
+	 * Creates and registers a new Sequence object from the given parameters,
+	 * unless the sequence is already cached, in which case the cached object
+	 * is updated and returned, so that there is only one object for each
+	 * cached sequence.
 	 * 
 	 * @param seqid
 	 *            the sequence ID of the new sequence.
@@ -487,7 +527,13 @@ public class SequenceManager extends AbstractManager {
 
 	private Sequence createAndRegisterNewSequence(int seqid, Read read,
 			int version, int length) {
-		Sequence sequence = new Sequence(seqid, read, length, version);
+		Sequence sequence = hashBySequenceID.get(new Integer(seqid));
+
+		if (sequence == null)
+			sequence = new Sequence(seqid, read, length, version);
+		else if (sequence.getRead() == null)
+			sequence.setRead(read);
+
 		registerNewSequence(sequence);
 		return sequence;
 	}
@@ -504,7 +550,7 @@ public class SequenceManager extends AbstractManager {
 			Read read = sequence.getRead();
 
 			if (read != null)
-				hashByReadID.put(new Integer(read.getID()), sequence);
+				hashByReadID.put(new Integer(read.getID()), new Integer(sequence.getID()));
 		}
 	}
 
@@ -580,6 +626,27 @@ public class SequenceManager extends AbstractManager {
 		return sequence;
 	}
 
+	/**
+	 * Estimates the heap used by a Sequence, which is dominated by its DNA
+	 * and base quality arrays. The weight is calculated when the sequence is
+	 * added to the cache, which is often before its DNA and quality have been
+	 * loaded, so it is based on the sequence length where that is known.
+	 */
+
+	class SequenceWeigher implements Weigher<Sequence> {
+		public long getWeight(Sequence sequence) {
+			byte[] dna = sequence.getDNA();
+			byte[] quality = sequence.getQuality();
+
+			long loaded = (dna == null ? 0 : dna.length)
+					+ (quality == null ? 0 : quality.length);
+
+			long expected = 2L * Math.max(sequence.getLength(), 0);
+
+			return 64L + Math.max(loaded, expected);
+		}
+	}
+
 	private void loadTagsForSequence(Sequence sequence) throws ArcturusDatabaseException {
 		int seqid = sequence.getID();
 
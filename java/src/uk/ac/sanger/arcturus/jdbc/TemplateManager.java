@@ -25,18 +25,27 @@ import uk.ac.sanger.arcturus.data.Template;
 import uk.ac.sanger.arcturus.data.Ligation;
 import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.cache.ObjectCache;
 
 import java.sql.*;
 import java.util.*;
 
 /**
  * This class manages Template objects.
+ * 
+ * As in ReadManager, templates are cached by ID, and the name cache maps
+ * names to IDs, so that both lookups return the same object whilst it is
+ * cached. A template which has been evicted is re-created as a new object on
+ * its next lookup, so object identity is only guaranteed within the cache
+ * limits, or after a preload.
  */
 
 public class TemplateManager extends AbstractManager {
+	public static final int DEFAULT_CACHE_SIZE = 250000;
+
 	private ArcturusDatabase adb;
-	private HashMap<Integer, Template> hashByID;
-	private HashMap<String, Template> hashByName;
+	private ObjectCache<Integer, Template> hashByID;
+	private ObjectCache<String, Integer> hashByName;
 	private PreparedStatement pstmtByID, pstmtByName;
 
 	/**
@@ -50,8 +59,10 @@ public class TemplateManager extends AbstractManager {
 	public TemplateManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
-		hashByID = new HashMap<Integer, Template>();
-		hashByName = new HashMap<String, Template>();
+		hashByID = createCache(adb, "template", "byID", DEFAULT_CACHE_SIZE,
+				ObjectCache.UNLIMITED, null, false);
+		hashByName = createCache(adb, "template", "byName", DEFAULT_CACHE_SIZE,
+				ObjectCache.UNLIMITED, null, false);
 		
 		try {
 			setConnection(adb.getDefaultConnection());
@@ -106,10 +117,12 @@ public class TemplateManager extends AbstractManager {
 
 	public Template getTemplateByName(String name, boolean autoload)
 			throws ArcturusDatabaseException {
-		Object obj = hashByName.get(name);
+		Integer id = hashByName.get(name);
 
-		return (obj == null && autoload) ? loadTemplateByName(name)
-				: (Template) obj;
+		Template template = id == null ? null : hashByID.get(id);
+
+		return (template == null && autoload) ? loadTemplateByName(name)
+				: template;
 	}
 
 	/**
@@ -197,6 +210,13 @@ public class TemplateManager extends AbstractManager {
 
 	private Template createAndRegisterNewTemplate(String name, int id,
 			int ligation_id) throws ArcturusDatabaseException {
+		Template cached = hashByID.get(new Integer(id));
+
+		if (cached != null) {
+			registerNewTemplate(cached);
+			return cached;
+		}
+
 		Ligation ligation = adb.getLigationByID(ligation_id);
 
 		Template template = new Template(name, id, ligation, adb);
@@ -208,13 +228,14 @@ public class TemplateManager extends AbstractManager {
 
 	void registerNewTemplate(Template template) {
 	    if (cacheing) {
-		hashByName.put(template.getName(), template);
 		hashByID.put(new Integer(template.getID()), template);
+		hashByName.put(template.getName(), new Integer(template.getID()));
 	    }
 	}
 
 	/**
-	 * Pre-loads all available templates into the cache.
+	 * Pre-loads all available templates into the cache, raising the limit on
+	 * the size of the cache if it is too small to hold them all.
 	 */
 
 	public void preload() throws ArcturusDatabaseException {
@@ -223,7 +244,14 @@ public class TemplateManager extends AbstractManager {
 		try {
 		Statement stmt = conn.createStatement();
 
-		ResultSet rs = stmt.executeQuery(query);
+		ResultSet rs = stmt.executeQuery("select count(*) from TEMPLATE");
+
+		if (rs.next())
+			ensureCacheCapacity(rs.getInt(1));
+
+		rs.close();
+
+		rs = stmt.executeQuery(query);
 
 		while (rs.next()) {
 			int id = rs.getInt(1);
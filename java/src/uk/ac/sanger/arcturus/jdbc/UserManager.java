@@ -33,7 +33,7 @@ public class UserManager extends AbstractManager {
 	private ArcturusDatabase adb;
 	private PreparedStatement pstmtRoleByName;
 	private Map<String, Role> roleMap = new HashMap<String, Role>();
-	private Map<String, Person> personMap = new HashMap<String, Person>();
+	private Map<String, Person> personMap;
 
 	/**
 	 * Creates a new UserManager to provide user management services to an
@@ -46,6 +46,8 @@ public class UserManager extends AbstractManager {
 	public UserManager(ArcturusDatabase adb) throws ArcturusDatabaseException {
 		this.adb = adb;
 
+		personMap = createMap(adb, "person", "byUsername");
+
 		try {
 			setConnection(adb.getDefaultConnection());
 		} catch (SQLException e) {
@@ -26,6 +26,10 @@ import java.sql.*;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
@@ -33,35 +37,92 @@ import javax.management.ObjectName;
 
 import uk.ac.sanger.arcturus.Arcturus;
 
+/**
+ * A log handler which stores log records, and the cause chain and stack trace
+ * of any exception which they carry, in the LOGRECORD and STACKTRACE tables.
+ * 
+ * In synchronous mode, each record is written to the database by the thread
+ * which publishes it.
+ * 
+ * In asynchronous mode, publish places the record in a bounded queue and
+ * returns immediately. A background writer thread takes records from the
+ * queue in blocks of up to batchsize records, and writes each block using JDBC
+ * batches within a single transaction. When the queue is full, a record below
+ * level WARNING is either discarded or the publishing thread waits for space,
+ * according to the overflow policy. Records at level WARNING or above are
+ * never discarded. Consecutive records with the same level, source, message
+ * and exception are written once, followed by a single record which reports
+ * how many times the message was repeated.
+ * 
+ * The mode is selected by the jdbcloghandler.async property, and the queue
+ * is configured by the jdbcloghandler.queuesize, jdbcloghandler.batchsize and
+ * jdbcloghandler.overflow properties.
+ */
+
 public class JDBCLogHandler extends Handler implements JDBCLogHandlerMBean {
+	public static final String OVERFLOW_DROP = "drop";
+	public static final String OVERFLOW_BLOCK = "block";
+	
+	public static final int DEFAULT_QUEUE_SIZE = 4096;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	
+	protected static final long CLOSE_TIMEOUT = 30000L;
+	
 	protected Connection conn;
 	protected PreparedStatement pstmtInsertRecord;
 	protected PreparedStatement pstmtInsertStackTrace;
 	protected String username = System.getProperty("user.name");
 	
+	protected boolean async = false;
+	protected boolean blockOnOverflow = false;
+	protected int queueSize = DEFAULT_QUEUE_SIZE;
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+	
+	protected BlockingQueue<LogRecord> queue = null;
+	protected Thread writer = null;
+	protected volatile boolean closed = false;
+	
+	protected final AtomicLong enqueuedCount = new AtomicLong(0);
+	protected final AtomicLong processedCount = new AtomicLong(0);
+	protected final AtomicLong writtenCount = new AtomicLong(0);
+	protected final AtomicLong droppedCount = new AtomicLong(0);
+	protected final AtomicLong coalescedCount = new AtomicLong(0);
+	protected final AtomicLong failedCount = new AtomicLong(0);
+	protected final AtomicLong batchCount = new AtomicLong(0);
+	
+	protected final Object flushLock = new Object();
+	
+	// Marks the end of the queue when the handler is closed.
+	private static final LogRecord END_OF_QUEUE = new LogRecord(Level.OFF, null);
+	
 	public JDBCLogHandler(String propsfile) throws SQLException, IOException, ClassNotFoundException {
-		conn = getConnection(propsfile);		
-		initialise();
+		Properties props = loadProperties(propsfile);
+		conn = getConnection(props);		
+		initialise(props);
 	}
 	
 	public JDBCLogHandler(Connection conn) throws SQLException {
 		this.conn = conn;	
-		initialise();
+		initialise(null);
 	}
 	
 	public JDBCLogHandler(Properties props) throws SQLException, ClassNotFoundException {
 		conn = getConnection(props);
-		initialise();
+		initialise(props);
 	}
 
-	protected Connection getConnection(String propsfile)
-		throws SQLException, IOException, ClassNotFoundException {
+	protected Properties loadProperties(String propsfile) throws IOException {
 		InputStream is = getClass().getResourceAsStream(propsfile);
 		Properties myprops = new Properties();
 		myprops.load(is);
 		is.close();
 		
-		return getConnection(myprops);
+		return myprops;
+	}
+
+	protected Connection getConnection(String propsfile)
+		throws SQLException, IOException, ClassNotFoundException {
+		return getConnection(loadProperties(propsfile));
 	}
 	
 	protected Connection getConnection(Properties props) throws SQLException, ClassNotFoundException {
@@ -88,10 +149,57 @@ public class JDBCLogHandler extends Handler implements JDBCLogHandlerMBean {
 		stmt.close();
 	}
 	
-	protected void initialise() throws SQLException {
+	protected void initialise(Properties props) throws SQLException {
 		prepareStatements();
+		
+		if (props != null)
+			configureQueue(props);
+		
+		if (async)
+			startWriter();
+		
 		registerAsMBean();
 	}
+	
+	protected void configureQueue(Properties props) {
+		async = Boolean.parseBoolean(props.getProperty("jdbcloghandler.async"));
+		
+		queueSize = getIntProperty(props, "jdbcloghandler.queuesize", DEFAULT_QUEUE_SIZE);
+		
+		if (queueSize < 1)
+			queueSize = DEFAULT_QUEUE_SIZE;
+		
+		batchSize = getIntProperty(props, "jdbcloghandler.batchsize", DEFAULT_BATCH_SIZE);
+		
+		if (batchSize < 1)
+			batchSize = DEFAULT_BATCH_SIZE;
+		
+		String overflow = props.getProperty("jdbcloghandler.overflow");
+		
+		blockOnOverflow = overflow != null && overflow.trim().equalsIgnoreCase(OVERFLOW_BLOCK);
+	}
+	
+	private int getIntProperty(Properties props, String key, int defaultValue) {
+		String str = props.getProperty(key);
+		
+		if (str != null) {
+			try {
+				return Integer.parseInt(str.trim());
+			} catch (NumberFormatException nfe) {
+				Arcturus.logWarning("Error parsing value of " + key, nfe);
+			}
+		}
+		
+		return defaultValue;
+	}
+	
+	protected void startWriter() {
+		queue = new ArrayBlockingQueue<LogRecord>(queueSize);
+		
+		writer = new Thread(new LogWriter(), "JDBCLogHandler writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
 
 	protected void prepareStatements() throws SQLException {
 		setWaitTimeout(5*24*3600);
@@ -126,6 +234,14 @@ public class JDBCLogHandler extends Handler implements JDBCLogHandlerMBean {
 	}
 
 	public void close() throws SecurityException {
+		if (closed)
+			return;
+		
+		closed = true;
+		
+		if (writer != null)
+			stopWriter();
+		
 		try {
 			if (conn != null)
 				conn.close();
@@ -136,15 +252,96 @@ public class JDBCLogHandler extends Handler implements JDBCLogHandlerMBean {
 			sqle.printStackTrace();
 		}
 	}
+	
+	private void stopWriter() {
+		try {
+			if (queue.offer(END_OF_QUEUE, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+				writer.join(CLOSE_TIMEOUT);
+			else
+				writer.interrupt();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
+	/**
+	 * In asynchronous mode, waits until every record which was queued before
+	 * this method was called has been written to the database. This method
+	 * does nothing in synchronous mode.
+	 */
+	
 	public void flush() {
-		// Does nothing
+		if (!async || closed || Thread.currentThread() == writer)
+			return;
+		
+		long target = enqueuedCount.get();
+		
+		synchronized (flushLock) {
+			try {
+				while (processedCount.get() < target && writer.isAlive())
+					flushLock.wait(1000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	public void publish(LogRecord record) {
-		if (!isLoggable(record))
+		if (closed || !isLoggable(record))
+			return;
+		
+		if (async)
+			enqueue(record);
+		else
+			writeRecord(record);
+	}
+	
+	private void enqueue(LogRecord record) {
+		// The source class and method are inferred from the call stack the
+		// first time that they are requested, so this must be done on the
+		// publishing thread, not the writer thread.
+		record.getSourceClassName();
+		
+		boolean important = record.getLevel().intValue() >= Level.WARNING.intValue();
+		
+		// A record published by the writer thread itself must never wait for
+		// space in the queue, because only the writer can make space, so an
+		// important record which does not fit is written directly instead.
+		if (Thread.currentThread() == writer) {
+			if (queue.offer(record))
+				enqueuedCount.incrementAndGet();
+			else if (important)
+				writeRecord(record);
+			else
+				droppedCount.incrementAndGet();
+			
 			return;
+		}
+		
+		boolean block = blockOnOverflow || important;
+		
+		boolean queued = false;
+		
+		try {
+			if (block) {
+				queue.put(record);
+				queued = true;
+			} else
+				queued = queue.offer(record);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		
+		if (queued)
+			enqueuedCount.incrementAndGet();
+		else
+			droppedCount.incrementAndGet();
+	}
+	
+	private synchronized void writeRecord(LogRecord record) {
 		try {
 			Throwable thrown = record.getThrown();
 			
@@ -154,13 +351,115 @@ public class JDBCLogHandler extends Handler implements JDBCLogHandlerMBean {
 				while ((thrown = thrown.getCause()) != null)
 					parent = storeException(record, thrown, parent);
 			}
+			
+			writtenCount.incrementAndGet();
 		}
 		catch (SQLException sqle) {
+			failedCount.incrementAndGet();
 			sqle.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Writes a block of records in a single transaction. Records which carry
+	 * no exception are added to a JDBC batch. Records which do carry an
+	 * exception are inserted individually, because the generated key of each
+	 * exception in the cause chain is needed as the parent of the next one,
+	 * but their stack traces are added to a JDBC batch.
+	 * 
+	 * @return the number of records which were written.
+	 */
+	
+	private int writeBatch(List<LogRecord> records) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		
+		if (autoCommit)
+			conn.setAutoCommit(false);
+		
+		try {
+			int pending = 0;
+			
+			for (LogRecord record : records) {
+				Throwable thrown = record.getThrown();
+				
+				if (thrown == null) {
+					setRecordParameters(record, null, 0);
+					pstmtInsertRecord.addBatch();
+					pending++;
+				} else {
+					if (pending > 0) {
+						pstmtInsertRecord.executeBatch();
+						pending = 0;
+					}
+					
+					int parent = storeException(record, thrown, 0, true);
+					
+					while ((thrown = thrown.getCause()) != null)
+						parent = storeException(record, thrown, parent, true);
+				}
+			}
+			
+			if (pending > 0)
+				pstmtInsertRecord.executeBatch();
+			
+			pstmtInsertStackTrace.executeBatch();
+			
+			conn.commit();
+			
+			return records.size();
+		}
+		catch (SQLException sqle) {
+			pstmtInsertRecord.clearBatch();
+			pstmtInsertStackTrace.clearBatch();
+			conn.rollback();
+			throw sqle;
+		}
+		finally {
+			if (autoCommit)
+				conn.setAutoCommit(true);
+		}
+	}
+	
 	private int storeException(LogRecord record, Throwable thrown, int parent) throws SQLException {
+		return storeException(record, thrown, parent, false);
+	}
+	
+	private int storeException(LogRecord record, Throwable thrown, int parent, boolean batchStackTrace)
+		throws SQLException {
+		setRecordParameters(record, thrown, parent);
+
+		int rc = pstmtInsertRecord.executeUpdate();
+
+		if (rc == 1 && record.getThrown() != null) {
+			ResultSet rs = pstmtInsertRecord.getGeneratedKeys();
+
+			rs.next();
+
+			int id = rs.getInt(1);
+			
+			rs.close();
+
+			StackTraceElement ste[] = thrown.getStackTrace();
+
+			for (int i = 0; i < ste.length; i++) {
+				pstmtInsertStackTrace.setInt(1, id);
+				pstmtInsertStackTrace.setInt(2, i);
+				pstmtInsertStackTrace.setString(3, ste[i].getClassName());
+				pstmtInsertStackTrace.setString(4, ste[i].getMethodName());
+				pstmtInsertStackTrace.setInt(5, ste[i].getLineNumber());
+
+				if (batchStackTrace)
+					pstmtInsertStackTrace.addBatch();
+				else
+					pstmtInsertStackTrace.executeUpdate();
+			}
+			
+			return id;
+		} else
+			return 0;
+	}
+	
+	private void setRecordParameters(LogRecord record, Throwable thrown, int parent) throws SQLException {
 		pstmtInsertRecord.setLong(1, record.getMillis());
 		pstmtInsertRecord.setLong(2, record.getSequenceNumber());
 		pstmtInsertRecord.setString(3, record.getLoggerName());
@@ -211,31 +510,166 @@ public class JDBCLogHandler extends Handler implements JDBCLogHandlerMBean {
 			pstmtInsertRecord.setNull(14, Types.INTEGER);
 			pstmtInsertRecord.setNull(15, Types.CHAR);
 		}
+	}
 
-		int rc = pstmtInsertRecord.executeUpdate();
-
-		if (rc == 1 && record.getThrown() != null) {
-			ResultSet rs = pstmtInsertRecord.getGeneratedKeys();
-
-			rs.next();
-
-			int id = rs.getInt(1);
-
-			StackTraceElement ste[] = thrown.getStackTrace();
-
-			for (int i = 0; i < ste.length; i++) {
-				pstmtInsertStackTrace.setInt(1, id);
-				pstmtInsertStackTrace.setInt(2, i);
-				pstmtInsertStackTrace.setString(3, ste[i].getClassName());
-				pstmtInsertStackTrace.setString(4, ste[i].getMethodName());
-				pstmtInsertStackTrace.setInt(5, ste[i].getLineNumber());
-
-				pstmtInsertStackTrace.executeUpdate();
+	private static boolean isDuplicate(LogRecord r1, LogRecord r2) {
+		if (r1.getLevel() != r2.getLevel() || r1.getThreadID() != r2.getThreadID())
+			return false;
+		
+		if (!equals(r1.getMessage(), r2.getMessage())
+				|| !equals(r1.getLoggerName(), r2.getLoggerName())
+				|| !equals(r1.getSourceClassName(), r2.getSourceClassName())
+				|| !equals(r1.getSourceMethodName(), r2.getSourceMethodName()))
+			return false;
+		
+		Throwable t1 = r1.getThrown();
+		Throwable t2 = r2.getThrown();
+		
+		if (t1 == null || t2 == null)
+			return t1 == t2;
+		
+		return t1.getClass() == t2.getClass() && equals(t1.getMessage(), t2.getMessage());
+	}
+	
+	private static boolean equals(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+	
+	private static LogRecord createRepeatRecord(LogRecord last, int repeats) {
+		LogRecord record = new LogRecord(last.getLevel(), "Previous message repeated "
+				+ repeats + (repeats == 1 ? " time" : " times"));
+		
+		record.setLoggerName(last.getLoggerName());
+		record.setSourceClassName(last.getSourceClassName());
+		record.setSourceMethodName(last.getSourceMethodName());
+		record.setThreadID(last.getThreadID());
+		record.setMillis(last.getMillis());
+		record.setSequenceNumber(last.getSequenceNumber());
+		
+		return record;
+	}
+	
+	class LogWriter implements Runnable {
+		private LogRecord lastRecord = null;
+		private LogRecord lastRepeat = null;
+		private int repeats = 0;
+		
+		public void run() {
+			List<LogRecord> block = new ArrayList<LogRecord>(batchSize);
+			List<LogRecord> batch = new ArrayList<LogRecord>(batchSize + 1);
+			
+			boolean done = false;
+			
+			while (!done) {
+				try {
+					block.add(queue.take());
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				
+				queue.drainTo(block, batchSize - 1);
+				
+				int nrecords = 0;
+				
+				for (LogRecord record : block) {
+					if (record == END_OF_QUEUE) {
+						done = true;
+						continue;
+					}
+					
+					nrecords++;
+					
+					if (lastRecord != null && isDuplicate(lastRecord, record)) {
+						lastRepeat = record;
+						repeats++;
+						coalescedCount.incrementAndGet();
+					} else {
+						addRepeatRecord(batch);
+						batch.add(record);
+						lastRecord = record;
+					}
+				}
+				
+				addRepeatRecord(batch);
+				
+				if (!batch.isEmpty()) {
+					try {
+						writtenCount.addAndGet(writeBatch(batch));
+						batchCount.incrementAndGet();
+					}
+					catch (SQLException sqle) {
+						failedCount.addAndGet(batch.size());
+						sqle.printStackTrace();
+					}
+				}
+				
+				processedCount.addAndGet(nrecords);
+				
+				synchronized (flushLock) {
+					flushLock.notifyAll();
+				}
+				
+				block.clear();
+				batch.clear();
 			}
 			
-			return id;
-		} else
-			return 0;
+			synchronized (flushLock) {
+				flushLock.notifyAll();
+			}
+		}
+		
+		private void addRepeatRecord(List<LogRecord> batch) {
+			if (repeats > 0)
+				batch.add(createRepeatRecord(lastRepeat, repeats));
+			
+			lastRepeat = null;
+			repeats = 0;
+		}
+	}
+	
+	public boolean isAsynchronous() {
+		return async;
+	}
+	
+	public String getOverflowPolicy() {
+		return blockOnOverflow ? OVERFLOW_BLOCK : OVERFLOW_DROP;
+	}
+	
+	public int getQueueCapacity() {
+		return async ? queueSize : 0;
+	}
+	
+	public int getQueueDepth() {
+		return queue == null ? 0 : queue.size();
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	public long getQueuedCount() {
+		return enqueuedCount.get();
+	}
+	
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+	
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+	
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+	
+	public long getBatchCount() {
+		return batchCount.get();
 	}
 
 	private Level oldLevel;
@@ -24,4 +24,17 @@ package uk.ac.sanger.arcturus.logging;
 public interface JDBCLogHandlerMBean {
 	public void setDebugging(boolean debugging);
 	public boolean isDebugging();
+	
+	public boolean isAsynchronous();
+	public String getOverflowPolicy();
+	public int getQueueCapacity();
+	public int getQueueDepth();
+	public int getBatchSize();
+	
+	public long getQueuedCount();
+	public long getWrittenCount();
+	public long getDroppedCount();
+	public long getCoalescedCount();
+	public long getFailedCount();
+	public long getBatchCount();
 }
@@ -0,0 +1,579 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.oligo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent, memory-mapped index of the k-mers in a set of DNA sequences,
+ * such as the consensus sequences of the current contigs of an organism.
+ * 
+ * The index file contains the sequences themselves, a table describing each
+ * sequence, and a postings list for every k-mer of length K, giving the
+ * positions at which it occurs. Only k-mers which start at every STEP'th
+ * position of each sequence are indexed, so an oligo of length K + STEP - 1 or
+ * more contains exactly one indexed k-mer for each of its occurrences. Each
+ * candidate occurrence is confirmed against the stored sequence.
+ * 
+ * Oligos which are too short, or which contain N, cannot be found through the
+ * postings lists, and sequences which contain pads are not indexed. In these
+ * cases, the stored sequences are scanned with an OligoMatcher instead, so the
+ * search always finds exactly the matches which OligoMatcher would find.
+ * 
+ * The file consists of a header of HEADER_SIZE bytes, the sequence data, a
+ * table of TABLE_ENTRY_SIZE bytes per sequence, KMER_COUNT + 1 postings list
+ * offsets and the postings themselves. The header holds the magic number,
+ * the format version, K, STEP, the number of sequences, the length of the
+ * sequence data, the number of postings and a timestamp supplied by the
+ * writer. Each table entry holds the ID, start, length, flags and checksum of
+ * a sequence. All values are big-endian.
+ * 
+ * An index may also record IDs for which no sequence exists, such as contigs
+ * which have no consensus, so that the caller does not look for them again.
+ * 
+ * Index files are created by KmerIndexWriter.
+ */
+
+public class KmerIndex {
+	public static final int K = 10;
+	public static final int STEP = 6;
+
+	public static final int MIN_INDEXED_OLIGO_LENGTH = K + STEP - 1;
+
+	public static final int KMER_COUNT = 1 << (2 * K);
+
+	public static final int MAGIC = 0x414B4D49;
+	public static final int VERSION = 3;
+
+	public static final int HEADER_SIZE = 40;
+	public static final int TABLE_ENTRY_SIZE = 28;
+
+	public static final int FLAG_PADDED = 1;
+	public static final int FLAG_ABSENT = 2;
+
+	private static final byte[] CODE = new byte[256];
+
+	static {
+		Arrays.fill(CODE, (byte) -1);
+
+		CODE['A'] = 0;
+		CODE['C'] = 1;
+		CODE['G'] = 2;
+		CODE['T'] = 3;
+	}
+
+	private final File file;
+
+	private final int nseqs;
+
+	private final long timestamp;
+
+	private final int[] ids;
+	private final int[] starts;
+	private final int[] lengths;
+	private final int[] flags;
+	private final long[] checksums;
+
+	private final Map<Integer, Integer> indexByID = new HashMap<Integer, Integer>();
+
+	private final MappedByteBuffer buffer;
+	private final IntBuffer offsets;
+	private final IntBuffer postings;
+
+	private KmerIndex(File file) throws IOException {
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("The k-mer index file " + file
+						+ " is too large to map into memory");
+
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+					.size());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != VERSION || buffer.getInt(8) != K
+				|| buffer.getInt(12) != STEP)
+			throw new IOException("The file " + file
+					+ " is not a compatible k-mer index");
+
+		nseqs = buffer.getInt(16);
+
+		long dataLength = buffer.getLong(20);
+
+		int npostings = buffer.getInt(28);
+
+		timestamp = buffer.getLong(32);
+
+		int tableOffset = HEADER_SIZE + (int) dataLength;
+		int offsetsOffset = tableOffset + nseqs * TABLE_ENTRY_SIZE;
+		int postingsOffset = offsetsOffset + 4 * (KMER_COUNT + 1);
+
+		if (buffer.capacity() != postingsOffset + 4 * npostings)
+			throw new IOException("The k-mer index file " + file
+					+ " is truncated or corrupt");
+
+		ids = new int[nseqs];
+		starts = new int[nseqs];
+		lengths = new int[nseqs];
+		flags = new int[nseqs];
+		checksums = new long[nseqs];
+
+		for (int i = 0; i < nseqs; i++) {
+			int entry = tableOffset + i * TABLE_ENTRY_SIZE;
+
+			ids[i] = buffer.getInt(entry);
+			starts[i] = (int) buffer.getLong(entry + 4);
+			lengths[i] = buffer.getInt(entry + 12);
+			flags[i] = buffer.getInt(entry + 16);
+			checksums[i] = buffer.getLong(entry + 20);
+
+			indexByID.put(ids[i], i);
+		}
+
+		offsets = slice(offsetsOffset, KMER_COUNT + 1);
+		postings = slice(postingsOffset, npostings);
+	}
+
+	private IntBuffer slice(int offset, int count) {
+		ByteBuffer copy = buffer.duplicate();
+		copy.position(offset);
+		copy.limit(offset + 4 * count);
+		return copy.slice().asIntBuffer();
+	}
+
+	/**
+	 * Opens an existing index file.
+	 * 
+	 * @param file
+	 *            the index file.
+	 * 
+	 * @return the index, or null if the file does not exist.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or is not a compatible index.
+	 */
+
+	public static KmerIndex open(File file) throws IOException {
+		return file.isFile() ? new KmerIndex(file) : null;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getSequenceCount() {
+		return nseqs;
+	}
+
+	/**
+	 * Returns the timestamp which the writer stored in the file, such as the
+	 * time up to which the sequences are known to be up to date.
+	 */
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns true if the index contains the specified ID, either with a
+	 * sequence or as an ID which is known to have no sequence.
+	 */
+
+	public boolean contains(int id) {
+		return indexByID.containsKey(id);
+	}
+
+	/**
+	 * Returns true if the index contains a sequence for the specified ID.
+	 */
+
+	public boolean hasSequence(int id) {
+		Integer index = indexByID.get(id);
+
+		return index != null && (flags[index] & FLAG_ABSENT) == 0;
+	}
+
+	/**
+	 * Returns a copy of the sequence with the specified ID, or null if the
+	 * index does not contain a sequence for it.
+	 */
+
+	public byte[] getSequence(int id) {
+		Integer index = indexByID.get(id);
+
+		return index == null || (flags[index] & FLAG_ABSENT) != 0 ? null
+				: getSequenceByIndex(index);
+	}
+
+	private byte[] getSequenceByIndex(int index) {
+		byte[] dna = new byte[lengths[index]];
+
+		ByteBuffer copy = buffer.duplicate();
+		copy.position(HEADER_SIZE + starts[index]);
+		copy.get(dna);
+
+		return dna;
+	}
+
+	/**
+	 * Returns the checksum of the sequence with the specified ID, as
+	 * calculated by KmerIndexWriter.getChecksum, or -1 if the index does not
+	 * contain a sequence for it.
+	 */
+
+	public long getSequenceChecksum(int id) {
+		Integer index = indexByID.get(id);
+
+		return index == null || (flags[index] & FLAG_ABSENT) != 0 ? -1
+				: checksums[index];
+	}
+
+	/**
+	 * Returns the length of the sequence with the specified ID, or -1 if the
+	 * index does not contain a sequence for it.
+	 */
+
+	public int getSequenceLength(int id) {
+		Integer index = indexByID.get(id);
+
+		return index == null || (flags[index] & FLAG_ABSENT) != 0 ? -1
+				: lengths[index];
+	}
+
+	static int encodeKmer(ByteBuffer data, int offset) {
+		int code = 0;
+
+		for (int i = 0; i < K; i++) {
+			int base = CODE[data.get(offset + i) & 0xff];
+
+			if (base < 0)
+				return -1;
+
+			code = (code << 2) | base;
+		}
+
+		return code;
+	}
+
+	private static int encodeKmer(String sequence, int offset) {
+		int code = 0;
+
+		for (int i = 0; i < K; i++) {
+			char c = sequence.charAt(offset + i);
+			int base = c < CODE.length ? CODE[c] : -1;
+
+			if (base < 0)
+				return -1;
+
+			code = (code << 2) | base;
+		}
+
+		return code;
+	}
+
+	private static boolean isIndexable(String sequence) {
+		if (sequence.length() < MIN_INDEXED_OLIGO_LENGTH)
+			return false;
+
+		for (int shift = 0; shift < STEP; shift++)
+			if (encodeKmer(sequence, shift) < 0)
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Finds all matches of the specified oligos in the specified sequences.
+	 * 
+	 * @param oligos
+	 *            the oligos to find.
+	 * @param sequenceIDs
+	 *            the IDs of the sequences to search.
+	 * 
+	 * @return the results of the search.
+	 */
+
+	public Search search(Oligo[] oligos, Set<Integer> sequenceIDs) {
+		return new Search(oligos, sequenceIDs);
+	}
+
+	/**
+	 * The results of a search, which can be reported sequence by sequence.
+	 * 
+	 * Each match is held as a long which encodes the oligo index, the direction
+	 * and the offset, so that sorting the matches puts them into the order in
+	 * which OligoMatcher would report them.
+	 */
+
+	public class Search {
+		private final Oligo[] oligos;
+
+		private final Map<Integer, long[]> matchesByIndex = new HashMap<Integer, long[]>();
+		private final Map<Integer, Integer> matchCountByIndex = new HashMap<Integer, Integer>();
+
+		private Search(Oligo[] oligos, Set<Integer> sequenceIDs) {
+			this.oligos = oligos;
+
+			boolean[] inScope = new boolean[nseqs];
+
+			for (Integer id : sequenceIDs) {
+				Integer index = indexByID.get(id);
+
+				if (index != null)
+					inScope[index] = true;
+			}
+
+			int nscanned = 0;
+			Oligo[] scanned = new Oligo[oligos.length];
+
+			for (int i = 0; i < oligos.length; i++) {
+				Oligo oligo = oligos[i];
+
+				boolean indexable = oligo.getLength() > 0
+						&& isIndexable(oligo.getSequence())
+						&& (oligo.isPalindrome() || isIndexable(oligo
+								.getReverseSequence()));
+
+				if (indexable) {
+					searchPostings(i, oligo.getSequence(), true, inScope);
+
+					if (!oligo.isPalindrome())
+						searchPostings(i, oligo.getReverseSequence(), false,
+								inScope);
+				} else {
+					scanned[nscanned++] = oligo;
+				}
+			}
+
+			OligoMatcher allOligos = new OligoMatcher(oligos);
+			OligoMatcher someOligos = nscanned > 0 ? new OligoMatcher(Arrays
+					.copyOf(scanned, nscanned)) : null;
+
+			Map<Oligo, Integer> oligoIndex = new HashMap<Oligo, Integer>();
+
+			for (int i = 0; i < oligos.length; i++)
+				oligoIndex.put(oligos[i], i);
+
+			for (int index = 0; index < nseqs; index++) {
+				if (!inScope[index])
+					continue;
+
+				if ((flags[index] & FLAG_PADDED) != 0)
+					scanSequence(index, allOligos, oligoIndex);
+				else if (someOligos != null)
+					scanSequence(index, someOligos, oligoIndex);
+			}
+
+			for (Map.Entry<Integer, long[]> entry : matchesByIndex.entrySet()) {
+				int count = matchCountByIndex.get(entry.getKey());
+				long[] matches = Arrays.copyOf(entry.getValue(), count);
+				Arrays.sort(matches);
+				entry.setValue(removeOverlaps(matches));
+			}
+		}
+
+		private void searchPostings(int oligoIndex, String sequence,
+				boolean forward, boolean[] inScope) {
+			int length = sequence.length();
+
+			byte[] pattern;
+
+			try {
+				pattern = sequence.getBytes("US-ASCII");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+
+			for (int shift = 0; shift < STEP; shift++) {
+				int code = encodeKmer(sequence, shift);
+
+				int first = offsets.get(code);
+				int last = offsets.get(code + 1);
+
+				for (int j = first; j < last; j++) {
+					int position = postings.get(j);
+
+					int index = findSequenceIndex(position);
+
+					if (!inScope[index])
+						continue;
+
+					int start = position - starts[index] - shift;
+
+					if (start < 0 || start + length > lengths[index])
+						continue;
+
+					if (matchesAt(starts[index] + start, pattern))
+						addMatch(index, oligoIndex, forward, start);
+				}
+			}
+		}
+
+		private boolean matchesAt(int position, byte[] pattern) {
+			int offset = HEADER_SIZE + position;
+
+			for (int i = 0; i < pattern.length; i++)
+				if (buffer.get(offset + i) != pattern[i])
+					return false;
+
+			return true;
+		}
+
+		private void scanSequence(final int index, OligoMatcher matcher,
+				final Map<Oligo, Integer> oligoIndex) {
+			String dna;
+
+			try {
+				dna = new String(getSequenceByIndex(index), "US-ASCII");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+
+			matcher.findMatches(dna, new OligoMatcher.MatchHandler() {
+				public void foundMatch(Oligo oligo, int offset, boolean forward) {
+					addMatch(index, oligoIndex.get(oligo), forward, offset);
+				}
+			});
+		}
+
+		private void addMatch(int index, int oligoIndex, boolean forward,
+				int offset) {
+			long match = ((long) oligoIndex << 33)
+					| ((long) (forward ? 0 : 1) << 32) | offset;
+
+			long[] matches = matchesByIndex.get(index);
+			Integer count = matchCountByIndex.get(index);
+
+			if (matches == null) {
+				matches = new long[4];
+				count = 0;
+			} else if (count == matches.length)
+				matches = Arrays.copyOf(matches, 2 * matches.length);
+
+			matches[count] = match;
+
+			matchesByIndex.put(index, matches);
+			matchCountByIndex.put(index, count + 1);
+		}
+
+		/**
+		 * Removes matches which overlap an earlier match of the same oligo in
+		 * the same direction, as a regular expression search would. Matches in
+		 * padded sequences were found by an OligoMatcher and never overlap.
+		 */
+
+		private long[] removeOverlaps(long[] matches) {
+			int n = 0;
+			long lastKey = -1;
+			int lastEnd = 0;
+
+			for (long match : matches) {
+				long key = match >>> 32;
+				int offset = (int) (match & 0xffffffffL);
+				Oligo oligo = oligos[(int) (key >>> 1)];
+				int length = (key & 1) == 0 ? oligo.getSequence().length()
+						: oligo.getReverseSequence().length();
+
+				if (key != lastKey || offset >= lastEnd) {
+					matches[n++] = match;
+					lastKey = key;
+					lastEnd = offset + length;
+				}
+			}
+
+			return n == matches.length ? matches : Arrays.copyOf(matches, n);
+		}
+
+		/**
+		 * Reports the matches in the sequence with the specified ID to the
+		 * handler, in the order in which OligoMatcher would report them.
+		 * 
+		 * @return the number of matches.
+		 */
+
+		public int reportMatches(int id, OligoMatcher.MatchHandler handler) {
+			Integer index = indexByID.get(id);
+
+			long[] matches = index == null ? null : matchesByIndex.get(index);
+
+			if (matches == null)
+				return 0;
+
+			if (handler != null) {
+				for (long match : matches) {
+					Oligo oligo = oligos[(int) (match >>> 33)];
+					boolean forward = ((match >>> 32) & 1L) == 0;
+					int offset = (int) (match & 0xffffffffL);
+
+					handler.foundMatch(oligo, offset, forward);
+				}
+			}
+
+			return matches.length;
+		}
+	}
+
+	private int findSequenceIndex(int position) {
+		int index = Arrays.binarySearch(starts, position);
+
+		if (index < 0)
+			return -index - 2;
+
+		// Skip over any empty sequences which start at the same position.
+		while (index + 1 < nseqs && starts[index + 1] == position)
+			index++;
+
+		return index;
+	}
+
+	/**
+	 * Returns the IDs of the sequences in this index which are not in the
+	 * specified collection.
+	 */
+
+	public Set<Integer> getObsoleteIDs(Collection<Integer> currentIDs) {
+		Set<Integer> obsolete = new java.util.HashSet<Integer>(indexByID
+				.keySet());
+		obsolete.removeAll(currentIDs);
+		return obsolete;
+	}
+}
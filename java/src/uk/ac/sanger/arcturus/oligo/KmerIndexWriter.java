@@ -0,0 +1,404 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.oligo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a k-mer index file which can be opened by KmerIndex.
+ * 
+ * Sequences are appended to the file as they are added. When finish is called,
+ * the sequence table is written after the sequence data, and the data are then
+ * mapped into memory and scanned to build the k-mer postings lists, which are
+ * written at the end of the file. Finally, the header is written at the start
+ * of the file.
+ * 
+ * The static update method brings an existing index up to date by writing a
+ * new file, which is renamed into place only when it is complete.
+ */
+
+public class KmerIndexWriter {
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	private long dataLength = 0;
+
+	private long timestamp = 0;
+
+	private Vector<Integer> ids = new Vector<Integer>();
+	private Vector<Long> starts = new Vector<Long>();
+	private Vector<Integer> lengths = new Vector<Integer>();
+	private Vector<Integer> flags = new Vector<Integer>();
+	private Vector<Long> checksums = new Vector<Long>();
+
+	private Set<Integer> idSet = new HashSet<Integer>();
+
+	public KmerIndexWriter(File file) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+
+		channel = raf.getChannel();
+
+		channel.position(KmerIndex.HEADER_SIZE);
+	}
+
+	/**
+	 * Appends a sequence to the index file.
+	 * 
+	 * @param id
+	 *            the ID of the sequence, such as a contig ID.
+	 * @param sequence
+	 *            the DNA of the sequence.
+	 */
+
+	public void addSequence(int id, byte[] sequence) throws IOException {
+		if (dataLength + sequence.length > Integer.MAX_VALUE)
+			throw new IOException("The k-mer index cannot hold more than "
+					+ Integer.MAX_VALUE + " bases");
+
+		int flag = 0;
+
+		for (int i = 0; i < sequence.length && flag == 0; i++)
+			if (sequence[i] == '-')
+				flag = KmerIndex.FLAG_PADDED;
+
+		addEntry(id, sequence.length, flag, getChecksum(sequence));
+
+		ByteBuffer buffer = ByteBuffer.wrap(sequence);
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		dataLength += sequence.length;
+	}
+
+	/**
+	 * Records an ID which has no sequence, such as a contig which has no
+	 * consensus, so that KmerIndex.contains will return true for it.
+	 * 
+	 * @param id
+	 *            the ID.
+	 */
+
+	public void addAbsentSequence(int id) {
+		addEntry(id, 0, KmerIndex.FLAG_ABSENT, 0L);
+	}
+
+	private void addEntry(int id, int length, int flag, long checksum) {
+		if (!idSet.add(id))
+			throw new IllegalArgumentException("The ID " + id
+					+ " has already been added to the k-mer index");
+
+		ids.add(id);
+		starts.add(dataLength);
+		lengths.add(length);
+		flags.add(flag);
+		checksums.add(checksum);
+	}
+
+	/**
+	 * Returns true if the specified ID has been added, with or without a
+	 * sequence.
+	 */
+
+	public boolean contains(int id) {
+		return idSet.contains(id);
+	}
+
+	/**
+	 * Sets the timestamp which is stored in the header of the file.
+	 */
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Returns a checksum of a sequence, which combines its length with a CRC32
+	 * of its bases.
+	 */
+
+	public static long getChecksum(byte[] sequence) {
+		CRC32 crc = new CRC32();
+
+		crc.update(sequence, 0, sequence.length);
+
+		return ((long) sequence.length << 32) | crc.getValue();
+	}
+
+	/**
+	 * Returns the number of sequences which have been added.
+	 * 
+	 * @return the number of sequences which have been added.
+	 */
+
+	public int getSequenceCount() {
+		return ids.size();
+	}
+
+	/**
+	 * Writes the sequence table, the k-mer postings lists and the header, and
+	 * closes the file.
+	 */
+
+	public void finish() throws IOException {
+		int nseqs = ids.size();
+
+		ByteBuffer table = ByteBuffer.allocate(nseqs
+				* KmerIndex.TABLE_ENTRY_SIZE);
+
+		for (int i = 0; i < nseqs; i++) {
+			table.putInt(ids.get(i));
+			table.putLong(starts.get(i));
+			table.putInt(lengths.get(i));
+			table.putInt(flags.get(i));
+			table.putLong(checksums.get(i));
+		}
+
+		table.flip();
+
+		channel.position(KmerIndex.HEADER_SIZE + dataLength);
+
+		while (table.hasRemaining())
+			channel.write(table);
+
+		MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+				KmerIndex.HEADER_SIZE, dataLength);
+
+		int[] offsets = new int[KmerIndex.KMER_COUNT + 1];
+
+		// The first pass counts the occurrences of each k-mer ...
+		for (int i = 0; i < nseqs; i++)
+			if (flags.get(i) == 0)
+				scanSequence(data, starts.get(i), lengths.get(i), offsets, null);
+
+		int npostings = 0;
+
+		for (int code = 0; code < KmerIndex.KMER_COUNT; code++) {
+			int count = offsets[code];
+			offsets[code] = npostings;
+			npostings += count;
+		}
+
+		offsets[KmerIndex.KMER_COUNT] = npostings;
+
+		// ... and the second pass fills in the postings lists.
+		int[] postings = new int[npostings];
+		int[] cursor = offsets.clone();
+
+		for (int i = 0; i < nseqs; i++)
+			if (flags.get(i) == 0)
+				scanSequence(data, starts.get(i), lengths.get(i), cursor,
+						postings);
+
+		writeInts(offsets);
+		writeInts(postings);
+
+		ByteBuffer header = ByteBuffer.allocate(KmerIndex.HEADER_SIZE);
+
+		header.putInt(KmerIndex.MAGIC);
+		header.putInt(KmerIndex.VERSION);
+		header.putInt(KmerIndex.K);
+		header.putInt(KmerIndex.STEP);
+		header.putInt(nseqs);
+		header.putLong(dataLength);
+		header.putInt(npostings);
+		header.putLong(timestamp);
+
+		header.flip();
+
+		channel.position(0);
+
+		while (header.hasRemaining())
+			channel.write(header);
+
+		channel.force(false);
+
+		raf.close();
+	}
+
+	/**
+	 * Scans the k-mers at every STEP'th position of a sequence. If postings is
+	 * null, the count of each k-mer is incremented, otherwise the position of
+	 * each k-mer is stored in the postings array at the position indicated by
+	 * the cursor array.
+	 */
+
+	private void scanSequence(MappedByteBuffer data, long start, int length,
+			int[] cursor, int[] postings) {
+		for (int pos = 0; pos + KmerIndex.K <= length; pos += KmerIndex.STEP) {
+			int code = KmerIndex.encodeKmer(data, (int) start + pos);
+
+			if (code < 0)
+				continue;
+
+			if (postings == null)
+				cursor[code]++;
+			else
+				postings[cursor[code]++] = (int) start + pos;
+		}
+	}
+
+	private void writeInts(int[] values) throws IOException {
+		final int CHUNK_SIZE = 1 << 16;
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 * CHUNK_SIZE);
+		IntBuffer ibuffer = buffer.asIntBuffer();
+
+		for (int offset = 0; offset < values.length; offset += CHUNK_SIZE) {
+			int count = Math.min(CHUNK_SIZE, values.length - offset);
+
+			ibuffer.clear();
+			ibuffer.put(values, offset, count);
+
+			buffer.clear();
+			buffer.limit(4 * count);
+
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Closes the file without completing it.
+	 */
+
+	public void abort() {
+		try {
+			raf.close();
+		} catch (IOException ioe) {
+			// Ignore this, since the file is being abandoned.
+		}
+	}
+
+	/**
+	 * Supplies the sequences which are not already in an index, or which have
+	 * changed, when the index is updated.
+	 */
+
+	public interface SequenceSource {
+		/**
+		 * Adds the sequences with the specified IDs to the writer. An ID which
+		 * has no sequence may be omitted, and will be recorded as absent.
+		 */
+
+		public void addSequences(Set<Integer> ids, KmerIndexWriter writer)
+				throws IOException;
+	}
+
+	/**
+	 * Writes an index which contains the specified IDs, and renames it into
+	 * place when it is complete, so that readers of the old file are never
+	 * exposed to a partial index. Each sequence which the old index contains
+	 * and which is not listed as changed is copied from the old index. The
+	 * other sequences are requested from the source. Sequences in the old
+	 * index which are not in the specified set are dropped.
+	 * 
+	 * @param file
+	 *            the index file.
+	 * @param oldIndex
+	 *            the current index, or null if there is none.
+	 * @param ids
+	 *            the IDs which the new index will contain.
+	 * @param changedIDs
+	 *            the IDs whose sequences must be requested from the source
+	 *            even if the old index contains them.
+	 * @param timestamp
+	 *            the timestamp to be stored in the new index.
+	 * @param source
+	 *            the source of new and changed sequences.
+	 * 
+	 * @return the new index.
+	 */
+
+	public static KmerIndex update(File file, KmerIndex oldIndex,
+			Set<Integer> ids, Set<Integer> changedIDs, long timestamp,
+			SequenceSource source) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create the directory " + dir);
+
+		// Each writer uses a file of its own, so that two processes updating
+		// the same index at once cannot overwrite each other's output.
+		File tmpfile = File.createTempFile(file.getName() + ".", ".tmp", dir);
+
+		KmerIndexWriter writer = new KmerIndexWriter(tmpfile);
+
+		try {
+			Set<Integer> fetchIDs = new TreeSet<Integer>();
+
+			for (int id : ids) {
+				if (oldIndex == null || !oldIndex.contains(id)
+						|| changedIDs.contains(id))
+					fetchIDs.add(id);
+				else if (oldIndex.hasSequence(id))
+					writer.addSequence(id, oldIndex.getSequence(id));
+				else
+					writer.addAbsentSequence(id);
+			}
+
+			if (!fetchIDs.isEmpty())
+				source.addSequences(fetchIDs, writer);
+
+			for (int id : fetchIDs)
+				if (!writer.contains(id))
+					writer.addAbsentSequence(id);
+
+			writer.setTimestamp(timestamp);
+
+			writer.finish();
+		} catch (IOException ioe) {
+			writer.abort();
+			tmpfile.delete();
+			throw ioe;
+		} catch (RuntimeException re) {
+			writer.abort();
+			tmpfile.delete();
+			throw re;
+		}
+
+		if (!tmpfile.renameTo(file)) {
+			// Some platforms will not rename over an existing file.
+			file.delete();
+
+			if (!tmpfile.renameTo(file)) {
+				tmpfile.delete();
+				throw new IOException("Failed to rename " + tmpfile + " to "
+						+ file);
+			}
+		}
+
+		return KmerIndex.open(file);
+	}
+}
@@ -27,12 +27,13 @@ import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
 import uk.ac.sanger.arcturus.oligo.OligoFinderEvent.Type;
 
 import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-
 import com.mysql.jdbc.MysqlErrorNumbers;
 
 public class OligoFinder {
@@ -43,7 +44,45 @@ public class OligoFinder {
 	private OligoFinderEvent event;
 
 	private Inflater decompresser = new Inflater();
+
+	private OligoMatcher matcher;
+
+	private final OligoMatcher.MatchHandler matchHandler = new OligoMatcher.MatchHandler() {
+		public void foundMatch(Oligo oligo, int offset, boolean forward) {
+			reportMatch(oligo, offset, forward);
+		}
+	};
 	
+	private boolean useIndex = Boolean.parseBoolean(Arcturus.getProperty(
+			"oligofinder.useIndex", "true"));
+
+	private KmerIndex contigIndex = null;
+
+	// The time at which this finder last looked for recalculated consensus
+	// sequences, according to the local clock.
+	private long lastConsensusCheck = 0;
+
+	private final long consensusCheckInterval = getConsensusCheckInterval();
+
+	private KmerIndex readIndex = null;
+
+	// The free read indexes which could not be updated, mapped to the state
+	// of each file when the update failed. The map is shared by all finders,
+	// because the index file is shared by all users of the same database.
+	private static final Map<File, String> failedReadIndexes = new HashMap<File, String>();
+
+	// The free reads found by the last search, and the current contigs and
+	// highest read ID from which they were found.
+	private Map<Integer, String> freeReads = null;
+	private Set<Integer> freeReadsContigIDs = null;
+	private int freeReadsMaxReadID = -1;
+
+	private int threadCount = getDefaultThreadCount();
+
+	// The number of sequences which may be queued or in progress for each
+	// worker thread, in parallel searches.
+	private final int SEQUENCES_PER_THREAD = 16;
+
 	private int passValue;
 	
 	private final int CONNECTION_VALIDATION_TIMEOUT = 10;
@@ -109,6 +148,18 @@ public class OligoFinder {
 		" from " + FREE_READS + " R left join (SEQ2READ SR,SEQUENCE S) using(read_id)" +
 		" where SR.version=0 and SR.seq_id=S.seq_id order by R.read_id";
 	private PreparedStatement pstmtGetReadSequences;
+	
+	private final String GET_PASS_READS = "select read_id,readname from READINFO where status = ? order by read_id";
+	private PreparedStatement pstmtGetPassReads;
+	
+	private final String GET_MAX_READ_ID = "select max(read_id) from READINFO";
+	private PreparedStatement pstmtGetMaxReadID;
+	
+	private final String GET_CURRENT_CONTIGS = "select CC.contig_id,CC.gap4name,CC.length,CC.project_id,P.name" +
+		" from CURRENTCONTIGS CC,PROJECT P where CC.project_id=P.project_id order by CC.contig_id asc";
+	private PreparedStatement pstmtGetCurrentContigs;
+	
+	private final int CONSENSUS_QUERY_BLOCK_SIZE = 1000;
 
 	public OligoFinder(ArcturusDatabase adb, OligoFinderEventListener listener) throws ArcturusDatabaseException {
 		this.adb = adb;
@@ -181,6 +232,15 @@ public class OligoFinder {
 	              ResultSet.CONCUR_READ_ONLY);
 		
 		pstmtGetReadSequences.setFetchSize(Integer.MIN_VALUE);
+		
+		pstmtGetCurrentContigs = conn.prepareStatement(GET_CURRENT_CONTIGS);
+		
+		pstmtGetPassReads = conn.prepareStatement(GET_PASS_READS, ResultSet.TYPE_FORWARD_ONLY,
+	              ResultSet.CONCUR_READ_ONLY);
+		
+		pstmtGetPassReads.setFetchSize(Integer.MIN_VALUE);
+		
+		pstmtGetMaxReadID = conn.prepareStatement(GET_MAX_READ_ID);
 	}
 	
 	private void closeStatements() throws SQLException {
@@ -198,6 +258,11 @@ public class OligoFinder {
 		pstmtGetContigSequences.close();
 		
 		pstmtGetReadSequences.close();		
+		
+		pstmtGetCurrentContigs.close();
+		
+		pstmtGetPassReads.close();
+		pstmtGetMaxReadID.close();
 	}
 	
 	public synchronized int findMatches(Oligo[] oligos, int[] projectIDs,
@@ -205,6 +270,8 @@ public class OligoFinder {
 			throws ArcturusDatabaseException {
 		int found = 0;
 
+		matcher = new OligoMatcher(oligos);
+
 		try {
 			checkConnection();
 
@@ -226,7 +293,37 @@ public class OligoFinder {
 		return found;
 	}
 	
+	/**
+	 * Specifies whether searches should use the persistent k-mer indexes of
+	 * current contig consensus sequences and of free reads. The default is
+	 * given by the oligofinder.useIndex property.
+	 */
+
+	public void setUseIndex(boolean useIndex) {
+		this.useIndex = useIndex;
+	}
+
+	public boolean isUsingIndex() {
+		return useIndex;
+	}
+
 	private int findContigMatches(Oligo[] oligos, int[] projectIDs) throws SQLException {
+		if (useIndex) {
+			Map<Integer, CurrentContig> contigs = getCurrentContigs();
+
+			KmerIndex index = null;
+
+			try {
+				index = getContigIndex(contigs.keySet());
+			} catch (IOException ioe) {
+				Arcturus.logWarning("Failed to update the oligo search index for "
+						+ adb.getName() + ", so the database will be searched instead", ioe);
+			}
+
+			if (index != null)
+				return findContigMatches(oligos, projectIDs, contigs, index);
+		}
+
 		int totlen = getTotalContigLength(projectIDs);
 
 		if (listener != null) {
@@ -261,6 +358,271 @@ public class OligoFinder {
 		return rc;
 	}
 	
+	private int findContigMatches(Oligo[] oligos, int[] projectIDs,
+			Map<Integer, CurrentContig> contigs, KmerIndex index) {
+		Set<Integer> projects = new HashSet<Integer>();
+
+		for (int projectID : projectIDs)
+			projects.add(projectID);
+
+		int totlen = 0;
+		Set<Integer> contigIDs = new HashSet<Integer>();
+
+		for (CurrentContig contig : contigs.values()) {
+			if (projects.contains(contig.projectID)) {
+				totlen += contig.length;
+				contigIDs.add(contig.ID);
+			}
+		}
+
+		if (listener != null) {
+			event.setEvent(Type.START_CONTIGS, null, null,
+					totlen, false);
+			listener.oligoFinderUpdate(event);
+		}
+
+		KmerIndex.Search search = index.search(oligos, contigIDs);
+
+		int found = 0;
+
+		// Report the contigs in the same order as the database query would.
+		for (int projectID : projectIDs) {
+			for (CurrentContig contig : contigs.values()) {
+				if (contig.projectID != projectID)
+					continue;
+
+				int seqlen = index.getSequenceLength(contig.ID);
+
+				if (seqlen < 0)
+					continue;
+
+				DNASequence dnaseq = DNASequence.createContigInstance(contig.ID,
+						contig.name, seqlen, contig.projectName);
+
+				if (listener != null) {
+					event.setEvent(Type.START_SEQUENCE, null, dnaseq,
+							0, false);
+					listener.oligoFinderUpdate(event);
+				}
+
+				event.setDNASequence(dnaseq);
+
+				found += search.reportMatches(contig.ID, matchHandler);
+
+				if (listener != null) {
+					event.setEvent(Type.FINISH_SEQUENCE, null,
+							seqlen, false);
+					listener.oligoFinderUpdate(event);
+				}
+			}
+		}
+
+		if (listener != null) {
+			event.setEvent(Type.FINISH_CONTIGS, null, null, -1,
+					false);
+			listener.oligoFinderUpdate(event);
+		}
+
+		return found;
+	}
+
+	private Map<Integer, CurrentContig> getCurrentContigs() throws SQLException {
+		Map<Integer, CurrentContig> contigs = new LinkedHashMap<Integer, CurrentContig>();
+
+		ResultSet rs = pstmtGetCurrentContigs.executeQuery();
+
+		while (rs.next()) {
+			CurrentContig contig = new CurrentContig(rs.getInt(1), rs.getString(2),
+					rs.getInt(3), rs.getInt(4), rs.getString(5));
+
+			contigs.put(contig.ID, contig);
+		}
+
+		rs.close();
+
+		return contigs;
+	}
+
+	/**
+	 * Returns an index which contains the consensus sequence of every current
+	 * contig. Contig IDs are never re-used, so the index only has to be
+	 * updated when the list of current contigs includes contigs which it does
+	 * not contain, or when a consensus has been recalculated.
+	 * 
+	 * The list of current contigs is compared with the index on every search.
+	 * Recalculated consensus sequences are found by asking the database for
+	 * the contigs whose consensus was updated at or after the time stored in
+	 * the index. This query scans the CONSENSUS table, so it is made only when
+	 * the index is being updated anyway, or when the last check is older than
+	 * the interval given by the oligofinder.consensusCheckInterval property.
+	 */
+
+	private KmerIndex getContigIndex(Set<Integer> currentIDs) throws SQLException, IOException {
+		File file = getIndexFile("");
+
+		if (contigIndex == null || !contigIndex.getFile().equals(file)) {
+			contigIndex = openIndex(file);
+			lastConsensusCheck = 0;
+		}
+
+		Set<Integer> missingIDs = new TreeSet<Integer>();
+
+		for (int id : currentIDs)
+			if (contigIndex == null || !contigIndex.contains(id))
+				missingIDs.add(id);
+
+		long now = System.currentTimeMillis();
+
+		boolean checkNeeded = contigIndex == null || !missingIDs.isEmpty()
+				|| now - lastConsensusCheck >= consensusCheckInterval;
+
+		if (!checkNeeded)
+			return contigIndex;
+
+		// The time is taken from the database before the check, and CONSENSUS
+		// timestamps are compared with ">=", so a consensus which is updated
+		// during the check, or later in the same second, is found next time.
+		long timestamp = getDatabaseTime();
+
+		Set<Integer> changedIDs = contigIndex == null ? new HashSet<Integer>()
+				: getConsensusUpdatedSince(contigIndex.getTimestamp(), currentIDs);
+
+		lastConsensusCheck = now;
+
+		if (contigIndex != null && missingIDs.isEmpty() && changedIDs.isEmpty())
+			return contigIndex;
+
+		logMessage("Adding " + (missingIDs.size() + changedIDs.size())
+				+ " new or changed contigs to the oligo search index");
+
+		long ticks = System.currentTimeMillis();
+
+		contigIndex = KmerIndexWriter.update(file, contigIndex, currentIDs,
+				changedIDs, timestamp, new KmerIndexWriter.SequenceSource() {
+					public void addSequences(Set<Integer> ids, KmerIndexWriter writer)
+							throws IOException {
+						try {
+							addConsensusSequences(writer, ids);
+						} catch (SQLException sqle) {
+							throw new IOException(sqle);
+						}
+					}
+				});
+
+		ticks = System.currentTimeMillis() - ticks;
+
+		logMessage("Oligo search index now contains " + contigIndex.getSequenceCount()
+				+ " contigs (updated in " + ticks + " ms)");
+
+		return contigIndex;
+	}
+
+	private File getIndexFile(String suffix) {
+		String dirname = Arcturus.getProperty("oligofinder.indexDirectory");
+
+		File dir = dirname != null ? new File(dirname) : new File(new File(
+				System.getProperty("user.home"), ".arcturus"), "oligoindex");
+
+		String instance = adb.getInstance() == null ? "default" : adb
+				.getInstance().getName();
+
+		return new File(dir, instance + "-" + adb.getName() + suffix + ".kmi");
+	}
+
+	private KmerIndex openIndex(File file) {
+		try {
+			return KmerIndex.open(file);
+		} catch (IOException ioe) {
+			Arcturus.logWarning("The oligo search index " + file
+					+ " cannot be used, and will be rebuilt", ioe);
+			return null;
+		}
+	}
+
+	private long getDatabaseTime() throws SQLException {
+		Statement stmt = conn.createStatement();
+
+		ResultSet rs = stmt.executeQuery("select now()");
+
+		long time = rs.next() ? getTimeInMillis(rs.getTimestamp(1)) : 0L;
+
+		rs.close();
+		stmt.close();
+
+		return time;
+	}
+
+	private String makeIDList(Iterator<Integer> iter) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int n = 0; n < CONSENSUS_QUERY_BLOCK_SIZE && iter.hasNext(); n++) {
+			if (n > 0)
+				sb.append(',');
+
+			sb.append(iter.next());
+		}
+
+		return sb.toString();
+	}
+
+	/*
+	 * Returns the IDs of the specified contigs whose consensus sequence was
+	 * updated at or after the specified time.
+	 */
+
+	private Set<Integer> getConsensusUpdatedSince(long time, Set<Integer> contigIDs)
+			throws SQLException {
+		Set<Integer> found = new HashSet<Integer>();
+
+		PreparedStatement pstmt = conn.prepareStatement(
+				"select contig_id from CONSENSUS where updated >= ?");
+
+		pstmt.setTimestamp(1, new Timestamp(time));
+
+		ResultSet rs = pstmt.executeQuery();
+
+		while (rs.next()) {
+			int contig_id = rs.getInt(1);
+
+			if (contigIDs.contains(contig_id))
+				found.add(contig_id);
+		}
+
+		rs.close();
+		pstmt.close();
+
+		return found;
+	}
+
+	private void addConsensusSequences(KmerIndexWriter writer, Set<Integer> contigIDs)
+		throws SQLException, IOException {
+		Statement stmt = conn.createStatement();
+
+		Iterator<Integer> iter = contigIDs.iterator();
+
+		while (iter.hasNext()) {
+			ResultSet rs = stmt.executeQuery("select contig_id,length,sequence from CONSENSUS where contig_id in ("
+					+ makeIDList(iter) + ")");
+
+			while (rs.next()) {
+				int contig_id = rs.getInt(1);
+				int length = rs.getInt(2);
+				byte[] sequence = inflate(rs.getBytes(3), length);
+
+				if (sequence != null)
+					writer.addSequence(contig_id, sequence);
+			}
+
+			rs.close();
+		}
+
+		stmt.close();
+	}
+
+	private long getTimeInMillis(Timestamp timestamp) {
+		return timestamp == null ? 0L : timestamp.getTime();
+	}
+
 	private int getTotalContigLength(int[] projectIDs) throws SQLException {
 		int total = 0;
 		
@@ -288,6 +650,22 @@ public class OligoFinder {
 					0, false);
 			listener.oligoFinderUpdate(event);
 		}
+
+		if (useIndex) {
+			Map<Integer, String> reads = getFreeReads();
+
+			KmerIndex index = null;
+
+			try {
+				index = getReadIndex(reads.keySet());
+			} catch (IOException ioe) {
+				Arcturus.logWarning("Failed to update the free read search index for "
+						+ adb.getName() + ", so the database will be searched instead", ioe);
+			}
+
+			if (index != null)
+				return findFreeReadMatches(oligos, reads, index);
+		}
 		
 		int nreads = countFreeReads();
 		
@@ -311,6 +689,243 @@ public class OligoFinder {
 		return found;
 	}
 
+	private int findFreeReadMatches(Oligo[] oligos, Map<Integer, String> reads,
+			KmerIndex index) {
+		if (listener != null) {
+			event.setEvent(Type.START_READS, null, null,
+					reads.size(), false);
+			listener.oligoFinderUpdate(event);
+		}
+
+		KmerIndex.Search search = index.search(oligos, reads.keySet());
+
+		int found = 0;
+
+		for (Map.Entry<Integer, String> entry : reads.entrySet()) {
+			int readID = entry.getKey();
+
+			int seqlen = index.getSequenceLength(readID);
+
+			if (seqlen < 0)
+				continue;
+
+			DNASequence dnaseq = DNASequence.createReadInstance(readID,
+					entry.getValue());
+
+			if (listener != null) {
+				event.setEvent(Type.START_SEQUENCE, null, dnaseq,
+						0, false);
+				listener.oligoFinderUpdate(event);
+			}
+
+			event.setDNASequence(dnaseq);
+
+			found += search.reportMatches(readID, matchHandler);
+
+			if (listener != null) {
+				event.setEvent(Type.FINISH_SEQUENCE, null,
+						seqlen, false);
+				listener.oligoFinderUpdate(event);
+			}
+		}
+
+		if (listener != null) {
+			event.setEvent(Type.FINISH_READS, null, null,
+					-1, false);
+			listener.oligoFinderUpdate(event);
+		}
+
+		return found;
+	}
+
+	/*
+	 * Returns a map from the ID of each free read to its name, in order of
+	 * read ID. A free read is a read with PASS status which is not in any
+	 * current contig. The reads in the current contigs are collected in
+	 * blocks of contigs, so no temporary tables are needed. The map is kept
+	 * for later searches, and is only rebuilt when the list of current
+	 * contigs changes or new reads are loaded.
+	 */
+
+	private Map<Integer, String> getFreeReads() throws SQLException {
+		Set<Integer> contigIDs = getCurrentContigs().keySet();
+
+		int maxReadID = getMaxReadID();
+
+		if (freeReads != null && maxReadID == freeReadsMaxReadID
+				&& contigIDs.equals(freeReadsContigIDs))
+			return freeReads;
+
+		logMessage("Enumerating free reads ...");
+
+		long ticks = System.currentTimeMillis();
+
+		BitSet busyReads = getBusyReads(contigIDs);
+
+		Map<Integer, String> reads = new LinkedHashMap<Integer, String>();
+
+		pstmtGetPassReads.setInt(1, passValue);
+
+		ResultSet rs = pstmtGetPassReads.executeQuery();
+
+		while (rs.next()) {
+			int read_id = rs.getInt(1);
+
+			if (!busyReads.get(read_id))
+				reads.put(read_id, rs.getString(2));
+		}
+
+		rs.close();
+
+		ticks = System.currentTimeMillis() - ticks;
+
+		logMessage("Found " + reads.size() + " free reads in " + ticks + " ms");
+
+		freeReads = reads;
+		freeReadsContigIDs = new HashSet<Integer>(contigIDs);
+		freeReadsMaxReadID = maxReadID;
+
+		return reads;
+	}
+
+	private int getMaxReadID() throws SQLException {
+		ResultSet rs = pstmtGetMaxReadID.executeQuery();
+
+		int maxReadID = rs.next() ? rs.getInt(1) : 0;
+
+		rs.close();
+
+		return maxReadID;
+	}
+
+	private BitSet getBusyReads(Set<Integer> contigIDs) throws SQLException {
+		BitSet busyReads = new BitSet();
+
+		Statement stmt = conn.createStatement();
+
+		Iterator<Integer> iter = contigIDs.iterator();
+
+		while (iter.hasNext()) {
+			ResultSet rs = stmt.executeQuery("select SR.read_id from MAPPING M,SEQ2READ SR"
+					+ " where M.seq_id=SR.seq_id and M.contig_id in ("
+					+ makeIDList(iter) + ")");
+
+			while (rs.next())
+				busyReads.set(rs.getInt(1));
+
+			rs.close();
+		}
+
+		stmt.close();
+
+		return busyReads;
+	}
+
+	/**
+	 * Returns an index which contains the original sequence of every free
+	 * read. The sequence of a read never changes, so the index only has to be
+	 * updated when there are free reads which it does not contain. Reads
+	 * which have been assembled into contigs since the index was written are
+	 * excluded from the search, and are dropped from the index whenever it is
+	 * rewritten.
+	 * 
+	 * If an update fails, for example because the free reads have more bases
+	 * than an index can hold, the failure is remembered, and this method
+	 * returns null without trying again until the index file changes.
+	 */
+
+	private KmerIndex getReadIndex(Set<Integer> readIDs) throws SQLException, IOException {
+		File file = getIndexFile(".reads");
+
+		synchronized (failedReadIndexes) {
+			String state = failedReadIndexes.get(file);
+
+			if (state != null) {
+				if (state.equals(getFileState(file)))
+					return null;
+
+				failedReadIndexes.remove(file);
+			}
+		}
+
+		if (readIndex == null || !readIndex.getFile().equals(file))
+			readIndex = openIndex(file);
+
+		int missing = 0;
+
+		for (int id : readIDs)
+			if (readIndex == null || !readIndex.contains(id))
+				missing++;
+
+		if (readIndex != null && missing == 0)
+			return readIndex;
+
+		logMessage("Adding " + missing + " free reads to the oligo search index");
+
+		long ticks = System.currentTimeMillis();
+
+		try {
+			readIndex = KmerIndexWriter.update(file, readIndex, readIDs,
+					new HashSet<Integer>(), 0L, new KmerIndexWriter.SequenceSource() {
+						public void addSequences(Set<Integer> ids, KmerIndexWriter writer)
+								throws IOException {
+							try {
+								addReadSequences(writer, ids);
+							} catch (SQLException sqle) {
+								throw new IOException(sqle);
+							}
+						}
+					});
+		} catch (IOException ioe) {
+			// A database error may not happen again, so only failures of the
+			// index itself are remembered.
+			if (!(ioe.getCause() instanceof SQLException)) {
+				synchronized (failedReadIndexes) {
+					failedReadIndexes.put(file, getFileState(file));
+				}
+			}
+
+			throw ioe;
+		}
+
+		ticks = System.currentTimeMillis() - ticks;
+
+		logMessage("Free read search index now contains " + readIndex.getSequenceCount()
+				+ " reads (updated in " + ticks + " ms)");
+
+		return readIndex;
+	}
+
+	private String getFileState(File file) {
+		return file.lastModified() + ":" + file.length();
+	}
+
+	private void addReadSequences(KmerIndexWriter writer, Set<Integer> readIDs)
+		throws SQLException, IOException {
+		Statement stmt = conn.createStatement();
+
+		Iterator<Integer> iter = readIDs.iterator();
+
+		while (iter.hasNext()) {
+			ResultSet rs = stmt.executeQuery("select SR.read_id,S.seqlen,S.sequence from SEQ2READ SR,SEQUENCE S"
+					+ " where SR.seq_id=S.seq_id and SR.version=0 and SR.read_id in ("
+					+ makeIDList(iter) + ")");
+
+			while (rs.next()) {
+				int read_id = rs.getInt(1);
+				int length = rs.getInt(2);
+				byte[] sequence = inflate(rs.getBytes(3), length);
+
+				if (sequence != null)
+					writer.addSequence(read_id, sequence);
+			}
+
+			rs.close();
+		}
+
+		stmt.close();
+	}
+
 	private int countFreeReads() throws SQLException {
 		int busyreads = updateBusyReadsTable();
 		
@@ -416,6 +1031,9 @@ public class OligoFinder {
 	}
 	
 	private int processResultSet(ResultSet rs, Oligo[] oligos, int type) throws SQLException {
+		if (threadCount > 1)
+			return processResultSetInParallel(rs, oligos, type);
+
 		int total = 0;
 
 		while (rs.next()) {
@@ -444,6 +1062,199 @@ public class OligoFinder {
 		return total;
 	}
 	
+	private static long getConsensusCheckInterval() {
+		long seconds = 600;
+
+		String value = Arcturus.getProperty("oligofinder.consensusCheckInterval");
+
+		if (value != null) {
+			try {
+				seconds = Long.parseLong(value);
+			} catch (NumberFormatException nfe) {
+				Arcturus.logWarning("Error parsing value of oligofinder.consensusCheckInterval", nfe);
+			}
+		}
+
+		return 1000L * seconds;
+	}
+
+	private static int getDefaultThreadCount() {
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		String value = Arcturus.getProperty("oligofinder.threads");
+
+		if (value != null) {
+			try {
+				threads = Integer.parseInt(value);
+			} catch (NumberFormatException nfe) {
+				Arcturus.logWarning("Error parsing value of oligofinder.threads", nfe);
+			}
+		}
+
+		return threads;
+	}
+
+	/**
+	 * Sets the number of worker threads which inflate and search sequences
+	 * fetched from the database. The default is given by the oligofinder.threads
+	 * property, or the number of processors if that is not set. A value of 1
+	 * makes the search single-threaded.
+	 */
+
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Searches the sequences in a result set using a pool of worker threads.
+	 * The calling thread streams the compressed rows from the result set and
+	 * submits each one to the pool, where it is inflated and searched. The
+	 * results are collected in the order in which the rows were read, and the
+	 * events are sent to the listener from the calling thread, so the listener
+	 * sees exactly the same sequence of events as in a single-threaded search.
+	 */
+
+	private int processResultSetInParallel(ResultSet rs, final Oligo[] oligos, int type)
+		throws SQLException {
+		final List<Inflater> inflaters = new Vector<Inflater>();
+
+		final ThreadLocal<Inflater> workerInflater = new ThreadLocal<Inflater>() {
+			protected Inflater initialValue() {
+				Inflater inflater = new Inflater();
+				inflaters.add(inflater);
+				return inflater;
+			}
+		};
+
+		final ThreadLocal<OligoMatcher> workerMatcher = new ThreadLocal<OligoMatcher>() {
+			protected OligoMatcher initialValue() {
+				return new OligoMatcher(oligos);
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+		LinkedList<Future<SequenceResult>> pending = new LinkedList<Future<SequenceResult>>();
+
+		int total = 0;
+
+		try {
+			while (rs.next()) {
+				int ID = rs.getInt(1);
+				String sequenceName = rs.getString(2);
+				final int sequenceLength = rs.getInt(3);
+				String projectName = rs.getString(4);
+				final byte[] compressed = rs.getBytes(5);
+
+				final DNASequence dnaseq = (type == DNASequence.READ) ? DNASequence.createReadInstance(ID, sequenceName) :
+					DNASequence.createContigInstance(ID, sequenceName, sequenceLength, projectName);
+
+				pending.add(executor.submit(new Callable<SequenceResult>() {
+					public SequenceResult call() {
+						byte[] sequence = inflate(workerInflater.get(), compressed, sequenceLength);
+
+						return findMatches(workerMatcher.get(), dnaseq, sequence);
+					}
+				}));
+
+				if (pending.size() >= SEQUENCES_PER_THREAD * threadCount)
+					total += reportResult(pending.removeFirst());
+			}
+
+			while (!pending.isEmpty())
+				total += reportResult(pending.removeFirst());
+		}
+		finally {
+			executor.shutdownNow();
+
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+
+			for (Inflater inflater : inflaters)
+				inflater.end();
+		}
+
+		return total;
+	}
+
+	private SequenceResult findMatches(OligoMatcher matcher, final DNASequence dnaSequence, byte[] sequence) {
+		if (sequence == null)
+			return new SequenceResult(dnaSequence, null, 0);
+
+		String dna = null;
+
+		try {
+			dna = new String(sequence, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			Arcturus.logWarning("Error whilst converting DNA sequence data to string", e);
+			return new SequenceResult(dnaSequence, null, 0);
+		}
+
+		final List<OligoMatch> matches = new Vector<OligoMatch>();
+
+		matcher.findMatches(dna, new OligoMatcher.MatchHandler() {
+			public void foundMatch(Oligo oligo, int offset, boolean forward) {
+				matches.add(new OligoMatch(oligo, dnaSequence, offset, forward));
+			}
+		});
+
+		return new SequenceResult(dnaSequence, matches, dna.length());
+	}
+
+	private int reportResult(Future<SequenceResult> future) throws SQLException {
+		SequenceResult result;
+
+		try {
+			result = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("The oligo search was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new SQLException("An error occurred whilst searching a sequence for oligos", e.getCause());
+		}
+
+		if (result.matches == null)
+			return 0;
+
+		if (listener != null) {
+			event.setEvent(Type.START_SEQUENCE, null, result.dnaSequence,
+					0, false);
+			listener.oligoFinderUpdate(event);
+		}
+
+		event.setDNASequence(result.dnaSequence);
+
+		for (OligoMatch match : result.matches)
+			reportMatch(match.getOligo(), match.getOffset(), match.isForward());
+
+		if (listener != null) {
+			event.setEvent(Type.FINISH_SEQUENCE, null,
+					result.sequenceLength, false);
+			listener.oligoFinderUpdate(event);
+		}
+
+		return result.matches.size();
+	}
+
+	private static class SequenceResult {
+		protected final DNASequence dnaSequence;
+		protected final List<OligoMatch> matches;
+		protected final int sequenceLength;
+
+		public SequenceResult(DNASequence dnaSequence, List<OligoMatch> matches, int sequenceLength) {
+			this.dnaSequence = dnaSequence;
+			this.matches = matches;
+			this.sequenceLength = sequenceLength;
+		}
+	}
+
 	private int findMatches(Oligo[] oligos, DNASequence dnaSequence, String sequence) {
 		if (sequence == null)
 			return 0;
@@ -459,7 +1270,7 @@ public class OligoFinder {
 		if (sequence != null) {
 			event.setDNASequence(dnaSequence);
 			
-			found += findMatchesByRegex(oligos, sequence);
+			found += matcher.findMatches(sequence, matchHandler);
 		}
 
 		int sequencelen = sequence == null ? 0 : sequence.length();
@@ -473,35 +1284,6 @@ public class OligoFinder {
 		return found;
 	}
 	
-	private int findMatchesByRegex(Oligo[] oligos, String sequence) {
-		int hits = 0;
-		
-		for (Oligo oligo : oligos) {
-			hits += findRegexMatch(oligo, true, sequence);
-			
-			if (!oligo.isPalindrome())
-				hits += findRegexMatch(oligo, false, sequence);
-		}
-		
-		return hits;
-	}
-	
-	private int findRegexMatch(Oligo oligo, boolean forward, String sequence) {
-		int hits = 0;
-		
-		Pattern pattern = forward ? oligo.getForwardPattern() : oligo.getReversePattern();
-		
-		Matcher matcher = pattern.matcher(sequence);
-		
-		while (matcher.find()) {
-			int offset = matcher.start();
-			reportMatch(oligo, offset, forward);
-			hits++;
-		}
-		
-		return hits;
-	}
-	
 	private void reportMatch(Oligo oligo, int offset, boolean forward) {
 		if (listener != null) {
 			event.setEvent(Type.FOUND_MATCH, oligo,
@@ -512,6 +1294,10 @@ public class OligoFinder {
 	}
 
 	private byte[] inflate(byte[] cdata, int length) {
+		return inflate(decompresser, cdata, length);
+	}
+
+	private static byte[] inflate(Inflater decompresser, byte[] cdata, int length) {
 		if (cdata == null)
 			return null;
 
@@ -544,6 +1330,22 @@ public class OligoFinder {
 		}
 	}
 
+	private static class CurrentContig {
+		protected final int ID;
+		protected final String name;
+		protected final int length;
+		protected final int projectID;
+		protected final String projectName;
+
+		public CurrentContig(int ID, String name, int length, int projectID, String projectName) {
+			this.ID = ID;
+			this.name = name;
+			this.length = length;
+			this.projectID = projectID;
+			this.projectName = projectName;
+		}
+	}
+
 	private void closeConnection() throws SQLException {
 		if (conn != null) {
 			closeStatements();
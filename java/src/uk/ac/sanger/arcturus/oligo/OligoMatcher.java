@@ -0,0 +1,312 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.oligo;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Finds every occurrence of a set of oligos, and of their reverse complements,
+ * in a single pass over each sequence, using an Aho-Corasick automaton.
+ * 
+ * The matches are exactly those which the regular expressions returned by
+ * Oligo.getForwardPattern and Oligo.getReversePattern would find: pad
+ * characters ('-') may appear between the bases of a match, and successive
+ * matches of the same oligo in the same direction do not overlap. Matches are
+ * reported in the same order as a regular expression search would report them,
+ * oligo by oligo, with the forward matches of each oligo before the reverse
+ * matches.
+ * 
+ * An OligoMatcher holds per-search buffers, so it must not be shared between
+ * threads.
+ */
+
+public class OligoMatcher {
+	public interface MatchHandler {
+		public void foundMatch(Oligo oligo, int offset, boolean forward);
+	}
+
+	private static final int ALPHABET_SIZE = 5;
+
+	private static final int OTHER = -1;
+	private static final int PAD = -2;
+
+	private static final byte[] CODE = new byte[128];
+
+	static {
+		Arrays.fill(CODE, (byte) OTHER);
+
+		CODE['A'] = 0;
+		CODE['C'] = 1;
+		CODE['G'] = 2;
+		CODE['T'] = 3;
+		CODE['N'] = 4;
+
+		CODE['-'] = PAD;
+	}
+
+	private final Oligo[] oligos;
+
+	// Pattern 2*i is the forward sequence of oligo i, pattern 2*i+1 is its
+	// reverse complement.
+	private final int[] patternLength;
+
+	private int nstates = 0;
+	private int[] delta;
+	private int[][] outputs;
+
+	private final int maxPatternLength;
+
+	private final int[] positions;
+
+	private final int[][] hits;
+	private final int[] hitCount;
+	private final int[] lastEnd;
+
+	public OligoMatcher(Oligo[] oligos) {
+		this.oligos = oligos;
+
+		int npatterns = 2 * oligos.length;
+
+		patternLength = new int[npatterns];
+
+		int totalLength = 0;
+		int maxLength = 0;
+
+		for (int i = 0; i < oligos.length; i++) {
+			int fwdLength = oligos[i].getSequence().length();
+			int revLength = oligos[i].getReverseSequence().length();
+
+			totalLength += fwdLength + revLength;
+
+			maxLength = Math.max(maxLength, Math.max(fwdLength, revLength));
+		}
+
+		maxPatternLength = maxLength;
+
+		delta = new int[(totalLength + 1) * ALPHABET_SIZE];
+		Arrays.fill(delta, -1);
+
+		int[][] ownOutputs = new int[totalLength + 1][];
+
+		nstates = 1;
+
+		for (int i = 0; i < oligos.length; i++) {
+			Oligo oligo = oligos[i];
+
+			if (oligo.getLength() == 0)
+				continue;
+
+			addPattern(2 * i, oligo.getSequence(), ownOutputs);
+
+			if (!oligo.isPalindrome())
+				addPattern(2 * i + 1, oligo.getReverseSequence(), ownOutputs);
+		}
+
+		buildFailureLinks(ownOutputs);
+
+		positions = new int[Math.max(maxPatternLength, 1)];
+
+		hits = new int[npatterns][];
+		hitCount = new int[npatterns];
+		lastEnd = new int[npatterns];
+
+		for (int i = 0; i < npatterns; i++)
+			hits[i] = new int[4];
+	}
+
+	private void addPattern(int id, String sequence, int[][] ownOutputs) {
+		int state = 0;
+
+		for (int i = 0; i < sequence.length(); i++) {
+			int code = encode(sequence.charAt(i));
+
+			if (code < 0)
+				throw new IllegalArgumentException("Invalid base '"
+						+ sequence.charAt(i) + "' in oligo sequence "
+						+ sequence);
+
+			int next = delta[state * ALPHABET_SIZE + code];
+
+			if (next < 0) {
+				next = nstates++;
+				delta[state * ALPHABET_SIZE + code] = next;
+			}
+
+			state = next;
+		}
+
+		patternLength[id] = sequence.length();
+		ownOutputs[state] = append(ownOutputs[state], id);
+	}
+
+	private void buildFailureLinks(int[][] ownOutputs) {
+		int[] fail = new int[nstates];
+
+		outputs = new int[nstates][];
+
+		outputs[0] = ownOutputs[0];
+
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+
+		for (int code = 0; code < ALPHABET_SIZE; code++) {
+			int next = delta[code];
+
+			if (next < 0)
+				delta[code] = 0;
+			else {
+				fail[next] = 0;
+				outputs[next] = ownOutputs[next];
+				queue.add(next);
+			}
+		}
+
+		// Convert the trie into a complete transition table, so that the search
+		// never has to follow a failure link.
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst();
+
+			for (int code = 0; code < ALPHABET_SIZE; code++) {
+				int index = state * ALPHABET_SIZE + code;
+				int next = delta[index];
+				int fallback = delta[fail[state] * ALPHABET_SIZE + code];
+
+				if (next < 0)
+					delta[index] = fallback;
+				else {
+					fail[next] = fallback;
+					outputs[next] = merge(ownOutputs[next], outputs[fallback]);
+					queue.add(next);
+				}
+			}
+		}
+	}
+
+	private static int[] append(int[] array, int value) {
+		if (array == null)
+			return new int[] { value };
+
+		int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = value;
+		return result;
+	}
+
+	private static int[] merge(int[] a, int[] b) {
+		if (a == null)
+			return b;
+
+		if (b == null)
+			return a;
+
+		int[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static int encode(char c) {
+		return c < CODE.length ? CODE[c] : OTHER;
+	}
+
+	/**
+	 * Finds all matches in the specified sequence and passes them to the
+	 * handler.
+	 * 
+	 * @param sequence
+	 *            the DNA sequence to search.
+	 * @param handler
+	 *            the object which will be notified of each match, or null.
+	 * 
+	 * @return the number of matches found.
+	 */
+
+	public int findMatches(CharSequence sequence, MatchHandler handler) {
+		if (sequence == null)
+			return 0;
+
+		Arrays.fill(hitCount, 0);
+		Arrays.fill(lastEnd, 0);
+
+		int state = 0;
+		int nbases = 0;
+
+		int seqlen = sequence.length();
+
+		for (int i = 0; i < seqlen; i++) {
+			int code = encode(sequence.charAt(i));
+
+			if (code == PAD)
+				continue;
+
+			if (code == OTHER) {
+				state = 0;
+				continue;
+			}
+
+			positions[nbases % positions.length] = i;
+
+			state = delta[state * ALPHABET_SIZE + code];
+
+			int[] found = outputs[state];
+
+			if (found != null) {
+				for (int id : found) {
+					int start = positions[(nbases + 1 - patternLength[id])
+							% positions.length];
+
+					if (start >= lastEnd[id]) {
+						addHit(id, start);
+						lastEnd[id] = i + 1;
+					}
+				}
+			}
+
+			nbases++;
+		}
+
+		int total = 0;
+
+		for (int i = 0; i < oligos.length; i++) {
+			total += reportHits(2 * i, true, handler);
+			total += reportHits(2 * i + 1, false, handler);
+		}
+
+		return total;
+	}
+
+	private void addHit(int id, int start) {
+		if (hitCount[id] == hits[id].length)
+			hits[id] = Arrays.copyOf(hits[id], 2 * hits[id].length);
+
+		hits[id][hitCount[id]++] = start;
+	}
+
+	private int reportHits(int id, boolean forward, MatchHandler handler) {
+		if (handler != null) {
+			Oligo oligo = oligos[id / 2];
+
+			for (int j = 0; j < hitCount[id]; j++)
+				handler.foundMatch(oligo, hits[id][j], forward);
+		}
+
+		return hitCount[id];
+	}
+}
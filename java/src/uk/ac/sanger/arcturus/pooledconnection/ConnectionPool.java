@@ -23,6 +23,11 @@ package uk.ac.sanger.arcturus.pooledconnection;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import javax.sql.*;
 
 import javax.management.*;
@@ -33,20 +38,68 @@ import java.lang.management.*;
 
 import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
 
+/**
+ * A pool of database connections.
+ * 
+ * Idle connections are kept in a concurrent deque and the most recently used
+ * connection is leased first. The number of leased connections is limited by a
+ * fair semaphore, so a thread which needs a connection when the pool is at its
+ * maximum size waits in turn, up to a time limit. The number of waiting threads
+ * is also limited.
+ * 
+ * Idle connections are validated and reaped by a background thread, so that a
+ * thread which leases a connection does not normally pay for a network
+ * round-trip. A connection which has been idle for longer than the validation
+ * interval is validated when it is leased.
+ * 
+ * The limits may be set with the properties connectionpool.maxsize,
+ * connectionpool.maxwaiters, connectionpool.waittimeout and
+ * connectionpool.validationinterval. The times are in milliseconds.
+ */
+
 public class ConnectionPool implements ConnectionPoolMBean {
 	public final static long DEFAULT_TIMEOUT = 60000;
 	public static final int DEFAULT_VALIDATION_TIMEOUT = 10;
-	
-	private HashSet<PooledConnection> connections;
+
+	public static final int DEFAULT_MAXIMUM_SIZE = 64;
+	public static final int DEFAULT_MAXIMUM_WAITERS = 256;
+	public static final long DEFAULT_WAIT_TIMEOUT = 60000;
+	public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+
+	private static final long[] WAIT_TIME_BUCKETS = { 1, 10, 100, 1000, 10000 };
+
+	private static final String[] WAIT_TIME_LABELS = { "<1ms", "1-10ms",
+			"10-100ms", "100ms-1s", "1-10s", ">=10s" };
+
+	private Set<PooledConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+	private BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
 	private DataSource dataSource;
 	final private long timeout;
 	private ConnectionReaper reaper;
-	final private int poolsize = 10;
+
+	private final int maxSize;
+	private final int maxWaiters;
+	private final long waitTimeout;
+	private final long validationInterval;
+
+	private final Semaphore leases;
+	private final AtomicInteger waiters = new AtomicInteger();
+
 	protected ObjectName mbeanName = null;
-	protected boolean closed = false;
-	protected long lastReaping = 0;
-	protected int nCreated = 0;
-	protected int nReaped = 0;
+	protected volatile boolean closed = false;
+	protected volatile long lastReaping = 0;
+
+	protected AtomicInteger nCreated = new AtomicInteger();
+	protected AtomicInteger nReaped = new AtomicInteger();
+	protected AtomicInteger nInvalid = new AtomicInteger();
+	protected AtomicInteger nTimeouts = new AtomicInteger();
+	protected AtomicInteger nRejected = new AtomicInteger();
+
+	private AtomicLongArray waitTimeHistogram = new AtomicLongArray(
+			WAIT_TIME_LABELS.length);
+	private AtomicLong totalWaitTime = new AtomicLong();
+	private AtomicLong maxWaitTime = new AtomicLong();
 
 	public ConnectionPool(DataSource dataSource) {
 		this(dataSource, DEFAULT_TIMEOUT);
@@ -55,16 +108,42 @@ public class ConnectionPool implements ConnectionPoolMBean {
 	public ConnectionPool(DataSource dataSource, long timeout) {
 		this.timeout = timeout;
 		this.dataSource = dataSource;
-		
+
+		maxSize = getIntegerProperty("connectionpool.maxsize",
+				DEFAULT_MAXIMUM_SIZE);
+		maxWaiters = getIntegerProperty("connectionpool.maxwaiters",
+				DEFAULT_MAXIMUM_WAITERS);
+		waitTimeout = getIntegerProperty("connectionpool.waittimeout",
+				(int) DEFAULT_WAIT_TIMEOUT);
+		validationInterval = getIntegerProperty(
+				"connectionpool.validationinterval",
+				(int) DEFAULT_VALIDATION_INTERVAL);
+
+		leases = new Semaphore(maxSize, true);
+
 		initDataSource();
-		
-		connections = new HashSet<PooledConnection>(poolsize);
-		reaper = new ConnectionReaper(this, timeout);
+
+		reaper = new ConnectionReaper(this, Math.min(timeout,
+				validationInterval));
 		reaper.start();
-		
+
 		registerAsMBean();
 	}
-	
+
+	private static int getIntegerProperty(String key, int defaultValue) {
+		String str = Arcturus.getProperty(key);
+
+		if (str != null) {
+			try {
+				return Integer.parseInt(str);
+			} catch (NumberFormatException nfe) {
+				Arcturus.logWarning("Error parsing value of " + key, nfe);
+			}
+		}
+
+		return defaultValue;
+	}
+
 	protected void registerAsMBean() {
 		try {
 			mbeanName = new ObjectName("ConnectionPool:name=" + getName());
@@ -97,89 +176,182 @@ public class ConnectionPool implements ConnectionPoolMBean {
 		}
 	}
 
-	public synchronized void reapConnections() {
+	public void reapConnections() {
 		reapConnections(timeout);
 	}
-	
-	public synchronized void reapConnections(long timeout) {
-		Iterator iter = connections.iterator();
 
-		while ((iter != null) && (iter.hasNext())) {
-			PooledConnection conn = (PooledConnection) iter.next();
-
-			if ((!conn.isInUse()) && (conn.getIdleTime() > timeout)) {
-				conn.closeConnection();
-				iter.remove();
-				nReaped++;
+	public void reapConnections(long timeout) {
+		for (PooledConnection conn : new ArrayList<PooledConnection>(idle)) {
+			if (conn.getIdleTime() > timeout && idle.remove(conn)) {
+				discardConnection(conn);
+				nReaped.incrementAndGet();
 			}
 		}
-		
+
 		lastReaping = System.currentTimeMillis();
 	}
 
-	public synchronized void closeConnections() {
-		Iterator iter = connections.iterator();
+	/**
+	 * Validates the connections which have been idle for longer than the
+	 * validation interval. Each connection is removed from the idle deque
+	 * whilst it is being validated, and a lease is reserved for it, so that
+	 * the pool does not grow beyond its maximum size.
+	 */
 
-		while ((iter != null) && (iter.hasNext())) {
-			PooledConnection conn = (PooledConnection) iter.next();
-			conn.closeConnection();
+	public void validateConnections() {
+		for (PooledConnection conn : new ArrayList<PooledConnection>(idle)) {
+			if (conn.getIdleTime() < validationInterval)
+				continue;
+
+			if (!leases.tryAcquire())
+				return;
+
+			try {
+				if (idle.remove(conn)) {
+					if (isValid(conn))
+						idle.offerLast(conn);
+					else
+						discardConnection(conn);
+				}
+			} finally {
+				leases.release();
+			}
 		}
-		
+	}
+
+	private boolean isValid(PooledConnection conn) {
+		boolean valid = false;
+
+		try {
+			valid = conn.isValid(DEFAULT_VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			Arcturus.logWarning("Failed to validate connection", e);
+		}
+
+		if (!valid)
+			nInvalid.incrementAndGet();
+
+		return valid;
+	}
+
+	private void discardConnection(PooledConnection conn) {
+		connections.remove(conn);
+		conn.closeConnection();
+	}
+
+	public void closeConnections() {
+		idle.clear();
+
+		for (PooledConnection conn : connections)
+			conn.closeConnection();
+
 		connections.clear();
 	}
 
-	public synchronized Connection getConnection(Object owner) throws SQLException {
-		PooledConnection c;
-		
-		for (Iterator iter = connections.iterator(); iter.hasNext();) {
-			c = (PooledConnection) iter.next();
-			
-			if (c.isInUse())
-				continue;
-			
-			boolean valid = false;
-			
-			try {
-				valid = c.isValid(DEFAULT_VALIDATION_TIMEOUT);
-			} catch (SQLException e) {
-				Arcturus.logWarning("Failed to validate connection", e);
-			}			
-			
-			if (valid && c.lease(owner))
-				return c;
+	public Connection getConnection(Object owner) throws SQLException {
+		if (closed)
+			throw new SQLException("The connection pool " + getName()
+					+ " has been closed");
+
+		long start = System.currentTimeMillis();
+
+		acquireLease();
+
+		recordWaitTime(System.currentTimeMillis() - start);
+
+		try {
+			PooledConnection c;
+
+			while ((c = idle.pollFirst()) != null) {
+				if (c.getIdleTime() > validationInterval && !isValid(c)) {
+					discardConnection(c);
+					continue;
+				}
+
+				if (c.lease(owner))
+					return c;
+
+				discardConnection(c);
+			}
+
+			c = createConnection();
+
+			c.lease(owner);
+
+			return c;
+		} catch (SQLException e) {
+			leases.release();
+			throw e;
+		} catch (RuntimeException e) {
+			leases.release();
+			throw e;
 		}
+	}
 
-		c = createConnection();
-		
-		c.lease(owner);
-		
-		return c;
+	private void acquireLease() throws SQLException {
+		if (leases.tryAcquire())
+			return;
+
+		if (waiters.incrementAndGet() > maxWaiters) {
+			waiters.decrementAndGet();
+			nRejected.incrementAndGet();
+			throw new SQLException("Too many threads are waiting for a connection from pool "
+					+ getName());
+		}
+
+		try {
+			if (!leases.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+				nTimeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + waitTimeout
+						+ "ms waiting for a connection from pool " + getName());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted whilst waiting for a connection from pool "
+					+ getName());
+		} finally {
+			waiters.decrementAndGet();
+		}
 	}
-	
+
+	private void recordWaitTime(long waitTime) {
+		int bucket = 0;
+
+		while (bucket < WAIT_TIME_BUCKETS.length
+				&& waitTime >= WAIT_TIME_BUCKETS[bucket])
+			bucket++;
+
+		waitTimeHistogram.incrementAndGet(bucket);
+
+		totalWaitTime.addAndGet(waitTime);
+
+		long max = maxWaitTime.get();
+
+		while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime))
+			max = maxWaitTime.get();
+	}
+
 	private PooledConnection createConnection() throws SQLException {
 		Connection conn = dataSource.getConnection();
 		
 		PooledConnection c = new PooledConnection(conn, this);
 
 		connections.add(c);
-		nCreated++;
+		nCreated.incrementAndGet();
 
 		return c;
 	}
 
-	public synchronized void releaseConnection(PooledConnection conn) {
-		boolean valid = true;
-		
-		try {
-			valid = conn.isValid(DEFAULT_VALIDATION_TIMEOUT);
-		} catch (SQLException e) {
-			Arcturus.logWarning("Failed to validate connection", e);
-		}
-		
-		if (!valid) {
+	public void releaseConnection(PooledConnection conn) {
+		if (closed || !connections.contains(conn))
 			conn.closeConnection();
-			connections.remove(conn);
-		}
+		else if (conn.isBroken()) {
+			nInvalid.incrementAndGet();
+			discardConnection(conn);
+		} else
+			idle.offerFirst(conn);
+
+		leases.release();
 	}
 
 	class ConnectionReaper extends Thread {
@@ -200,17 +372,19 @@ public class ConnectionPool implements ConnectionPoolMBean {
 				}
 				if (pool.isClosed())
 					return;
-				else
+				else {
 					pool.reapConnections();
+					pool.validateConnections();
+				}
 			}
 		}
 	}
 	
-	public synchronized boolean isClosed() {
+	public boolean isClosed() {
 		return closed;
 	}
 	
-	public synchronized void close() {
+	public void close() {
 		closed = true;
 		closeConnections();
 		unregisterAsMBean();
@@ -229,27 +403,80 @@ public class ConnectionPool implements ConnectionPoolMBean {
 		}
 	}
 
-	public synchronized int getActiveConnectionCount() {
+	public int getActiveConnectionCount() {
 		int inuse = 0;
 		
-		for (Iterator iter = connections.iterator(); iter.hasNext();) {
-			PooledConnection c = (PooledConnection) iter.next();
+		for (PooledConnection c : connections)
 			if (c.isInUse())
 				inuse++;
-		}
 
 		return inuse;
 	}
 	
-	public synchronized int getCreatedConnectionCount() {
-		return nCreated;
+	public int getCreatedConnectionCount() {
+		return nCreated.get();
 	}
 	
-	public synchronized int getReapedConnectionCount() {
-		return nReaped;
+	public int getReapedConnectionCount() {
+		return nReaped.get();
 	}
 
-	public synchronized int getConnectionCount() {
+	public int getConnectionCount() {
 		return connections.size();
 	}
+
+	public int getIdleConnectionCount() {
+		return idle.size();
+	}
+
+	public int getMaximumSize() {
+		return maxSize;
+	}
+
+	public int getWaitingThreadCount() {
+		return waiters.get();
+	}
+
+	public int getInvalidConnectionCount() {
+		return nInvalid.get();
+	}
+
+	public int getTimeoutCount() {
+		return nTimeouts.get();
+	}
+
+	public int getRejectedRequestCount() {
+		return nRejected.get();
+	}
+
+	public long getMaximumWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	public long getTotalWaitTime() {
+		return totalWaitTime.get();
+	}
+
+	public String[] getWaitTimeHistogramLabels() {
+		return WAIT_TIME_LABELS.clone();
+	}
+
+	public long[] getWaitTimeHistogram() {
+		long[] counts = new long[waitTimeHistogram.length()];
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = waitTimeHistogram.get(i);
+
+		return counts;
+	}
+
+	public void resetStatistics() {
+		for (int i = 0; i < waitTimeHistogram.length(); i++)
+			waitTimeHistogram.set(i, 0);
+
+		totalWaitTime.set(0);
+		maxWaitTime.set(0);
+		nTimeouts.set(0);
+		nRejected.set(0);
+	}
 }
@@ -26,5 +26,17 @@ public interface ConnectionPoolMBean {
 	public int getActiveConnectionCount();
 	public int getCreatedConnectionCount();
 	public int getReapedConnectionCount();
+	public int getIdleConnectionCount();
+	public int getMaximumSize();
+	public int getWaitingThreadCount();
+	public int getInvalidConnectionCount();
+	public int getTimeoutCount();
+	public int getRejectedRequestCount();
+	public long getMaximumWaitTime();
+	public long getTotalWaitTime();
+	public String[] getWaitTimeHistogramLabels();
+	public long[] getWaitTimeHistogram();
 	public void reapConnections(long timeout);
+	public void validateConnections();
+	public void resetStatistics();
 }
@@ -22,6 +22,10 @@
 package uk.ac.sanger.arcturus.pooledconnection;
 
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
@@ -33,6 +37,8 @@ import uk.ac.sanger.arcturus.Arcturus;
 public class PooledConnection implements Connection, PooledConnectionMBean {
 	private static final int DEFAULT_WAIT_TIMEOUT = 5 * 24 * 3600;
 	
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+	
 	private static int counter = 0;
 
 	private final int ID;
@@ -53,15 +59,28 @@ public class PooledConnection implements Connection, PooledConnectionMBean {
 
 	private Object owner = null;
 
+	private boolean discarded = false;
+
 	protected ObjectName mbeanName = null;
 	
 	private int connectionID = -1;
+	
+	private final int statementCacheSize;
+	
+	private final Map<String, CachedStatement> statementCache = new LinkedHashMap<String, CachedStatement>(
+			16, 0.75f, true);
+	
+	private int statementCacheHits = 0;
+	private int statementCacheMisses = 0;
+	private int statementCacheEvictions = 0;
 
 	public PooledConnection(Connection conn, ConnectionPool pool) {
 		this.conn = conn;
 		this.pool = pool;
 		this.owner = null;
 		this.timestamp = 0;
+		
+		statementCacheSize = getStatementCacheSizeProperty();
 
 		synchronized (pool) {
 			ID = ++counter;
@@ -100,6 +119,20 @@ public class PooledConnection implements Connection, PooledConnectionMBean {
 		return connectionID;
 	}
 	
+	private static int getStatementCacheSizeProperty() {
+		String str = Arcturus.getProperty("pooledconnection.statementcachesize");
+		
+		if (str != null) {
+			try {
+				return Integer.parseInt(str);
+			} catch (NumberFormatException nfe) {
+				Arcturus.logWarning("Error parsing value of pooledconnection.statementcachesize", nfe);
+			}
+		}
+		
+		return DEFAULT_STATEMENT_CACHE_SIZE;
+	}
+	
 	protected void registerAsMBean() {
 		try {
 			mbeanName = new ObjectName("PooledConnection:pool="
@@ -133,6 +166,8 @@ public class PooledConnection implements Connection, PooledConnectionMBean {
 	}
 
 	protected void closeConnection() {
+		closeCachedStatements();
+		
 		try {
 			if (conn != null && !conn.isClosed())
 				conn.close();
@@ -225,15 +260,308 @@ public class PooledConnection implements Connection, PooledConnectionMBean {
 		Arcturus.logInfo("PooledConnection #" + ID + " closed by " + owner.getClass().getName() + " at " + date);
 		totalLeaseTime += (timestamp - lastLeaseTime);
 		owner = null;
+		releaseCachedStatements();
 		pool.releaseConnection(this);
 	}
 
+	/**
+	 * Returns this connection to the pool, which closes it instead of keeping
+	 * it for re-use. This should be called in place of close when the
+	 * underlying connection is known to be broken, e.g. after a
+	 * communications failure.
+	 */
+
+	public synchronized void discard() throws SQLException {
+		discarded = true;
+		close();
+	}
+
+	/**
+	 * Returns true if this connection should not be returned to the idle
+	 * list. This does not contact the server.
+	 */
+
+	protected boolean isBroken() {
+		if (discarded || conn == null)
+			return true;
+
+		try {
+			return conn.isClosed();
+		} catch (SQLException e) {
+			return true;
+		}
+	}
+
 	protected Connection getConnection() {
 		return conn;
 	}
 
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
-		return conn.prepareStatement(sql);
+		return prepareCachedStatement(sql, sql, -1, -1);
+	}
+	
+	/*
+	 * Prepared statements are kept in a bounded, least-recently-used cache,
+	 * keyed by their SQL and result set type, which outlives each lease. The
+	 * statement which is returned to the caller is a proxy whose close method
+	 * returns the statement to the cache. All of the cached statements become
+	 * available again when the connection is returned to the pool, and they
+	 * are closed when the connection is closed.
+	 * 
+	 * If the cached statement for the SQL is already in use, an uncached
+	 * statement is prepared, so that no two callers ever share a statement.
+	 * 
+	 * A cached statement is reset before it is handed out again, so that the
+	 * settings which one caller made, such as a streaming fetch size, do not
+	 * affect the next caller.
+	 */
+	
+	private PreparedStatement prepareCachedStatement(String key, String sql,
+			int resultSetType, int resultSetConcurrency) throws SQLException {
+		if (statementCacheSize <= 0)
+			return prepareDriverStatement(sql, resultSetType, resultSetConcurrency);
+		
+		synchronized (statementCache) {
+			CachedStatement cs = statementCache.get(key);
+			
+			if (cs != null && !cs.inUse) {
+				cs.reset();
+				cs.inUse = true;
+				statementCacheHits++;
+				return cs.proxy;
+			}
+			
+			statementCacheMisses++;
+			
+			PreparedStatement pstmt = prepareDriverStatement(sql, resultSetType,
+					resultSetConcurrency);
+			
+			if (cs != null)
+				return pstmt;
+			
+			cs = new CachedStatement(pstmt);
+			
+			statementCache.put(key, cs);
+			
+			evictCachedStatements();
+			
+			return cs.proxy;
+		}
+	}
+	
+	private PreparedStatement prepareDriverStatement(String sql,
+			int resultSetType, int resultSetConcurrency) throws SQLException {
+		return resultSetType < 0 ? conn.prepareStatement(sql) : conn
+				.prepareStatement(sql, resultSetType, resultSetConcurrency);
+	}
+	
+	private void evictCachedStatements() {
+		Iterator<CachedStatement> iter = statementCache.values().iterator();
+		
+		while (statementCache.size() > statementCacheSize && iter.hasNext()) {
+			CachedStatement cs = iter.next();
+			
+			iter.remove();
+			
+			statementCacheEvictions++;
+			
+			if (cs.inUse)
+				cs.evicted = true;
+			else
+				cs.closeStatement();
+		}
+	}
+	
+	/*
+	 * Makes every cached statement available again when the connection is
+	 * returned to the pool. A caller may have closed a statement, or not
+	 * closed it at all, without closing its result set, so any open result set
+	 * is closed here, as Statement.close would have done. If that fails, the
+	 * connection may still be in the middle of a streaming result set, so it
+	 * is discarded rather than leased again.
+	 */
+	
+	private void releaseCachedStatements() {
+		synchronized (statementCache) {
+			for (CachedStatement cs : statementCache.values()) {
+				if (cs.inUse && !cs.closeResultSet())
+					discarded = true;
+				
+				cs.inUse = false;
+			}
+		}
+	}
+	
+	private void closeCachedStatements() {
+		synchronized (statementCache) {
+			for (CachedStatement cs : statementCache.values())
+				cs.closeStatement();
+			
+			statementCache.clear();
+		}
+	}
+	
+	class CachedStatement implements InvocationHandler {
+		private final PreparedStatement pstmt;
+		private final PreparedStatement proxy;
+		private boolean inUse = true;
+		private boolean evicted = false;
+		
+		private final int defaultFetchSize;
+		private final int defaultFetchDirection;
+		private final int defaultMaxRows;
+		private final int defaultMaxFieldSize;
+		private final int defaultQueryTimeout;
+		
+		public CachedStatement(PreparedStatement pstmt) throws SQLException {
+			this.pstmt = pstmt;
+			
+			defaultFetchSize = pstmt.getFetchSize();
+			defaultFetchDirection = pstmt.getFetchDirection();
+			defaultMaxRows = pstmt.getMaxRows();
+			defaultMaxFieldSize = pstmt.getMaxFieldSize();
+			defaultQueryTimeout = pstmt.getQueryTimeout();
+			
+			proxy = (PreparedStatement) Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, this);
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			
+			if (args == null) {
+				if (name.equals("close")) {
+					release();
+					return null;
+				}
+				
+				if (name.equals("isClosed"))
+					return !inUse || pstmt.isClosed();
+				
+				if (name.equals("getConnection"))
+					return PooledConnection.this;
+				
+				if (name.equals("hashCode"))
+					return System.identityHashCode(proxy);
+			} else if (name.equals("equals") && args.length == 1)
+				return proxy == args[0];
+			
+			try {
+				return method.invoke(pstmt, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+		
+		/*
+		 * Clears the parameters and batch, and restores the settings which
+		 * the statement had when it was prepared.
+		 */
+		
+		private void reset() throws SQLException {
+			ResultSet rs = pstmt.getResultSet();
+			
+			if (rs != null)
+				rs.close();
+			
+			pstmt.clearParameters();
+			pstmt.clearBatch();
+			
+			if (pstmt.getFetchSize() != defaultFetchSize)
+				pstmt.setFetchSize(defaultFetchSize);
+			
+			if (pstmt.getFetchDirection() != defaultFetchDirection)
+				pstmt.setFetchDirection(defaultFetchDirection);
+			
+			if (pstmt.getMaxRows() != defaultMaxRows)
+				pstmt.setMaxRows(defaultMaxRows);
+			
+			if (pstmt.getMaxFieldSize() != defaultMaxFieldSize)
+				pstmt.setMaxFieldSize(defaultMaxFieldSize);
+			
+			if (pstmt.getQueryTimeout() != defaultQueryTimeout)
+				pstmt.setQueryTimeout(defaultQueryTimeout);
+		}
+		
+		/*
+		 * Returns the statement to the cache, closing its current result set
+		 * as Statement.close would. If the result set cannot be closed, the
+		 * statement is dropped from the cache and the connection is marked
+		 * to be discarded when it is returned to the pool.
+		 */
+		
+		private void release() {
+			synchronized (statementCache) {
+				if (evicted)
+					closeStatement();
+				else if (closeResultSet())
+					inUse = false;
+				else {
+					statementCache.values().remove(this);
+					closeStatement();
+					discarded = true;
+				}
+			}
+		}
+		
+		private boolean closeResultSet() {
+			try {
+				ResultSet rs = pstmt.getResultSet();
+				
+				if (rs != null)
+					rs.close();
+				
+				return true;
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+		
+		private void closeStatement() {
+			try {
+				pstmt.close();
+			} catch (SQLException e) {
+				// Do nothing, since the statement is being discarded.
+			}
+		}
+	}
+	
+	public int getStatementCacheSize() {
+		synchronized (statementCache) {
+			return statementCache.size();
+		}
+	}
+	
+	public int getStatementCacheCapacity() {
+		return statementCacheSize;
+	}
+	
+	public int getStatementCacheHits() {
+		synchronized (statementCache) {
+			return statementCacheHits;
+		}
+	}
+	
+	public int getStatementCacheMisses() {
+		synchronized (statementCache) {
+			return statementCacheMisses;
+		}
+	}
+	
+	public int getStatementCacheEvictions() {
+		synchronized (statementCache) {
+			return statementCacheEvictions;
+		}
+	}
+	
+	public double getStatementCacheHitRate() {
+		synchronized (statementCache) {
+			int requests = statementCacheHits + statementCacheMisses;
+			
+			return requests == 0 ? 0.0 : (double) statementCacheHits / (double) requests;
+		}
 	}
 
 	public CallableStatement prepareCall(String sql) throws SQLException {
@@ -353,7 +681,9 @@ public class PooledConnection implements Connection, PooledConnectionMBean {
 
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
-		return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+		return prepareCachedStatement(resultSetType + ":"
+				+ resultSetConcurrency + ":" + sql, sql, resultSetType,
+				resultSetConcurrency);
 	}
 
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
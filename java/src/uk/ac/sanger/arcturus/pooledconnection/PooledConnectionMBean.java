@@ -34,4 +34,10 @@ public interface PooledConnectionMBean {
 	public int getLeaseCounter();
 	public int getConnectionID();
 	public String getOwnerClassName();
+	public int getStatementCacheSize();
+	public int getStatementCacheCapacity();
+	public int getStatementCacheHits();
+	public int getStatementCacheMisses();
+	public int getStatementCacheEvictions();
+	public double getStatementCacheHitRate();
 }
@@ -27,12 +27,17 @@ import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
 import uk.ac.sanger.arcturus.data.*;
 
 import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
 
 public class ReadFinder {
 	public static final int READ_DOES_NOT_EXIST = 1;
 	public static final int READ_IS_FREE = 2;
 	public static final int READ_IS_IN_CONTIG = 3;
 
+	public static final int BATCH_SIZE = 500;
+
 	protected ArcturusDatabase adb;
 	private Connection conn;
 	
@@ -41,6 +46,13 @@ public class ReadFinder {
 	private PreparedStatement pstmtReadToContig;
 	private PreparedStatement pstmtReadNameToID;
 	private PreparedStatement pstmtReadNameLikeToID;
+	private PreparedStatement pstmtReadNamesSince;
+	private PreparedStatement pstmtReadStatusAndContigs;
+
+	private boolean useIndex = Boolean.parseBoolean(Arcturus.getProperty(
+			"readfinder.useIndex", "true"));
+
+	private ReadNameIndex index = null;
 
 	protected ReadFinderEvent event = new ReadFinderEvent();
 
@@ -80,6 +92,43 @@ public class ReadFinder {
 						+ " where SEQ2READ.read_id = ?"
 						+ " and SEQ2READ.seq_id = MAPPING.seq_id"
 						+ " and MAPPING.contig_id = CURRENTCONTIGS.contig_id");
+
+		query = "select read_id,readname from READINFO where read_id > ?";
+
+		pstmtReadNamesSince = conn.prepareStatement(query);
+		pstmtReadNamesSince.setFetchSize(Integer.MIN_VALUE);
+
+		StringBuffer sb = new StringBuffer(
+				"select R.read_id,S.name,CURRENTCONTIGS.contig_id,"
+						+ "MAPPING.cstart,MAPPING.cfinish,MAPPING.direction"
+						+ " from (READINFO R left join STATUS S on (R.status = S.status_id))"
+						+ " left join (SEQ2READ join MAPPING on (SEQ2READ.seq_id = MAPPING.seq_id)"
+						+ " join CURRENTCONTIGS on (MAPPING.contig_id = CURRENTCONTIGS.contig_id))"
+						+ " on (R.read_id = SEQ2READ.read_id)"
+						+ " where R.read_id in (?");
+
+		for (int i = 1; i < BATCH_SIZE; i++)
+			sb.append(",?");
+
+		sb.append(")");
+
+		pstmtReadStatusAndContigs = conn.prepareStatement(sb.toString());
+	}
+
+	/**
+	 * Specifies whether read names should be looked up in an in-memory
+	 * index instead of in the database. The default is taken from the
+	 * readfinder.useIndex property. The index is built by the first search
+	 * for a pattern, and exact names are looked up in the database until
+	 * then.
+	 */
+
+	public void setUseIndex(boolean useIndex) {
+		this.useIndex = useIndex;
+	}
+
+	public boolean isUsingIndex() {
+		return useIndex;
 	}
 
 	public void close() throws ArcturusDatabaseException {
@@ -120,70 +169,238 @@ public class ReadFinder {
 			if (readname.indexOf('*') >= 0)
 				readname = readname.replace('*', '%');
 
-			PreparedStatement pstmt = containsWildcards(readname) ? pstmtReadNameLikeToID
-					: pstmtReadNameToID;
-
-			pstmt.setString(1, readname);
+			// Building the index reads every read name, so a single exact name
+			// is looked up in the database until a pattern search has built it.
+			if (useIndex && (index != null || containsWildcards(readname)))
+				findReadUsingIndex(readname, onlyFreeReads, listener);
+			else
+				findReadUsingQueries(readname, onlyFreeReads, listener);
+		} catch (SQLException sqle) {
+			throw new ArcturusDatabaseException(sqle, conn);
+		}
+	}
 
-			ResultSet rs = pstmt.executeQuery();
+	private void findReadUsingQueries(String readname, boolean onlyFreeReads,
+			ReadFinderEventListener listener) throws SQLException,
+			ArcturusDatabaseException {
+		PreparedStatement pstmt = containsWildcards(readname) ? pstmtReadNameLikeToID
+				: pstmtReadNameToID;
 
-			int nreads = 0;
+		pstmt.setString(1, readname);
 
-			while (rs.next()) {
-				nreads++;
+		ResultSet rs = pstmt.executeQuery();
 
-				int readid = rs.getInt(1);
-				String status = rs.getString(2);
+		int nreads = 0;
 
-				boolean passed = status != null
-						&& status.equalsIgnoreCase("PASS");
+		while (rs.next()) {
+			nreads++;
 
-				Read read = adb.getReadByID(readid);
+			int readid = rs.getInt(1);
+			String status = rs.getString(2);
 
-				event.setReadAndStatus(read, ReadFinderEvent.READ_IS_FREE);
+			boolean passed = status != null
+					&& status.equalsIgnoreCase("PASS");
 
-				pstmtReadToContig.setInt(1, readid);
+			Read read = adb.getReadByID(readid);
 
-				ResultSet rs2 = pstmtReadToContig.executeQuery();
+			event.setReadAndStatus(read, ReadFinderEvent.READ_IS_FREE);
 
-				boolean readIsFree = true;
+			pstmtReadToContig.setInt(1, readid);
 
-				while (rs2.next()) {
-					readIsFree = false;
+			ResultSet rs2 = pstmtReadToContig.executeQuery();
 
-					if (onlyFreeReads)
-						break;
+			boolean readIsFree = true;
 
-					int contigid = rs2.getInt(1);
-					int cstart = rs2.getInt(2);
-					int cfinish = rs2.getInt(3);
-					boolean forward = rs2.getString(4).equalsIgnoreCase(
-							"forward");
+			while (rs2.next()) {
+				readIsFree = false;
 
-					Contig contig = adb.getContigByID(contigid,
-							ArcturusDatabase.CONTIG_BASIC_DATA);
-					
-					event.setContigAndMapping(read, contig, cstart,
-							cfinish, forward);
+				if (onlyFreeReads)
+					break;
 
-					if (listener != null)
-						listener.readFinderUpdate(event);
-				}
+				int contigid = rs2.getInt(1);
+				int cstart = rs2.getInt(2);
+				int cfinish = rs2.getInt(3);
+				boolean forward = rs2.getString(4).equalsIgnoreCase(
+						"forward");
 
-				rs2.close();
+				Contig contig = adb.getContigByID(contigid,
+						ArcturusDatabase.CONTIG_BASIC_DATA);
+				
+				event.setContigAndMapping(read, contig, cstart,
+						cfinish, forward);
 
-				if (readIsFree && passed && listener != null)
+				if (listener != null)
 					listener.readFinderUpdate(event);
 			}
 
-			rs.close();
+			rs2.close();
 
-			if (nreads == 0 && listener != null) {
-				event.setStatus(ReadFinderEvent.READ_DOES_NOT_EXIST);
+			if (readIsFree && passed && listener != null)
 				listener.readFinderUpdate(event);
+		}
+
+		rs.close();
+
+		if (nreads == 0 && listener != null) {
+			event.setStatus(ReadFinderEvent.READ_DOES_NOT_EXIST);
+			listener.readFinderUpdate(event);
+		}
+	}
+
+	/*
+	 * Looks up the matching read IDs in the read name index, then fetches the
+	 * status and current contig mappings of the reads in batches of
+	 * BATCH_SIZE, instead of with one query per read.
+	 */
+
+	private void findReadUsingIndex(String readname, boolean onlyFreeReads,
+			ReadFinderEventListener listener) throws SQLException,
+			ArcturusDatabaseException {
+		updateIndex();
+
+		int[] readids = index.find(readname);
+
+		int nreads = 0;
+
+		for (int from = 0; from < readids.length; from += BATCH_SIZE) {
+			int to = Math.min(from + BATCH_SIZE, readids.length);
+
+			Map<Integer, ReadStatus> statusByID = getReadStatus(readids, from, to);
+
+			for (int i = from; i < to; i++) {
+				ReadStatus status = statusByID.get(readids[i]);
+
+				// The read has been deleted since it was added to the index.
+				if (status == null)
+					continue;
+
+				nreads++;
+
+				Read read = adb.getReadByID(readids[i]);
+
+				event.setReadAndStatus(read, ReadFinderEvent.READ_IS_FREE);
+
+				if (status.hits.isEmpty()) {
+					if (status.passed && listener != null)
+						listener.readFinderUpdate(event);
+				} else if (!onlyFreeReads) {
+					for (ContigHit hit : status.hits) {
+						Contig contig = adb.getContigByID(hit.contigid,
+								ArcturusDatabase.CONTIG_BASIC_DATA);
+
+						event.setContigAndMapping(read, contig, hit.cstart,
+								hit.cfinish, hit.forward);
+
+						if (listener != null)
+							listener.readFinderUpdate(event);
+					}
+				}
 			}
-		} catch (SQLException sqle) {
-			throw new ArcturusDatabaseException(sqle, conn);
+		}
+
+		if (nreads == 0 && listener != null) {
+			event.setStatus(ReadFinderEvent.READ_DOES_NOT_EXIST);
+			listener.readFinderUpdate(event);
+		}
+	}
+
+	/*
+	 * Builds the read name index on first use, and thereafter adds the reads
+	 * which have been created since it was last brought up to date.
+	 */
+
+	private void updateIndex() throws SQLException {
+		ReadNameIndex.Builder builder = index == null ? new ReadNameIndex.Builder()
+				: null;
+
+		pstmtReadNamesSince.setInt(1, index == null ? 0 : index.getMaxReadID());
+
+		ResultSet rs = pstmtReadNamesSince.executeQuery();
+
+		while (rs.next()) {
+			int readid = rs.getInt(1);
+			String name = rs.getString(2);
+
+			if (name == null)
+				continue;
+
+			if (builder != null)
+				builder.add(name, readid);
+			else
+				index = index.add(name, readid);
+		}
+
+		rs.close();
+
+		if (builder != null) {
+			index = builder.build();
+
+			Arcturus.logInfo("ReadFinder: built an index of " + index.size()
+					+ " read names");
+		}
+	}
+
+	private Map<Integer, ReadStatus> getReadStatus(int[] readids, int from,
+			int to) throws SQLException {
+		int last = 0;
+
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			if (from + i < to)
+				last = readids[from + i];
+
+			pstmtReadStatusAndContigs.setInt(i + 1, last);
+		}
+
+		Map<Integer, ReadStatus> statusByID = new HashMap<Integer, ReadStatus>();
+
+		ResultSet rs = pstmtReadStatusAndContigs.executeQuery();
+
+		while (rs.next()) {
+			int readid = rs.getInt(1);
+
+			ReadStatus status = statusByID.get(readid);
+
+			if (status == null) {
+				String name = rs.getString(2);
+
+				status = new ReadStatus(name != null
+						&& name.equalsIgnoreCase("PASS"));
+
+				statusByID.put(readid, status);
+			}
+
+			int contigid = rs.getInt(3);
+
+			if (!rs.wasNull())
+				status.hits.add(new ContigHit(contigid, rs.getInt(4), rs
+						.getInt(5), rs.getString(6).equalsIgnoreCase("forward")));
+		}
+
+		rs.close();
+
+		return statusByID;
+	}
+
+	private static class ReadStatus {
+		private final boolean passed;
+		private final Vector<ContigHit> hits = new Vector<ContigHit>();
+
+		ReadStatus(boolean passed) {
+			this.passed = passed;
+		}
+	}
+
+	private static class ContigHit {
+		private final int contigid;
+		private final int cstart;
+		private final int cfinish;
+		private final boolean forward;
+
+		ContigHit(int contigid, int cstart, int cfinish, boolean forward) {
+			this.contigid = contigid;
+			this.cstart = cstart;
+			this.cfinish = cfinish;
+			this.forward = forward;
 		}
 	}
 }
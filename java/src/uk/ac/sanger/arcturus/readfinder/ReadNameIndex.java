@@ -0,0 +1,602 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.readfinder;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/**
+ * A compact in-memory index of read names, which answers exact, prefix and
+ * wildcard queries without going to the database.
+ * 
+ * The names are sorted and front-coded in blocks of BLOCK_SIZE names: the
+ * first name of each block is stored in full, and each subsequent name is
+ * stored as the length of the prefix which it shares with its predecessor,
+ * followed by the rest of the name. A lookup performs a binary search on the
+ * first names of the blocks and then decodes a single block. Each name has a
+ * posting, which is the read ID.
+ * 
+ * Names are folded to lower case, so that matching is case-insensitive, as it
+ * is in the MySQL queries which this index replaces. Names which are added
+ * after the index has been built are kept in a small sorted map, which is
+ * merged into the front-coded array when it grows large.
+ * 
+ * Wildcard patterns use the SQL LIKE syntax: '%' matches any sequence of
+ * characters and '_' matches any single character.
+ */
+
+public class ReadNameIndex {
+	public static final int BLOCK_SIZE = 16;
+
+	private static final int MIN_MERGE_SIZE = 4096;
+
+	private final byte[] data;
+	private final int[] blockOffsets;
+	private final int[] readIDs;
+	private final int size;
+
+	private SortedMap<String, Vector<Integer>> recent = new TreeMap<String, Vector<Integer>>();
+	private int recentSize = 0;
+
+	private int maxReadID = 0;
+
+	private ReadNameIndex(byte[] data, int[] blockOffsets, int[] readIDs,
+			int size) {
+		this.data = data;
+		this.blockOffsets = blockOffsets;
+		this.readIDs = readIDs;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of names in the index.
+	 */
+
+	public synchronized int size() {
+		return size + recentSize;
+	}
+
+	/**
+	 * Returns the largest read ID in the index, or zero if the index is empty.
+	 * Since read IDs are allocated in ascending order, the index can be
+	 * brought up to date by adding the reads whose IDs are larger than this.
+	 */
+
+	public synchronized int getMaxReadID() {
+		return maxReadID;
+	}
+
+	/**
+	 * Adds a read to the index.
+	 * 
+	 * @param name
+	 *            the name of the read.
+	 * @param readID
+	 *            the ID of the read.
+	 * 
+	 * @return the index which contains the read. This is a new object if the
+	 *         recently-added reads have been merged into the front-coded
+	 *         array, otherwise it is this object.
+	 */
+
+	public synchronized ReadNameIndex add(String name, int readID) {
+		String key = fold(name);
+
+		Vector<Integer> ids = recent.get(key);
+
+		if (ids == null) {
+			ids = new Vector<Integer>(1);
+			recent.put(key, ids);
+		}
+
+		ids.add(readID);
+		recentSize++;
+
+		if (readID > maxReadID)
+			maxReadID = readID;
+
+		return recentSize > Math.max(MIN_MERGE_SIZE, size / 8) ? merge() : this;
+	}
+
+	private ReadNameIndex merge() {
+		Builder builder = new Builder();
+
+		Cursor cursor = new Cursor(0);
+
+		while (cursor.next())
+			builder.add(cursor.key, 0, cursor.keyLength,
+					readIDs[cursor.position]);
+
+		for (Map.Entry<String, Vector<Integer>> entry : recent.entrySet()) {
+			byte[] key = toBytes(entry.getKey());
+
+			for (int id : entry.getValue())
+				builder.add(key, 0, key.length, id);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Returns the IDs of the reads whose names match the specified pattern,
+	 * in ascending order of name. If the pattern contains no wildcards, the
+	 * names must match exactly, apart from case.
+	 * 
+	 * @param pattern
+	 *            the name or pattern.
+	 * 
+	 * @return the IDs of the matching reads.
+	 */
+
+	public synchronized int[] find(String pattern) {
+		byte[] key = toBytes(fold(pattern));
+
+		int prefixLength = 0;
+
+		while (prefixLength < key.length && !isWildcard(key[prefixLength]))
+			prefixLength++;
+
+		boolean exact = prefixLength == key.length;
+
+		Vector<Match> matches = new Vector<Match>();
+
+		Cursor cursor = new Cursor(lowerBound(key, prefixLength));
+
+		while (cursor.next()) {
+			if (compare(cursor.key, cursor.keyLength, key, prefixLength) < 0)
+				continue;
+
+			if (!cursor.startsWith(key, prefixLength))
+				break;
+
+			if (exact ? cursor.keyLength == key.length : matches(key,
+					cursor.key, cursor.keyLength))
+				matches.add(new Match(cursor.key, cursor.keyLength,
+						readIDs[cursor.position]));
+		}
+
+		String prefix = fromBytes(key, 0, prefixLength);
+
+		for (Map.Entry<String, Vector<Integer>> entry : recent.tailMap(prefix)
+				.entrySet()) {
+			String name = entry.getKey();
+
+			if (!name.startsWith(prefix))
+				break;
+
+			byte[] bytes = toBytes(name);
+
+			if (exact ? bytes.length == key.length : matches(key, bytes,
+					bytes.length))
+				for (int id : entry.getValue())
+					matches.add(new Match(bytes, bytes.length, id));
+		}
+
+		Match[] array = matches.toArray(new Match[matches.size()]);
+
+		if (recentSize > 0)
+			Arrays.sort(array, MATCH_COMPARATOR);
+
+		int[] ids = new int[array.length];
+
+		for (int i = 0; i < array.length; i++)
+			ids[i] = array[i].readID;
+
+		return ids;
+	}
+
+	/**
+	 * Returns true if the specified name contains a wildcard character.
+	 */
+
+	public static boolean containsWildcards(String name) {
+		return name.indexOf('%') >= 0 || name.indexOf('_') >= 0;
+	}
+
+	private static boolean isWildcard(byte b) {
+		return b == '%' || b == '_';
+	}
+
+	/*
+	 * Matches a name against a LIKE pattern, using the usual greedy algorithm
+	 * which backtracks to the most recent '%'.
+	 */
+
+	private static boolean matches(byte[] pattern, byte[] name, int length) {
+		int p = 0, n = 0;
+		int star = -1, mark = 0;
+
+		while (n < length) {
+			if (p < pattern.length
+					&& (pattern[p] == '_' || pattern[p] == name[n])) {
+				p++;
+				n++;
+			} else if (p < pattern.length && pattern[p] == '%') {
+				star = p++;
+				mark = n;
+			} else if (star >= 0) {
+				p = star + 1;
+				n = ++mark;
+			} else
+				return false;
+		}
+
+		while (p < pattern.length && pattern[p] == '%')
+			p++;
+
+		return p == pattern.length;
+	}
+
+	/*
+	 * Returns the number of the first name which might be greater than or
+	 * equal to the first prefixLength bytes of the key. This is the first
+	 * name in the last block whose first name is less than the key.
+	 */
+
+	private int lowerBound(byte[] key, int prefixLength) {
+		int lo = 0, hi = blockOffsets.length - 1, block = 0;
+
+		Cursor cursor = new Cursor(0);
+
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+
+			cursor.seekBlock(mid);
+			cursor.next();
+
+			if (compare(cursor.key, cursor.keyLength, key, prefixLength) < 0) {
+				block = mid;
+				lo = mid + 1;
+			} else
+				hi = mid - 1;
+		}
+
+		return block * BLOCK_SIZE;
+	}
+
+	private static int compare(byte[] a, int alen, byte[] b, int blen) {
+		int n = Math.min(alen, blen);
+
+		for (int i = 0; i < n; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+
+			if (diff != 0)
+				return diff;
+		}
+
+		return alen - blen;
+	}
+
+	private static String fold(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static byte[] toBytes(String str) {
+		try {
+			return str.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String fromBytes(byte[] bytes, int offset, int length) {
+		try {
+			return new String(bytes, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Decodes the front-coded names in order, starting at a given name.
+	 */
+
+	private class Cursor {
+		private byte[] key = new byte[64];
+		private int keyLength;
+		private int position;
+		private int offset;
+
+		Cursor(int start) {
+			seekBlock(start / BLOCK_SIZE);
+
+			while (position < start - 1)
+				next();
+		}
+
+		void seekBlock(int block) {
+			position = block * BLOCK_SIZE - 1;
+			offset = block < blockOffsets.length ? blockOffsets[block] : 0;
+		}
+
+		boolean next() {
+			if (position + 1 >= size)
+				return false;
+
+			position++;
+
+			int shared = 0;
+
+			if (position % BLOCK_SIZE != 0)
+				shared = readVarInt();
+
+			int suffix = readVarInt();
+
+			if (shared + suffix > key.length)
+				key = Arrays.copyOf(key, Math.max(2 * key.length, shared
+						+ suffix));
+
+			System.arraycopy(data, offset, key, shared, suffix);
+
+			offset += suffix;
+			keyLength = shared + suffix;
+
+			return true;
+		}
+
+		boolean startsWith(byte[] prefix, int prefixLength) {
+			if (keyLength < prefixLength)
+				return false;
+
+			for (int i = 0; i < prefixLength; i++)
+				if (key[i] != prefix[i])
+					return false;
+
+			return true;
+		}
+
+		private int readVarInt() {
+			int value = 0;
+			int shift = 0;
+			int b;
+
+			do {
+				b = data[offset++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			return value;
+		}
+	}
+
+	private static class Match {
+		private final byte[] key;
+		private final int readID;
+
+		Match(byte[] key, int keyLength, int readID) {
+			this.key = Arrays.copyOf(key, keyLength);
+			this.readID = readID;
+		}
+	}
+
+	private static final Comparator<Match> MATCH_COMPARATOR = new Comparator<Match>() {
+		public int compare(Match m1, Match m2) {
+			int diff = ReadNameIndex.compare(m1.key, m1.key.length, m2.key,
+					m2.key.length);
+
+			return diff != 0 ? diff : m1.readID - m2.readID;
+		}
+	};
+
+	/**
+	 * Collects read names and IDs in any order and builds an index from them.
+	 * The names are held as bytes rather than String objects, so that a
+	 * builder for several million reads needs little more memory than the
+	 * names themselves.
+	 */
+
+	public static class Builder {
+		private byte[] names = new byte[1 << 16];
+		private int namesLength = 0;
+
+		private int[] offsets = new int[1024];
+		private int[] ids = new int[1024];
+		private int count = 0;
+
+		private int maxReadID = 0;
+
+		public void add(String name, int readID) {
+			byte[] key = toBytes(fold(name));
+			add(key, 0, key.length, readID);
+		}
+
+		private void add(byte[] key, int from, int length, int readID) {
+			if (namesLength + length > names.length)
+				names = Arrays.copyOf(names, Math.max(2 * names.length,
+						namesLength + length));
+
+			if (count + 1 >= offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+				ids = Arrays.copyOf(ids, 2 * ids.length);
+			}
+
+			System.arraycopy(key, from, names, namesLength, length);
+
+			offsets[count] = namesLength;
+			ids[count] = readID;
+
+			namesLength += length;
+			count++;
+
+			offsets[count] = namesLength;
+
+			if (readID > maxReadID)
+				maxReadID = readID;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public ReadNameIndex build() {
+			int[] order = new int[count];
+
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+
+			sort(order, 0, count - 1);
+
+			int nblocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+			int[] blockOffsets = new int[nblocks];
+			int[] readIDs = new int[count];
+
+			byte[] data = new byte[namesLength + 4 * count + 16];
+			int length = 0;
+
+			int previous = -1;
+
+			for (int i = 0; i < count; i++) {
+				int entry = order[i];
+
+				int start = offsets[entry];
+				int keyLength = offsets[entry + 1] - start;
+
+				int shared = 0;
+
+				if (i % BLOCK_SIZE == 0)
+					blockOffsets[i / BLOCK_SIZE] = length;
+				else {
+					int pstart = offsets[previous];
+					int plength = offsets[previous + 1] - pstart;
+					int limit = Math.min(keyLength, plength);
+
+					while (shared < limit
+							&& names[start + shared] == names[pstart + shared])
+						shared++;
+
+					length = writeVarInt(data, length, shared);
+				}
+
+				length = writeVarInt(data, length, keyLength - shared);
+
+				System.arraycopy(names, start + shared, data, length,
+						keyLength - shared);
+
+				length += keyLength - shared;
+
+				readIDs[i] = ids[entry];
+
+				previous = entry;
+			}
+
+			ReadNameIndex index = new ReadNameIndex(Arrays
+					.copyOf(data, length), blockOffsets, readIDs, count);
+
+			index.maxReadID = maxReadID;
+
+			return index;
+		}
+
+		private static int writeVarInt(byte[] data, int offset, int value) {
+			while ((value & ~0x7f) != 0) {
+				data[offset++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+
+			data[offset++] = (byte) value;
+
+			return offset;
+		}
+
+		private int compareEntries(int i, int j) {
+			int istart = offsets[i];
+			int jstart = offsets[j];
+
+			int diff = compare(names, istart, offsets[i + 1] - istart, jstart,
+					offsets[j + 1] - jstart);
+
+			return diff != 0 ? diff : ids[i] - ids[j];
+		}
+
+		private int compare(byte[] a, int astart, int alen, int bstart,
+				int blen) {
+			int n = Math.min(alen, blen);
+
+			for (int k = 0; k < n; k++) {
+				int diff = (a[astart + k] & 0xff) - (a[bstart + k] & 0xff);
+
+				if (diff != 0)
+					return diff;
+			}
+
+			return alen - blen;
+		}
+
+		/*
+		 * Sorts the entry numbers by name and then by read ID, using a
+		 * quicksort on the middle element. Read names usually arrive in
+		 * nearly sorted order, which is the best case for this pivot.
+		 */
+
+		private void sort(int[] order, int lo, int hi) {
+			while (hi - lo > 16) {
+				int pivot = order[(lo + hi) >>> 1];
+
+				int i = lo, j = hi;
+
+				while (i <= j) {
+					while (compareEntries(order[i], pivot) < 0)
+						i++;
+
+					while (compareEntries(order[j], pivot) > 0)
+						j--;
+
+					if (i <= j) {
+						int tmp = order[i];
+						order[i++] = order[j];
+						order[j--] = tmp;
+					}
+				}
+
+				// Recurse into the smaller part to bound the stack depth.
+				if (j - lo < hi - i) {
+					sort(order, lo, j);
+					lo = i;
+				} else {
+					sort(order, i, hi);
+					hi = j;
+				}
+			}
+
+			for (int i = lo + 1; i <= hi; i++) {
+				int entry = order[i];
+				int j = i - 1;
+
+				while (j >= lo && compareEntries(order[j], entry) > 0) {
+					order[j + 1] = order[j];
+					j--;
+				}
+
+				order[j + 1] = entry;
+			}
+		}
+	}
+}
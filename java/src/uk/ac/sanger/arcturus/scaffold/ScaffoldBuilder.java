@@ -43,9 +43,16 @@ public class ScaffoldBuilder {
 	protected PreparedStatement pstmtLinkReads;
 	protected PreparedStatement pstmtMapping;
 
+	protected PreparedStatement pstmtCurrentContigs;
+	protected PreparedStatement pstmtBulkEndReads;
+	protected PreparedStatement pstmtBulkLinkReads;
+
+	public static final int BULK_BLOCK_SIZE = 100;
+
 	protected int minlen = 0;
 	protected int puclimit = 8000;
 	protected int minbridges = 2;
+	protected boolean bulkMode = true;
 
 	protected int flags = ArcturusDatabase.CONTIG_BASIC_DATA
 			| ArcturusDatabase.CONTIG_TAGS;
@@ -63,6 +70,10 @@ public class ScaffoldBuilder {
 			}
 		}
 
+		str = Arcturus.getProperty("scaffoldbuilder.bulkmode");
+		if (str != null)
+			bulkMode = Boolean.parseBoolean(str);
+
 		conn = adb.getPooledConnection(this);
 
 		try {
@@ -109,6 +120,23 @@ public class ScaffoldBuilder {
 		return minbridges;
 	}
 
+	/**
+	 * Specifies whether the read-pair data for the contigs which are waiting
+	 * to be processed should be fetched in bulk, with a few joined queries
+	 * for each block of contigs, or read by read, as in earlier versions.
+	 * 
+	 * @param bulkMode
+	 *            true if the data should be fetched in bulk.
+	 */
+
+	public void setBulkMode(boolean bulkMode) {
+		this.bulkMode = bulkMode;
+	}
+
+	public boolean isBulkMode() {
+		return bulkMode;
+	}
+
 	private void prepareStatements(Connection conn) throws SQLException {
 		String query;
 
@@ -149,6 +177,58 @@ public class ScaffoldBuilder {
 				+ " where seq_id = ? and C2CMAPPING.parent_id is null";
 
 		pstmtMapping = conn.prepareStatement(query);
+
+		String idlist = createIDList(BULK_BLOCK_SIZE);
+
+		query = "select contig_id from CURRENTCONTIGS where contig_id in "
+				+ idlist;
+
+		pstmtCurrentContigs = conn.prepareStatement(query);
+
+		query = "select MAPPING.contig_id,SEQ2READ.read_id,MAPPING.cstart,MAPPING.cfinish,MAPPING.direction,"
+				+ "READINFO.template_id,READINFO.strand,LIGATION.sihigh"
+				+ " from MAPPING left join CONTIG on MAPPING.contig_id = CONTIG.contig_id"
+				+ " left join SEQ2READ on MAPPING.seq_id = SEQ2READ.seq_id"
+				+ " left join READINFO on SEQ2READ.read_id = READINFO.read_id"
+				+ " left join TEMPLATE on READINFO.template_id = TEMPLATE.template_id"
+				+ " left join LIGATION on TEMPLATE.ligation_id = LIGATION.ligation_id"
+				+ " where MAPPING.contig_id in " + idlist
+				+ " and ((MAPPING.direction = 'Forward' and MAPPING.cstart + ? > CONTIG.length)"
+				+ " or (MAPPING.direction = 'Reverse' and MAPPING.cfinish < ?))";
+
+		pstmtBulkEndReads = conn.prepareStatement(query);
+
+		query = "select READINFO.template_id,READINFO.read_id,READINFO.strand,MAPPING.seq_id,"
+				+ "MAPPING.contig_id,MAPPING.cstart,MAPPING.cfinish,MAPPING.direction"
+				+ " from READINFO join SEQ2READ on READINFO.read_id = SEQ2READ.read_id"
+				+ " join MAPPING on SEQ2READ.seq_id = MAPPING.seq_id"
+				+ " left join C2CMAPPING on MAPPING.contig_id = C2CMAPPING.parent_id"
+				+ " where READINFO.template_id in " + idlist
+				+ " and C2CMAPPING.parent_id is null";
+
+		pstmtBulkLinkReads = conn.prepareStatement(query);
+	}
+
+	private String createIDList(int size) {
+		StringBuffer sb = new StringBuffer("(?");
+
+		for (int i = 1; i < size; i++)
+			sb.append(",?");
+
+		sb.append(")");
+
+		return sb.toString();
+	}
+
+	private void bindIDs(PreparedStatement pstmt, List<Integer> ids, int from) throws SQLException {
+		int last = 0;
+
+		for (int i = 0; i < BULK_BLOCK_SIZE; i++) {
+			if (from + i < ids.size())
+				last = ids.get(from + i);
+
+			pstmt.setInt(i + 1, last);
+		}
 	}
 
 	protected boolean isCurrentContig(int contigid) throws ArcturusDatabaseException {
@@ -228,6 +308,9 @@ public class ScaffoldBuilder {
 
 		Set<Contig> processed = new HashSet<Contig>();
 		
+		Map<Integer, List<EndRead>> frontier = new HashMap<Integer, List<EndRead>>();
+		Map<Integer, Contig> contigByID = new HashMap<Integer, Contig>();
+		
 		int linksExamined = 0;
 		int contigsExamined = 0;
 
@@ -250,156 +333,368 @@ public class ScaffoldBuilder {
 			if (contig.getLength() < minlen) {
 				continue;
 			}
+			
+			int contigid = contig.getID();
+			
+			List<EndRead> endreads = null;
+			
+			if (bulkMode) {
+				if (!frontier.containsKey(contigid))
+					loadFrontier(contig, contigset, processed, frontier);
+				
+				endreads = frontier.remove(contigid);
+			} else if (isCurrentContig(contigid))
+				endreads = getEndReads(contig);
 
-			if (!isCurrentContig(contig.getID())) {
-				System.err.println("Contig " + contig.getID() + " is no longer current");
+			if (endreads == null) {
+				System.err.println("Contig " + contigid + " is no longer current");
 			
 				continue;
 			}
-			
-			int contigid = contig.getID();
 				
 			fireEvent(listener, ScaffoldEvent.BEGIN_CONTIG,
 					"Processing contig", contigid);
 
-			int contiglength = contig.getLength();
-
 			Set<Contig> linkedContigs = new HashSet<Contig>();
 
-			for (int iEnd = 0; iEnd < 2; iEnd++) {
-				int endcode = 2 * iEnd;
-
-				PreparedStatement pstmt = (iEnd == 0) ? pstmtRightEndReads
-						: pstmtLeftEndReads;
-
-				int limit = (iEnd == 0) ? contig.getLength() - puclimit
-						: puclimit;
-
-				pstmt.setInt(1, contig.getID());
-				pstmt.setInt(2, limit);
+			for (EndRead endread : endreads) {
+				for (LinkRead linkread : endread.links) {
+					Contig link_contig = contigByID.get(linkread.contigid);
+					
+					if (link_contig == null) {
+						link_contig = adb.getContigByID(linkread.contigid, flags);
+						contigByID.put(linkread.contigid, link_contig);
+					}
 
-				ResultSet rs = pstmt.executeQuery();
+					int link_contiglength = link_contig.getLength();
 
-				while (rs.next()) {
-					int readid = rs.getInt(1);
-					// int seqid = rs.getInt(2);
-					int cstart = rs.getInt(3);
-					int cfinish = rs.getInt(4);
-					String direction = rs.getString(5);
+					ReadMapping link_mapping = linkread.mapping;
+					
+					boolean link_forward = link_mapping.isForward();
 
-					ReadMapping mappinga = new ReadMapping(readid, cstart,
-							cfinish, direction.equalsIgnoreCase("Forward"));
+					int gapsize = link_forward ? endread.overhang
+							- (link_contiglength - link_mapping.getContigStart())
+							: endread.overhang - link_mapping.getContigFinish();
 
-					pstmtTemplate.setInt(1, readid);
+					int myendcode = endread.endcode;
 
-					ResultSet rs2 = pstmtTemplate.executeQuery();
+					if (link_forward)
+						myendcode++;
 
-					int templateid = 0;
-					String strand = null;
+					if (contig != link_contig && gapsize > 0) {
+						bridgeset.addBridge(contig, link_contig,
+								myendcode, endread.template, endread.mapping,
+								link_mapping, new GapSize(gapsize));
 
-					if (rs2.next()) {
-						templateid = rs2.getInt(1);
-						strand = rs2.getString(2);
+						if (!linkedContigs.contains(link_contig)) {
+							linkedContigs.add(link_contig);
+							contigsExamined++;
+							fireEvent(listener, ScaffoldEvent.CONTIGS_EXAMINED, null, contigsExamined);
+						}
 					}
+					
+					linksExamined++;
+					fireEvent(listener, ScaffoldEvent.LINKS_EXAMINED, null, linksExamined);
+				}
+			}
 
-					rs2.close();
+			for (Iterator iterator = linkedContigs.iterator(); iterator
+					.hasNext();) {
+				Contig link_contig = (Contig) iterator.next();
 
-					Template template = adb.getTemplateByID(templateid);
+				for (int endcode = 0; endcode < 4; endcode++)
+					if (bridgeset.getTemplateCount(contig, link_contig, endcode) >= minbridges
+							&& !processed.contains(link_contig))
+						contigset.add(link_contig);
+			}
+		}
 
-					int sihigh = 0;
+		return bridgeset;
+	}
+	
+	/*
+	 * Fetches the end reads and their mates for a single contig, using one
+	 * query per read. This is the original, read-by-read method.
+	 */
+	
+	private List<EndRead> getEndReads(Contig contig) throws SQLException,
+			ArcturusDatabaseException {
+		List<EndRead> endreads = new ArrayList<EndRead>();
+		
+		int contiglength = contig.getLength();
+		
+		for (int iEnd = 0; iEnd < 2; iEnd++) {
+			PreparedStatement pstmt = (iEnd == 0) ? pstmtRightEndReads
+					: pstmtLeftEndReads;
 
-					pstmtLigation.setInt(1, templateid);
+			int limit = (iEnd == 0) ? contiglength - puclimit : puclimit;
 
-					rs2 = pstmtLigation.executeQuery();
+			pstmt.setInt(1, contig.getID());
+			pstmt.setInt(2, limit);
 
-					if (rs2.next())
-						sihigh = rs2.getInt(2);
+			ResultSet rs = pstmt.executeQuery();
 
-					rs2.close();
+			while (rs.next()) {
+				int readid = rs.getInt(1);
+				int cstart = rs.getInt(3);
+				int cfinish = rs.getInt(4);
+				String direction = rs.getString(5);
 
-					int overhang = (iEnd == 0) ? cstart + sihigh - contiglength
-							: sihigh - cfinish;
+				pstmtTemplate.setInt(1, readid);
 
-					if (overhang < 1 || sihigh > puclimit)
-						continue;
+				ResultSet rs2 = pstmtTemplate.executeQuery();
 
-					pstmtLinkReads.setInt(1, templateid);
-					pstmtLinkReads.setString(2, strand);
+				int templateid = 0;
+				String strand = null;
 
-					rs2 = pstmtLinkReads.executeQuery();
+				if (rs2.next()) {
+					templateid = rs2.getInt(1);
+					strand = rs2.getString(2);
+				}
 
-					while (rs2.next()) {
-						int link_readid = rs2.getInt(1);
-						int link_seqid = rs2.getInt(2);
+				rs2.close();
 
-						pstmtMapping.setInt(1, link_seqid);
+				int sihigh = 0;
 
-						ResultSet rs3 = pstmtMapping.executeQuery();
+				pstmtLigation.setInt(1, templateid);
 
-						if (rs3.next()) {
-							int link_contigid = rs3.getInt(1);
-							int link_cstart = rs3.getInt(2);
-							int link_cfinish = rs3.getInt(3);
-							String link_direction = rs3.getString(4);
+				rs2 = pstmtLigation.executeQuery();
 
-							ReadMapping link_mapping = new ReadMapping(
-									link_readid, link_cstart, link_cfinish,
-									link_direction.equalsIgnoreCase("Forward"));
+				if (rs2.next())
+					sihigh = rs2.getInt(2);
 
-							Contig link_contig = adb.getContigByID(
-									link_contigid, flags);
+				rs2.close();
 
-							int link_contiglength = link_contig.getLength();
+				EndRead endread = createEndRead(iEnd, contiglength, readid,
+						cstart, cfinish, direction, templateid, strand, sihigh);
 
-							boolean link_forward = link_direction
-									.equalsIgnoreCase("Forward");
+				if (endread == null)
+					continue;
 
-							int gapsize = link_forward ? overhang
-									- (link_contiglength - link_cstart)
-									: overhang - link_cfinish;
+				pstmtLinkReads.setInt(1, templateid);
+				pstmtLinkReads.setString(2, strand);
 
-							int myendcode = endcode;
+				rs2 = pstmtLinkReads.executeQuery();
 
-							if (link_forward)
-								myendcode++;
+				while (rs2.next()) {
+					int link_readid = rs2.getInt(1);
+					int link_seqid = rs2.getInt(2);
 
-							if (contig != link_contig && gapsize > 0) {
-								bridgeset.addBridge(contig, link_contig,
-										myendcode, template, mappinga,
-										link_mapping, new GapSize(gapsize));
+					pstmtMapping.setInt(1, link_seqid);
 
-								if (!linkedContigs.contains(link_contig)) {
-									linkedContigs.add(link_contig);
-									contigsExamined++;
-									fireEvent(listener, ScaffoldEvent.CONTIGS_EXAMINED, null, contigsExamined);
-								}
-							}
-							
-							linksExamined++;
-							fireEvent(listener, ScaffoldEvent.LINKS_EXAMINED, null, linksExamined);
-						}
+					ResultSet rs3 = pstmtMapping.executeQuery();
 
-						rs3.close();
-					}
+					if (rs3.next())
+						endread.links.add(new LinkRead(link_readid, rs3.getInt(1),
+								rs3.getInt(2), rs3.getInt(3), rs3.getString(4), null));
 
-					rs2.close();
+					rs3.close();
 				}
 
-				rs.close();
+				rs2.close();
+				
+				endreads.add(endread);
 			}
 
-			for (Iterator iterator = linkedContigs.iterator(); iterator
-					.hasNext();) {
-				Contig link_contig = (Contig) iterator.next();
+			rs.close();
+		}
+		
+		return endreads;
+	}
+	
+	private EndRead createEndRead(int iEnd, int contiglength, int readid,
+			int cstart, int cfinish, String direction, int templateid,
+			String strand, int sihigh) throws ArcturusDatabaseException {
+		int overhang = (iEnd == 0) ? cstart + sihigh - contiglength
+				: sihigh - cfinish;
 
-				for (int endcode = 0; endcode < 4; endcode++)
-					if (bridgeset.getTemplateCount(contig, link_contig, endcode) >= minbridges
-							&& !processed.contains(link_contig))
-						contigset.add(link_contig);
+		if (overhang < 1 || sihigh > puclimit)
+			return null;
+
+		ReadMapping mapping = new ReadMapping(readid, cstart, cfinish,
+				direction.equalsIgnoreCase("Forward"));
+
+		Template template = adb.getTemplateByID(templateid);
+
+		return new EndRead(2 * iEnd, mapping, template, strand, overhang);
+	}
+	
+	/*
+	 * Fetches the end reads and their mates for the specified contig and for
+	 * every other contig which is waiting to be processed, using a few joined
+	 * queries for each block of contigs. A contig which is no longer current
+	 * is entered in the frontier map with a null list of end reads.
+	 */
+	
+	private void loadFrontier(Contig contig, SortedSet<Contig> contigset,
+			Set<Contig> processed, Map<Integer, List<EndRead>> frontier)
+			throws SQLException, ArcturusDatabaseException {
+		Map<Integer, Contig> pending = new LinkedHashMap<Integer, Contig>();
+		
+		pending.put(contig.getID(), contig);
+		
+		synchronized (contigset) {
+			for (Contig c : contigset) {
+				if (!processed.contains(c) && c.getLength() >= minlen
+						&& !frontier.containsKey(c.getID()))
+					pending.put(c.getID(), c);
 			}
 		}
-
-		return bridgeset;
+		
+		List<Integer> ids = new ArrayList<Integer>(pending.keySet());
+		
+		for (int from = 0; from < ids.size(); from += BULK_BLOCK_SIZE)
+			loadFrontierBlock(ids, from, pending, frontier);
+	}
+	
+	private void loadFrontierBlock(List<Integer> ids, int from,
+			Map<Integer, Contig> pending, Map<Integer, List<EndRead>> frontier)
+			throws SQLException, ArcturusDatabaseException {
+		int to = Math.min(from + BULK_BLOCK_SIZE, ids.size());
+		
+		for (int i = from; i < to; i++)
+			frontier.put(ids.get(i), null);
+		
+		bindIDs(pstmtCurrentContigs, ids, from);
+		
+		ResultSet rs = pstmtCurrentContigs.executeQuery();
+		
+		Map<Integer, List<EndRead>> rightEnds = new HashMap<Integer, List<EndRead>>();
+		Map<Integer, List<EndRead>> leftEnds = new HashMap<Integer, List<EndRead>>();
+		
+		while (rs.next()) {
+			int contigid = rs.getInt(1);
+			rightEnds.put(contigid, new ArrayList<EndRead>());
+			leftEnds.put(contigid, new ArrayList<EndRead>());
+		}
+		
+		rs.close();
+		
+		if (rightEnds.isEmpty())
+			return;
+		
+		bindIDs(pstmtBulkEndReads, ids, from);
+		pstmtBulkEndReads.setInt(BULK_BLOCK_SIZE + 1, puclimit);
+		pstmtBulkEndReads.setInt(BULK_BLOCK_SIZE + 2, puclimit);
+		
+		rs = pstmtBulkEndReads.executeQuery();
+		
+		Map<Integer, List<EndRead>> byTemplate = new HashMap<Integer, List<EndRead>>();
+		
+		while (rs.next()) {
+			int contigid = rs.getInt(1);
+			
+			List<EndRead> right = rightEnds.get(contigid);
+			
+			if (right == null)
+				continue;
+			
+			String direction = rs.getString(5);
+			
+			int iEnd = direction.equalsIgnoreCase("Forward") ? 0 : 1;
+			
+			int templateid = rs.getInt(6);
+			
+			EndRead endread = createEndRead(iEnd, pending.get(contigid).getLength(),
+					rs.getInt(2), rs.getInt(3), rs.getInt(4), direction,
+					templateid, rs.getString(7), rs.getInt(8));
+			
+			if (endread == null)
+				continue;
+			
+			if (iEnd == 0)
+				right.add(endread);
+			else
+				leftEnds.get(contigid).add(endread);
+			
+			List<EndRead> list = byTemplate.get(templateid);
+			
+			if (list == null) {
+				list = new ArrayList<EndRead>();
+				byTemplate.put(templateid, list);
+			}
+			
+			list.add(endread);
+		}
+		
+		rs.close();
+		
+		List<Integer> templateids = new ArrayList<Integer>(byTemplate.keySet());
+		
+		Set<Integer> seqids = new HashSet<Integer>();
+		
+		for (int tfrom = 0; tfrom < templateids.size(); tfrom += BULK_BLOCK_SIZE) {
+			bindIDs(pstmtBulkLinkReads, templateids, tfrom);
+			
+			rs = pstmtBulkLinkReads.executeQuery();
+			
+			while (rs.next()) {
+				int seqid = rs.getInt(4);
+				
+				// Only the first current mapping of each sequence is used.
+				if (!seqids.add(seqid))
+					continue;
+				
+				LinkRead linkread = new LinkRead(rs.getInt(2), rs.getInt(5),
+						rs.getInt(6), rs.getInt(7), rs.getString(8), rs.getString(3));
+				
+				List<EndRead> list = byTemplate.get(rs.getInt(1));
+				
+				if (list == null)
+					continue;
+				
+				for (EndRead endread : list)
+					if (endread.strand != null && linkread.strand != null
+							&& !endread.strand.equalsIgnoreCase(linkread.strand))
+						endread.links.add(linkread);
+			}
+			
+			rs.close();
+		}
+		
+		for (Map.Entry<Integer, List<EndRead>> entry : rightEnds.entrySet()) {
+			List<EndRead> endreads = entry.getValue();
+			endreads.addAll(leftEnds.get(entry.getKey()));
+			frontier.put(entry.getKey(), endreads);
+		}
+	}
+	
+	/*
+	 * A read near one end of a contig whose template extends beyond that
+	 * end, together with the current mappings of the other reads from
+	 * the same template.
+	 */
+	
+	class EndRead {
+		protected int endcode;
+		protected ReadMapping mapping;
+		protected Template template;
+		protected String strand;
+		protected int overhang;
+		protected List<LinkRead> links = new ArrayList<LinkRead>();
+		
+		public EndRead(int endcode, ReadMapping mapping, Template template,
+				String strand, int overhang) {
+			this.endcode = endcode;
+			this.mapping = mapping;
+			this.template = template;
+			this.strand = strand;
+			this.overhang = overhang;
+		}
+	}
+	
+	class LinkRead {
+		protected int contigid;
+		protected ReadMapping mapping;
+		protected String strand;
+		
+		public LinkRead(int readid, int contigid, int cstart, int cfinish,
+				String direction, String strand) {
+			this.contigid = contigid;
+			this.mapping = new ReadMapping(readid, cstart, cfinish,
+					direction.equalsIgnoreCase("Forward"));
+			this.strand = strand;
+		}
 	}
 
 	class ContigLengthComparator implements Comparator<Contig> {
@@ -26,7 +26,9 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.ResultSet;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -42,34 +44,48 @@ public class SiblingReadFinder {
 	
 	private final int CONNECTION_VALIDATION_TIMEOUT = 10;
 	
-	private static final String SQL_LIST_TEMPLATES_FOR_PROJECT =
-		"select distinct RI.template_id,RI.strand" +
-    	" from ((CURRENTCONTIGS CC left join MAPPING M using(contig_id))" +
-    	" left join SEQ2READ using (seq_id)) left join READINFO RI using (read_id)" +
-    	" where CC.project_id = ? and RI.asped is not null and RI.strand is not null and RI.template_id > 0";
+	private static final String SQL_TEMPLATES_FOR_PROJECT =
+		" from ((CURRENTCONTIGS CC left join MAPPING M using(contig_id))" +
+		" left join SEQ2READ using (seq_id)) left join READINFO RI using (read_id)" +
+		" where CC.project_id = ? and RI.asped is not null and RI.strand is not null and RI.template_id > 0";
 	
-	private static final String SQL_LIST_READS_FOR_TEMPLATE =
-		"select readname from READINFO where template_id = ? and strand = ?";
+	private static final String SQL_COUNT_TEMPLATES_FOR_PROJECT =
+		"select count(distinct RI.template_id,RI.strand)" + SQL_TEMPLATES_FOR_PROJECT;
 	
-	private static final String SQL_LIST_TEMPLATES_FROM_BOTH_STRANDS_FOR_PROJECT =
-		"select distinct RI.template_id,'both'" +
-    	" from ((CURRENTCONTIGS CC left join MAPPING M using(contig_id))" +
-    	" left join SEQ2READ using (seq_id)) left join READINFO RI using (read_id)" +
-    	" where CC.project_id = ? and RI.asped is not null and RI.strand is not null and RI.template_id > 0";
+	private static final String SQL_COUNT_TEMPLATES_FROM_BOTH_STRANDS_FOR_PROJECT =
+		"select count(distinct RI.template_id)" + SQL_TEMPLATES_FOR_PROJECT;
 	
-	private static final String SQL_LIST_READS_FROM_BOTH_STRANDS_FOR_TEMPLATE =
-		"select readname from READINFO where template_id = ?";
+	/*
+	 * These queries list every read from the project's templates, together
+	 * with the ID of each current contig which contains the read, or null if
+	 * the read is free. A read which is in more than one current contig is
+	 * listed once for each contig. The reads are ordered by template, so that
+	 * the result set can be streamed and processed one template at a time.
+	 */
 	
-	private static final String SQL_CURRENT_CONTIG_FOR_READ =
-		"select CC.contig_id from READINFO RI left join" +
-		" (SEQ2READ SR, MAPPING M, CURRENTCONTIGS CC) using (read_id)" +
-		" where RI.readname = ? and SR.seq_id=M.seq_id and M.contig_id=CC.contig_id";
+	private static final String SQL_CURRENT_CONTIGS_FOR_SIBLINGS =
+		" left join (SEQ2READ SR join MAPPING M on (SR.seq_id = M.seq_id)" +
+		" join CURRENTCONTIGS CC on (M.contig_id = CC.contig_id))" +
+		" on (SIB.read_id = SR.read_id)";
+	
+	private static final String SQL_LIST_SIBLINGS_FOR_PROJECT =
+		"select SIB.template_id,SIB.strand,SIB.readname,CC.contig_id" +
+		" from (select distinct RI.template_id,RI.strand" + SQL_TEMPLATES_FOR_PROJECT + ") T" +
+		" join READINFO SIB on (SIB.template_id = T.template_id and SIB.strand = T.strand)" +
+		SQL_CURRENT_CONTIGS_FOR_SIBLINGS +
+		" order by SIB.template_id,SIB.strand";
+	
+	private static final String SQL_LIST_SIBLINGS_FROM_BOTH_STRANDS_FOR_PROJECT =
+		"select SIB.template_id,SIB.strand,SIB.readname,CC.contig_id" +
+		" from (select distinct RI.template_id" + SQL_TEMPLATES_FOR_PROJECT + ") T" +
+		" join READINFO SIB on (SIB.template_id = T.template_id)" +
+		SQL_CURRENT_CONTIGS_FOR_SIBLINGS +
+		" order by SIB.template_id";
 
-	protected PreparedStatement pstmtListTemplatesForProject;
-	protected PreparedStatement pstmtListReadsForTemplate;
-	protected PreparedStatement pstmtListTemplatesFromBothStrandsForProject;
-	protected PreparedStatement pstmtListReadsFromBothStrandsForTemplate;
-	protected PreparedStatement pstmtCurrentContigForRead;
+	protected PreparedStatement pstmtCountTemplatesForProject;
+	protected PreparedStatement pstmtCountTemplatesFromBothStrandsForProject;
+	protected PreparedStatement pstmtListSiblingsForProject;
+	protected PreparedStatement pstmtListSiblingsFromBothStrandsForProject;
 	
 	protected SiblingReadFinderEventListener listener;
 	protected SiblingReadFinderEvent event = new SiblingReadFinderEvent();
@@ -97,15 +113,15 @@ public class SiblingReadFinder {
 	private void prepareConnection() throws SQLException, ArcturusDatabaseException {
 		conn = adb.getPooledConnection(this);
 
-		pstmtListTemplatesForProject = conn.prepareStatement(SQL_LIST_TEMPLATES_FOR_PROJECT);
-
-		pstmtListReadsForTemplate = conn.prepareStatement(SQL_LIST_READS_FOR_TEMPLATE);
+		pstmtCountTemplatesForProject = conn.prepareStatement(SQL_COUNT_TEMPLATES_FOR_PROJECT);
 		
-		pstmtListTemplatesFromBothStrandsForProject = conn.prepareStatement(SQL_LIST_TEMPLATES_FROM_BOTH_STRANDS_FOR_PROJECT);
+		pstmtCountTemplatesFromBothStrandsForProject = conn.prepareStatement(SQL_COUNT_TEMPLATES_FROM_BOTH_STRANDS_FOR_PROJECT);
 
-		pstmtListReadsFromBothStrandsForTemplate = conn.prepareStatement(SQL_LIST_READS_FROM_BOTH_STRANDS_FOR_TEMPLATE);
+		pstmtListSiblingsForProject = conn.prepareStatement(SQL_LIST_SIBLINGS_FOR_PROJECT);
+		pstmtListSiblingsForProject.setFetchSize(Integer.MIN_VALUE);
 
-		pstmtCurrentContigForRead = conn.prepareStatement(SQL_CURRENT_CONTIG_FOR_READ);
+		pstmtListSiblingsFromBothStrandsForProject = conn.prepareStatement(SQL_LIST_SIBLINGS_FROM_BOTH_STRANDS_FOR_PROJECT);
+		pstmtListSiblingsFromBothStrandsForProject.setFetchSize(Integer.MIN_VALUE);
 	}
 
 	public void close() throws ArcturusDatabaseException {
@@ -128,24 +144,6 @@ public class SiblingReadFinder {
 		}
 	}
 	
-	class TemplateAndStrand {
-		private int template_id;
-		private String strand;
-		
-		public TemplateAndStrand(int template_id, String strand) {
-			this.template_id = template_id;
-			this.strand = strand;
-		}
-		
-		public int getTemplateID() {
-			return template_id;
-		}
-		
-		public String getStrand() {
-			return strand;
-		}
-	}
-
 	public Set<String> getSiblingReadnames(Project project, Pattern omitNamesLike, boolean bothStrands)
 		throws ArcturusDatabaseException {
 		if (project == null)
@@ -161,68 +159,70 @@ public class SiblingReadFinder {
 				listener.siblingReadFinderUpdate(event);
 			}
 			
-			Set<TemplateAndStrand> templates = new HashSet<TemplateAndStrand>();
-			
 			PreparedStatement pstmt = bothStrands ?
-					pstmtListTemplatesFromBothStrandsForProject : pstmtListTemplatesForProject;
+					pstmtCountTemplatesFromBothStrandsForProject : pstmtCountTemplatesForProject;
 			
 			pstmt.setInt(1, project.getID());
 			
 			ResultSet rs = pstmt.executeQuery();
 			
-			while (rs.next()) {
-				TemplateAndStrand tands = new TemplateAndStrand(rs.getInt(1), rs.getString(2));
-				templates.add(tands);
-			}
+			int templates = rs.next() ? rs.getInt(1) : 0;
 			
 			rs.close();
 			
 			if (listener != null) {
 				event.setStatus(Status.COUNTED_SUBCLONES);
-				event.setValue(templates.size());
+				event.setValue(templates);
 				listener.siblingReadFinderUpdate(event);
 			}
-		
-			Set<String> readnames = new HashSet<String>();
 			
 			event.setStatus(Status.IN_PROGRESS);
 			
+			pstmt = bothStrands ?
+					pstmtListSiblingsFromBothStrandsForProject : pstmtListSiblingsForProject;
+			
+			pstmt.setInt(1, project.getID());
+			
+			rs = pstmt.executeQuery();
+			
+			// Maps the name of each read from the current template to true if
+			// the read is free, or false if it is in a current contig.
+			Map<String, Boolean> readnames = new HashMap<String, Boolean>();
+			
 			int count = 0;
 			
-			pstmt = bothStrands ? pstmtListReadsFromBothStrandsForTemplate : pstmtListReadsForTemplate;
+			int lastTemplateID = 0;
+			String lastStrand = null;
 			
-			for (TemplateAndStrand tands : templates) {
-				readnames.clear();
+			while (rs.next()) {
+				int templateID = rs.getInt(1);
+				String strand = bothStrands ? null : rs.getString(2);
 				
-				pstmt.setInt(1, tands.getTemplateID());
+				boolean newTemplate = templateID != lastTemplateID
+					|| (strand != null && !strand.equals(lastStrand));
 				
-				if (!bothStrands)
-					pstmt.setString(2, tands.getStrand());
+				if (newTemplate && !readnames.isEmpty())
+					count = addFreeReadnames(readnames, omitNamesLike, names, count);
 				
-				rs = pstmt.executeQuery();
+				lastTemplateID = templateID;
+				lastStrand = strand;
 				
-				while (rs.next())
-					readnames.add(rs.getString(1));
+				String readname = rs.getString(3);
 				
-				rs.close();
+				rs.getInt(4);
 				
-				for (String readname : readnames) {
-					if (isFree(readname)) {
-						boolean matchesPattern =
-							omitNamesLike != null && omitNamesLike.matcher(readname).find();
-						
-						if (!matchesPattern)
-							names.add(readname);
-					}
-				}
+				boolean free = rs.wasNull();
 				
-				if (listener != null) {
-					count++;
-					event.setValue(count);
-					listener.siblingReadFinderUpdate(event);
-				}
+				Boolean wasFree = readnames.get(readname);
+				
+				readnames.put(readname, free && (wasFree == null || wasFree));
 			}
 			
+			rs.close();
+			
+			if (!readnames.isEmpty())
+				count = addFreeReadnames(readnames, omitNamesLike, names, count);
+			
 			if (listener != null) {
 				event.setStatus(Status.FINISHED);
 				event.setValue(names.size());
@@ -236,15 +236,29 @@ public class SiblingReadFinder {
 		return names;
 	}
 
-	private boolean isFree(String readname) throws SQLException {
-		pstmtCurrentContigForRead.setString(1, readname);
+	private int addFreeReadnames(Map<String, Boolean> readnames, Pattern omitNamesLike,
+			Set<String> names, int count) {
+		for (Map.Entry<String, Boolean> entry : readnames.entrySet()) {
+			if (entry.getValue()) {
+				String readname = entry.getKey();
+				
+				boolean matchesPattern =
+					omitNamesLike != null && omitNamesLike.matcher(readname).find();
+				
+				if (!matchesPattern)
+					names.add(readname);
+			}
+		}
 		
-		ResultSet rs = pstmtCurrentContigForRead.executeQuery();
+		readnames.clear();
 		
-		boolean inContig = rs.next();
+		count++;
 		
-		rs.close();
+		if (listener != null) {
+			event.setValue(count);
+			listener.siblingReadFinderUpdate(event);
+		}
 		
-		return !inContig;
+		return count;
 	}
 }
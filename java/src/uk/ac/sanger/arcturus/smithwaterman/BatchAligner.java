@@ -0,0 +1,568 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.smithwaterman;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Aligns many query sequences, such as reads, against a set of subject
+ * sequences, such as contig consensus sequences.
+ * 
+ * The subject sequences are indexed by k-mer. The k-mers of each query, and
+ * of its reverse complement, are looked up in the index, and each hit defines
+ * a diagonal on one subject. Hits are clustered by subject and diagonal, and
+ * a banded Smith-Waterman alignment is calculated only around the diagonals
+ * of the best-supported clusters, so the cost of aligning a query depends on
+ * its length and the number of candidate locations, not on the total length
+ * of the subjects.
+ * 
+ * Queries are processed in blocks on a pool of worker threads, and the
+ * results are passed to an AlignmentHandler in the order in which the queries
+ * were supplied.
+ */
+
+public class BatchAligner {
+	public static final int DEFAULT_KMER_SIZE = 13;
+	public static final int DEFAULT_STEP = 4;
+	public static final int DEFAULT_BANDWIDTH = 20;
+	public static final int DEFAULT_MIN_SEED_HITS = 2;
+	public static final int DEFAULT_MAX_CANDIDATES = 4;
+	public static final int DEFAULT_MAX_OCCURRENCES = 100;
+	
+	// The number of queries in each block which is passed to a worker thread.
+	private static final int QUERIES_PER_TASK = 16;
+	
+	// The number of blocks which may be queued or in progress for each worker
+	// thread.
+	private static final int TASKS_PER_THREAD = 4;
+	
+	private final ScoringMatrix smat;
+	
+	private int kmerSize = DEFAULT_KMER_SIZE;
+	private int step = DEFAULT_STEP;
+	private int bandwidth = DEFAULT_BANDWIDTH;
+	private int minSeedHits = DEFAULT_MIN_SEED_HITS;
+	private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+	private int maxOccurrences = DEFAULT_MAX_OCCURRENCES;
+	private int minScore = 0;
+	private int threads = 1;
+	
+	private final List<Subject> subjects = new ArrayList<Subject>();
+	
+	private KmerSeedIndex index = null;
+	
+	private final ThreadLocal<SmithWatermanKernel> kernels = new ThreadLocal<SmithWatermanKernel>() {
+		protected SmithWatermanKernel initialValue() {
+			return new SmithWatermanKernel(smat);
+		}
+	};
+	
+	public BatchAligner(ScoringMatrix smat) {
+		this.smat = smat;
+	}
+	
+	/**
+	 * Adds a subject sequence. The index of subject sequences is rebuilt
+	 * before the next batch of queries is aligned.
+	 */
+	
+	public synchronized void addSubject(int id, String name, byte[] dna) {
+		subjects.add(new Subject(id, name, SmithWatermanKernel.encode(dna)));
+		index = null;
+	}
+	
+	public synchronized int getSubjectCount() {
+		return subjects.size();
+	}
+	
+	/**
+	 * Sets the length of the k-mers which are used as seeds. This takes effect
+	 * when the index of subject sequences is next built.
+	 */
+	
+	public synchronized void setKmerSize(int kmerSize) {
+		if (kmerSize < 1 || kmerSize > KmerSeedIndex.MAX_KMER_SIZE)
+			throw new IllegalArgumentException("K-mer size must be between 1 and "
+					+ KmerSeedIndex.MAX_KMER_SIZE);
+		
+		this.kmerSize = kmerSize;
+		index = null;
+	}
+	
+	public int getKmerSize() {
+		return kmerSize;
+	}
+	
+	/**
+	 * Sets the interval between the start positions of the k-mers which are
+	 * indexed in the subject sequences.
+	 */
+	
+	public synchronized void setStep(int step) {
+		if (step < 1)
+			throw new IllegalArgumentException("Step must be positive");
+		
+		this.step = step;
+		index = null;
+	}
+	
+	public int getStep() {
+		return step;
+	}
+	
+	/**
+	 * Sets the semi-bandwidth of the band around each candidate diagonal, and
+	 * the range of diagonals which are clustered together.
+	 */
+	
+	public void setBandwidth(int bandwidth) {
+		this.bandwidth = bandwidth < 1 ? 1 : bandwidth;
+	}
+	
+	public int getBandwidth() {
+		return bandwidth;
+	}
+	
+	/**
+	 * Sets the minimum number of k-mer hits which a candidate diagonal must
+	 * have.
+	 */
+	
+	public void setMinSeedHits(int minSeedHits) {
+		this.minSeedHits = minSeedHits < 1 ? 1 : minSeedHits;
+	}
+	
+	public int getMinSeedHits() {
+		return minSeedHits;
+	}
+	
+	/**
+	 * Sets the maximum number of candidate diagonals which are aligned for
+	 * each query, taking the diagonals with the most hits first.
+	 */
+	
+	public void setMaxCandidates(int maxCandidates) {
+		this.maxCandidates = maxCandidates < 1 ? 1 : maxCandidates;
+	}
+	
+	public int getMaxCandidates() {
+		return maxCandidates;
+	}
+	
+	/**
+	 * Sets the maximum number of occurrences of a k-mer in the subject
+	 * sequences for it to be used as a seed. This prevents k-mers from repeats
+	 * from generating large numbers of candidates.
+	 */
+	
+	public void setMaxOccurrences(int maxOccurrences) {
+		this.maxOccurrences = maxOccurrences < 1 ? 1 : maxOccurrences;
+	}
+	
+	public int getMaxOccurrences() {
+		return maxOccurrences;
+	}
+	
+	/**
+	 * Sets the minimum score of the alignments which are reported.
+	 */
+	
+	public void setMinScore(int minScore) {
+		this.minScore = minScore;
+	}
+	
+	public int getMinScore() {
+		return minScore;
+	}
+	
+	/**
+	 * Sets the number of worker threads which build the index and align
+	 * queries.
+	 */
+	
+	public void setThreadCount(int threads) {
+		this.threads = threads < 1 ? 1 : threads;
+	}
+	
+	public int getThreadCount() {
+		return threads;
+	}
+	
+	/**
+	 * Builds the index of subject sequences, if it is not already up to date.
+	 */
+	
+	public synchronized KmerSeedIndex buildIndex() {
+		if (index == null) {
+			byte[][] sequences = new byte[subjects.size()][];
+			
+			for (int i = 0; i < sequences.length; i++)
+				sequences[i] = subjects.get(i).dna;
+			
+			index = new KmerSeedIndex(sequences, kmerSize, step, threads);
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Aligns each of the queries, and passes the results for each query to
+	 * the handler, in the order in which the queries are returned by the
+	 * iterator. The handler is always called by the thread which called this
+	 * method.
+	 * 
+	 * @return the number of queries which were processed.
+	 */
+	
+	public int align(Iterator<Query> queries, AlignmentHandler handler)
+			throws SmithWatermanException {
+		final KmerSeedIndex index = buildIndex();
+		
+		if (threads < 2) {
+			int count = 0;
+			
+			while (queries.hasNext()) {
+				Query query = queries.next();
+				handler.alignmentsFound(query, align(index, query));
+				count++;
+			}
+			
+			return count;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		
+		LinkedList<Future<List<BatchAlignment[]>>> pending = new LinkedList<Future<List<BatchAlignment[]>>>();
+		LinkedList<List<Query>> pendingQueries = new LinkedList<List<Query>>();
+		
+		int maxPending = TASKS_PER_THREAD * threads;
+		
+		int count = 0;
+		
+		try {
+			while (queries.hasNext()) {
+				final List<Query> block = new ArrayList<Query>(QUERIES_PER_TASK);
+				
+				while (queries.hasNext() && block.size() < QUERIES_PER_TASK)
+					block.add(queries.next());
+				
+				pending.addLast(executor.submit(new Callable<List<BatchAlignment[]>>() {
+					public List<BatchAlignment[]> call() throws Exception {
+						List<BatchAlignment[]> results = new ArrayList<BatchAlignment[]>(block.size());
+						
+						for (Query query : block)
+							results.add(align(index, query));
+						
+						return results;
+					}
+				}));
+				
+				pendingQueries.addLast(block);
+				
+				if (pending.size() >= maxPending)
+					count += deliverFirst(pending, pendingQueries, handler);
+			}
+			
+			executor.shutdown();
+			
+			while (!pending.isEmpty())
+				count += deliverFirst(pending, pendingQueries, handler);
+		} catch (InterruptedException e) {
+			throw new SmithWatermanException("Interrupted whilst aligning queries", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			
+			if (cause instanceof SmithWatermanException)
+				throw (SmithWatermanException) cause;
+			
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			
+			throw new SmithWatermanException("Failed to align queries", cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		return count;
+	}
+	
+	private int deliverFirst(LinkedList<Future<List<BatchAlignment[]>>> pending,
+			LinkedList<List<Query>> pendingQueries, AlignmentHandler handler)
+			throws InterruptedException, ExecutionException {
+		List<BatchAlignment[]> results = pending.removeFirst().get();
+		List<Query> block = pendingQueries.removeFirst();
+		
+		for (int i = 0; i < block.size(); i++)
+			handler.alignmentsFound(block.get(i), results.get(i));
+		
+		return block.size();
+	}
+	
+	/**
+	 * Aligns a single query.
+	 * 
+	 * @return the alignments of the query, in descending order of score.
+	 */
+	
+	public BatchAlignment[] align(Query query) throws SmithWatermanException {
+		return align(buildIndex(), query);
+	}
+	
+	private BatchAlignment[] align(KmerSeedIndex index, Query query)
+			throws SmithWatermanException {
+		byte[] forward = SmithWatermanKernel.encode(query.getSequence());
+		byte[] reverse = reverseComplement(forward);
+		
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		
+		findCandidates(index, forward, true, candidates);
+		findCandidates(index, reverse, false, candidates);
+		
+		Collections.sort(candidates);
+		
+		SmithWatermanKernel kernel = kernels.get();
+		
+		List<BatchAlignment> alignments = new ArrayList<BatchAlignment>();
+		
+		for (int i = 0; i < candidates.size() && i < maxCandidates; i++) {
+			Candidate candidate = candidates.get(i);
+			
+			BatchAlignment alignment = align(kernel, query,
+					candidate.forward ? forward : reverse, candidate);
+			
+			if (alignment != null && !isDuplicate(alignment, alignments))
+				alignments.add(alignment);
+		}
+		
+		Collections.sort(alignments, BY_DESCENDING_SCORE);
+		
+		return alignments.toArray(new BatchAlignment[alignments.size()]);
+	}
+	
+	private BatchAlignment align(SmithWatermanKernel kernel, Query query,
+			byte[] dna, Candidate candidate) throws SmithWatermanException {
+		Subject subject = subjects.get(candidate.subject);
+		
+		// Restrict the subject to the rows which the band can reach.
+		int start = Math.max(0, candidate.diagonal - bandwidth);
+		int finish = Math.min(subject.dna.length, candidate.diagonal + dna.length + bandwidth);
+		
+		if (finish <= start)
+			return null;
+		
+		Alignment alignment = kernel.calculateAlignment(subject.dna, start,
+				finish - start, dna, 0, dna.length, candidate.diagonal - start,
+				bandwidth);
+		
+		if (alignment == null || kernel.getBestScore() < minScore)
+			return null;
+		
+		return new BatchAlignment(query, subject.id, subject.name,
+				candidate.forward, kernel.getBestScore(), start
+						+ alignment.getRow(), alignment.getColumn(), alignment
+						.getEdits());
+	}
+	
+	private boolean isDuplicate(BatchAlignment alignment, List<BatchAlignment> alignments) {
+		for (BatchAlignment other : alignments)
+			if (other.getSubjectID() == alignment.getSubjectID()
+					&& other.isForward() == alignment.isForward()
+					&& other.getSubjectStart() == alignment.getSubjectStart()
+					&& other.getQueryStart() == alignment.getQueryStart())
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Looks up every k-mer of the query in the index, and adds a candidate for
+	 * each cluster of hits which lie on the same subject within one bandwidth
+	 * of the same diagonal.
+	 */
+	
+	private void findCandidates(KmerSeedIndex index, byte[] dna,
+			boolean forward, List<Candidate> candidates) {
+		int k = index.getKmerSize();
+		long mask = index.getKmerMask();
+		
+		long[] hits = new long[64];
+		int nhits = 0;
+		
+		long kmer = 0;
+		int valid = 0;
+		
+		for (int j = 0; j < dna.length; j++) {
+			int code = KmerSeedIndex.encodeBase(dna[j]);
+			
+			if (code < 0) {
+				valid = 0;
+				continue;
+			}
+			
+			kmer = ((kmer << 2) | code) & mask;
+			
+			if (++valid < k)
+				continue;
+			
+			int entry = index.lookup(kmer);
+			
+			if (entry < 0 || index.getOccurrenceCount(entry) > maxOccurrences)
+				continue;
+			
+			int qpos = j - k + 1;
+			
+			for (int p = index.getPostingsStart(entry); p < index.getPostingsEnd(entry); p++) {
+				int offset = index.getPosting(p);
+				int subject = index.getSequenceIndex(offset);
+				int diagonal = offset - index.getSequenceStart(subject) - qpos;
+				
+				if (nhits == hits.length)
+					hits = Arrays.copyOf(hits, 2 * nhits);
+				
+				// Flipping the sign bit makes the diagonals sort in numerical
+				// order as unsigned values.
+				hits[nhits++] = ((long) subject << 32)
+						| ((diagonal ^ Integer.MIN_VALUE) & 0xffffffffL);
+			}
+		}
+		
+		Arrays.sort(hits, 0, nhits);
+		
+		int i = 0;
+		
+		while (i < nhits) {
+			int subject = (int) (hits[i] >>> 32);
+			int first = (int) hits[i] ^ Integer.MIN_VALUE;
+			
+			int j = i + 1;
+			
+			while (j < nhits && (int) (hits[j] >>> 32) == subject
+					&& ((int) hits[j] ^ Integer.MIN_VALUE) - first <= bandwidth)
+				j++;
+			
+			int count = j - i;
+			
+			if (count >= minSeedHits) {
+				int median = (int) hits[i + count / 2] ^ Integer.MIN_VALUE;
+				candidates.add(new Candidate(subject, median, forward, count));
+			}
+			
+			i = j;
+		}
+	}
+	
+	private static byte[] reverseComplement(byte[] dna) {
+		byte[] rc = new byte[dna.length];
+		
+		for (int i = 0; i < dna.length; i++) {
+			byte base = dna[dna.length - 1 - i];
+			
+			switch (base) {
+				case 'A':
+					rc[i] = 'T';
+					break;
+				case 'C':
+					rc[i] = 'G';
+					break;
+				case 'G':
+					rc[i] = 'C';
+					break;
+				case 'T':
+					rc[i] = 'A';
+					break;
+				default:
+					rc[i] = base;
+					break;
+			}
+		}
+		
+		return rc;
+	}
+	
+	private static final Comparator<BatchAlignment> BY_DESCENDING_SCORE = new Comparator<BatchAlignment>() {
+		public int compare(BatchAlignment a1, BatchAlignment a2) {
+			return a2.getScore() - a1.getScore();
+		}
+	};
+	
+	private static class Subject {
+		protected final int id;
+		protected final String name;
+		protected final byte[] dna;
+		
+		public Subject(int id, String name, byte[] dna) {
+			this.id = id;
+			this.name = name;
+			this.dna = dna;
+		}
+	}
+	
+	private static class Candidate implements Comparable<Candidate> {
+		protected final int subject;
+		protected final int diagonal;
+		protected final boolean forward;
+		protected final int hits;
+		
+		public Candidate(int subject, int diagonal, boolean forward, int hits) {
+			this.subject = subject;
+			this.diagonal = diagonal;
+			this.forward = forward;
+			this.hits = hits;
+		}
+		
+		public int compareTo(Candidate that) {
+			return that.hits - this.hits;
+		}
+	}
+	
+	/**
+	 * A query sequence, such as a read, which is to be aligned.
+	 */
+	
+	public static class Query {
+		private final String name;
+		private final byte[] sequence;
+		
+		public Query(String name, byte[] sequence) {
+			this.name = name;
+			this.sequence = sequence;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public byte[] getSequence() {
+			return sequence;
+		}
+	}
+	
+	public interface AlignmentHandler {
+		/**
+		 * Receives the alignments of a query, in descending order of score.
+		 * The array is empty if the query could not be aligned.
+		 */
+		
+		public void alignmentsFound(Query query, BatchAlignment[] alignments);
+	}
+}
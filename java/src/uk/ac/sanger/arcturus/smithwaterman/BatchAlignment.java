@@ -0,0 +1,116 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.smithwaterman;
+
+/**
+ * An alignment of a query sequence to one of the subject sequences of a
+ * BatchAligner.
+ * 
+ * The row is the zero-based position in the subject sequence at which the
+ * alignment starts. The column is the zero-based position at which it starts
+ * in the query sequence, or in its reverse complement if the query is aligned
+ * in the reverse sense.
+ */
+
+public class BatchAlignment extends Alignment {
+	private final BatchAligner.Query query;
+	private final int subjectID;
+	private final String subjectName;
+	private final boolean forward;
+	private final int score;
+	
+	private final int subjectFinish;
+	private final int queryFinish;
+	
+	public BatchAlignment(BatchAligner.Query query, int subjectID,
+			String subjectName, boolean forward, int score, int row,
+			int column, EditEntry[] edits) {
+		super(row, column, edits);
+		
+		this.query = query;
+		this.subjectID = subjectID;
+		this.subjectName = subjectName;
+		this.forward = forward;
+		this.score = score;
+		
+		int rows = 0;
+		int columns = 0;
+		
+		for (int i = 0; i < edits.length; i++) {
+			char type = edits[i].getType();
+			int count = edits[i].getCount();
+			
+			if (type != EditEntry.INSERTION)
+				rows += count;
+			
+			if (type != EditEntry.DELETION)
+				columns += count;
+		}
+		
+		subjectFinish = row + rows - 1;
+		queryFinish = column + columns - 1;
+	}
+	
+	public BatchAligner.Query getQuery() {
+		return query;
+	}
+	
+	public int getSubjectID() {
+		return subjectID;
+	}
+	
+	public String getSubjectName() {
+		return subjectName;
+	}
+	
+	public boolean isForward() {
+		return forward;
+	}
+	
+	public int getScore() {
+		return score;
+	}
+	
+	public int getSubjectStart() {
+		return getRow();
+	}
+	
+	public int getSubjectFinish() {
+		return subjectFinish;
+	}
+	
+	public int getQueryStart() {
+		return getColumn();
+	}
+	
+	public int getQueryFinish() {
+		return queryFinish;
+	}
+	
+	public String toString() {
+		return "BatchAlignment[query=" + query.getName() + ", subject="
+				+ subjectID + ", " + (forward ? "forward" : "reverse")
+				+ ", score=" + score + ", subject " + getSubjectStart() + ":"
+				+ subjectFinish + ", query " + getQueryStart() + ":"
+				+ queryFinish + "]";
+	}
+}
@@ -25,17 +25,33 @@ import java.io.*;
 import java.util.*;
 import java.text.*;
 
+/**
+ * Reads DNA sequences in FASTA format from standard input and builds an index
+ * of their k-mers, with the sequence and position of each occurrence.
+ * 
+ * The k-mers are packed into longs and held in a KmerSeedIndex, so hash sizes
+ * of up to KmerSeedIndex.MAX_KMER_SIZE are supported, and the index may be
+ * built by several threads and written to a file for later use.
+ */
+
 public class Hashing {
 	protected int hashsize = 0;
-	protected int hashmask = 0;
+	protected int step = 1;
+	protected int threads = 1;
 	protected boolean silent = false;
-	protected Vector<HashEntry> hashes;
 	protected DecimalFormat format = new DecimalFormat("##,###,###");
+	
+	// The sequence number of each sequence, or end segment of a sequence,
+	// which is indexed.
+	protected int[] seqIds;
 
 	public static void main(String[] args) {
 		int hashsize = 0;
 		boolean silent = false;
 		int endsize = 0;
+		int step = 1;
+		int threads = 1;
+		String indexFilename = null;
 
 		for (int j = 0; j < args.length; j++) {
 			if (args[j].equalsIgnoreCase("-hashsize"))
@@ -44,6 +60,15 @@ public class Hashing {
 			if (args[j].equalsIgnoreCase("-endsize"))
 				endsize = Integer.parseInt(args[++j]);
 
+			if (args[j].equalsIgnoreCase("-step"))
+				step = Integer.parseInt(args[++j]);
+
+			if (args[j].equalsIgnoreCase("-threads"))
+				threads = Integer.parseInt(args[++j]);
+
+			if (args[j].equalsIgnoreCase("-index"))
+				indexFilename = args[++j];
+
 			if (args[j].equalsIgnoreCase("-silent"))
 				silent = true;
 		}
@@ -53,8 +78,9 @@ public class Hashing {
 			System.exit(1);
 		}
 
-		if (hashsize > 15) {
-			System.err.println("Hash size must be less than 16");
+		if (hashsize > KmerSeedIndex.MAX_KMER_SIZE) {
+			System.err.println("Hash size must be less than "
+					+ (KmerSeedIndex.MAX_KMER_SIZE + 1));
 			System.exit(1);
 		}
 
@@ -64,25 +90,47 @@ public class Hashing {
 			System.exit(1);
 		}
 
+		if (step < 1) {
+			System.err.println("Step must be greater than zero");
+			System.exit(1);
+		}
+
 		Hashing hashing = new Hashing(hashsize, silent);
+		
+		hashing.setStep(step);
+		hashing.setThreadCount(threads);
 
 		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 
-		hashing.run(br, endsize);
+		KmerSeedIndex index = hashing.run(br, endsize);
+		
+		if (indexFilename != null) {
+			try {
+				index.write(new File(indexFilename));
+				System.out.println("Wrote index to " + indexFilename);
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				System.exit(1);
+			}
+		}
 	}
 
 	public Hashing(int hashsize, boolean silent) {
 		this.hashsize = hashsize;
 		this.silent = silent;
-
-		for (int j = 0; j < hashsize; j++) {
-			hashmask <<= 2;
-			hashmask |= 3;
-		}
+	}
+	
+	public void setStep(int step) {
+		this.step = step;
+	}
+	
+	public void setThreadCount(int threads) {
+		this.threads = threads;
 	}
 
-	public void run(BufferedReader br, int endsize) {
-		hashes = new Vector<HashEntry>();
+	public KmerSeedIndex run(BufferedReader br, int endsize) {
+		List<byte[]> sequences = new ArrayList<byte[]>();
+		List<Integer> origins = new ArrayList<Integer>();
 
 		int seq_id = 0;
 
@@ -113,45 +161,68 @@ public class Hashing {
 			int seqlen = dna.length();
 
 			if (endsize > 0 && seqlen > 2 * endsize) {
-				calculateHashes(dna.substring(0, endsize), 0, seq_id);
-				calculateHashes(dna.substring(seqlen - endsize, seqlen), seqlen
-						- endsize, seq_id);
-			} else
-				calculateHashes(dna, 0, seq_id);
+				sequences.add(getBytes(dna, 0, endsize));
+				origins.add(seq_id);
+				
+				sequences.add(getBytes(dna, seqlen - endsize, seqlen));
+				origins.add(seq_id);
+			} else {
+				sequences.add(getBytes(dna, 0, seqlen));
+				origins.add(seq_id);
+			}
 		}
-
-		System.out
-				.println("Hash vector contains " + hashes.size() + " entries");
-
-		reportMemory(System.out);
-
-		HashEntryComparator comp = new HashEntryComparator(
-				HashEntryComparator.BY_HASH_SEQID_POS);
-
-		System.out.println("Casting to array ...");
-
-		HashEntry[] array = new HashEntry[hashes.size()];
-		hashes.toArray(array);
-
-		reportMemory(System.out);
-
-		System.out.println("Setting vector to null ...");
-
-		hashes = null;
-
-		reportMemory(System.out);
-
-		System.out.println("Sorting by hash, seqid, pos ...");
-
-		Arrays.sort(array, comp);
+		
+		seqIds = new int[origins.size()];
+		
+		for (int i = 0; i < seqIds.length; i++)
+			seqIds[i] = origins.get(i);
+		
+		KmerSeedIndex index = new KmerSeedIndex(sequences
+				.toArray(new byte[sequences.size()][]), hashsize, step, threads);
+		
+		sequences = null;
+
+		System.out.println("Hash vector contains " + index.getPostingsCount()
+				+ " entries");
 
 		reportMemory(System.out);
 
 		if (!silent) {
-			for (int i = 0; i < array.length; i++)
-				System.out.println(Integer.toHexString(array[i].getHash())
-						+ " " + array[i].getSeqId() + " " + array[i].getPos());
+			for (int i = index.getDistinctKmerCount() - 1; i >= 0; i--) {
+				String hash = Long.toHexString(index.getKmer(i));
+				
+				int start = index.getPostingsStart(i);
+				long[] entries = new long[index.getPostingsEnd(i) - start];
+				
+				// As before, positions are relative to the start of the end
+				// segment, and the entries for each hash are listed in
+				// descending order of sequence number and then of position.
+				for (int j = 0; j < entries.length; j++) {
+					int offset = index.getPosting(start + j);
+					int seq = index.getSequenceIndex(offset);
+					int pos = offset - index.getSequenceStart(seq);
+					
+					entries[j] = ((long) seqIds[seq] << 32) | pos;
+				}
+				
+				Arrays.sort(entries);
+				
+				for (int j = entries.length - 1; j >= 0; j--)
+					System.out.println(hash + " " + (entries[j] >>> 32) + " "
+							+ (int) entries[j]);
+			}
 		}
+		
+		return index;
+	}
+	
+	private byte[] getBytes(String dna, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		
+		for (int i = start; i < end; i++)
+			bytes[i - start] = (byte) dna.charAt(i);
+		
+		return bytes;
 	}
 
 	private void reportMemory(PrintStream ps) {
@@ -163,32 +234,6 @@ public class Hashing {
 				+ format.format(free) + "/" + format.format(used));
 	}
 
-	private void calculateHashes(String dna, int offset, int seq_id) {
-		int hash = 0;
-		int bad = hashsize;
-		int val = 0;
-
-		int maxpos = dna.length() - hashsize;
-
-		for (int pos = 1 - hashsize; pos <= maxpos; pos++) {
-			bad--;
-			hash <<= 2;
-
-			char c = dna.charAt(pos + hashsize - 1);
-
-			val = hashcode(c);
-
-			if (val >= 0) {
-				hash |= val;
-				hash &= hashmask;
-			} else
-				bad = hashsize;
-
-			if (pos > 0 && bad <= 0)
-				hashes.add(new HashEntry(seq_id, pos, hash));
-		}
-	}
-
 	public static int hashcode(char c) {
 		switch (c) {
 		case 'a':
@@ -232,85 +277,4 @@ public class Hashing {
 		else
 			return sb.toString();
 	}
-
-	class HashEntry {
-		protected int seq_id;
-		protected int pos;
-		protected int hash;
-
-		public HashEntry(int seq_id, int pos, int hash) {
-			this.seq_id = seq_id;
-			this.pos = pos;
-			this.hash = hash;
-		}
-
-		public int getSeqId() {
-			return seq_id;
-		}
-
-		public int getPos() {
-			return pos;
-		}
-
-		public int getHash() {
-			return hash;
-		}
-	}
-
-	class HashEntryComparator implements Comparator<HashEntry> {
-		public static final int BY_HASH_SEQID_POS = 1;
-		public static final int BY_SEQID_POS = 2;
-
-		protected int mode = BY_HASH_SEQID_POS;
-
-		public HashEntryComparator(int mode) {
-			this.mode = mode;
-		}
-
-		public void setMode(int newmode) {
-			this.mode = newmode;
-		}
-
-		public int getMode() {
-			return mode;
-		}
-
-		public int compare(HashEntry entry1, HashEntry entry2) {
-			if (mode == BY_HASH_SEQID_POS)
-				return compareByHashSeqidPos(entry1, entry2);
-			else
-				return compareBySeqidPos(entry1, entry2);
-		}
-
-		private int compareByHashSeqidPos(HashEntry entry1, HashEntry entry2) {
-			int diff = entry2.getHash() - entry1.getHash();
-
-			if (diff != 0)
-				return diff;
-
-			diff = entry2.getSeqId() - entry1.getSeqId();
-
-			if (diff != 0)
-				return diff;
-
-			return entry2.getPos() - entry1.getPos();
-		}
-
-		private int compareBySeqidPos(HashEntry entry1, HashEntry entry2) {
-			int diff = entry2.getSeqId() - entry1.getSeqId();
-
-			if (diff != 0)
-				return diff;
-
-			return entry2.getPos() - entry1.getPos();
-		}
-
-		public boolean equals(Object obj) {
-			if (obj instanceof HashEntryComparator) {
-				HashEntryComparator that = (HashEntryComparator) obj;
-				return this == that;
-			} else
-				return false;
-		}
-	}
 }
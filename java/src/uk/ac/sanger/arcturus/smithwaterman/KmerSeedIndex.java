@@ -0,0 +1,708 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.smithwaterman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An index of the k-mers in a set of DNA sequences, for use as a source of
+ * seeds for alignment and for repeat detection.
+ * 
+ * Each k-mer of up to MAX_KMER_SIZE bases is packed into a long, two bits per
+ * base. The distinct k-mers are held in a sorted array, and the positions at
+ * which each one occurs are held in a single array of postings, in ascending
+ * order of position. A position is expressed as an offset into the
+ * concatenation of all of the sequences, so that no per-entry objects are
+ * needed.
+ * 
+ * Only k-mers which start at every step'th position of each sequence are
+ * indexed. K-mers which contain a base other than A, C, G or T are not
+ * indexed.
+ * 
+ * An index may be built in parallel, with each worker thread extracting and
+ * sorting the k-mers of a contiguous group of sequences, and the sorted groups
+ * are then merged. An index may be written to a file, and a file may be
+ * opened as a memory-mapped index.
+ */
+
+public class KmerSeedIndex {
+	public static final int MAX_KMER_SIZE = 31;
+	
+	static final int MAGIC = 0x4B534958;
+	static final int VERSION = 1;
+	
+	static final int HEADER_SIZE = 32;
+	
+	private static final byte[] CODE = new byte[256];
+	
+	static {
+		Arrays.fill(CODE, (byte) -1);
+		
+		CODE['A'] = CODE['a'] = 0;
+		CODE['C'] = CODE['c'] = 1;
+		CODE['G'] = CODE['g'] = 2;
+		CODE['T'] = CODE['t'] = 3;
+	}
+	
+	private final int kmerSize;
+	private final int step;
+	private final long kmerMask;
+	
+	private final int[] starts;
+	
+	private final LongBuffer keys;
+	private final IntBuffer offsets;
+	private final IntBuffer positions;
+	
+	/**
+	 * Builds an index of the specified sequences.
+	 * 
+	 * @param sequences
+	 *            the sequences to index.
+	 * @param kmerSize
+	 *            the length of the indexed k-mers, from 1 to MAX_KMER_SIZE.
+	 * @param step
+	 *            the interval between the start positions of the indexed
+	 *            k-mers.
+	 */
+	
+	public KmerSeedIndex(byte[][] sequences, int kmerSize, int step) {
+		this(sequences, kmerSize, step, 1);
+	}
+	
+	/**
+	 * Builds an index of the specified sequences, using the specified number
+	 * of worker threads.
+	 */
+	
+	public KmerSeedIndex(byte[][] sequences, int kmerSize, int step, int threads) {
+		if (kmerSize < 1 || kmerSize > MAX_KMER_SIZE)
+			throw new IllegalArgumentException("K-mer size must be between 1 and "
+					+ MAX_KMER_SIZE);
+		
+		if (step < 1)
+			throw new IllegalArgumentException("Step must be positive");
+		
+		this.kmerSize = kmerSize;
+		this.step = step;
+		this.kmerMask = getKmerMask(kmerSize);
+		
+		starts = new int[sequences.length + 1];
+		
+		long total = 0;
+		
+		for (int i = 0; i < sequences.length; i++) {
+			starts[i] = (int) total;
+			total += sequences[i].length;
+			
+			if (total > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("The sequences are too long to index");
+		}
+		
+		starts[sequences.length] = (int) total;
+		
+		Run[] runs = buildRuns(sequences, threads);
+		
+		Run merged = runs.length == 1 ? runs[0] : merge(runs);
+		
+		long[] kmers = merged.kmers;
+		
+		int count = kmers.length;
+		int distinct = 0;
+		
+		for (int i = 0; i < count; i++)
+			if (i == 0 || kmers[i] != kmers[i - 1])
+				distinct++;
+		
+		long[] keyArray = new long[distinct];
+		int[] offsetArray = new int[distinct + 1];
+		
+		int k = 0;
+		
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || kmers[i] != kmers[i - 1]) {
+				keyArray[k] = kmers[i];
+				offsetArray[k] = i;
+				k++;
+			}
+		}
+		
+		offsetArray[distinct] = count;
+		
+		keys = LongBuffer.wrap(keyArray);
+		offsets = IntBuffer.wrap(offsetArray);
+		positions = IntBuffer.wrap(merged.positions);
+	}
+	
+	private KmerSeedIndex(int kmerSize, int step, int[] starts,
+			LongBuffer keys, IntBuffer offsets, IntBuffer positions) {
+		this.kmerSize = kmerSize;
+		this.step = step;
+		this.kmerMask = getKmerMask(kmerSize);
+		this.starts = starts;
+		this.keys = keys;
+		this.offsets = offsets;
+		this.positions = positions;
+	}
+	
+	public static long getKmerMask(int kmerSize) {
+		return (1L << (2 * kmerSize)) - 1;
+	}
+	
+	/**
+	 * Returns the two-bit code of a base, or -1 if it is not A, C, G or T.
+	 */
+	
+	public static int encodeBase(byte base) {
+		return CODE[base & 0xff];
+	}
+	
+	/**
+	 * Divides the sequences into contiguous groups of roughly equal total
+	 * length, one for each thread, and returns the sorted k-mers of each
+	 * group. The groups are returned in the order of the sequences.
+	 */
+	
+	private Run[] buildRuns(final byte[][] sequences, int threads) {
+		long total = starts[sequences.length];
+		
+		if (threads > sequences.length)
+			threads = sequences.length;
+		
+		if (threads < 2)
+			return new Run[] { buildRun(sequences, 0, sequences.length) };
+		
+		List<int[]> groups = new ArrayList<int[]>();
+		
+		int from = 0;
+		
+		for (int t = 1; t <= threads && from < sequences.length; t++) {
+			long limit = (total * t) / threads;
+			
+			int to = from + 1;
+			
+			while (to < sequences.length && starts[to] < limit)
+				to++;
+			
+			if (t == threads)
+				to = sequences.length;
+			
+			groups.add(new int[] { from, to });
+			
+			from = to;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(groups.size());
+		
+		try {
+			List<Future<Run>> futures = new ArrayList<Future<Run>>();
+			
+			for (final int[] group : groups)
+				futures.add(executor.submit(new Callable<Run>() {
+					public Run call() {
+						return buildRun(sequences, group[0], group[1]);
+					}
+				}));
+			
+			Run[] runs = new Run[futures.size()];
+			
+			for (int i = 0; i < runs.length; i++)
+				runs[i] = futures.get(i).get();
+			
+			return runs;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted whilst building the k-mer index", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			
+			if (cause instanceof Error)
+				throw (Error) cause;
+			
+			throw new IllegalStateException("Failed to build the k-mer index", cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Extracts and sorts the k-mers of the sequences from index "from" up to,
+	 * but not including, index "to".
+	 */
+	
+	private Run buildRun(byte[][] sequences, int from, int to) {
+		int count = 0;
+		
+		for (int i = from; i < to; i++)
+			count += countKmers(sequences[i]);
+		
+		long[] kmers = new long[count];
+		int[] posns = new int[count];
+		
+		int n = 0;
+		
+		for (int i = from; i < to; i++) {
+			byte[] dna = sequences[i];
+			
+			long kmer = 0;
+			int valid = 0;
+			
+			for (int j = 0; j < dna.length; j++) {
+				int code = CODE[dna[j] & 0xff];
+				
+				if (code < 0) {
+					valid = 0;
+					continue;
+				}
+				
+				kmer = ((kmer << 2) | code) & kmerMask;
+				valid++;
+				
+				int pos = j - kmerSize + 1;
+				
+				if (valid >= kmerSize && pos % step == 0) {
+					kmers[n] = kmer;
+					posns[n] = starts[i] + pos;
+					n++;
+				}
+			}
+		}
+		
+		sortByKmer(kmers, posns, 2 * kmerSize);
+		
+		return new Run(kmers, posns);
+	}
+	
+	private int countKmers(byte[] dna) {
+		int count = 0;
+		int valid = 0;
+		
+		for (int j = 0; j < dna.length; j++) {
+			if (CODE[dna[j] & 0xff] < 0) {
+				valid = 0;
+				continue;
+			}
+			
+			valid++;
+			
+			if (valid >= kmerSize && (j - kmerSize + 1) % step == 0)
+				count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Sorts the k-mers, and the positions with them, by a least-significant
+	 * digit radix sort. The sort is stable, so the positions of each k-mer
+	 * remain in ascending order.
+	 */
+	
+	private static void sortByKmer(long[] kmers, int[] posns, int bits) {
+		int n = kmers.length;
+		
+		long[] kmerBuffer = new long[n];
+		int[] posBuffer = new int[n];
+		
+		int[] counts = new int[257];
+		
+		for (int shift = 0; shift < bits; shift += 8) {
+			Arrays.fill(counts, 0);
+			
+			for (int i = 0; i < n; i++)
+				counts[(int) ((kmers[i] >>> shift) & 0xff) + 1]++;
+			
+			for (int i = 0; i < 256; i++)
+				counts[i + 1] += counts[i];
+			
+			for (int i = 0; i < n; i++) {
+				int j = counts[(int) ((kmers[i] >>> shift) & 0xff)]++;
+				kmerBuffer[j] = kmers[i];
+				posBuffer[j] = posns[i];
+			}
+			
+			System.arraycopy(kmerBuffer, 0, kmers, 0, n);
+			System.arraycopy(posBuffer, 0, posns, 0, n);
+		}
+	}
+	
+	/**
+	 * Merges sorted runs. Where several runs contain the same k-mer, the
+	 * earlier run is taken first, so the positions of each k-mer remain in
+	 * ascending order.
+	 */
+	
+	private static Run merge(Run[] runs) {
+		int count = 0;
+		
+		for (int i = 0; i < runs.length; i++)
+			count += runs[i].kmers.length;
+		
+		long[] kmers = new long[count];
+		int[] posns = new int[count];
+		
+		int[] cursor = new int[runs.length];
+		
+		for (int n = 0; n < count; n++) {
+			int best = -1;
+			long bestKmer = 0;
+			
+			for (int i = 0; i < runs.length; i++) {
+				if (cursor[i] < runs[i].kmers.length) {
+					long kmer = runs[i].kmers[cursor[i]];
+					
+					if (best < 0 || kmer < bestKmer) {
+						best = i;
+						bestKmer = kmer;
+					}
+				}
+			}
+			
+			kmers[n] = bestKmer;
+			posns[n] = runs[best].positions[cursor[best]];
+			cursor[best]++;
+		}
+		
+		return new Run(kmers, posns);
+	}
+	
+	/**
+	 * Writes the index to a file, which may be opened by the open method.
+	 */
+	
+	public void write(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try {
+			raf.setLength(0);
+			
+			FileChannel channel = raf.getChannel();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(kmerSize);
+			header.putInt(step);
+			header.putInt(getSequenceCount());
+			header.putInt(getDistinctKmerCount());
+			header.putInt(getPostingsCount());
+			header.putInt(0);
+			
+			header.flip();
+			
+			while (header.hasRemaining())
+				channel.write(header);
+			
+			writeInts(channel, IntBuffer.wrap(starts));
+			writeLongs(channel, keys.duplicate());
+			writeInts(channel, offsets.duplicate());
+			writeInts(channel, positions.duplicate());
+			
+			channel.force(false);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static final int CHUNK_SIZE = 1 << 16;
+	
+	private void writeInts(FileChannel channel, IntBuffer values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * CHUNK_SIZE);
+		IntBuffer ibuffer = buffer.asIntBuffer();
+		
+		values.rewind();
+		
+		while (values.hasRemaining()) {
+			int count = Math.min(CHUNK_SIZE, values.remaining());
+			
+			IntBuffer chunk = values.slice();
+			chunk.limit(count);
+			
+			ibuffer.clear();
+			ibuffer.put(chunk);
+			
+			values.position(values.position() + count);
+			
+			buffer.clear();
+			buffer.limit(4 * count);
+			
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+	
+	private void writeLongs(FileChannel channel, LongBuffer values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8 * CHUNK_SIZE);
+		LongBuffer lbuffer = buffer.asLongBuffer();
+		
+		values.rewind();
+		
+		while (values.hasRemaining()) {
+			int count = Math.min(CHUNK_SIZE, values.remaining());
+			
+			LongBuffer chunk = values.slice();
+			chunk.limit(count);
+			
+			lbuffer.clear();
+			lbuffer.put(chunk);
+			
+			values.position(values.position() + count);
+			
+			buffer.clear();
+			buffer.limit(8 * count);
+			
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Opens an index file as a memory-mapped index.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or is not a k-mer seed index.
+	 */
+	
+	public static KmerSeedIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		try {
+			FileChannel channel = raf.getChannel();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			
+			while (header.hasRemaining())
+				if (channel.read(header) < 0)
+					break;
+			
+			header.flip();
+			
+			if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC
+					|| header.getInt(4) != VERSION)
+				throw new IOException("The file " + file
+						+ " is not a compatible k-mer seed index");
+			
+			int kmerSize = header.getInt(8);
+			int step = header.getInt(12);
+			int nseqs = header.getInt(16);
+			int distinct = header.getInt(20);
+			int npostings = header.getInt(24);
+			
+			long startsOffset = HEADER_SIZE;
+			long keysOffset = startsOffset + 4L * (nseqs + 1);
+			long offsetsOffset = keysOffset + 8L * distinct;
+			long postingsOffset = offsetsOffset + 4L * (distinct + 1);
+			long length = postingsOffset + 4L * npostings;
+			
+			if (channel.size() != length)
+				throw new IOException("The k-mer seed index file " + file
+						+ " is truncated or corrupt");
+			
+			int[] starts = new int[nseqs + 1];
+			
+			map(channel, startsOffset, 4L * (nseqs + 1), file).asIntBuffer().get(starts);
+			
+			LongBuffer keys = map(channel, keysOffset, 8L * distinct, file).asLongBuffer();
+			IntBuffer offsets = map(channel, offsetsOffset, 4L * (distinct + 1), file).asIntBuffer();
+			IntBuffer positions = map(channel, postingsOffset, 4L * npostings, file).asIntBuffer();
+			
+			return new KmerSeedIndex(kmerSize, step, starts, keys, offsets, positions);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static ByteBuffer map(FileChannel channel, long offset, long size, File file)
+			throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("The k-mer seed index file " + file
+					+ " is too large to map into memory");
+		
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+	}
+	
+	public int getKmerSize() {
+		return kmerSize;
+	}
+	
+	public int getStep() {
+		return step;
+	}
+	
+	public long getKmerMask() {
+		return kmerMask;
+	}
+	
+	public int getSequenceCount() {
+		return starts.length - 1;
+	}
+	
+	public int getDistinctKmerCount() {
+		return keys.limit();
+	}
+	
+	public int getPostingsCount() {
+		return positions.limit();
+	}
+	
+	/**
+	 * Returns the index of the specified k-mer, or a negative value if it does
+	 * not occur in any of the sequences.
+	 */
+	
+	public int lookup(long kmer) {
+		int low = 0;
+		int high = keys.limit() - 1;
+		
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long key = keys.get(mid);
+			
+			if (key < kmer)
+				low = mid + 1;
+			else if (key > kmer)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		
+		return -(low + 1);
+	}
+	
+	/**
+	 * Returns the k-mer with the specified index. The k-mers are numbered in
+	 * ascending order of their packed values.
+	 */
+	
+	public long getKmer(int index) {
+		return keys.get(index);
+	}
+	
+	/**
+	 * Returns the number of occurrences of the k-mer with the specified index.
+	 */
+	
+	public int getOccurrenceCount(int index) {
+		return offsets.get(index + 1) - offsets.get(index);
+	}
+	
+	/**
+	 * Returns the postings of the k-mer with the specified index, which occupy
+	 * the range from getPostingsStart(index) to getPostingsEnd(index) - 1 in
+	 * the postings array.
+	 */
+	
+	public int getPostingsStart(int index) {
+		return offsets.get(index);
+	}
+	
+	public int getPostingsEnd(int index) {
+		return offsets.get(index + 1);
+	}
+	
+	/**
+	 * Returns the position of the specified posting, as an offset into the
+	 * concatenation of all of the sequences.
+	 */
+	
+	public int getPosting(int i) {
+		return positions.get(i);
+	}
+	
+	/**
+	 * Returns the index of the sequence which contains the specified offset
+	 * into the concatenation of all of the sequences.
+	 */
+	
+	public int getSequenceIndex(int offset) {
+		int i = Arrays.binarySearch(starts, offset);
+		
+		if (i < 0)
+			return -i - 2;
+		
+		// Skip over any empty sequences which start at the same offset.
+		while (i + 1 < starts.length - 1 && starts[i + 1] == offset)
+			i++;
+		
+		return i;
+	}
+	
+	/**
+	 * Returns the offset of the start of the specified sequence in the
+	 * concatenation of all of the sequences.
+	 */
+	
+	public int getSequenceStart(int index) {
+		return starts[index];
+	}
+	
+	/**
+	 * Returns the length of the specified sequence.
+	 */
+	
+	public int getSequenceLength(int index) {
+		return starts[index + 1] - starts[index];
+	}
+	
+	/**
+	 * Returns the string representation of a packed k-mer.
+	 */
+	
+	public static String decodeKmer(long kmer, int kmerSize) {
+		char[] bases = new char[kmerSize];
+		
+		for (int i = kmerSize - 1; i >= 0; i--) {
+			bases[i] = "ACGT".charAt((int) (kmer & 3));
+			kmer >>>= 2;
+		}
+		
+		return new String(bases);
+	}
+	
+	private static class Run {
+		protected final long[] kmers;
+		protected final int[] positions;
+		
+		public Run(long[] kmers, int[] positions) {
+			this.kmers = kmers;
+			this.positions = positions;
+		}
+	}
+}
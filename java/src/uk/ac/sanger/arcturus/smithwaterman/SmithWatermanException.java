@@ -25,4 +25,8 @@ public class SmithWatermanException extends Exception {
 	public SmithWatermanException(String message) {
 		super(message);
 	}
+	
+	public SmithWatermanException(String message, Throwable cause) {
+		super(message, cause);
+	}
 }
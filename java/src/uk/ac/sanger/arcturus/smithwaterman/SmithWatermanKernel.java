@@ -0,0 +1,621 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.smithwaterman;
+
+import java.util.*;
+
+/**
+ * A Smith-Waterman kernel which works on pre-encoded byte sequences and uses
+ * memory in proportion to the length of the query rather than to the area of
+ * the dynamic programming matrix.
+ * 
+ * The score-only pass keeps two rolling rows of scores and finds the best
+ * local alignment score and the cell at which that alignment ends. To
+ * recover the alignment itself, a second pass runs backwards from that cell
+ * to find where the alignment starts, and a third pass recomputes the matrix,
+ * with a one-byte traceback entry per cell, only within the rectangle spanned
+ * by the best alignment. For a banded alignment, only the cells of each row
+ * which lie within the band are stored, so the traceback uses memory in
+ * proportion to the length of the alignment times the width of the band.
+ * 
+ * The size of the traceback matrix is limited by getMaxTraceSize. An
+ * alignment which would need a larger matrix causes a SmithWatermanException
+ * instead.
+ * 
+ * Gaps are scored using affine penalties: a gap of length k scores
+ * gapInit + (k - 1) * gapExtend. If the two penalties are equal, the scores
+ * are the same as those of SmithWaterman.calculateMatrix.
+ * 
+ * Row and column numbers are zero-based and relative to the subject and query
+ * offsets, as in SmithWatermanArrayModel.
+ * 
+ * A kernel re-uses its working storage from one alignment to the next, so an
+ * instance must not be shared between threads.
+ */
+
+public class SmithWatermanKernel {
+	private static final int NEGATIVE_INFINITY = Integer.MIN_VALUE / 4;
+	
+	/**
+	 * The largest traceback matrix, in cells, which can be held in an array.
+	 */
+	
+	public static final long MAX_TRACE_SIZE = Integer.MAX_VALUE - 8;
+	
+	private static final int FROM_DIAGONAL = 1;
+	private static final int FROM_UP = 2;
+	private static final int FROM_LEFT = 3;
+	private static final int SOURCE_MASK = 3;
+	private static final int UP_EXTENDED = 4;
+	private static final int LEFT_EXTENDED = 8;
+	
+	private final int sMatch;
+	private final int sMismatch;
+	private final int sGapInit;
+	private final int sGapExtend;
+	
+	private int[] hRow = new int[0];
+	private int[] eRow = new int[0];
+	private byte[] trace = new byte[0];
+	
+	// The traceback entry for the zero-based cell (a, b) of the rectangle is
+	// at a * traceWidth + b - a * traceSlope + traceShift. A banded traceback
+	// stores one band-width of cells per row, so it has a slope of one.
+	private int traceWidth;
+	private int traceSlope;
+	private int traceShift;
+	
+	private long maxTraceSize = MAX_TRACE_SIZE;
+	
+	private final int[][] profile = new int[256][];
+	private final boolean[] profileValid = new boolean[256];
+	
+	private int bestScore;
+	private int bestRow;
+	private int bestColumn;
+	
+	private int startRow;
+	private int startColumn;
+
+	public SmithWatermanKernel(ScoringMatrix smat) {
+		sMatch = smat.getMatchScore();
+		sMismatch = smat.getMismatchPenalty();
+		sGapInit = smat.getGapInitPenalty();
+		sGapExtend = smat.getGapExtendPenalty();
+	}
+	
+	/**
+	 * Encodes a sequence for use by the kernel, by converting it to upper case
+	 * bytes.
+	 */
+	
+	public static byte[] encode(char[] sequence, int offset, int length) {
+		byte[] encoded = new byte[length];
+		
+		for (int i = 0; i < length; i++)
+			encoded[i] = (byte) Character.toUpperCase(sequence[offset + i]);
+		
+		return encoded;
+	}
+	
+	public static byte[] encode(char[] sequence) {
+		return encode(sequence, 0, sequence.length);
+	}
+	
+	public static byte[] encode(String sequence) {
+		return encode(sequence.toCharArray());
+	}
+	
+	public static byte[] encode(byte[] sequence, int offset, int length) {
+		byte[] encoded = new byte[length];
+		
+		for (int i = 0; i < length; i++) {
+			byte b = sequence[offset + i];
+			encoded[i] = (b >= 'a' && b <= 'z') ? (byte) (b - 'a' + 'A') : b;
+		}
+		
+		return encoded;
+	}
+	
+	public static byte[] encode(byte[] sequence) {
+		return encode(sequence, 0, sequence.length);
+	}
+	
+	private int score(int baseA, int baseB) {
+		if (baseA == 'N' || baseB == 'N')
+			return 0;
+		
+		if (baseA == 'X' || baseB == 'X')
+			return sMismatch;
+		
+		return baseA == baseB ? sMatch : sMismatch;
+	}
+	
+	/**
+	 * Prepares the working storage for a query of the specified length, and
+	 * invalidates the query profile.
+	 */
+	
+	private void prepare(int queryLength) {
+		if (hRow.length < queryLength + 1) {
+			hRow = new int[queryLength + 1];
+			eRow = new int[queryLength + 1];
+		}
+		
+		Arrays.fill(profileValid, false);
+	}
+	
+	/**
+	 * Returns the row of the query profile for the specified subject base,
+	 * which holds the score of that base against each base of the query.
+	 */
+	
+	private int[] getProfile(byte base, byte[] query, int queryOffset, int queryLength) {
+		int code = base & 0xff;
+		
+		int[] row = profile[code];
+		
+		if (!profileValid[code]) {
+			if (row == null || row.length < queryLength)
+				row = profile[code] = new int[queryLength];
+			
+			for (int col = 0; col < queryLength; col++)
+				row[col] = score(code, query[queryOffset + col]);
+			
+			profileValid[code] = true;
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Calculates the best local alignment score of the query against the
+	 * subject. The row and column of the cell at which the best alignment ends
+	 * may then be obtained from getBestRow and getBestColumn.
+	 * 
+	 * @param diagonal
+	 *            the diagonal, expressed as row minus column, around which the
+	 *            band is centred.
+	 * @param bandwidth
+	 *            the semi-bandwidth of the band to which the alignment is
+	 *            restricted, or zero for an unbanded alignment.
+	 * 
+	 * @return the best local alignment score, or zero if the sequences have no
+	 *         positive-scoring local alignment.
+	 */
+	
+	public int calculateScore(byte[] subject, int subjectOffset,
+			int subjectLength, byte[] query, int queryOffset, int queryLength,
+			int diagonal, int bandwidth) {
+		prepare(queryLength);
+		
+		int[] h = hRow;
+		int[] e = eRow;
+		
+		Arrays.fill(h, 0, queryLength + 1, 0);
+		Arrays.fill(e, 0, queryLength + 1, NEGATIVE_INFINITY);
+		
+		bestScore = 0;
+		bestRow = -1;
+		bestColumn = -1;
+		
+		for (int row = 0; row < subjectLength; row++) {
+			int[] prof = getProfile(subject[subjectOffset + row], query, queryOffset, queryLength);
+			
+			int colstart = 0;
+			int colfinish = queryLength;
+			
+			if (bandwidth > 0) {
+				colstart = max(0, row - diagonal - bandwidth);
+				colfinish = min(queryLength, row - diagonal + bandwidth + 1);
+				
+				if (colstart >= queryLength)
+					break;
+				
+				if (colfinish <= colstart)
+					continue;
+			}
+			
+			// The arrays are indexed by column + 1, so h[colstart] holds the
+			// score of the cell diagonally above and to the left of the first
+			// cell in this row.
+			int hDiagonal = h[colstart];
+			int hLeft = 0;
+			int f = NEGATIVE_INFINITY;
+			
+			for (int col = colstart; col < colfinish; col++) {
+				int hUp = h[col + 1];
+				
+				int up = max(hUp + sGapInit, e[col + 1] + sGapExtend);
+				f = max(hLeft + sGapInit, f + sGapExtend);
+				
+				int score = hDiagonal + prof[col];
+				
+				if (score < up)
+					score = up;
+				
+				if (score < f)
+					score = f;
+				
+				if (score < 0)
+					score = 0;
+				
+				e[col + 1] = up;
+				h[col + 1] = score;
+				
+				hDiagonal = hUp;
+				hLeft = score;
+				
+				if (score > bestScore) {
+					bestScore = score;
+					bestRow = row;
+					bestColumn = col;
+				}
+			}
+		}
+		
+		return bestScore;
+	}
+	
+	public int calculateScore(byte[] subject, int subjectOffset,
+			int subjectLength, byte[] query, int queryOffset, int queryLength,
+			int bandwidth) {
+		return calculateScore(subject, subjectOffset, subjectLength, query,
+				queryOffset, queryLength, 0, bandwidth);
+	}
+	
+	public int calculateScore(byte[] subject, byte[] query, int bandwidth) {
+		return calculateScore(subject, 0, subject.length, query, 0,
+				query.length, 0, bandwidth);
+	}
+	
+	/**
+	 * Calculates the best local alignment of the query against the subject.
+	 * 
+	 * @param diagonal
+	 *            the diagonal, expressed as row minus column, around which the
+	 *            band is centred.
+	 * @param bandwidth
+	 *            the semi-bandwidth of the band to which the alignment is
+	 *            restricted, or zero for an unbanded alignment.
+	 * 
+	 * @return the best local alignment, or null if the sequences have no
+	 *         positive-scoring local alignment.
+	 */
+	
+	public Alignment calculateAlignment(byte[] subject, int subjectOffset,
+			int subjectLength, byte[] query, int queryOffset, int queryLength,
+			int diagonal, int bandwidth) throws SmithWatermanException {
+		if (calculateScore(subject, subjectOffset, subjectLength, query,
+				queryOffset, queryLength, diagonal, bandwidth) == 0)
+			return null;
+		
+		// Run backwards from the end of the best alignment to find its start.
+		
+		if (!anchoredPass(subject, subjectOffset, bestRow, bestRow + 1, query,
+				queryOffset, bestColumn, bestColumn + 1, -1, diagonal, bandwidth, false))
+			throw new SmithWatermanException("Failed to find the start of the alignment ending at ("
+					+ bestRow + ", " + bestColumn + ")");
+		
+		// Recompute the matrix with traceback, but only within the rectangle
+		// spanned by the best alignment, and within the band.
+		
+		int rows = bestRow - startRow + 1;
+		int cols = bestColumn - startColumn + 1;
+		
+		int bandCells = 2 * bandwidth + 1;
+		
+		if (bandwidth > 0 && bandCells < cols) {
+			traceWidth = bandCells;
+			traceSlope = 1;
+			traceShift = diagonal + bandwidth - (startRow - startColumn);
+		} else {
+			traceWidth = cols;
+			traceSlope = 0;
+			traceShift = 0;
+		}
+		
+		long traceSize = (long) rows * (long) traceWidth;
+		
+		if (traceSize > maxTraceSize)
+			throw new SmithWatermanException("The alignment from (" + startRow
+					+ ", " + startColumn + ") to (" + bestRow + ", " + bestColumn
+					+ ") needs " + traceSize + " traceback cells, but the limit is "
+					+ maxTraceSize);
+		
+		if (trace.length < traceSize)
+			trace = new byte[(int) traceSize];
+		
+		anchoredPass(subject, subjectOffset, startRow, rows, query,
+				queryOffset, startColumn, cols, 1, diagonal, bandwidth, true);
+		
+		return traceBack(subject, subjectOffset, query, queryOffset, rows, cols);
+	}
+	
+	/**
+	 * Sets the largest traceback matrix, in cells, which calculateAlignment may
+	 * allocate. The default, and the largest permitted value, is
+	 * MAX_TRACE_SIZE.
+	 */
+	
+	public void setMaxTraceSize(long maxTraceSize) {
+		this.maxTraceSize = maxTraceSize < MAX_TRACE_SIZE ? maxTraceSize
+				: MAX_TRACE_SIZE;
+	}
+	
+	public long getMaxTraceSize() {
+		return maxTraceSize;
+	}
+	
+	public Alignment calculateAlignment(byte[] subject, int subjectOffset,
+			int subjectLength, byte[] query, int queryOffset, int queryLength,
+			int bandwidth) throws SmithWatermanException {
+		return calculateAlignment(subject, subjectOffset, subjectLength, query,
+				queryOffset, queryLength, 0, bandwidth);
+	}
+	
+	public Alignment calculateAlignment(byte[] subject, byte[] query,
+			int bandwidth) throws SmithWatermanException {
+		return calculateAlignment(subject, 0, subject.length, query, 0,
+				query.length, 0, bandwidth);
+	}
+	
+	/**
+	 * Fills a matrix of rowCount by colCount cells in which every alignment is
+	 * anchored at the cell (rowOrigin, colOrigin), proceeding in the direction
+	 * given by step.
+	 * 
+	 * If storeTrace is false, this method looks for the first cell whose score
+	 * equals the best local alignment score, and sets the start row and column
+	 * to that cell. If storeTrace is true, this method fills in the traceback
+	 * matrix.
+	 * 
+	 * @return true if storeTrace is false and a cell with the best score was
+	 *         found, or if storeTrace is true.
+	 */
+	
+	private boolean anchoredPass(byte[] subject, int subjectOffset,
+			int rowOrigin, int rowCount, byte[] query, int queryOffset,
+			int colOrigin, int colCount, int step, int diagonal, int bandwidth,
+			boolean storeTrace) {
+		int[] h = hRow;
+		int[] e = eRow;
+		
+		// Index zero holds the boundary column. Only the cell before the
+		// origin may be the start of an alignment.
+		Arrays.fill(h, 0, colCount + 1, NEGATIVE_INFINITY);
+		Arrays.fill(e, 0, colCount + 1, NEGATIVE_INFINITY);
+		h[0] = 0;
+		
+		for (int a = 1; a <= rowCount; a++) {
+			int row = rowOrigin + step * (a - 1);
+			
+			int[] prof = profile[subject[subjectOffset + row] & 0xff];
+			
+			int bstart = 1;
+			int bfinish = colCount;
+			
+			if (bandwidth > 0) {
+				int lo = step > 0 ? row - diagonal - bandwidth - colOrigin + 1
+						: colOrigin - (row - diagonal) - bandwidth + 1;
+				bstart = max(bstart, lo);
+				bfinish = min(bfinish, lo + 2 * bandwidth);
+				
+				if (bstart > bfinish)
+					break;
+			}
+			
+			int hDiagonal = h[bstart - 1];
+			int hLeft = NEGATIVE_INFINITY;
+			int f = NEGATIVE_INFINITY;
+			
+			int traceRow = (a - 1) * (traceWidth - traceSlope) + traceShift - 1;
+			
+			for (int b = bstart; b <= bfinish; b++) {
+				int col = colOrigin + step * (b - 1);
+				
+				int hUp = h[b];
+				
+				int upOpen = hUp + sGapInit;
+				int upExtend = e[b] + sGapExtend;
+				int up = max(upOpen, upExtend);
+				
+				int leftOpen = hLeft + sGapInit;
+				int leftExtend = f + sGapExtend;
+				f = max(leftOpen, leftExtend);
+				
+				int fromDiagonal = hDiagonal + prof[col];
+				
+				int score;
+				int direction;
+				
+				if (fromDiagonal >= up && fromDiagonal >= f) {
+					score = fromDiagonal;
+					direction = FROM_DIAGONAL;
+				} else if (up > f) {
+					score = up;
+					direction = FROM_UP;
+				} else {
+					score = f;
+					direction = FROM_LEFT;
+				}
+				
+				e[b] = up;
+				h[b] = score;
+				
+				hDiagonal = hUp;
+				hLeft = score;
+				
+				if (storeTrace) {
+					if (upExtend > upOpen)
+						direction |= UP_EXTENDED;
+					
+					if (leftExtend > leftOpen)
+						direction |= LEFT_EXTENDED;
+					
+					trace[traceRow + b] = (byte) direction;
+				} else if (score == bestScore) {
+					startRow = row;
+					startColumn = col;
+					return true;
+				}
+			}
+			
+			// The boundary column lies outside the matrix for every row
+			// after the first.
+			if (a == 1)
+				h[0] = NEGATIVE_INFINITY;
+		}
+		
+		return storeTrace;
+	}
+	
+	private Alignment traceBack(byte[] subject, int subjectOffset,
+			byte[] query, int queryOffset, int rows, int cols)
+			throws SmithWatermanException {
+		Vector<EditEntry> edits = new Vector<EditEntry>();
+		
+		EditEntry currentEntry = null;
+		
+		int a = rows - 1;
+		int b = cols - 1;
+		
+		int state = FROM_DIAGONAL;
+		
+		while (a >= 0 && b >= 0) {
+			int offset = b - a * traceSlope + traceShift;
+			
+			if (offset < 0 || offset >= traceWidth)
+				throw new SmithWatermanException("Traceback left the band at ("
+						+ (startRow + a) + ", " + (startColumn + b) + ")");
+			
+			int direction = trace[a * traceWidth + offset];
+			
+			char editType;
+			
+			if (state == FROM_DIAGONAL) {
+				state = direction & SOURCE_MASK;
+				
+				if (state != FROM_DIAGONAL)
+					continue;
+				
+				boolean isMatch = subject[subjectOffset + startRow + a] == query[queryOffset + startColumn + b];
+				
+				editType = isMatch ? EditEntry.MATCH : EditEntry.SUBSTITUTION;
+				
+				a--;
+				b--;
+			} else if (state == FROM_UP) {
+				editType = EditEntry.DELETION;
+				
+				if ((direction & UP_EXTENDED) == 0)
+					state = FROM_DIAGONAL;
+				
+				a--;
+			} else if (state == FROM_LEFT) {
+				editType = EditEntry.INSERTION;
+				
+				if ((direction & LEFT_EXTENDED) == 0)
+					state = FROM_DIAGONAL;
+				
+				b--;
+			} else
+				throw new SmithWatermanException("Undefined direction at (" + (startRow + a)
+						+ ", " + (startColumn + b) + ")");
+			
+			if (currentEntry != null && currentEntry.getType() == editType)
+				currentEntry.setCount(currentEntry.getCount() + 1);
+			else {
+				currentEntry = new EditEntry(editType, 1);
+				edits.add(currentEntry);
+			}
+		}
+		
+		if (a >= 0 || b >= 0)
+			throw new SmithWatermanException("Traceback did not reach the start of the alignment at ("
+					+ startRow + ", " + startColumn + ")");
+		
+		Collections.reverse(edits);
+		
+		return new Alignment(startRow, startColumn, edits.toArray(new EditEntry[0]));
+	}
+	
+	/**
+	 * Returns the exactly-matching segments of an alignment.
+	 */
+	
+	public static Segment[] getSegments(Alignment alignment) {
+		Vector<Segment> segments = new Vector<Segment>();
+		
+		int row = alignment.getRow();
+		int col = alignment.getColumn();
+		
+		EditEntry[] edits = alignment.getEdits();
+		
+		for (int i = 0; i < edits.length; i++) {
+			int count = edits[i].getCount();
+			
+			switch (edits[i].getType()) {
+			case EditEntry.MATCH:
+				segments.add(new Segment(row, row + count - 1, col, col + count - 1));
+				row += count;
+				col += count;
+				break;
+				
+			case EditEntry.SUBSTITUTION:
+				row += count;
+				col += count;
+				break;
+				
+			case EditEntry.DELETION:
+				row += count;
+				break;
+				
+			case EditEntry.INSERTION:
+				col += count;
+				break;
+			}
+		}
+		
+		return segments.toArray(new Segment[segments.size()]);
+	}
+	
+	public int getBestScore() {
+		return bestScore;
+	}
+	
+	public int getBestRow() {
+		return bestRow;
+	}
+	
+	public int getBestColumn() {
+		return bestColumn;
+	}
+	
+	private static int min(int i, int j) {
+		return (i < j) ? i : j;
+	}
+
+	private static int max(int i, int j) {
+		return (i > j) ? i : j;
+	}
+}
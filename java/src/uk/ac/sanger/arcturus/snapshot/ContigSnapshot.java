@@ -0,0 +1,440 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.sanger.arcturus.data.*;
+
+/**
+ * A compact, memory-mapped binary snapshot of a set of contigs, which allows
+ * local tools to work with contigs without connecting to the database.
+ * 
+ * The file begins with a header which gives the number of contigs and the
+ * position of the contig index. Each contig is stored as a self-contained
+ * record, and the index at the end of the file gives the ID, offset and length
+ * of each record. Within a record, positions and IDs are delta-encoded as
+ * variable-length integers, bases are packed four to a byte and quality values
+ * are run-length encoded.
+ * 
+ * Records are decoded directly from the mapped file. Snapshot files are
+ * created by ContigSnapshotWriter.
+ */
+
+public class ContigSnapshot {
+	static final int MAGIC = 0x41534E50;
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+	static final int INDEX_ENTRY_SIZE = 16;
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+	private static final byte[] CODE = new byte[256];
+
+	static {
+		Arrays.fill(CODE, (byte) -1);
+
+		for (int i = 0; i < BASES.length; i++)
+			CODE[BASES[i]] = (byte) i;
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer;
+
+	private final int[] ids;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	private final Map<Integer, Integer> indexByID = new HashMap<Integer, Integer>();
+
+	private final Map<Integer, Template> templates = new HashMap<Integer, Template>();
+	private final Map<Integer, Ligation> ligations = new HashMap<Integer, Ligation>();
+
+	private ContigSnapshot(File file) throws IOException {
+		this.file = file;
+
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+
+		try {
+			long size = channel.size();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(size, HEADER_SIZE));
+
+			if (header.capacity() < HEADER_SIZE || header.getInt(0) != MAGIC
+					|| header.getInt(4) != VERSION)
+				throw new IOException("The file " + file
+						+ " is not a compatible contig snapshot");
+
+			int ncontigs = header.getInt(8);
+			long indexOffset = header.getLong(12);
+
+			if (size != indexOffset + (long) ncontigs * INDEX_ENTRY_SIZE)
+				throw new IOException("The contig snapshot file " + file
+						+ " is truncated or corrupt");
+
+			// A file larger than 2Gb cannot be mapped in one piece, so each
+			// record is mapped separately when it is read.
+			buffer = (size <= Integer.MAX_VALUE) ? channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, size) : null;
+
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+					indexOffset, (long) ncontigs * INDEX_ENTRY_SIZE);
+
+			ids = new int[ncontigs];
+			offsets = new long[ncontigs];
+			lengths = new int[ncontigs];
+
+			for (int i = 0; i < ncontigs; i++) {
+				ids[i] = index.getInt();
+				offsets[i] = index.getLong();
+				lengths[i] = index.getInt();
+
+				indexByID.put(ids[i], i);
+			}
+		} catch (IOException ioe) {
+			raf.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Opens a contig snapshot file.
+	 * 
+	 * @param file
+	 *            the snapshot file.
+	 * 
+	 * @return the snapshot.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a contig snapshot.
+	 */
+
+	public static ContigSnapshot open(File file) throws IOException {
+		return new ContigSnapshot(file);
+	}
+
+	/**
+	 * Closes the snapshot file.
+	 */
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of contigs in the snapshot.
+	 * 
+	 * @return the number of contigs in the snapshot.
+	 */
+
+	public int getContigCount() {
+		return ids.length;
+	}
+
+	/**
+	 * Returns the IDs of the contigs in the snapshot, in the order in which
+	 * they were written.
+	 * 
+	 * @return the IDs of the contigs in the snapshot.
+	 */
+
+	public int[] getContigIDs() {
+		return ids.clone();
+	}
+
+	public boolean contains(int contigID) {
+		return indexByID.containsKey(contigID);
+	}
+
+	/**
+	 * Decodes a contig from the snapshot, with its consensus sequence and its
+	 * mappings, and the sequences, reads and segments of the mappings. Reads
+	 * which share a template also share the Template object.
+	 * 
+	 * @param contigID
+	 *            the ID of the contig.
+	 * 
+	 * @return the contig, or null if the snapshot does not contain it.
+	 */
+
+	public Contig getContig(int contigID) throws IOException {
+		Integer index = indexByID.get(contigID);
+
+		return index == null ? null : getContigByIndex(index);
+	}
+
+	/**
+	 * Decodes the contig at the specified position in the snapshot.
+	 * 
+	 * @param index
+	 *            the position of the contig, from zero to one less than the
+	 *            number of contigs.
+	 * 
+	 * @return the contig.
+	 */
+
+	public Contig getContigByIndex(int index) throws IOException {
+		ByteBuffer record = getRecord(index);
+
+		String name = readString(record);
+		int length = readVarint(record);
+
+		byte[] dna = readBases(record);
+		byte[] quality = readQuality(record);
+
+		int nmappings = readVarint(record);
+
+		Mapping[] mappings = new Mapping[nmappings];
+
+		int seqID = 0;
+		int cstart = 0;
+
+		synchronized (templates) {
+			for (int i = 0; i < nmappings; i++) {
+				seqID += readSignedVarint(record);
+
+				int version = readVarint(record);
+
+				Read read = readRead(record);
+
+				cstart += readSignedVarint(record);
+
+				int cfinish = cstart + readVarint(record);
+
+				boolean forward = record.get() != 0;
+
+				Segment[] segments = readSegments(record, cstart);
+
+				Sequence sequence = new Sequence(seqID, read,
+						readBases(record), readQuality(record), version);
+
+				mappings[i] = new Mapping(sequence, cstart, cfinish, forward,
+						segments);
+			}
+		}
+
+		Contig contig = new Contig(name, ids[index], length, null, null, null,
+				mappings, null);
+
+		if (dna != null && quality != null)
+			contig.setConsensus(dna, quality);
+
+		return contig;
+	}
+
+	private ByteBuffer getRecord(int index) throws IOException {
+		if (buffer != null) {
+			ByteBuffer record = buffer.duplicate();
+
+			record.position((int) offsets[index]);
+			record.limit((int) offsets[index] + lengths[index]);
+
+			return record.slice();
+		} else
+			return channel.map(FileChannel.MapMode.READ_ONLY, offsets[index],
+					lengths[index]);
+	}
+
+	private Read readRead(ByteBuffer record) throws IOException {
+		int readID = readVarint(record) - 1;
+
+		if (readID < 0)
+			return null;
+
+		String name = readString(record);
+		int strand = readVarint(record);
+		int primer = readVarint(record);
+		int chemistry = readVarint(record);
+
+		Template template = readTemplate(record);
+
+		return new Read(name, readID, template, null, strand, primer,
+				chemistry, null);
+	}
+
+	private Template readTemplate(ByteBuffer record) throws IOException {
+		int templateID = readVarint(record) - 1;
+
+		if (templateID < 0)
+			return null;
+
+		String name = readString(record);
+
+		Ligation ligation = readLigation(record);
+
+		Template template = templates.get(templateID);
+
+		if (template == null) {
+			template = new Template(name, templateID, ligation, null);
+			templates.put(templateID, template);
+		}
+
+		return template;
+	}
+
+	private Ligation readLigation(ByteBuffer record) throws IOException {
+		int ligationID = readVarint(record) - 1;
+
+		if (ligationID < 0)
+			return null;
+
+		String name = readString(record);
+		int silow = readVarint(record);
+		int sihigh = readVarint(record);
+
+		Ligation ligation = ligations.get(ligationID);
+
+		if (ligation == null) {
+			ligation = new Ligation(name, ligationID, null, silow, sihigh, null);
+			ligations.put(ligationID, ligation);
+		}
+
+		return ligation;
+	}
+
+	private Segment[] readSegments(ByteBuffer record, int cstart) {
+		int nsegs = readVarint(record);
+
+		if (nsegs == 0)
+			return null;
+
+		Segment[] segments = new Segment[nsegs];
+
+		int segstart = cstart;
+		int rstart = 0;
+
+		for (int j = 0; j < nsegs; j++) {
+			segstart += readSignedVarint(record);
+			rstart += readSignedVarint(record);
+
+			segments[j] = new Segment(segstart, rstart, readVarint(record));
+		}
+
+		return segments;
+	}
+
+	static int encodeBase(byte base) {
+		return CODE[base & 0xff];
+	}
+
+	static int readVarint(ByteBuffer record) {
+		int value = 0;
+		int shift = 0;
+
+		while (true) {
+			int b = record.get();
+
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+
+			shift += 7;
+		}
+	}
+
+	static int readSignedVarint(ByteBuffer record) {
+		int value = readVarint(record);
+
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static String readString(ByteBuffer record)
+			throws UnsupportedEncodingException {
+		int length = readVarint(record) - 1;
+
+		if (length < 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+
+		record.get(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
+
+	static byte[] readBases(ByteBuffer record) {
+		int length = readVarint(record) - 1;
+
+		if (length < 0)
+			return null;
+
+		byte[] dna = new byte[length];
+
+		for (int i = 0; i < length; i += 4) {
+			int packed = record.get();
+
+			for (int k = 0; k < 4 && i + k < length; k++)
+				dna[i + k] = BASES[(packed >> (2 * k)) & 3];
+		}
+
+		int nexceptions = readVarint(record);
+
+		int position = 0;
+
+		for (int j = 0; j < nexceptions; j++) {
+			position += readVarint(record);
+			dna[position] = record.get();
+		}
+
+		return dna;
+	}
+
+	static byte[] readQuality(ByteBuffer record) {
+		int length = readVarint(record) - 1;
+
+		if (length < 0)
+			return null;
+
+		byte[] quality = new byte[length];
+
+		int i = 0;
+
+		while (i < length) {
+			int run = readVarint(record);
+
+			Arrays.fill(quality, i, i + run, record.get());
+
+			i += run;
+		}
+
+		return quality;
+	}
+}
@@ -0,0 +1,368 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.snapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+import uk.ac.sanger.arcturus.data.*;
+
+/**
+ * Writes a contig snapshot file which can be opened by ContigSnapshot.
+ * 
+ * Each contig is encoded into a record which is appended to the file as soon
+ * as it is added. When finish is called, the contig index is written after the
+ * records, and the header is written at the start of the file.
+ * 
+ * The contigs which are added must have their mappings, and the sequences,
+ * reads and segments of those mappings, already loaded. The consensus
+ * sequence is written if it has been loaded.
+ */
+
+public class ContigSnapshotWriter {
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	private long position = ContigSnapshot.HEADER_SIZE;
+
+	private Vector<Integer> ids = new Vector<Integer>();
+	private Vector<Long> offsets = new Vector<Long>();
+	private Vector<Integer> lengths = new Vector<Integer>();
+
+	private RecordBuffer record = new RecordBuffer();
+
+	public ContigSnapshotWriter(File file) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+
+		channel = raf.getChannel();
+
+		channel.position(ContigSnapshot.HEADER_SIZE);
+	}
+
+	/**
+	 * Appends a contig to the snapshot file.
+	 * 
+	 * @param contig
+	 *            the contig, with its mappings, sequences, reads and segments.
+	 */
+
+	public void addContig(Contig contig) throws IOException {
+		Mapping[] mappings = contig.getMappings();
+
+		if (mappings == null)
+			throw new IOException("Contig " + contig.getID()
+					+ " has no mappings");
+
+		record.reset();
+
+		record.writeString(contig.getName());
+		record.writeVarint(contig.getLength());
+
+		record.writeBases(contig.getDNA());
+		record.writeQuality(contig.getQuality());
+
+		record.writeVarint(mappings.length);
+
+		int lastSeqID = 0;
+		int lastCstart = 0;
+
+		for (int i = 0; i < mappings.length; i++) {
+			Mapping mapping = mappings[i];
+			Sequence sequence = mapping.getSequence();
+
+			record.writeSignedVarint(sequence.getID() - lastSeqID);
+			lastSeqID = sequence.getID();
+
+			record.writeVarint(sequence.getVersion());
+
+			writeRead(sequence.getRead());
+
+			int cstart = mapping.getContigStart();
+
+			record.writeSignedVarint(cstart - lastCstart);
+			record.writeVarint(mapping.getContigFinish() - cstart);
+			record.write(mapping.isForward() ? 1 : 0);
+
+			lastCstart = cstart;
+
+			writeSegments(mapping.getSegments(), cstart);
+
+			record.writeBases(sequence.getDNA());
+			record.writeQuality(sequence.getQuality());
+		}
+
+		ids.add(contig.getID());
+		offsets.add(position);
+		lengths.add(record.size());
+
+		ByteBuffer buffer = record.toByteBuffer();
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		position += lengths.lastElement();
+	}
+
+	/*
+	 * The IDs of reads, templates and ligations are stored plus one, so that
+	 * zero can mark a missing object.
+	 */
+
+	private void writeRead(Read read) throws IOException {
+		if (read == null) {
+			record.writeVarint(0);
+			return;
+		}
+
+		record.writeVarint(read.getID() + 1);
+		record.writeString(read.getName());
+		record.writeVarint(read.getStrand());
+		record.writeVarint(read.getPrimer());
+		record.writeVarint(read.getChemistry());
+
+		Template template = read.getTemplate();
+
+		if (template == null) {
+			record.writeVarint(0);
+			return;
+		}
+
+		record.writeVarint(template.getID() + 1);
+		record.writeString(template.getName());
+
+		Ligation ligation = template.getLigation();
+
+		if (ligation == null) {
+			record.writeVarint(0);
+			return;
+		}
+
+		record.writeVarint(ligation.getID() + 1);
+		record.writeString(ligation.getName());
+		record.writeVarint(ligation.getInsertSizeLow());
+		record.writeVarint(ligation.getInsertSizeHigh());
+	}
+
+	private void writeSegments(Segment[] segments, int cstart) {
+		if (segments == null) {
+			record.writeVarint(0);
+			return;
+		}
+
+		record.writeVarint(segments.length);
+
+		int lastCstart = cstart;
+		int lastRstart = 0;
+
+		for (int j = 0; j < segments.length; j++) {
+			Segment segment = segments[j];
+
+			record.writeSignedVarint(segment.getContigStart() - lastCstart);
+			record.writeSignedVarint(segment.getReadStart() - lastRstart);
+			record.writeVarint(segment.getLength());
+
+			lastCstart = segment.getContigStart();
+			lastRstart = segment.getReadStart();
+		}
+	}
+
+	/**
+	 * Returns the number of contigs which have been added.
+	 * 
+	 * @return the number of contigs which have been added.
+	 */
+
+	public int getContigCount() {
+		return ids.size();
+	}
+
+	/**
+	 * Writes the contig index and the header, and closes the file.
+	 */
+
+	public void finish() throws IOException {
+		int ncontigs = ids.size();
+
+		ByteBuffer index = ByteBuffer.allocate(ncontigs
+				* ContigSnapshot.INDEX_ENTRY_SIZE);
+
+		for (int i = 0; i < ncontigs; i++) {
+			index.putInt(ids.get(i));
+			index.putLong(offsets.get(i));
+			index.putInt(lengths.get(i));
+		}
+
+		index.flip();
+
+		while (index.hasRemaining())
+			channel.write(index);
+
+		ByteBuffer header = ByteBuffer.allocate(ContigSnapshot.HEADER_SIZE);
+
+		header.putInt(ContigSnapshot.MAGIC);
+		header.putInt(ContigSnapshot.VERSION);
+		header.putInt(ncontigs);
+		header.putLong(position);
+
+		header.rewind();
+
+		channel.position(0);
+
+		while (header.hasRemaining())
+			channel.write(header);
+
+		raf.close();
+	}
+
+	/**
+	 * Closes the file without completing it.
+	 */
+
+	public void abort() {
+		try {
+			raf.close();
+		} catch (IOException ioe) {
+			// Ignore this, since the file is being abandoned.
+		}
+	}
+
+	/*
+	 * Encodes the fields of a contig record. Integers are written as
+	 * variable-length quantities, seven bits per byte, and signed values are
+	 * zig-zag encoded first so that small negative deltas stay short.
+	 */
+
+	static class RecordBuffer extends ByteArrayOutputStream {
+		public RecordBuffer() {
+			super(65536);
+		}
+
+		public void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+
+			write(value);
+		}
+
+		public void writeSignedVarint(int value) {
+			writeVarint((value << 1) ^ (value >> 31));
+		}
+
+		public void writeString(String string) throws UnsupportedEncodingException {
+			if (string == null) {
+				writeVarint(0);
+				return;
+			}
+
+			byte[] bytes = string.getBytes("UTF-8");
+
+			writeVarint(bytes.length + 1);
+			write(bytes, 0, bytes.length);
+		}
+
+		/*
+		 * Bases are packed four to a byte, with any base other than A, C, G
+		 * or T stored as an exception after the packed array.
+		 */
+
+		public void writeBases(byte[] dna) {
+			if (dna == null) {
+				writeVarint(0);
+				return;
+			}
+
+			writeVarint(dna.length + 1);
+
+			int nexceptions = 0;
+
+			for (int i = 0; i < dna.length; i += 4) {
+				int packed = 0;
+
+				for (int k = 0; k < 4; k++) {
+					int code = i + k < dna.length ? ContigSnapshot.encodeBase(dna[i + k]) : 0;
+
+					if (code < 0) {
+						code = 0;
+						nexceptions++;
+					}
+
+					packed |= code << (2 * k);
+				}
+
+				write(packed);
+			}
+
+			writeVarint(nexceptions);
+
+			int lastPosition = 0;
+
+			for (int i = 0; i < dna.length; i++) {
+				if (ContigSnapshot.encodeBase(dna[i]) < 0) {
+					writeVarint(i - lastPosition);
+					write(dna[i]);
+					lastPosition = i;
+				}
+			}
+		}
+
+		/*
+		 * Quality values are run-length encoded as pairs of run length and
+		 * value.
+		 */
+
+		public void writeQuality(byte[] quality) {
+			if (quality == null) {
+				writeVarint(0);
+				return;
+			}
+
+			writeVarint(quality.length + 1);
+
+			int i = 0;
+
+			while (i < quality.length) {
+				int j = i + 1;
+
+				while (j < quality.length && quality[j] == quality[i])
+					j++;
+
+				writeVarint(j - i);
+				write(quality[i]);
+
+				i = j;
+			}
+		}
+
+		public ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.utils;
+
+import java.io.*;
+import java.util.*;
+
+import uk.ac.sanger.arcturus.data.Contig;
+import uk.ac.sanger.arcturus.smithwaterman.*;
+import uk.ac.sanger.arcturus.snapshot.ContigSnapshot;
+
+/**
+ * Places reads onto contigs. The reads are read from a FASTA file, and the
+ * contig consensus sequences are read from a contig snapshot file or from a
+ * FASTA file. Each read is aligned by a BatchAligner, and its best alignments
+ * are written to standard output, one per line.
+ */
+
+public class AlignReadsToContigs {
+	private static final int DEFAULT_MAX_HITS = 1;
+
+	public static void main(String[] args) {
+		String snapshotFilename = null;
+		String contigsFilename = null;
+		String readsFilename = null;
+		int maxHits = DEFAULT_MAX_HITS;
+		boolean writeEdits = false;
+		
+		BatchAligner aligner = new BatchAligner(new ScoringMatrix(1, -2, -3, -2));
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-snapshot"))
+				snapshotFilename = args[++i];
+			else if (args[i].equalsIgnoreCase("-contigs"))
+				contigsFilename = args[++i];
+			else if (args[i].equalsIgnoreCase("-reads"))
+				readsFilename = args[++i];
+			else if (args[i].equalsIgnoreCase("-threads"))
+				aligner.setThreadCount(Integer.parseInt(args[++i]));
+			else if (args[i].equalsIgnoreCase("-kmersize"))
+				aligner.setKmerSize(Integer.parseInt(args[++i]));
+			else if (args[i].equalsIgnoreCase("-step"))
+				aligner.setStep(Integer.parseInt(args[++i]));
+			else if (args[i].equalsIgnoreCase("-bandwidth"))
+				aligner.setBandwidth(Integer.parseInt(args[++i]));
+			else if (args[i].equalsIgnoreCase("-minseedhits"))
+				aligner.setMinSeedHits(Integer.parseInt(args[++i]));
+			else if (args[i].equalsIgnoreCase("-minscore"))
+				aligner.setMinScore(Integer.parseInt(args[++i]));
+			else if (args[i].equalsIgnoreCase("-maxhits"))
+				maxHits = Integer.parseInt(args[++i]);
+			else if (args[i].equalsIgnoreCase("-edits"))
+				writeEdits = true;
+			else if (args[i].equalsIgnoreCase("-help")) {
+				printUsage(System.err);
+				System.exit(0);
+			} else {
+				System.err.println("Unknown option: \"" + args[i] + "\"");
+				printUsage(System.err);
+				System.exit(1);
+			}
+		}
+
+		if (readsFilename == null
+				|| (snapshotFilename == null) == (contigsFilename == null)) {
+			printUsage(System.err);
+			System.exit(1);
+		}
+
+		try {
+			if (snapshotFilename != null)
+				loadSnapshot(new File(snapshotFilename), aligner);
+			else
+				loadFASTA(new File(contigsFilename), aligner);
+			
+			System.err.println("Loaded " + aligner.getSubjectCount() + " contigs");
+			
+			long ticks = System.currentTimeMillis();
+			
+			KmerSeedIndex index = aligner.buildIndex();
+			
+			ticks = System.currentTimeMillis() - ticks;
+			
+			System.err.println("Indexed " + index.getPostingsCount() + " "
+					+ index.getKmerSize() + "-mers in " + ticks + " ms");
+			
+			BufferedReader br = new BufferedReader(new FileReader(readsFilename));
+			
+			ticks = System.currentTimeMillis();
+			
+			ResultWriter writer = new ResultWriter(new PrintWriter(
+					new BufferedWriter(new OutputStreamWriter(System.out))),
+					maxHits, writeEdits);
+			
+			int nreads = aligner.align(new FASTAIterator(br), writer);
+			
+			writer.close();
+			br.close();
+			
+			ticks = System.currentTimeMillis() - ticks;
+			
+			System.err.println("Aligned " + nreads + " reads in " + ticks
+					+ " ms, of which " + writer.getPlacedCount()
+					+ " were placed");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static void loadSnapshot(File file, BatchAligner aligner)
+			throws IOException {
+		ContigSnapshot snapshot = ContigSnapshot.open(file);
+		
+		try {
+			for (int i = 0; i < snapshot.getContigCount(); i++) {
+				Contig contig = snapshot.getContigByIndex(i);
+				
+				if (contig.getDNA() != null)
+					aligner.addSubject(contig.getID(), contig.getName(), contig.getDNA());
+			}
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private static void loadFASTA(File file, BatchAligner aligner)
+			throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		
+		FASTAIterator iterator = new FASTAIterator(br);
+		
+		int id = 0;
+		
+		while (iterator.hasNext()) {
+			BatchAligner.Query sequence = iterator.next();
+			aligner.addSubject(++id, sequence.getName(), sequence.getSequence());
+		}
+		
+		br.close();
+	}
+
+	/**
+	 * Returns the sequences in a FASTA file one at a time.
+	 */
+
+	static class FASTAIterator implements Iterator<BatchAligner.Query> {
+		private final BufferedReader br;
+		private String nextHeader = null;
+		private BatchAligner.Query next = null;
+
+		public FASTAIterator(BufferedReader br) throws IOException {
+			this.br = br;
+			
+			String line;
+			
+			while ((line = br.readLine()) != null && !line.startsWith(">"));
+			
+			nextHeader = line;
+			
+			advance();
+		}
+
+		private void advance() throws IOException {
+			next = null;
+			
+			if (nextHeader == null)
+				return;
+			
+			String name = nextHeader.substring(1).trim();
+			
+			int space = name.indexOf(' ');
+			
+			if (space > 0)
+				name = name.substring(0, space);
+			
+			ByteArrayOutputStream dna = new ByteArrayOutputStream();
+			
+			String line;
+			
+			while ((line = br.readLine()) != null && !line.startsWith(">")) {
+				for (int i = 0; i < line.length(); i++) {
+					char c = line.charAt(i);
+					
+					if (!Character.isWhitespace(c))
+						dna.write(c);
+				}
+			}
+			
+			nextHeader = line;
+			
+			next = new BatchAligner.Query(name, dna.toByteArray());
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public BatchAligner.Query next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			
+			BatchAligner.Query query = next;
+			
+			try {
+				advance();
+			} catch (IOException ioe) {
+				throw new RuntimeException("Failed to read the next sequence", ioe);
+			}
+			
+			return query;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static class ResultWriter implements BatchAligner.AlignmentHandler {
+		private final PrintWriter pw;
+		private final int maxHits;
+		private final boolean writeEdits;
+		private int placed = 0;
+
+		public ResultWriter(PrintWriter pw, int maxHits, boolean writeEdits) {
+			this.pw = pw;
+			this.maxHits = maxHits;
+			this.writeEdits = writeEdits;
+		}
+
+		public void alignmentsFound(BatchAligner.Query query,
+				BatchAlignment[] alignments) {
+			if (alignments.length == 0) {
+				pw.println(query.getName() + "\tUNPLACED");
+				return;
+			}
+			
+			placed++;
+			
+			int length = query.getSequence().length;
+			
+			for (int i = 0; i < alignments.length && i < maxHits; i++) {
+				BatchAlignment al = alignments[i];
+				
+				// Report the read positions in the original sense of the read.
+				int rstart = al.isForward() ? al.getQueryStart() + 1 : length - al.getQueryFinish();
+				int rfinish = al.isForward() ? al.getQueryFinish() + 1 : length - al.getQueryStart();
+				
+				pw.print(query.getName() + "\t" + al.getSubjectName() + "\t"
+						+ al.getSubjectID() + "\t"
+						+ (al.isForward() ? "F" : "R") + "\t" + al.getScore()
+						+ "\t" + (al.getSubjectStart() + 1) + "\t"
+						+ (al.getSubjectFinish() + 1) + "\t" + rstart + "\t"
+						+ rfinish);
+				
+				if (writeEdits) {
+					EditEntry[] edits = al.getEdits();
+					
+					pw.print("\t");
+					
+					for (int j = 0; j < edits.length; j++)
+						pw.print(edits[j]);
+				}
+				
+				pw.println();
+			}
+		}
+
+		public int getPlacedCount() {
+			return placed;
+		}
+
+		public void close() {
+			pw.close();
+		}
+	}
+
+	private static void printUsage(PrintStream ps) {
+		ps.println("MANDATORY PARAMETERS");
+		ps.println("\t-reads\t\tName of FASTA file of reads to place");
+		ps.println();
+		ps.println("\tand one of");
+		ps.println("\t-snapshot\tName of contig snapshot file");
+		ps.println("\t-contigs\tName of FASTA file of contig consensus sequences");
+		ps.println();
+		ps.println("OPTIONAL PARAMETERS WHICH CONTROL PROCESSING");
+		ps.println("\t-threads\tNumber of worker threads [default: 1]");
+		ps.println("\t-kmersize\tLength of seed k-mers [default: "
+				+ BatchAligner.DEFAULT_KMER_SIZE + "]");
+		ps.println("\t-step\t\tInterval between indexed k-mers in contigs [default: "
+				+ BatchAligner.DEFAULT_STEP + "]");
+		ps.println("\t-bandwidth\tSemi-bandwidth around each candidate diagonal [default: "
+				+ BatchAligner.DEFAULT_BANDWIDTH + "]");
+		ps.println("\t-minseedhits\tMinimum number of k-mer hits on a diagonal [default: "
+				+ BatchAligner.DEFAULT_MIN_SEED_HITS + "]");
+		ps.println("\t-minscore\tMinimum alignment score [default: 0]");
+		ps.println();
+		ps.println("OPTIONAL PARAMETERS WHICH CONTROL OUTPUT");
+		ps.println("\t-maxhits\tMaximum number of alignments per read [default: "
+				+ DEFAULT_MAX_HITS + "]");
+		ps.println("\t-edits\t\tWrite the edit string of each alignment");
+	}
+}
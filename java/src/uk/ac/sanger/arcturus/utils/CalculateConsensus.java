@@ -30,6 +30,7 @@ import uk.ac.sanger.arcturus.Arcturus;
 
 import java.util.Vector;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.zip.*;
 import java.io.*;
 import java.sql.*;
@@ -37,6 +38,12 @@ import java.sql.*;
 public class CalculateConsensus {
 	private final int MAX_NORMAL_READ_LENGTH = 8000;
 
+	private static final int STORE_BATCH_SIZE = 50;
+
+	private static final int QUEUE_LENGTH_PER_THREAD = 4;
+
+	private static final Contig END_OF_QUEUE = new Contig();
+
 	private long lasttime;
 	private Runtime runtime = Runtime.getRuntime();
 
@@ -69,6 +76,10 @@ public class CalculateConsensus {
 
 	private int maxNormalReadLength = MAX_NORMAL_READ_LENGTH;
 
+	private int batchSize = -1;
+
+	private int threads = 1;
+
 	public static void main(String args[]) {
 		CalculateConsensus cc = new CalculateConsensus();
 		cc.execute(args);
@@ -117,6 +128,12 @@ public class CalculateConsensus {
 
 			if (args[i].equalsIgnoreCase("-maxnormalreadlength"))
 				maxNormalReadLength = Integer.parseInt(args[++i]);
+
+			if (args[i].equalsIgnoreCase("-batchsize"))
+				batchSize = Integer.parseInt(args[++i]);
+
+			if (args[i].equalsIgnoreCase("-threads"))
+				threads = Integer.parseInt(args[++i]);
 		}
 
 		if (instance == null || organism == null) {
@@ -148,6 +165,9 @@ public class CalculateConsensus {
 			adb.setCacheing(ArcturusDatabase.TEMPLATE, false);
 			adb.setCacheing(ArcturusDatabase.SEQUENCE, false);
 
+			if (batchSize > 0)
+				adb.setContigBatchSize(batchSize);
+
 			conn = adb.getDefaultConnection();
 
 			if (conn == null) {
@@ -163,13 +183,9 @@ public class CalculateConsensus {
 
 			Statement stmt = conn.createStatement();
 
-			String query = "insert into " + consensustable
-				+ " (contig_id,length,sequence,quality)"
-				+ " VALUES(?,?,?,?)"
-				+ " ON DUPLICATE KEY UPDATE" 
-				+ " sequence=VALUES(sequence), quality=VALUES(quality), length=VALUES(length)";
-			
-			stmtStoreConsensus = conn.prepareStatement(query);
+			stmtStoreConsensus = conn.prepareStatement(getStoreConsensusQuery());
+
+			String query;
 
 			if (contigList == null) {
 				query = allcontigs ? "select CONTIG.contig_id,length(sequence) from CONTIG left join "
@@ -195,9 +211,21 @@ public class CalculateConsensus {
 				rs.close();
 			}
 
-			for (int contig_id : contigList) {
-				calculateConsensusForContig(contig_id);
-				nContigs++;
+			if (threads > 1)
+				nContigs = calculateConsensusInParallel(contigList, algclass);
+			else {
+				int blockSize = adb.getContigBatchSize();
+
+				for (int start = 0; start < contigList.size(); start += blockSize) {
+					Contig[] contigs = loadContigBlock(contigList, start, blockSize);
+
+					for (int i = 0; i < contigs.length; i++) {
+						if (contigs[i] != null) {
+							calculateConsensusForContig(contigs[i]);
+							nContigs++;
+						}
+					}
+				}
 			}
 
 			System.err.println(nContigs + " contigs were processed");
@@ -207,6 +235,102 @@ public class CalculateConsensus {
 		}
 	}
 
+	private String getStoreConsensusQuery() {
+		return "insert into " + consensustable
+			+ " (contig_id,length,sequence,quality)"
+			+ " VALUES(?,?,?,?)"
+			+ " ON DUPLICATE KEY UPDATE" 
+			+ " sequence=VALUES(sequence), quality=VALUES(quality), length=VALUES(length)";
+	}
+
+	private Contig[] loadContigBlock(List<Integer> contigList, int start,
+			int blockSize) throws ArcturusDatabaseException {
+		int end = Math.min(start + blockSize, contigList.size());
+
+		Contig[] contigs = new Contig[end - start];
+
+		for (int i = start; i < end; i++) {
+			int contig_id = contigList.get(i);
+
+			contigs[i - start] = adb.getContigByID(contig_id,
+					ArcturusDatabase.CONTIG_BASIC_DATA);
+
+			if (contigs[i - start] == null)
+				System.err.println("CONTIG " + contig_id + " does not exist");
+		}
+
+		adb.updateContigs(contigs, flags);
+
+		return contigs;
+	}
+
+	/**
+	 * Calculates the consensus for the specified contigs using a pool of worker
+	 * threads. The calling thread loads the contigs in blocks and passes them
+	 * to the workers through a bounded queue, so that loading overlaps with
+	 * calculation. Each worker has its own consensus algorithm, compressor and
+	 * pooled connection, and stores its results in batches.
+	 */
+
+	private int calculateConsensusInParallel(List<Integer> contigList,
+			Class<?> algclass) throws Exception {
+		BlockingQueue<Contig> queue = new ArrayBlockingQueue<Contig>(
+				QUEUE_LENGTH_PER_THREAD * threads);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		List<Future<Integer>> results = new Vector<Future<Integer>>();
+
+		try {
+			for (int i = 0; i < threads; i++) {
+				ConsensusAlgorithm workerAlgorithm = (ConsensusAlgorithm) algclass
+						.newInstance();
+
+				results.add(executor.submit(new ConsensusWorker(queue,
+						workerAlgorithm)));
+			}
+
+			executor.shutdown();
+
+			int blockSize = adb.getContigBatchSize();
+
+			for (int start = 0; start < contigList.size(); start += blockSize) {
+				Contig[] contigs = loadContigBlock(contigList, start, blockSize);
+
+				for (int i = 0; i < contigs.length; i++)
+					if (contigs[i] != null)
+						enqueue(queue, contigs[i], results);
+			}
+
+			for (int i = 0; i < threads; i++)
+				enqueue(queue, END_OF_QUEUE, results);
+
+			int nContigs = 0;
+
+			for (Future<Integer> result : results)
+				nContigs += result.get();
+
+			return nContigs;
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			throw (cause instanceof Exception) ? (Exception) cause : ee;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void enqueue(BlockingQueue<Contig> queue, Contig contig,
+			List<Future<Integer>> results) throws InterruptedException,
+			ExecutionException {
+		while (!queue.offer(contig, 1, TimeUnit.SECONDS)) {
+			// A worker only finishes early if it has failed, in which case
+			// get() will re-throw the exception which caused it to stop.
+			for (Future<Integer> result : results)
+				if (result.isDone())
+					result.get();
+		}
+	}
+
 	private List<Integer> parseContigIDs(String string) {
 		List<Integer> contigs = new Vector<Integer>();
 		
@@ -226,9 +350,28 @@ public class CalculateConsensus {
 
 	public void calculateConsensusForContig(int contig_id)
 			throws ArcturusDatabaseException {
+		Contig contig = adb.getContigByID(contig_id, flags);
+
+		if (contig == null)
+			System.err.println("CONTIG " + contig_id + " does not exist");
+		else
+			calculateConsensusForContig(contig);
+	}
+
+	/**
+	 * Calculates and stores the consensus for a contig whose mappings, segments
+	 * and sequence data have already been loaded, for example by a call to
+	 * ArcturusDatabase.updateContigs.
+	 */
+
+	public void calculateConsensusForContig(Contig contig)
+			throws ArcturusDatabaseException {
+		if (contig == null)
+			return;
+
 		long clockStart = System.currentTimeMillis();
 
-		Contig contig = adb.getContigByID(contig_id, flags);
+		int contig_id = contig.getID();
 
 		PrintStream debugps = debug ? System.out : null;
 		
@@ -273,6 +416,8 @@ public class CalculateConsensus {
 		ps.println("\t-consensustable\tName of consensus table");
 		ps.println("\t-project\tName of project for contigs");
 		ps.println("\t-contigs\tComma-separated list of contigs");
+		ps.println("\t-batchsize\tNumber of contigs to load at a time");
+		ps.println("\t-threads\tNumber of worker threads [default: 1]");
 		ps.println();
 		ps.println("OPTIONS");
 		String[] options = { "-debug", "-allcontigs", "-nostore" };
@@ -288,7 +433,6 @@ public class CalculateConsensus {
 			return false;
 
 		Mapping[] mappings = contig.getMappings();
-		int cpos, rdleft, rdright, oldrdleft, oldrdright;
 
 		int cstart = mappings[0].getContigStart();
 		int cfinal = mappings[0].getContigFinish();
@@ -326,17 +470,16 @@ public class CalculateConsensus {
 			System.err.println("\nNormal reads: " + normalReads.size() + ", long read: "
 					+ longReads.size());
 
-		mappings = normalReads.toArray(new Mapping[0]);
+		ConsensusColumns normalColumns = new ConsensusColumns(normalReads
+				.toArray(new Mapping[normalReads.size()]));
+		ConsensusColumns longColumns = new ConsensusColumns(longReads
+				.toArray(new Mapping[longReads.size()]));
 
 		int truecontiglength = 1 + cfinal - cstart;
 
 		byte[] sequence = new byte[truecontiglength];
 		byte[] quality = new byte[truecontiglength];
 
-		int maxdepth = -1;
-
-		int nreads = mappings.length;
-		
 		long lasttime = 0L;
 		
 		if (progress) {
@@ -344,24 +487,9 @@ public class CalculateConsensus {
 			System.err.println();
 		}
 
-		for (cpos = cstart, rdleft = 0, oldrdleft = 0, rdright = -1, oldrdright = -1; cpos <= cfinal; cpos++) {
-			while ((rdleft < nreads)
-					&& (mappings[rdleft].getContigFinish() < cpos))
-				rdleft++;
-
-			while ((rdright < nreads - 1)
-					&& (mappings[rdright + 1].getContigStart() <= cpos))
-				rdright++;
-
-			int depth = 1 + rdright - rdleft;
-
-			if (rdleft != oldrdleft || rdright != oldrdright) {
-				if (depth > maxdepth)
-					maxdepth = depth;
-			}
-
-			oldrdleft = rdleft;
-			oldrdright = rdright;
+		for (int cpos = cstart; cpos <= cfinal; cpos++) {
+			normalColumns.advanceTo(cpos);
+			longColumns.advanceTo(cpos);
 
 			if (debugps != null) {
 				debugps.println("CONSENSUS POSITION: " + (1 + cpos - cstart));
@@ -369,31 +497,16 @@ public class CalculateConsensus {
 
 			algorithm.reset();
 
-			// Process the normal reads
-			for (int rdid = rdleft; rdid <= rdright; rdid++)
-				processMapping(mappings[rdid], cpos);
+			// Process the normal reads, then the oversize (consensus) reads
+			normalColumns.addBasesAt(cpos, algorithm);
+			longColumns.addBasesAt(cpos, algorithm);
 
-			// Process the oversize (consensus) reads
-			for (Mapping mapping : longReads)
-				processMapping(mapping, cpos);
+			sequence[cpos - cstart] = (byte) algorithm.getBestBase();
+			quality[cpos - cstart] = (byte) algorithm.getBestScore();
 
-			try {
-				sequence[cpos - cstart] = (byte) algorithm.getBestBase();
-				if (debugps != null)
-					debugps.print("RESULT --> " + algorithm.getBestBase());
-			} catch (ArrayIndexOutOfBoundsException e) {
-				System.err.println("Sequence array overflow: " + cpos
-						+ " (base=" + cstart + ")");
-			}
-
-			try {
-				quality[cpos - cstart] = (byte) algorithm.getBestScore();
-				if (debugps != null)
-					debugps.println(" [" + algorithm.getBestScore() + "]");
-			} catch (ArrayIndexOutOfBoundsException e) {
-				System.err.println("Quality array overflow: " + cpos
-						+ " (base=" + cstart + ")");
-			}
+			if (debugps != null)
+				debugps.println("RESULT --> " + algorithm.getBestBase() + " ["
+						+ algorithm.getBestScore() + "]");
 			
 			if (progress && (cpos % 10000 == 0)) {
 				long timenow = System.currentTimeMillis();
@@ -408,49 +521,19 @@ public class CalculateConsensus {
 		return true;
 	}
 
-	private void processMapping(Mapping mapping, int cpos) {
-		int rpos = -1;
-		int qual = -1;
-		
+	public void storeConsensus(int contig_id, Consensus consensus) throws ArcturusDatabaseException {
 		try {
-			rpos = mapping.getReadOffset(cpos);
-
-			qual = (rpos >= 0) ? mapping.getQuality(rpos) : mapping
-					.getPadQuality(cpos);
-		} catch (ArrayIndexOutOfBoundsException e) {
-			Sequence sequence = mapping.getSequence();
-			String readname = sequence.getRead().getName();
-			System.err.println("\n*** An inconsistent read-to-contig mapping was encountered when processing\n" 
-							+ "*** the mapping to read "
-							+ readname
-							+ " (sequence ID "
-							+ sequence.getID()
-							+ ", length "
-							+ sequence.getLength()
-							+ "bp)\n*** at contig position " + cpos + "\n");
-			return;
+			setConsensusParameters(stmtStoreConsensus, compresser, contig_id, consensus);
+			stmtStoreConsensus.executeUpdate();
+		}
+		catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to set consensus for contig ID=" + contig_id, conn, this);
 		}
-
-		if (qual <= 0)
-			return;
-
-		Read read = mapping.getSequence().getRead();
-
-		// In the Gap4 consensus algorithm, "strand" refers to the
-		// read-to-contig
-		// alignment direction, not the physical strand from which the
-		// read has
-		// been sequenced.
-		int strand = mapping.isForward() ? Read.FORWARD : Read.REVERSE;
-
-		int chemistry = read == null ? Read.UNKNOWN : read.getChemistry();
-
-		char base = (rpos >= 0) ? mapping.getBase(rpos) : '*';
-
-		algorithm.addBase(base, qual, strand, chemistry);
 	}
 
-	public void storeConsensus(int contig_id, Consensus consensus) throws ArcturusDatabaseException {
+	private static void setConsensusParameters(PreparedStatement pstmt,
+			Deflater compresser, int contig_id, Consensus consensus)
+			throws SQLException {
 		byte[] sequence = consensus.getDNA();
 		byte[] quality = consensus.getQuality();
 
@@ -458,37 +541,131 @@ public class CalculateConsensus {
 
 		byte[] buffer = new byte[12 + (5 * seqlen) / 4];
 
-		compresser.reset();
-		compresser.setInput(sequence);
-		compresser.finish();
-		
-		int compressedSequenceLength = compresser.deflate(buffer);
-		
-		byte[] compressedSequence = new byte[compressedSequenceLength];
-		
-		for (int i = 0; i < compressedSequenceLength; i++)
-			compressedSequence[i] = buffer[i];
+		byte[] compressedSequence = compress(compresser, sequence, buffer);
+		byte[] compressedQuality = compress(compresser, quality, buffer);
 
+		pstmt.setInt(1, contig_id);
+		pstmt.setInt(2, seqlen);
+		pstmt.setBytes(3, compressedSequence);
+		pstmt.setBytes(4, compressedQuality);
+	}
+
+	private static byte[] compress(Deflater compresser, byte[] data,
+			byte[] buffer) {
 		compresser.reset();
-		compresser.setInput(quality);
+		compresser.setInput(data);
 		compresser.finish();
 		
-		int compressedQualityLength = compresser.deflate(buffer);
+		int compressedLength = compresser.deflate(buffer);
 		
-		byte[] compressedQuality = new byte[compressedQualityLength];
+		byte[] compressedData = new byte[compressedLength];
 		
-		for (int i = 0; i < compressedQualityLength; i++)
-			compressedQuality[i] = buffer[i];
+		System.arraycopy(buffer, 0, compressedData, 0, compressedLength);
 
-		try {
-			stmtStoreConsensus.setInt(1, contig_id);
-			stmtStoreConsensus.setInt(2, seqlen);
-			stmtStoreConsensus.setBytes(3, compressedSequence);
-			stmtStoreConsensus.setBytes(4, compressedQuality);
-			stmtStoreConsensus.executeUpdate();
+		return compressedData;
+	}
+
+	private class ConsensusWorker implements Callable<Integer> {
+		private final BlockingQueue<Contig> queue;
+		private final ConsensusAlgorithm algorithm;
+		private final Consensus consensus = new Consensus();
+		private final Deflater compresser = new Deflater(Deflater.BEST_COMPRESSION);
+
+		private Connection conn = null;
+		private PreparedStatement stmtStoreConsensus = null;
+		private int pendingContigs = 0;
+
+		public ConsensusWorker(BlockingQueue<Contig> queue,
+				ConsensusAlgorithm algorithm) {
+			this.queue = queue;
+			this.algorithm = algorithm;
 		}
-		catch (SQLException e) {
-			adb.handleSQLException(e, "Failed to set consensus for contig ID=" + contig_id, conn, this);
+
+		public Integer call() throws Exception {
+			int nContigs = 0;
+
+			try {
+				if (!nostore) {
+					conn = adb.getPooledConnection(this);
+					stmtStoreConsensus = conn.prepareStatement(getStoreConsensusQuery());
+				}
+
+				while (true) {
+					Contig contig = queue.take();
+
+					if (contig == END_OF_QUEUE)
+						break;
+
+					processContig(contig);
+					nContigs++;
+				}
+
+				flush();
+			} finally {
+				compresser.end();
+
+				if (conn != null)
+					conn.close();
+			}
+
+			return nContigs;
+		}
+
+		private void processContig(Contig contig)
+				throws ArcturusDatabaseException {
+			long clockStart = System.currentTimeMillis();
+
+			int contig_id = contig.getID();
+
+			StringBuilder message = new StringBuilder("CONTIG " + contig_id
+					+ ": " + contig.getLength() + " bp, "
+					+ contig.getReadCount() + " reads ");
+
+			if (calculateConsensus(contig, algorithm, consensus, null)) {
+				long clockStop = System.currentTimeMillis() - clockStart;
+				message.append(clockStop + " ms");
+
+				if (nostore)
+					message.append("    CALCULATED");
+				else {
+					addToBatch(contig_id);
+					message.append("    QUEUED");
+				}
+			} else
+				message.append("data missing, operation abandoned");
+
+			System.err.println(message);
+
+			contig.setMappings(null);
+		}
+
+		private void addToBatch(int contig_id) throws ArcturusDatabaseException {
+			try {
+				setConsensusParameters(stmtStoreConsensus, compresser, contig_id, consensus);
+				stmtStoreConsensus.addBatch();
+			}
+			catch (SQLException e) {
+				adb.handleSQLException(e, "Failed to set consensus for contig ID=" + contig_id, conn, this);
+			}
+
+			pendingContigs++;
+
+			if (pendingContigs >= STORE_BATCH_SIZE)
+				flush();
+		}
+
+		private void flush() throws ArcturusDatabaseException {
+			if (pendingContigs == 0)
+				return;
+
+			try {
+				stmtStoreConsensus.executeBatch();
+			}
+			catch (SQLException e) {
+				adb.handleSQLException(e, "Failed to store a batch of consensus sequences", conn, this);
+			}
+
+			pendingContigs = 0;
 		}
 	}
 
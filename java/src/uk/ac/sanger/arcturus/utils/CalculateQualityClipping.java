@@ -27,9 +27,17 @@ import uk.ac.sanger.arcturus.database.*;
 import java.util.zip.*;
 import java.io.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
 
 public class CalculateQualityClipping {
 	private final int DEFAULT_THRESH = 15;
+	private final int DEFAULT_BATCH_SIZE = 1000;
+
+	private static final int ROWS_PER_TASK = 500;
+	private static final int TASKS_PER_THREAD = 4;
 
 	public final int MODE_UPDATE_NULLS = 1;
 	public final int MODE_UPDATE_ALL = 2;
@@ -50,6 +58,14 @@ public class CalculateQualityClipping {
 	private PreparedStatement pstmtInsert;
 	private PreparedStatement pstmtUpdate;
 
+	private int threads = 1;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int nDone;
+	private int nMismatch;
+	private int nWritten;
+	private int nBatched;
+
 	public void execute(String[] args) {
 		int thresh = DEFAULT_THRESH;
 
@@ -79,6 +95,12 @@ public class CalculateQualityClipping {
 
 			if (args[i].equalsIgnoreCase("-thresh"))
 				thresh = Integer.parseInt(args[++i]);
+
+			if (args[i].equalsIgnoreCase("-threads"))
+				threads = Integer.parseInt(args[++i]);
+
+			if (args[i].equalsIgnoreCase("-batchsize"))
+				batchSize = Integer.parseInt(args[++i]);
 		}
 
 		if (instance == null || organism == null) {
@@ -128,6 +150,9 @@ public class CalculateQualityClipping {
 		ps.println("OPTIONAL PARAMETERS");
 		ps.println("\t-thresh\tThreshold for clipping [DEFAULT: "
 				+ DEFAULT_THRESH + "]");
+		ps.println("\t-threads\tNumber of worker threads [DEFAULT: 1]");
+		ps.println("\t-batchsize\tNumber of rows in each batch of updates when using"
+				+ " more than one thread [DEFAULT: " + DEFAULT_BATCH_SIZE + "]");
 		ps.println();
 		ps.println("OPTIONS");
 		String[] options = { "-debug", "-updateall", "-calculateall" };
@@ -151,7 +176,13 @@ public class CalculateQualityClipping {
 	}
 
 	private void calculateQualityClipping(Connection conn, int thresh, int mode)
-			throws SQLException {
+			throws SQLException, ArcturusDatabaseException, InterruptedException,
+			ExecutionException {
+		if (threads > 1) {
+			calculateInParallel(conn, thresh, mode);
+			return;
+		}
+		
 		switch (mode) {
 			case MODE_UPDATE_NULLS:
 				updateNulls(conn, thresh);
@@ -362,6 +393,227 @@ public class CalculateQualityClipping {
 		System.out.println("Processed " + nDone + " sequences, found " + nMismatch + " mismatches");
 	} 
 
+	class ClippingRow {
+		private int seq_id;
+		private int seqlen;
+		private byte[] compressed;
+		private int oldqleft;
+		private int oldqright;
+		private int[] qclip;
+
+		public ClippingRow(int seq_id, int seqlen, byte[] compressed,
+				int oldqleft, int oldqright) {
+			this.seq_id = seq_id;
+			this.seqlen = seqlen;
+			this.compressed = compressed;
+			this.oldqleft = oldqleft;
+			this.oldqright = oldqright;
+		}
+	}
+
+	/**
+	 * Calculates the quality clipping of sequences using a pool of worker
+	 * threads. The sequences are read in a single streaming query and passed to
+	 * the workers in blocks. The results are collected in the order in which
+	 * the sequences were read, and the changes are written through a second
+	 * connection in JDBC batches, with a commit after each batch.
+	 * 
+	 * Unlike the single-threaded method, this method only updates the clipping
+	 * of a sequence if it has changed.
+	 */
+
+	private void calculateInParallel(Connection conn, int thresh, int mode)
+			throws SQLException, ArcturusDatabaseException,
+			InterruptedException, ExecutionException {
+		String query = "select SEQUENCE.seq_id,seqlen,quality,qleft,qright"
+				+ " from SEQUENCE left join QUALITYCLIP using(seq_id)";
+
+		if (mode == MODE_UPDATE_NULLS)
+			query += " where qleft is null";
+
+		Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+
+		stmt.setFetchSize(Integer.MIN_VALUE);
+
+		// A connection cannot be used for updates while a streaming query is
+		// active on it, so the changes are written through a second one.
+		Connection wconn = adb.getPooledConnection(this);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		nDone = nMismatch = nWritten = nBatched = 0;
+
+		try {
+			wconn.setAutoCommit(false);
+
+			PreparedStatement pstmtWrite = wconn
+					.prepareStatement(mode == MODE_UPDATE_NULLS ? "insert into QUALITYCLIP(qleft,qright,seq_id) VALUES(?,?,?)"
+							: "update QUALITYCLIP set qleft=?, qright=? where seq_id=?");
+
+			LinkedList<Future<List<ClippingRow>>> pending = new LinkedList<Future<List<ClippingRow>>>();
+
+			ResultSet rs = stmt.executeQuery(query);
+
+			List<ClippingRow> block = new ArrayList<ClippingRow>(ROWS_PER_TASK);
+
+			while (rs.next()) {
+				int seq_id = rs.getInt(1);
+				int seqlen = rs.getInt(2);
+				byte[] compressed = rs.getBytes(3);
+				int oldqleft = rs.getInt(4);
+				if (rs.wasNull())
+					oldqleft = -1;
+				int oldqright = rs.getInt(5);
+				if (rs.wasNull())
+					oldqright = -1;
+
+				block.add(new ClippingRow(seq_id, seqlen, compressed, oldqleft,
+						oldqright));
+
+				if (block.size() == ROWS_PER_TASK) {
+					pending.add(submitBlock(executor, block, thresh));
+
+					block = new ArrayList<ClippingRow>(ROWS_PER_TASK);
+
+					while (pending.size() > TASKS_PER_THREAD * threads)
+						writeResults(pending.removeFirst().get(), mode,
+								pstmtWrite, wconn);
+				}
+			}
+
+			rs.close();
+
+			if (!block.isEmpty())
+				pending.add(submitBlock(executor, block, thresh));
+
+			while (!pending.isEmpty())
+				writeResults(pending.removeFirst().get(), mode, pstmtWrite,
+						wconn);
+
+			flushBatch(pstmtWrite, wconn);
+
+			pstmtWrite.close();
+		} finally {
+			executor.shutdownNow();
+
+			stmt.close();
+
+			wconn.setAutoCommit(true);
+			wconn.close();
+		}
+
+		System.out.println("Processed " + nDone + " sequences, found "
+				+ nMismatch + " mismatches, wrote " + nWritten
+				+ " clipping ranges");
+	}
+
+	private Future<List<ClippingRow>> submitBlock(ExecutorService executor,
+			final List<ClippingRow> block, final int thresh) {
+		return executor.submit(new Callable<List<ClippingRow>>() {
+			public List<ClippingRow> call() throws Exception {
+				Inflater inflater = new Inflater();
+
+				try {
+					for (ClippingRow row : block) {
+						byte[] quality = inflate(inflater, row.compressed,
+								row.seqlen);
+
+						row.compressed = null;
+
+						if (quality != null && quality.length > 0)
+							row.qclip = calculateClipping(quality, thresh);
+					}
+				} finally {
+					inflater.end();
+				}
+
+				return block;
+			}
+		});
+	}
+
+	private static byte[] inflate(Inflater inflater, byte[] compressed,
+			int length) {
+		if (compressed == null)
+			return null;
+
+		byte[] buffer = new byte[length];
+
+		try {
+			inflater.setInput(compressed, 0, compressed.length);
+			inflater.inflate(buffer, 0, buffer.length);
+			inflater.reset();
+		} catch (DataFormatException dfe) {
+			inflater.reset();
+			return null;
+		}
+
+		return buffer;
+	}
+
+	private void writeResults(List<ClippingRow> rows, int mode,
+			PreparedStatement pstmtWrite, Connection wconn) throws SQLException {
+		for (ClippingRow row : rows) {
+			int[] qclip = row.qclip;
+
+			if (qclip == null) {
+				System.err.println("Unable to calculate quality clipping for seq_id = "
+								+ row.seq_id);
+				continue;
+			}
+
+			nDone++;
+
+			boolean changed = row.oldqleft != qclip[0]
+					|| row.oldqright != qclip[1];
+
+			if (changed && mode != MODE_UPDATE_NULLS) {
+				System.out.println(row.seq_id + " " + row.oldqleft + " "
+						+ qclip[0] + " " + row.oldqright + " " + qclip[1]);
+				nMismatch++;
+			}
+
+			if (debug && (nDone % 100) == 0)
+				System.err.println("Done " + nDone + ", " + nMismatch
+						+ " mismatches");
+
+			boolean write = (mode == MODE_UPDATE_NULLS)
+					|| (mode == MODE_UPDATE_ALL && changed && row.oldqleft >= 0);
+
+			if (write) {
+				pstmtWrite.setInt(1, qclip[0]);
+				pstmtWrite.setInt(2, qclip[1]);
+				pstmtWrite.setInt(3, row.seq_id);
+
+				pstmtWrite.addBatch();
+
+				if (++nBatched >= batchSize)
+					flushBatch(pstmtWrite, wconn);
+			}
+		}
+	}
+
+	private void flushBatch(PreparedStatement pstmtWrite, Connection wconn)
+			throws SQLException {
+		if (nBatched == 0)
+			return;
+
+		int[] counts = pstmtWrite.executeBatch();
+
+		wconn.commit();
+
+		for (int count : counts)
+			if (count > 0 || count == Statement.SUCCESS_NO_INFO)
+				nWritten++;
+
+		if (debug)
+			System.err.println("Wrote a batch of " + nBatched
+					+ " clipping ranges, " + nWritten + " in total");
+
+		nBatched = 0;
+	}
+
 	public static void main(String args[]) {
 		CalculateQualityClipping cqc = new CalculateQualityClipping();
 		cqc.execute(args);
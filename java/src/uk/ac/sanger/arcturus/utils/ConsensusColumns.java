@@ -0,0 +1,276 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.utils;
+
+import uk.ac.sanger.arcturus.data.*;
+
+/**
+ * A compact, column-oriented representation of a set of read-to-contig
+ * mappings for use in consensus calculation.
+ *
+ * Each mapping is expanded once into a run of bases and qualities, one per
+ * contig position which it spans. Pads between segments are represented by '*'
+ * with a quality interpolated from the flanking bases, exactly as in
+ * Mapping.getPadQuality. Positions which contribute nothing to the consensus
+ * have a quality of zero.
+ *
+ * The columns are visited in ascending order of contig position by calling
+ * advanceTo and then addBasesAt. The mappings must be sorted in ascending order
+ * of contig start position.
+ */
+
+public class ConsensusColumns {
+	private static final byte[] COMPLEMENT = new byte[256];
+
+	static {
+		for (int i = 0; i < COMPLEMENT.length; i++)
+			COMPLEMENT[i] = (byte) i;
+
+		String from = "acgtACGT";
+		String to = "tgcaTGCA";
+
+		for (int i = 0; i < from.length(); i++)
+			COMPLEMENT[from.charAt(i)] = (byte) to.charAt(i);
+	}
+
+	private final int nreads;
+
+	private final int[] cstart;
+	private final int[] cfinish;
+	private final int[] offset;
+	private final int[] strand;
+	private final int[] chemistry;
+
+	private final byte[] bases;
+	private final byte[] quality;
+
+	private final int[] active;
+	private int nactive = 0;
+	private int nextRead = 0;
+
+	/**
+	 * Constructs the column representation of the specified mappings. Each
+	 * mapping must have its sequence, DNA, quality and segments defined.
+	 *
+	 * @param mappings
+	 *            the mappings, sorted by contig start position.
+	 */
+
+	public ConsensusColumns(Mapping[] mappings) {
+		nreads = mappings.length;
+
+		cstart = new int[nreads];
+		cfinish = new int[nreads];
+		offset = new int[nreads];
+		strand = new int[nreads];
+		chemistry = new int[nreads];
+
+		active = new int[nreads];
+
+		int total = 0;
+
+		for (int i = 0; i < nreads; i++) {
+			Mapping mapping = mappings[i];
+			Read read = mapping.getSequence().getRead();
+
+			cstart[i] = mapping.getContigStart();
+			cfinish[i] = mapping.getContigFinish();
+
+			offset[i] = total;
+			total += 1 + cfinish[i] - cstart[i];
+
+			// In the Gap4 consensus algorithm, "strand" refers to the
+			// read-to-contig alignment direction, not the physical strand
+			// from which the read has been sequenced.
+			strand[i] = mapping.isForward() ? Read.FORWARD : Read.REVERSE;
+
+			chemistry[i] = read == null ? Read.UNKNOWN : read.getChemistry();
+		}
+
+		bases = new byte[total];
+		quality = new byte[total];
+
+		for (int i = 0; i < nreads; i++)
+			expandMapping(i, mappings[i]);
+	}
+
+	private void expandMapping(int i, Mapping mapping) {
+		Sequence sequence = mapping.getSequence();
+
+		byte[] dna = sequence.getDNA();
+		byte[] qual = sequence.getQuality();
+
+		boolean forward = mapping.isForward();
+
+		Segment[] segments = mapping.getSegments();
+
+		Segment left = null;
+
+		for (int j = 0; j < segments.length; j++) {
+			Segment segment = segments[j];
+
+			if (segment == null) {
+				left = null;
+				continue;
+			}
+
+			if (left != null)
+				expandPad(i, mapping, left, segment);
+
+			int segstart = segment.getContigStart();
+			int rstart = segment.getReadStart();
+
+			int from = Math.max(segstart, cstart[i]);
+			int to = Math.min(segment.getContigFinish(), cfinish[i]);
+
+			for (int cpos = from; cpos <= to; cpos++) {
+				int rpos = forward ? rstart + (cpos - segstart) : rstart
+						- (cpos - segstart);
+
+				int k = offset[i] + cpos - cstart[i];
+
+				if (rpos > 0 && rpos <= dna.length) {
+					byte base = dna[rpos - 1];
+					bases[k] = forward ? base : COMPLEMENT[base & 0xff];
+				} else
+					bases[k] = '?';
+
+				if (rpos > 0 && rpos <= qual.length)
+					quality[k] = qual[rpos - 1];
+			}
+
+			left = segment;
+		}
+	}
+
+	private void expandPad(int i, Mapping mapping, Segment left,
+			Segment right) {
+		int cleft = left.getContigFinish();
+		int cright = right.getContigStart();
+
+		if (cright - cleft < 2)
+			return;
+
+		byte[] qual = mapping.getSequence().getQuality();
+
+		boolean forward = mapping.isForward();
+
+		int rleft = left.getReadFinish(forward);
+		int rright = right.getReadStart();
+
+		if (rleft < 1 || rleft > qual.length || rright < 1
+				|| rright > qual.length) {
+			reportInconsistentMapping(mapping, cleft + 1);
+			return;
+		}
+
+		int qleft = (int) qual[rleft - 1];
+		int qright = (int) qual[rright - 1];
+
+		int from = Math.max(cleft + 1, cstart[i]);
+		int to = Math.min(cright - 1, cfinish[i]);
+
+		for (int cpos = from; cpos <= to; cpos++) {
+			int k = offset[i] + cpos - cstart[i];
+
+			bases[k] = '*';
+			quality[k] = (byte) (qleft + ((qright - qleft) * (cpos - cleft))
+					/ (cright - cleft));
+		}
+	}
+
+	private void reportInconsistentMapping(Mapping mapping, int cpos) {
+		Sequence sequence = mapping.getSequence();
+		Read read = sequence.getRead();
+		String readname = read == null ? "(unknown)" : read.getName();
+		System.err.println("\n*** An inconsistent read-to-contig mapping was encountered when processing\n"
+				+ "*** the mapping to read "
+				+ readname
+				+ " (sequence ID "
+				+ sequence.getID()
+				+ ", length "
+				+ sequence.getLength()
+				+ "bp)\n*** at contig position " + cpos + "\n");
+	}
+
+	/**
+	 * Returns the number of mappings represented by this object.
+	 *
+	 * @return the number of mappings represented by this object.
+	 */
+
+	public int getMappingCount() {
+		return nreads;
+	}
+
+	/**
+	 * Updates the set of mappings which span the specified contig position.
+	 * Successive calls must specify non-decreasing positions.
+	 *
+	 * @param cpos
+	 *            the contig position.
+	 *
+	 * @return the number of mappings which span the specified position.
+	 */
+
+	public int advanceTo(int cpos) {
+		int n = 0;
+
+		for (int j = 0; j < nactive; j++)
+			if (cfinish[active[j]] >= cpos)
+				active[n++] = active[j];
+
+		nactive = n;
+
+		while (nextRead < nreads && cstart[nextRead] <= cpos) {
+			if (cfinish[nextRead] >= cpos)
+				active[nactive++] = nextRead;
+
+			nextRead++;
+		}
+
+		return nactive;
+	}
+
+	/**
+	 * Passes the base and quality of each mapping at the specified contig
+	 * position to the consensus algorithm, in the order in which the mappings
+	 * were given to the constructor. The position must be the one which was
+	 * given in the most recent call to advanceTo.
+	 *
+	 * @param cpos
+	 *            the contig position.
+	 * @param algorithm
+	 *            the consensus algorithm.
+	 */
+
+	public void addBasesAt(int cpos, ConsensusAlgorithm algorithm) {
+		for (int j = 0; j < nactive; j++) {
+			int i = active[j];
+			int k = offset[i] + cpos - cstart[i];
+			int q = quality[k];
+
+			if (q > 0)
+				algorithm.addBase((char) bases[k], q, strand[i], chemistry[i]);
+		}
+	}
+}
@@ -60,8 +60,17 @@ public class ContigCAFWriter {
 	private PreparedStatement pstmtReadTag;
 	private PreparedStatement pstmtAlignToSCF;
 
+	private PreparedStatement pstmtBulkReadData;
+	private PreparedStatement pstmtBulkQualityClipping;
+	private PreparedStatement pstmtBulkSequenceVector;
+	private PreparedStatement pstmtBulkCloningVector;
+	private PreparedStatement pstmtBulkReadTag;
+	private PreparedStatement pstmtBulkAlignToSCF;
+
 	private PreparedStatement pstmtContigsForProject;
 
+	private boolean bulkMode = true;
+
 	private Map<Integer, String> dictBasecaller = new HashMap<Integer, String>();
 	private Map<Integer, String> dictReadStatus = new HashMap<Integer, String>();
 	private Map<Integer, String> dictClone = new HashMap<Integer, String>();
@@ -189,6 +198,48 @@ public class ContigCAFWriter {
 		
 		pstmtAlignToSCF = conn.prepareStatement(sql);
 		
+		sql = "select MAPPING.seq_id,READINFO.read_id,"
+				+ "readname,asped,strand,primer,chemistry,basecaller,status,"
+				+ "TEMPLATE.name,TEMPLATE.ligation_id,sequence,quality,seqlen"
+				+ " from MAPPING left join SEQ2READ on MAPPING.seq_id = SEQ2READ.seq_id"
+				+ " left join READINFO on SEQ2READ.read_id = READINFO.read_id"
+				+ " left join TEMPLATE on READINFO.template_id = TEMPLATE.template_id"
+				+ " left join SEQUENCE on MAPPING.seq_id = SEQUENCE.seq_id"
+				+ " where contig_id = ? order by MAPPING.seq_id asc";
+		
+		pstmtBulkReadData = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+		
+		pstmtBulkReadData.setFetchSize(Integer.MIN_VALUE);
+		
+		sql = "select MAPPING.seq_id,qleft,qright"
+				+ " from MAPPING join QUALITYCLIP using(seq_id) where contig_id = ?";
+		
+		pstmtBulkQualityClipping = conn.prepareStatement(sql);
+		
+		sql = "select MAPPING.seq_id,svleft,svright,name"
+				+ " from MAPPING join SEQVEC using(seq_id) left join SEQUENCEVECTOR using(svector_id)"
+				+ " where contig_id = ?";
+		
+		pstmtBulkSequenceVector = conn.prepareStatement(sql);
+		
+		sql = "select MAPPING.seq_id,cvleft,cvright,name"
+				+ " from MAPPING join CLONEVEC using(seq_id) left join CLONINGVECTOR using(cvector_id)"
+				+ " where contig_id = ?";
+		
+		pstmtBulkCloningVector = conn.prepareStatement(sql);
+		
+		sql = "select MAPPING.seq_id,tagtype,pstart,pfinal,comment"
+				+ " from MAPPING join READTAG using(seq_id) where contig_id = ? and"
+				+ " (deprecated is null or deprecated = 'N')";
+		
+		pstmtBulkReadTag = conn.prepareStatement(sql);
+		
+		sql = "select MAPPING.seq_id,startinseq,startinscf,length"
+				+ " from MAPPING join ALIGN2SCF using(seq_id) where contig_id = ?";
+		
+		pstmtBulkAlignToSCF = conn.prepareStatement(sql);
+		
 		sql = "select contig_id from"
 				+ " CURRENTCONTIGS left join PROJECT using(project_id)"
 				+ " where name=?";
@@ -308,6 +359,23 @@ public class ContigCAFWriter {
 		}
 	}
 	
+	/**
+	 * Specifies whether the reads in each contig should be written using one
+	 * query for each type of read data, or using one query per read for each
+	 * type of data, as in earlier versions. Bulk mode is the default.
+	 * 
+	 * @param bulkMode
+	 *            true if the read data should be fetched for the whole contig.
+	 */
+
+	public void setBulkMode(boolean bulkMode) {
+		this.bulkMode = bulkMode;
+	}
+
+	public boolean isBulkMode() {
+		return bulkMode;
+	}
+	
 	public int writeContigAsCAF(Contig contig, PrintWriter pw) 
 		throws ArcturusDatabaseException {
 		int contigid = contig.getID();
@@ -464,6 +532,9 @@ public class ContigCAFWriter {
 
 		pw.println();
 
+		if (bulkMode)
+			return writeReadsInBulk(contigid, pw);
+
 		for (Mapping mapping : mappings.values()) {
 			int readid = mapping.getReadID();
 			int seqid = mapping.getSequenceID();
@@ -481,15 +552,121 @@ public class ContigCAFWriter {
 		throw new ArcturusDatabaseException(e, message);
 	}
 
+	class ReadData {
+		private int readid;
+		private String readname;
+		private java.util.Date asped;
+		private String strand;
+		private String primer;
+		private String chemistry;
+		private String basecaller;
+		private String status;
+
+		private String template;
+		private String ligation;
+		private int silow = -1;
+		private int sihigh = -1;
+		private String clone;
+
+		private StringBuffer auxiliary = new StringBuffer();
+		private boolean hasAlignToSCF = false;
+
+		private byte[] dna;
+		private byte[] quality;
+		private int seqlen;
+	}
+
+	private void setReadBasicData(ReadData read, ResultSet rs, int column)
+			throws SQLException {
+		read.readname = rs.getString(column);
+		read.asped = rs.getDate(column + 1);
+		read.strand = rs.getString(column + 2);
+		read.primer = rs.getString(column + 3);
+		read.chemistry = rs.getString(column + 4);
+
+		int basecaller_id = rs.getInt(column + 5);
+
+		read.basecaller = rs.wasNull() ? null : dictBasecaller
+				.get(basecaller_id);
+
+		int status_id = rs.getInt(column + 6);
+
+		read.status = rs.wasNull() ? null : dictReadStatus.get(status_id);
+	}
+
+	private void setReadCloneData(ReadData read, String template,
+			int ligation_id) {
+		read.template = template;
+
+		Ligation l = dictLigation.get(ligation_id);
+
+		if (l != null) {
+			read.ligation = l.getName();
+			read.silow = l.getSilow();
+			read.sihigh = l.getSihigh();
+			read.clone = l.getCloneName();
+		}
+	}
+
+	private void appendQualityClipping(StringBuffer buffer, ResultSet rs,
+			int column) throws SQLException {
+		int qleft = rs.getInt(column);
+		int qright = rs.getInt(column + 1);
+		buffer.append("Clipping QUAL " + qleft + " " + qright + "\n");
+	}
+
+	private void appendSequenceVector(StringBuffer buffer, ResultSet rs,
+			int column) throws SQLException {
+		int svleft = rs.getInt(column);
+		int svright = rs.getInt(column + 1);
+		String svname = rs.getString(column + 2);
+		buffer.append("Seq_vec SVEC " + svleft + " " + svright + " \""
+				+ svname + "\"" + "\n");
+	}
+
+	private void appendCloningVector(StringBuffer buffer, ResultSet rs,
+			int column) throws SQLException {
+		int cvleft = rs.getInt(column);
+		int cvright = rs.getInt(column + 1);
+		String cvname = rs.getString(column + 2);
+		buffer.append("Clone_vec CVEC " + cvleft + " " + cvright
+				+ " \"" + cvname + "\"" + "\n");
+	}
+
+	private void appendReadTag(StringBuffer buffer, ResultSet rs, int column)
+			throws SQLException {
+		String tagtype = rs.getString(column);
+		int tagstart = rs.getInt(column + 1);
+		int tagfinish = rs.getInt(column + 2);
+		String tagcomment = rs.getString(column + 3);
+
+		buffer.append("Tag " + tagtype + " " + tagstart + " "
+				+ tagfinish);
+		if (tagcomment != null)
+			buffer.append(" \"" + tagcomment + "\"");
+		buffer.append('\n');
+	}
+
+	private void appendAlignToSCF(StringBuffer buffer, ResultSet rs,
+			int column) throws SQLException {
+		int startInSequence = rs.getInt(column);
+		int startInSCF = rs.getInt(column + 1);
+
+		int length = rs.getInt(column + 2);
+
+		int endInSequence = startInSequence + length - 1;
+		int endInSCF = startInSCF + length - 1;
+
+		buffer.append("Align_to_SCF " + startInSequence + " "
+				+ endInSequence + " " + startInSCF + " " + endInSCF
+				+ "\n");
+	}
+
 	private int writeRead(int readid, int seqid, PrintWriter pw)
 			throws ArcturusDatabaseException {
-		String readname = null;
-		java.util.Date asped = null;
-		String strand = null;
-		String primer = null;
-		String chemistry = null;
-		String basecaller = null;
-		String status = null;
+		ReadData read = new ReadData();
+		
+		read.readid = readid;
 		
 		try {
 			pstmtReadBasicData.setInt(1, readid);
@@ -501,20 +678,7 @@ public class ContigCAFWriter {
 				return READ_BASIC_DATA_NOT_FOUND;
 			}
 
-			readname = rs.getString(1);
-			asped = rs.getDate(2);
-			strand = rs.getString(3);
-			primer = rs.getString(4);
-			chemistry = rs.getString(5);
-
-			int basecaller_id = rs.getInt(6);
-
-			basecaller = rs.wasNull() ? null : dictBasecaller
-					.get(basecaller_id);
-
-			int status_id = rs.getInt(7);
-
-			status = rs.wasNull() ? null : dictReadStatus.get(status_id);
+			setReadBasicData(read, rs, 1);
 
 			rs.close();
 		}
@@ -522,36 +686,13 @@ public class ContigCAFWriter {
 			adb.handleSQLException(e, "Failed to get basic data for read ID=" + readid, conn, this);
 		}
 
-		String template = null;
-		String ligation = null;
-		int silow = -1;
-		int sihigh = -1;
-		String clone = null;
-		
 		try {
 			pstmtReadCloneData.setInt(1, readid);
 
 			ResultSet rs = pstmtReadCloneData.executeQuery();
 
-			template = null;
-			ligation = null;
-			silow = -1;
-			sihigh = -1;
-			clone = null;
-
-			if (rs.next()) {
-				template = rs.getString(1);
-				int ligation_id = rs.getInt(2);
-
-				Ligation l = dictLigation.get(ligation_id);
-
-				if (l != null) {
-					ligation = l.getName();
-					silow = l.getSilow();
-					sihigh = l.getSihigh();
-					clone = l.getCloneName();
-				}
-			}
+			if (rs.next())
+				setReadCloneData(read, rs.getString(1), rs.getInt(2));
 
 			rs.close();
 		}
@@ -559,52 +700,15 @@ public class ContigCAFWriter {
 			adb.handleSQLException(e, "Failed to get clone data for read ID=" + readid, conn, this);
 		}
 
-		StringBuffer buffer = new StringBuffer(4096);
-
-		buffer.append("Sequence : " + readname + "\n");
-		buffer.append("Is_read\n");
-		buffer.append("Unpadded\n");
-
-		buffer.append("SCF_File " + readname + "SCF\n");
-
-		buffer.append("Template " + template + "\n");
-
-		if (silow > 0 && sihigh > 0)
-			buffer.append("Insert_size " + silow + " " + sihigh + "\n");
-
-		if (ligation != null)
-			buffer.append("Ligation_no " + ligation + "\n");
-
-		if (primer != null)
-			buffer.append("Primer " + primer + "\n");
-
-		if (strand != null)
-			buffer.append("Strand " + strand + "\n");
-
-		if (chemistry != null)
-			buffer.append("Dye " + chemistry + "\n");
-
-		if (clone != null)
-			buffer.append("Clone " + clone + "\n");
-
-		buffer.append("ProcessStatus " + status + "\n");
-
-		if (asped != null)
-			buffer.append("Asped " + dateformat.format(asped) + "\n");
-
-		if (basecaller != null)
-			buffer.append("Base_caller " + basecaller + "\n");
+		StringBuffer buffer = read.auxiliary;
 
 		try {
 			pstmtQualityClipping.setInt(1, seqid);
 
 			ResultSet rs = pstmtQualityClipping.executeQuery();
 
-			while (rs.next()) {
-				int qleft = rs.getInt(1);
-				int qright = rs.getInt(2);
-				buffer.append("Clipping QUAL " + qleft + " " + qright + "\n");
-			}
+			while (rs.next())
+				appendQualityClipping(buffer, rs, 1);
 
 			rs.close();
 		}
@@ -617,13 +721,8 @@ public class ContigCAFWriter {
 
 			ResultSet rs = pstmtSequenceVector.executeQuery();
 
-			while (rs.next()) {
-				int svleft = rs.getInt(1);
-				int svright = rs.getInt(2);
-				String svname = rs.getString(3);
-				buffer.append("Seq_vec SVEC " + svleft + " " + svright + " \""
-						+ svname + "\"" + "\n");
-			}
+			while (rs.next())
+				appendSequenceVector(buffer, rs, 1);
 
 			rs.close();
 		}
@@ -637,13 +736,8 @@ public class ContigCAFWriter {
 
 			ResultSet rs = pstmtCloningVector.executeQuery();
 
-			while (rs.next()) {
-				int cvleft = rs.getInt(1);
-				int cvright = rs.getInt(2);
-				String cvname = rs.getString(3);
-				buffer.append("Clone_vec CVEC " + cvleft + " " + cvright
-						+ " \"" + cvname + "\"" + "\n");
-			}
+			while (rs.next())
+				appendCloningVector(buffer, rs, 1);
 
 			rs.close();
 		}
@@ -656,18 +750,8 @@ public class ContigCAFWriter {
 
 			ResultSet rs = pstmtReadTag.executeQuery();
 
-			while (rs.next()) {
-				String tagtype = rs.getString(1);
-				int tagstart = rs.getInt(2);
-				int tagfinish = rs.getInt(3);
-				String tagcomment = rs.getString(4);
-
-				buffer.append("Tag " + tagtype + " " + tagstart + " "
-						+ tagfinish);
-				if (tagcomment != null)
-					buffer.append(" \"" + tagcomment + "\"");
-				buffer.append('\n');
-			}
+			while (rs.next())
+				appendReadTag(buffer, rs, 1);
 
 			rs.close();
 		}
@@ -675,28 +759,14 @@ public class ContigCAFWriter {
 			adb.handleSQLException(e, "Failed to get read tag data for read ID=" + readid, conn, this);
 		}
 
-		boolean hasAlignToSCF = false;
-
 		try {
 			pstmtAlignToSCF.setInt(1, seqid);
 
 			ResultSet rs = pstmtAlignToSCF.executeQuery();
 
-
 			while (rs.next()) {
-				hasAlignToSCF = true;
-
-				int startInSequence = rs.getInt(1);
-				int startInSCF = rs.getInt(2);
-
-				int length = rs.getInt(3);
-
-				int endInSequence = startInSequence + length - 1;
-				int endInSCF = startInSCF + length - 1;
-
-				buffer.append("Align_to_SCF " + startInSequence + " "
-						+ endInSequence + " " + startInSCF + " " + endInSCF
-						+ "\n");
+				read.hasAlignToSCF = true;
+				appendAlignToSCF(buffer, rs, 1);
 			}
 
 			rs.close();
@@ -705,19 +775,15 @@ public class ContigCAFWriter {
 			adb.handleSQLException(e, "Failed to get AlignToSCF data for read ID=" + readid, conn, this);
 		}
 		
-		byte[] dna = null;
-		byte[] quality = null;
-		int seqlen = 0;
-		
 		try {
 			pstmtSequence.setInt(1, seqid);
 
 			ResultSet rs = pstmtSequence.executeQuery();
 
 			if (rs.next()) {
-				dna = rs.getBytes(1);
-				quality = rs.getBytes(2);
-				seqlen = rs.getInt(3);
+				read.dna = rs.getBytes(1);
+				read.quality = rs.getBytes(2);
+				read.seqlen = rs.getInt(3);
 			}
 
 			rs.close();
@@ -726,26 +792,75 @@ public class ContigCAFWriter {
 			adb.handleSQLException(e, "Failed to get sequence data for read ID=" + readid, conn, this);
 		}
 		
-		if (dna == null || quality == null)
+		return writeRead(read, pw);
+	}
+
+	private int writeRead(ReadData read, PrintWriter pw)
+			throws ArcturusDatabaseException {
+		if (read.dna == null || read.quality == null)
 			return NO_SEQUENCE_DATA;
+
+		String readname = read.readname;
+		int seqlen = read.seqlen;
+
+		StringBuffer buffer = new StringBuffer(4096);
+
+		buffer.append("Sequence : " + readname + "\n");
+		buffer.append("Is_read\n");
+		buffer.append("Unpadded\n");
+
+		buffer.append("SCF_File " + readname + "SCF\n");
+
+		buffer.append("Template " + read.template + "\n");
+
+		if (read.silow > 0 && read.sihigh > 0)
+			buffer.append("Insert_size " + read.silow + " " + read.sihigh + "\n");
+
+		if (read.ligation != null)
+			buffer.append("Ligation_no " + read.ligation + "\n");
+
+		if (read.primer != null)
+			buffer.append("Primer " + read.primer + "\n");
+
+		if (read.strand != null)
+			buffer.append("Strand " + read.strand + "\n");
+
+		if (read.chemistry != null)
+			buffer.append("Dye " + read.chemistry + "\n");
+
+		if (read.clone != null)
+			buffer.append("Clone " + read.clone + "\n");
+
+		buffer.append("ProcessStatus " + read.status + "\n");
+
+		if (read.asped != null)
+			buffer.append("Asped " + dateformat.format(read.asped) + "\n");
+
+		if (read.basecaller != null)
+			buffer.append("Base_caller " + read.basecaller + "\n");
+
+		buffer.append(read.auxiliary);
 		
-		if (!hasAlignToSCF)
+		if (!read.hasAlignToSCF)
 			buffer.append("Align_to_SCF 1 " + seqlen + " 1 " + seqlen + "\n");
 
 		pw.println(buffer.toString());
 
 		pw.println();
 
+		byte[] dna = null;
+		byte[] quality = null;
+		
 		try {
-			dna = decodeCompressedData(dna, seqlen);
+			dna = decodeCompressedData(read.dna, seqlen);
 		} catch (DataFormatException e) {
-			handleDataFormatException(e, "Faled to decompress DNA data for read ID=" + readid);
+			handleDataFormatException(e, "Faled to decompress DNA data for read ID=" + read.readid);
 		}
 		
 		try {
-			quality = decodeCompressedData(quality, seqlen);
+			quality = decodeCompressedData(read.quality, seqlen);
 		} catch (DataFormatException e) {
-			handleDataFormatException(e, "Faled to decompress quality data for read ID=" + readid);
+			handleDataFormatException(e, "Faled to decompress quality data for read ID=" + read.readid);
 		}
 
 		pw.println("DNA : " + readname);
@@ -763,8 +878,121 @@ public class ContigCAFWriter {
 		return OK;
 	}
 
+	/*
+	 * Writes all of the reads in a contig using one query for each type of
+	 * data. The auxiliary data (clipping, vectors, tags and alignments to the
+	 * trace) are small, so they are collected first, keyed by sequence ID.
+	 * The read, template and sequence data are then streamed in order of
+	 * sequence ID, since MySQL allows only one streaming result set per
+	 * connection.
+	 */
+
+	private int writeReadsInBulk(int contigid, PrintWriter pw)
+			throws ArcturusDatabaseException {
+		Map<Integer, ReadData> auxiliary = new HashMap<Integer, ReadData>();
+
+		try {
+			getAuxiliaryData(pstmtBulkQualityClipping, contigid, auxiliary);
+			getAuxiliaryData(pstmtBulkSequenceVector, contigid, auxiliary);
+			getAuxiliaryData(pstmtBulkCloningVector, contigid, auxiliary);
+			getAuxiliaryData(pstmtBulkReadTag, contigid, auxiliary);
+			getAuxiliaryData(pstmtBulkAlignToSCF, contigid, auxiliary);
+		}
+		catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to get auxiliary read data for contig ID=" + contigid, conn, this);
+		}
+
+		int rc = OK;
+		
+		ResultSet rs = null;
+
+		try {
+			pstmtBulkReadData.setInt(1, contigid);
+
+			rs = pstmtBulkReadData.executeQuery();
+
+			while (rc == OK && rs.next()) {
+				int seqid = rs.getInt(1);
+				
+				ReadData read = auxiliary.remove(seqid);
+				
+				if (read == null)
+					read = new ReadData();
+				
+				read.readid = rs.getInt(2);
+				
+				if (rs.wasNull()) {
+					rc = READ_BASIC_DATA_NOT_FOUND;
+					break;
+				}
+				
+				setReadBasicData(read, rs, 3);
+				
+				setReadCloneData(read, rs.getString(10), rs.getInt(11));
+				
+				read.dna = rs.getBytes(12);
+				read.quality = rs.getBytes(13);
+				read.seqlen = rs.getInt(14);
+				
+				rc = writeRead(read, pw);
+			}
+		}
+		catch (SQLException e) {
+			adb.handleSQLException(e, "Failed to get read data for contig ID=" + contigid, conn, this);
+		}
+		finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					adb.handleSQLException(e, "Failed to close read data for contig ID=" + contigid, conn, this);
+				}
+			}
+		}
+		
+		return rc;
+	}
+
+	private void getAuxiliaryData(PreparedStatement pstmt, int contigid,
+			Map<Integer, ReadData> auxiliary) throws SQLException {
+		pstmt.setInt(1, contigid);
+
+		ResultSet rs = pstmt.executeQuery();
+
+		while (rs.next()) {
+			int seqid = rs.getInt(1);
+
+			ReadData read = auxiliary.get(seqid);
+
+			if (read == null) {
+				read = new ReadData();
+				auxiliary.put(seqid, read);
+			}
+
+			if (pstmt == pstmtBulkQualityClipping)
+				appendQualityClipping(read.auxiliary, rs, 2);
+			else if (pstmt == pstmtBulkSequenceVector)
+				appendSequenceVector(read.auxiliary, rs, 2);
+			else if (pstmt == pstmtBulkCloningVector)
+				appendCloningVector(read.auxiliary, rs, 2);
+			else if (pstmt == pstmtBulkReadTag)
+				appendReadTag(read.auxiliary, rs, 2);
+			else {
+				read.hasAlignToSCF = true;
+				appendAlignToSCF(read.auxiliary, rs, 2);
+			}
+		}
+
+		rs.close();
+	}
+
 	private void writeReadsForContig(int contigid, PrintWriter pwReads)
 			throws ArcturusDatabaseException {
+		if (bulkMode) {
+			writeReadsInBulk(contigid, pwReads);
+			return;
+		}
+		
 		try {
 		pstmtMapping.setInt(1, contigid);
 
@@ -22,6 +22,8 @@
 package uk.ac.sanger.arcturus.utils;
 
 import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.*;
 
 import javax.naming.NamingException;
 
@@ -31,10 +33,16 @@ import uk.ac.sanger.arcturus.data.Contig;
 import uk.ac.sanger.arcturus.data.Project;
 import uk.ac.sanger.arcturus.database.ArcturusDatabase;
 import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.database.ContigIterator;
 import uk.ac.sanger.arcturus.database.ContigProcessor;
 import uk.ac.sanger.arcturus.database.ProjectLockException;
 
 public class ProjectExporter {
+	private static final int CONTIGS_PER_THREAD = 4;
+	private static final int MAX_READS_IN_MEMORY = 1000;
+
+	private int threads = 1;
+
 	public static void main(String[] args) {
 		ProjectExporter exporter = new ProjectExporter();
 
@@ -62,6 +70,8 @@ public class ProjectExporter {
 				cafFileName = args[++i];
 			else if (args[i].equalsIgnoreCase("-projects"))
 				projectList = args[++i];
+			else if (args[i].equalsIgnoreCase("-threads"))
+				threads = Integer.parseInt(args[++i]);
 			else if (args[i].equalsIgnoreCase("-help")) {
 				printUsage(null, System.err);
 				return;
@@ -107,7 +117,8 @@ public class ProjectExporter {
 
 		String[] projects = projectList.split(",");
 
-		Processor processor = new Processor(adb, pw);
+		ExportProcessor processor = threads > 1 ? new ParallelProcessor(adb,
+				pw, threads) : new Processor(adb, pw);
 
 		for (int i = 0; i < projects.length; i++) {
 			Project project = adb.getProjectByName(null, projects[i]);
@@ -120,10 +131,18 @@ public class ProjectExporter {
 			}
 		}
 		
+		processor.close();
+		
 		pw.close();
 	}
 
-	class Processor extends ContigCAFWriter implements ContigProcessor {
+	interface ExportProcessor extends ContigProcessor {
+		public void flush();
+
+		public void close() throws ArcturusDatabaseException;
+	}
+
+	class Processor extends ContigCAFWriter implements ExportProcessor {
 		private PrintWriter mypw;
 
 		public Processor(ArcturusDatabase adb, PrintWriter pw)
@@ -148,9 +167,187 @@ public class ProjectExporter {
 
 			return rc == OK;
 		}
+
+		public void flush() {
+		}
 	}
 
-	private void exportProject(Project project, Processor processor)
+	/**
+	 * Exports contigs using a pool of worker threads, each of which has its
+	 * own CAF writer and pooled connection. Each contig is written to a buffer,
+	 * in memory for small contigs or in a temporary file for large ones, and
+	 * the buffers are copied to the output file in the original contig order
+	 * by the calling thread.
+	 */
+
+	class ParallelProcessor implements ExportProcessor {
+		private PrintWriter mypw;
+		private Processor[] processors;
+		private BlockingQueue<Processor> idleProcessors;
+		private ExecutorService executor;
+		private LinkedList<Future<ContigBuffer>> pending = new LinkedList<Future<ContigBuffer>>();
+		private int maxPending;
+
+		public ParallelProcessor(final ArcturusDatabase adb, PrintWriter pw,
+				int threads) throws ArcturusDatabaseException {
+			this.mypw = pw;
+
+			processors = new Processor[threads];
+			idleProcessors = new ArrayBlockingQueue<Processor>(threads);
+
+			for (int i = 0; i < threads; i++) {
+				processors[i] = new Processor(adb, null);
+				idleProcessors.add(processors[i]);
+			}
+
+			// In concurrent mode, each worker thread has its own managers and
+			// connection, which it returns to the pool when it terminates.
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(final Runnable task) {
+					return new Thread(new Runnable() {
+						public void run() {
+							try {
+								task.run();
+							} finally {
+								adb.releaseThreadResources();
+							}
+						}
+					});
+				}
+			});
+
+			maxPending = CONTIGS_PER_THREAD * threads;
+		}
+
+		public boolean processContig(final Contig contig) {
+			pending.add(executor.submit(new Callable<ContigBuffer>() {
+				public ContigBuffer call() throws Exception {
+					return writeContig(contig);
+				}
+			}));
+
+			boolean ok = true;
+
+			while (pending.size() > maxPending)
+				ok &= writeNextContig();
+
+			return ok;
+		}
+
+		public void flush() {
+			while (!pending.isEmpty())
+				writeNextContig();
+		}
+
+		public void close() throws ArcturusDatabaseException {
+			executor.shutdownNow();
+
+			for (Processor processor : processors)
+				processor.close();
+		}
+
+		private ContigBuffer writeContig(Contig contig) throws Exception {
+			Processor processor = idleProcessors.take();
+
+			ContigBuffer buffer = new ContigBuffer(contig);
+
+			try {
+				PrintWriter pw = buffer.getWriter();
+
+				try {
+					buffer.rc = processor.writeContigAsCAF(contig, pw);
+				} finally {
+					pw.close();
+				}
+			} catch (Exception e) {
+				buffer.dispose();
+				throw e;
+			} finally {
+				idleProcessors.put(processor);
+			}
+
+			return buffer;
+		}
+
+		private boolean writeNextContig() {
+			Future<ContigBuffer> future = pending.removeFirst();
+
+			try {
+				ContigBuffer buffer = future.get();
+
+				Contig contig = buffer.contig;
+
+				System.err.println("Contig " + contig.getID() + " ("
+						+ contig.getLength() + " bp, "
+						+ contig.getReadCount() + " reads)");
+
+				try {
+					buffer.writeTo(mypw);
+				} finally {
+					buffer.dispose();
+				}
+
+				return buffer.rc == ContigCAFWriter.OK;
+			} catch (ExecutionException e) {
+				Arcturus.logSevere(e.getCause());
+			} catch (Exception e) {
+				Arcturus.logSevere(e);
+			}
+
+			return false;
+		}
+	}
+
+	class ContigBuffer {
+		private Contig contig;
+		private int rc;
+		private CharArrayWriter memory;
+		private File file;
+
+		public ContigBuffer(Contig contig) {
+			this.contig = contig;
+		}
+
+		public PrintWriter getWriter() throws IOException {
+			if (contig.getReadCount() <= MAX_READS_IN_MEMORY) {
+				memory = new CharArrayWriter();
+				return new PrintWriter(memory);
+			} else {
+				file = File.createTempFile("contig" + contig.getID() + "-",
+						".caf");
+				return new PrintWriter(new BufferedWriter(new FileWriter(file)));
+			}
+		}
+
+		public void writeTo(PrintWriter pw) throws IOException {
+			if (memory != null)
+				memory.writeTo(pw);
+			else if (file != null) {
+				Reader reader = new BufferedReader(new FileReader(file));
+
+				try {
+					char[] buffer = new char[65536];
+					int n;
+
+					while ((n = reader.read(buffer)) > 0)
+						pw.write(buffer, 0, n);
+				} finally {
+					reader.close();
+				}
+			}
+		}
+
+		public void dispose() {
+			memory = null;
+
+			if (file != null) {
+				file.delete();
+				file = null;
+			}
+		}
+	}
+
+	private void exportProject(Project project, ExportProcessor processor)
 			throws ArcturusDatabaseException {
 
 		ArcturusDatabase adb = project.getArcturusDatabase();
@@ -165,8 +362,17 @@ public class ProjectExporter {
 
 		System.err.println("Exporting project " + project.getName());
 
-		adb.processContigsByProject(project.getID(),
-				ArcturusDatabase.CONTIG_BASIC_DATA, processor);
+		ContigIterator iterator = adb.iterateContigsByProject(project.getID(),
+				ArcturusDatabase.CONTIG_BASIC_DATA, 0);
+
+		try {
+			while (iterator.hasNext())
+				processor.processContig(iterator.next());
+
+			processor.flush();
+		} finally {
+			iterator.close();
+		}
 
 		try {
 			adb.unlockProjectForExport(project);
@@ -187,5 +393,8 @@ public class ProjectExporter {
 		ps.println("\t-organism\tThe name of the organism");
 		ps.println("\t-projects\tA comma-separated list of projects to export");
 		ps.println("\t-caf\t\tThe name of the CAF file to write");
+		ps.println();
+		ps.println("OPTIONAL PARAMETERS:");
+		ps.println("\t-threads\tNumber of worker threads [default: 1]");
 	}
 }
@@ -0,0 +1,178 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package uk.ac.sanger.arcturus.utils;
+
+import java.io.*;
+
+import javax.naming.NamingException;
+
+import uk.ac.sanger.arcturus.Arcturus;
+import uk.ac.sanger.arcturus.ArcturusInstance;
+import uk.ac.sanger.arcturus.data.Contig;
+import uk.ac.sanger.arcturus.data.Project;
+import uk.ac.sanger.arcturus.database.ArcturusDatabase;
+import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.database.ContigIterator;
+import uk.ac.sanger.arcturus.snapshot.ContigSnapshotWriter;
+
+/**
+ * Writes the current contigs of one or more projects to a binary contig
+ * snapshot file, which can be read by ContigSnapshot.
+ */
+
+public class ProjectSnapshotExporter {
+	private static final int OPTIONS = ArcturusDatabase.CONTIG_TO_CALCULATE_CONSENSUS
+			| ArcturusDatabase.CONTIG_CONSENSUS;
+
+	public static void main(String[] args) {
+		ProjectSnapshotExporter exporter = new ProjectSnapshotExporter();
+
+		try {
+			exporter.run(args);
+		} catch (Exception e) {
+			Arcturus.logSevere(e);
+		} finally {
+			System.exit(0);
+		}
+	}
+
+	public void run(String[] args) throws ArcturusDatabaseException,
+			IOException {
+		String instanceName = null;
+		String organismName = null;
+		String snapshotFileName = null;
+		String projectList = null;
+		int minlen = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-instance"))
+				instanceName = args[++i];
+			else if (args[i].equalsIgnoreCase("-organism"))
+				organismName = args[++i];
+			else if (args[i].equalsIgnoreCase("-snapshot"))
+				snapshotFileName = args[++i];
+			else if (args[i].equalsIgnoreCase("-projects"))
+				projectList = args[++i];
+			else if (args[i].equalsIgnoreCase("-minlen"))
+				minlen = Integer.parseInt(args[++i]);
+			else if (args[i].equalsIgnoreCase("-help")) {
+				printUsage(null, System.err);
+				return;
+			} else {
+				System.err.println("Unknown option: \"" + args[i] + "\"");
+				return;
+			}
+		}
+
+		if (instanceName == null || organismName == null
+				|| snapshotFileName == null || projectList == null) {
+			printUsage("One or more mandatory parameters were missing",
+					System.err);
+			System.exit(1);
+		}
+
+		ArcturusInstance ai = null;
+
+		try {
+			ai = ArcturusInstance.getInstance(instanceName);
+		} catch (NamingException e) {
+			throw new ArcturusDatabaseException(e,
+					"Failed to find Arcturus instance name=\"" + instanceName
+							+ "\"");
+		}
+
+		if (ai == null)
+			return;
+
+		ArcturusDatabase adb = ai.findArcturusDatabase(organismName);
+
+		if (adb == null)
+			return;
+
+		ContigSnapshotWriter writer = new ContigSnapshotWriter(new File(
+				snapshotFileName));
+
+		boolean completed = false;
+
+		try {
+			String[] projects = projectList.split(",");
+
+			for (int i = 0; i < projects.length; i++) {
+				Project project = adb.getProjectByName(null, projects[i]);
+
+				if (project == null)
+					System.err.println("Project \"" + projects[i]
+							+ "\" does not exist.");
+				else
+					exportProject(adb, project, minlen, writer);
+			}
+
+			writer.finish();
+
+			completed = true;
+		} finally {
+			if (!completed)
+				writer.abort();
+		}
+
+		System.err.println("Wrote " + writer.getContigCount()
+				+ " contigs to " + snapshotFileName);
+	}
+
+	private void exportProject(ArcturusDatabase adb, Project project,
+			int minlen, ContigSnapshotWriter writer)
+			throws ArcturusDatabaseException, IOException {
+		System.err.println("Exporting project " + project.getName());
+
+		ContigIterator iterator = adb.iterateContigsByProject(project.getID(),
+				OPTIONS, minlen);
+
+		try {
+			while (iterator.hasNext()) {
+				Contig contig = iterator.next();
+
+				writer.addContig(contig);
+
+				// Release the mappings, which are no longer needed.
+				contig.setMappings(null);
+			}
+		} finally {
+			iterator.close();
+		}
+	}
+
+	private void printUsage(String message, PrintStream ps) {
+		if (message != null) {
+			ps.println(message);
+			ps.println();
+		}
+
+		ps.println("MANDATORY PARAMETERS:");
+		ps.println("\t-instance\tThe name of the Arcturus instance");
+		ps.println("\t-organism\tThe name of the organism");
+		ps.println("\t-projects\tA comma-separated list of projects to export");
+		ps.println("\t-snapshot\tThe name of the snapshot file to write");
+		ps.println();
+		ps.println("OPTIONAL PARAMETERS:");
+		ps.println("\t-minlen\t\tMinimum contig length [default: 0]");
+	}
+}
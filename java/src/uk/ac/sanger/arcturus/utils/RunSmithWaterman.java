@@ -41,6 +41,7 @@ public class RunSmithWaterman {
 		boolean writeEdits = false;
 		boolean writeSegments = true;
 		boolean writeSummary = true;
+		boolean fullMatrix = false;
 
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equalsIgnoreCase("-subject"))
@@ -69,6 +70,8 @@ public class RunSmithWaterman {
 				writeSummary = true;
 			else if (args[i].equalsIgnoreCase("-nosummary"))
 				writeSummary = false;
+			else if (args[i].equalsIgnoreCase("-fullmatrix"))
+				fullMatrix = true;
 		}
 
 		if (subjectFilename == null || queryFilename == null) {
@@ -87,6 +90,48 @@ public class RunSmithWaterman {
 		if (queryLength == 0)
 			queryLength = querySequence.length - queryOffset;
 		
+		if (fullMatrix)
+			alignWithFullMatrix(subjectSequence, subjectOffset, subjectLength,
+					querySequence, queryOffset, queryLength, smat, bandwidth,
+					writeSummary, writeEdits, writeSegments);
+		else
+			alignWithKernel(subjectSequence, subjectOffset, subjectLength,
+					querySequence, queryOffset, queryLength, smat, bandwidth,
+					writeSummary, writeEdits, writeSegments);
+	}
+	
+	private static void alignWithKernel(char[] subjectSequence,
+			int subjectOffset, int subjectLength, char[] querySequence,
+			int queryOffset, int queryLength, ScoringMatrix smat,
+			int bandwidth, boolean writeSummary, boolean writeEdits,
+			boolean writeSegments) {
+		byte[] subject = SmithWatermanKernel.encode(subjectSequence, subjectOffset, subjectLength);
+		byte[] query = SmithWatermanKernel.encode(querySequence, queryOffset, queryLength);
+		
+		SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+		
+		try {
+			Alignment al = kernel.calculateAlignment(subject, query, bandwidth);
+			
+			if (al == null) {
+				System.out.println("No alignment");
+				return;
+			}
+			
+			Segment[] segments = writeSegments ? SmithWatermanKernel.getSegments(al) : null;
+			
+			writeAlignment(al, kernel.getBestScore(), segments, subjectOffset,
+					queryOffset, writeSummary, writeEdits);
+		} catch (SmithWatermanException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private static void alignWithFullMatrix(char[] subjectSequence,
+			int subjectOffset, int subjectLength, char[] querySequence,
+			int queryOffset, int queryLength, ScoringMatrix smat,
+			int bandwidth, boolean writeSummary, boolean writeEdits,
+			boolean writeSegments) {
 		SmithWatermanArrayModel sw = SmithWaterman.calculateMatrix(subjectSequence,
 				subjectOffset, subjectLength,
 				querySequence, queryOffset, queryLength, smat, bandwidth);
@@ -97,40 +142,47 @@ public class RunSmithWaterman {
 			Alignment al = SmithWaterman.getAlignment(sw);
 			
 			int score = sw.getScore(best[0], best[1]);
-
-			if (writeSummary) {
-				System.out.println("Row: " + (subjectOffset + al.getRow()));
-				System.out.println("Col: " + (queryOffset + al.getColumn()));
-		
-				System.out.println("Score: " + score);
-			}
 			
-			if (writeEdits) {
-				if (writeSummary)
-					System.out.println();
-
-				EditEntry[] edits = al.getEdits();
+			Segment[] segments = writeSegments ? SmithWaterman.traceBack(sw) : null;
+			
+			writeAlignment(al, score, segments, subjectOffset, queryOffset,
+					writeSummary, writeEdits);
+		} catch (SmithWatermanException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private static void writeAlignment(Alignment al, int score,
+			Segment[] segments, int subjectOffset, int queryOffset,
+			boolean writeSummary, boolean writeEdits) {
+		if (writeSummary) {
+			System.out.println("Row: " + (subjectOffset + al.getRow()));
+			System.out.println("Col: " + (queryOffset + al.getColumn()));
+	
+			System.out.println("Score: " + score);
+		}
 		
-				for (int i = 0; i < edits.length; i++)
-					System.out.println(edits[i]);
-			}
+		if (writeEdits) {
+			if (writeSummary)
+				System.out.println();
 
-			if (writeSegments) {
-				Segment[] segments = SmithWaterman.traceBack(sw);
+			EditEntry[] edits = al.getEdits();
+	
+			for (int i = 0; i < edits.length; i++)
+				System.out.println(edits[i]);
+		}
 
-				if (writeSummary || writeEdits)
-					System.out.println();
-			
-				for (int i = 0; i < segments.length; i++) {
-					Segment seg = segments[i];
-					int starta = subjectOffset + seg.getStartA() + 1;
-					int startb = queryOffset + seg.getStartB() + 1;
-					int len = seg.getLength();
-					System.out.println(starta + "\t" + startb + "\t" + len);
-				}
+		if (segments != null) {
+			if (writeSummary || writeEdits)
+				System.out.println();
+		
+			for (int i = 0; i < segments.length; i++) {
+				Segment seg = segments[i];
+				int starta = subjectOffset + seg.getStartA() + 1;
+				int startb = queryOffset + seg.getStartB() + 1;
+				int len = seg.getLength();
+				System.out.println(starta + "\t" + startb + "\t" + len);
 			}
-		} catch (SmithWatermanException e) {
-			e.printStackTrace();
 		}
 	}
 	
@@ -181,6 +233,7 @@ public class RunSmithWaterman {
 		ps.println("\t-querylength\tLength in query [default: entire sequence]");
 		ps.println("\t-bandwidth\tSemi-bandwidth for banded Smith-Waterman [default:"
 						+ DEFAULT_BANDWIDTH + "]");
+		ps.println("\t-fullmatrix\tStore the full scoring matrix, using linear gap penalties");
 		ps.println();
 		ps.println("OPTIONAL PARAMETERS WHICH CONTROL OUTPUT");
 		ps.println("\t-[no]summary\tDo [not] write summary");
@@ -0,0 +1,488 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.smithwaterman.BatchAligner;
+import uk.ac.sanger.arcturus.smithwaterman.BatchAlignment;
+import uk.ac.sanger.arcturus.smithwaterman.ScoringMatrix;
+import uk.ac.sanger.arcturus.smithwaterman.SmithWatermanException;
+
+
+public class BatchAlignerTest {
+    private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+    // Mutations are kept this far from the ends of a read and from each
+    // other, so that the local alignment always extends over the whole read.
+    private static final int MUTATION_SPACING = 25;
+
+    private final Random random = new Random(4412001L);
+
+    private final ScoringMatrix smat = new ScoringMatrix(1, -2, -3, -2);
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchAlignerTest.class);
+    }
+
+    @Test
+    public void testReadsAtContigEnds() throws SmithWatermanException {
+        byte[][] contigs = { randomSequence(3000), randomSequence(2500) };
+
+        BatchAligner aligner = createAligner(contigs);
+
+        // The first k-mer of the read is the first k-mer of the contig.
+        Placement head = new Placement("HEAD", Arrays.copyOfRange(contigs[0],
+                0, 300), 0, true, 0, 299);
+
+        assertPlacement(head, aligner.align(new BatchAligner.Query(head.name,
+                head.read))[0]);
+
+        Placement tail = new Placement("TAIL", reverseComplement(Arrays
+                .copyOfRange(contigs[1], 2200, 2500)), 1, false, 2200, 2499);
+
+        assertPlacement(tail, aligner.align(new BatchAligner.Query(tail.name,
+                tail.read))[0]);
+
+        // A read which spans the end of one contig and the start of the next
+        // is aligned to each of them separately, and never across the join.
+        byte[] chimera = concatenate(Arrays.copyOfRange(contigs[0], 2850,
+                3000), Arrays.copyOfRange(contigs[1], 0, 150));
+
+        BatchAlignment[] alignments = aligner.align(new BatchAligner.Query(
+                "CHIMERA", chimera));
+
+        assertEquals(2, alignments.length);
+
+        for (BatchAlignment alignment : alignments) {
+            assertEquals(150, alignment.getScore());
+
+            if (alignment.getSubjectID() == 0) {
+                assertEquals(2850, alignment.getSubjectStart());
+                assertEquals(2999, alignment.getSubjectFinish());
+                assertEquals(0, alignment.getQueryStart());
+                assertEquals(149, alignment.getQueryFinish());
+            } else {
+                assertEquals(0, alignment.getSubjectStart());
+                assertEquals(149, alignment.getSubjectFinish());
+                assertEquals(150, alignment.getQueryStart());
+                assertEquals(299, alignment.getQueryFinish());
+            }
+        }
+    }
+
+    @Test
+    public void testRunOfNInRead() throws SmithWatermanException {
+        byte[][] contigs = { randomSequence(3000) };
+
+        BatchAligner aligner = createAligner(contigs);
+
+        byte[] read = Arrays.copyOfRange(contigs[0], 1000, 1300);
+
+        Arrays.fill(read, 140, 160, (byte) 'N');
+
+        // No k-mer which overlaps the N's is looked up, but N scores zero,
+        // so the alignment runs through them.
+        BatchAlignment[] alignments = aligner.align(new BatchAligner.Query(
+                "WITHN", read));
+
+        assertEquals(1, alignments.length);
+        assertEquals(280 * smat.getMatchScore(), alignments[0].getScore());
+
+        assertPlacement(new Placement("WITHN", read, 0, true, 1000, 1299),
+                alignments[0]);
+    }
+
+    @Test
+    public void testShortAndEmptyQueries() throws SmithWatermanException {
+        byte[][] contigs = { randomSequence(3000) };
+
+        BatchAligner aligner = createAligner(contigs);
+
+        assertEquals(0, aligner.align(new BatchAligner.Query("EMPTY",
+                new byte[0])).length);
+
+        // Too short to contain a single k-mer.
+        byte[] read = Arrays.copyOfRange(contigs[0], 0, aligner.getKmerSize() - 1);
+
+        assertEquals(0, aligner.align(new BatchAligner.Query("SHORT", read)).length);
+    }
+
+    @Test
+    public void testPlacesSyntheticReads() throws SmithWatermanException {
+        byte[][] contigs = new byte[6][];
+
+        for (int i = 0; i < contigs.length; i++)
+            contigs[i] = randomSequence(2000 + random.nextInt(3000));
+
+        List<Placement> placements = new ArrayList<Placement>();
+
+        for (int i = 0; i < 300; i++)
+            placements.add(placeRead("READ." + i, contigs));
+
+        for (int threads = 1; threads <= 3; threads += 2) {
+            BatchAligner aligner = createAligner(contigs);
+
+            aligner.setThreadCount(threads);
+
+            Recorder recorder = new Recorder();
+
+            int count = aligner.align(queries(placements).iterator(), recorder);
+
+            assertEquals(placements.size(), count);
+            assertEquals(placements.size(), recorder.queries.size());
+
+            for (int i = 0; i < placements.size(); i++) {
+                Placement placement = placements.get(i);
+
+                // Results must be delivered in the order of the queries.
+                assertEquals(placement.name, recorder.queries.get(i).getName());
+
+                BatchAlignment[] alignments = recorder.alignments.get(i);
+
+                assertTrue(placement.name + " was not aligned",
+                        alignments.length > 0);
+
+                assertPlacement(placement, alignments[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testAlignsSingleQuery() throws SmithWatermanException {
+        byte[][] contigs = { randomSequence(3000), randomSequence(3000) };
+
+        BatchAligner aligner = createAligner(contigs);
+
+        for (int i = 0; i < 50; i++) {
+            Placement placement = placeRead("SINGLE." + i, contigs);
+
+            BatchAlignment[] alignments = aligner.align(new BatchAligner.Query(
+                    placement.name, placement.read));
+
+            assertTrue(alignments.length > 0);
+            assertPlacement(placement, alignments[0]);
+
+            for (int j = 1; j < alignments.length; j++)
+                assertTrue(alignments[j - 1].getScore() >= alignments[j]
+                        .getScore());
+        }
+    }
+
+    @Test
+    public void testMaxOccurrencesAndMaxCandidates()
+            throws SmithWatermanException {
+        // A repeat with five copies, one in each contig, at positions which
+        // differ from contig to contig.
+        byte[] repeat = randomSequence(300);
+
+        int copies = 5;
+
+        byte[][] contigs = new byte[copies][];
+        int[] repeatStarts = new int[copies];
+
+        for (int i = 0; i < copies; i++) {
+            byte[] left = randomSequence(200 + 37 * i);
+            byte[] right = randomSequence(500);
+
+            contigs[i] = concatenate(left, repeat, right);
+            repeatStarts[i] = left.length;
+        }
+
+        byte[] read = Arrays.copyOfRange(repeat, 50, 250);
+
+        BatchAligner aligner = createAligner(contigs);
+
+        // With a step of one, every k-mer of the repeat occurs once in each
+        // copy, so it is indexed exactly five times.
+        aligner.setStep(1);
+
+        aligner.setMaxOccurrences(copies - 1);
+        aligner.setMaxCandidates(10);
+
+        assertEquals(0, alignRepeat(aligner, read).length);
+
+        aligner.setMaxOccurrences(copies);
+
+        BatchAlignment[] alignments = alignRepeat(aligner, read);
+
+        assertEquals(copies, alignments.length);
+
+        boolean[] seen = new boolean[copies];
+
+        for (BatchAlignment alignment : alignments) {
+            int contig = alignment.getSubjectID();
+
+            assertFalse(seen[contig]);
+            seen[contig] = true;
+
+            assertTrue(alignment.isForward());
+            assertEquals(read.length, alignment.getScore());
+            assertEquals(repeatStarts[contig] + 50, alignment.getSubjectStart());
+            assertEquals(repeatStarts[contig] + 249, alignment
+                    .getSubjectFinish());
+        }
+
+        aligner.setMaxCandidates(2);
+
+        assertEquals(2, alignRepeat(aligner, read).length);
+
+        aligner.setMaxCandidates(1);
+
+        assertEquals(1, alignRepeat(aligner, read).length);
+    }
+
+    @Test
+    public void testMinSeedHits() throws SmithWatermanException {
+        byte[][] contigs = { randomSequence(3000) };
+
+        BatchAligner aligner = createAligner(contigs);
+
+        aligner.setStep(1);
+
+        int kmerSize = aligner.getKmerSize();
+
+        // A read which is two bases longer than a k-mer has exactly three
+        // k-mer hits on the same diagonal.
+        byte[] read = Arrays.copyOfRange(contigs[0], 1000, 1000 + kmerSize + 2);
+
+        BatchAligner.Query query = new BatchAligner.Query("SHORT", read);
+
+        aligner.setMinSeedHits(3);
+
+        BatchAlignment[] alignments = aligner.align(query);
+
+        assertEquals(1, alignments.length);
+        assertTrue(alignments[0].isForward());
+        assertEquals(1000, alignments[0].getSubjectStart());
+        assertEquals(1000 + read.length - 1, alignments[0].getSubjectFinish());
+
+        aligner.setMinSeedHits(4);
+
+        assertEquals(0, aligner.align(query).length);
+    }
+
+    @Test
+    public void testUnrelatedQueryIsNotAligned() throws SmithWatermanException {
+        byte[][] contigs = { randomSequence(3000), randomSequence(3000) };
+
+        BatchAligner aligner = createAligner(contigs);
+
+        BatchAlignment[] alignments = aligner.align(new BatchAligner.Query(
+                "UNRELATED", randomSequence(500)));
+
+        assertEquals(0, alignments.length);
+    }
+
+    private BatchAligner createAligner(byte[][] contigs) {
+        BatchAligner aligner = new BatchAligner(smat);
+
+        for (int i = 0; i < contigs.length; i++)
+            aligner.addSubject(i, "CONTIG." + i, contigs[i]);
+
+        return aligner;
+    }
+
+    private BatchAlignment[] alignRepeat(BatchAligner aligner, byte[] read)
+            throws SmithWatermanException {
+        return aligner.align(new BatchAligner.Query("REPEAT", read));
+    }
+
+    private void assertPlacement(Placement placement, BatchAlignment alignment) {
+        String name = placement.name;
+
+        assertEquals(name, placement.contig, alignment.getSubjectID());
+        assertEquals(name, "CONTIG." + placement.contig, alignment
+                .getSubjectName());
+        assertEquals(name, placement.forward, alignment.isForward());
+        assertEquals(name, placement.start, alignment.getSubjectStart());
+        assertEquals(name, placement.finish, alignment.getSubjectFinish());
+        assertEquals(name, 0, alignment.getQueryStart());
+        assertEquals(name, placement.read.length - 1, alignment.getQueryFinish());
+    }
+
+    /*
+     * Copies a random stretch of a random contig, adds substitutions,
+     * insertions and deletions, and reverse-complements half of the reads.
+     */
+
+    private Placement placeRead(String name, byte[][] contigs) {
+        int contig = random.nextInt(contigs.length);
+
+        int length = 300 + random.nextInt(201);
+        int start = random.nextInt(contigs[contig].length - length + 1);
+
+        byte[] source = Arrays.copyOfRange(contigs[contig], start, start
+                + length);
+
+        byte[] read = new byte[length + 10];
+        int nread = 0;
+
+        int nextMutation = MUTATION_SPACING + random.nextInt(MUTATION_SPACING);
+        int indels = 0;
+
+        for (int i = 0; i < length; i++) {
+            boolean mutate = i == nextMutation
+                    && i < length - MUTATION_SPACING;
+
+            if (mutate)
+                nextMutation += MUTATION_SPACING
+                        + random.nextInt(MUTATION_SPACING);
+
+            // Keep the net drift from the diagonal well inside the band.
+            int type = mutate ? random.nextInt(indels < 4 ? 3 : 1) : -1;
+
+            switch (type) {
+                case 0:
+                    read[nread++] = substitute(source[i]);
+                    break;
+
+                case 1:
+                    read[nread++] = randomBase();
+                    read[nread++] = source[i];
+                    indels++;
+                    break;
+
+                case 2:
+                    indels++;
+                    break;
+
+                default:
+                    read[nread++] = source[i];
+                    break;
+            }
+        }
+
+        read = Arrays.copyOf(read, nread);
+
+        boolean forward = random.nextBoolean();
+
+        if (!forward)
+            read = reverseComplement(read);
+
+        return new Placement(name, read, contig, forward, start, start
+                + length - 1);
+    }
+
+    private List<BatchAligner.Query> queries(List<Placement> placements) {
+        List<BatchAligner.Query> queries = new ArrayList<BatchAligner.Query>();
+
+        for (Placement placement : placements)
+            queries.add(new BatchAligner.Query(placement.name, placement.read));
+
+        return queries;
+    }
+
+    private byte[] randomSequence(int length) {
+        byte[] dna = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            dna[i] = randomBase();
+
+        return dna;
+    }
+
+    private byte randomBase() {
+        return BASES[random.nextInt(BASES.length)];
+    }
+
+    private byte substitute(byte base) {
+        byte other;
+
+        do {
+            other = randomBase();
+        } while (other == base);
+
+        return other;
+    }
+
+    private static byte[] concatenate(byte[]... parts) {
+        int length = 0;
+
+        for (byte[] part : parts)
+            length += part.length;
+
+        byte[] result = new byte[length];
+        int offset = 0;
+
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+
+        return result;
+    }
+
+    private static byte[] reverseComplement(byte[] dna) {
+        byte[] rc = new byte[dna.length];
+
+        for (int i = 0; i < dna.length; i++) {
+            byte base = dna[dna.length - 1 - i];
+
+            switch (base) {
+                case 'A': rc[i] = 'T'; break;
+                case 'C': rc[i] = 'G'; break;
+                case 'G': rc[i] = 'C'; break;
+                default: rc[i] = 'A'; break;
+            }
+        }
+
+        return rc;
+    }
+
+    private static class Placement {
+        final String name;
+        final byte[] read;
+        final int contig;
+        final boolean forward;
+        final int start;
+        final int finish;
+
+        Placement(String name, byte[] read, int contig, boolean forward,
+                int start, int finish) {
+            this.name = name;
+            this.read = read;
+            this.contig = contig;
+            this.forward = forward;
+            this.start = start;
+            this.finish = finish;
+        }
+    }
+
+    private static class Recorder implements BatchAligner.AlignmentHandler {
+        final List<BatchAligner.Query> queries = new ArrayList<BatchAligner.Query>();
+        final List<BatchAlignment[]> alignments = new ArrayList<BatchAlignment[]>();
+
+        public void alignmentsFound(BatchAligner.Query query,
+                BatchAlignment[] found) {
+            queries.add(query);
+            alignments.add(found);
+        }
+    }
+}
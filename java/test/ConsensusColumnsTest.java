@@ -0,0 +1,324 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.data.Mapping;
+import uk.ac.sanger.arcturus.data.Read;
+import uk.ac.sanger.arcturus.data.Segment;
+import uk.ac.sanger.arcturus.data.Sequence;
+import uk.ac.sanger.arcturus.utils.ConsensusAlgorithm;
+import uk.ac.sanger.arcturus.utils.ConsensusColumns;
+
+
+public class ConsensusColumnsTest {
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ConsensusColumnsTest.class);
+    }
+
+    /**
+     * A small contig, 22 bases long, whose reads cover the awkward cases:
+     * clipped read ends, pads in both directions, a zero quality, an 'N' and
+     * lower-case bases, a read with no Read object, and reads which run past
+     * the end of the contig or the end of their own DNA.
+     */
+
+    private Mapping[] makeContig() {
+        List<Mapping> mappings = new ArrayList<Mapping>();
+
+        // The first two bases of the read are clipped.
+        mappings.add(mapping(1, Read.DYE_TERMINATOR, "GGACGTACGTAC",
+                constant(12, 30), true, 1, 8, new Segment(1, 3, 8)));
+
+        // Two pads at contig positions 8 and 9.
+        mappings.add(mapping(2, Read.DYE_PRIMER, "ACGTTGCA",
+                new byte[] { 20, 30, 40, 50, 60, 10, 20, 30 }, true, 4, 13,
+                new Segment(4, 1, 4), new Segment(10, 5, 4)));
+
+        // A reverse read with a pad at position 9 and two at 12 and 13.
+        mappings.add(mapping(3, -1, "aacgNtgca",
+                new byte[] { 5, 15, 25, 35, 45, 0, 12, 22, 32 }, false, 6, 17,
+                new Segment(6, 9, 3), new Segment(10, 6, 2),
+                new Segment(14, 4, 4)));
+
+        // A reverse read whose segment runs past the end of the contig.
+        mappings.add(mapping(4, Read.DYE_PRIMER, "ACGTACGTAC",
+                constant(10, 40), false, 15, 22, new Segment(15, 10, 10)));
+
+        // A forward read whose segment runs past the end of its DNA.
+        mappings.add(mapping(5, Read.DYE_TERMINATOR, "TTGCAC",
+                new byte[] { 10, 10, 0, 25, 25, 25 }, true, 18, 22,
+                new Segment(18, 3, 8)));
+
+        return mappings.toArray(new Mapping[0]);
+    }
+
+    @Test
+    public void testBasesAtHandPickedPositions() {
+        ConsensusColumns columns = new ConsensusColumns(makeContig());
+
+        assertEquals(5, columns.getMappingCount());
+
+        // The first base of the clipped read is its third base.
+        assertEquals(Arrays.asList("A 30 1 2"), basesAt(columns, 1));
+
+        // Read 2 has a pad whose quality is interpolated from 50 and 60, and
+        // read 3 has one interpolated from 12 and 0.
+        assertEquals(Arrays.asList("* 56 1 1", "* 6 2 0"), basesAt(columns, 9));
+
+        // Read 3 has a base of quality zero here, so it is left out.
+        assertEquals(Arrays.asList("T 60 1 1"), basesAt(columns, 10));
+
+        // 'N' is not complemented.
+        assertEquals(Arrays.asList("G 10 1 1", "N 45 2 0"), basesAt(columns, 11));
+
+        // Read 5 has run off the end of its DNA.
+        assertEquals(Arrays.asList("C 40 2 1"), basesAt(columns, 22));
+    }
+
+    @Test
+    public void testHandWrittenContigMatchesMappingLookups() {
+        compareWithMappingLookups(makeContig(), 1, 22);
+    }
+
+    @Test
+    public void testEmptyContig() {
+        ConsensusColumns columns = new ConsensusColumns(new Mapping[0]);
+
+        assertEquals(0, columns.getMappingCount());
+        assertEquals(0, columns.advanceTo(1));
+        assertTrue(basesAt(columns, 1).isEmpty());
+    }
+
+    @Test
+    public void testRandomContigsMatchMappingLookups() {
+        Random random = new Random(5551212L);
+
+        for (int trial = 0; trial < 50; trial++) {
+            int contigLength = 50 + random.nextInt(400);
+
+            Mapping[] mappings = new Mapping[1 + random.nextInt(60)];
+
+            for (int i = 0; i < mappings.length; i++)
+                mappings[i] = randomMapping(random, i + 1, contigLength);
+
+            Arrays.sort(mappings, new java.util.Comparator<Mapping>() {
+                public int compare(Mapping m1, Mapping m2) {
+                    return m1.getContigStart() - m2.getContigStart();
+                }
+            });
+
+            compareWithMappingLookups(mappings, 1, contigLength);
+        }
+    }
+
+    /**
+     * Sweeps over the contig, and checks that every column passes the
+     * consensus algorithm the same bases as looking up each mapping with
+     * Mapping.getReadOffset and Mapping.getPadQuality, which is how the
+     * consensus used to be calculated.
+     */
+
+    private void compareWithMappingLookups(Mapping[] mappings, int cstart,
+            int cfinal) {
+        ConsensusColumns columns = new ConsensusColumns(mappings);
+
+        RecordingAlgorithm expected = new RecordingAlgorithm();
+
+        for (int cpos = cstart; cpos <= cfinal; cpos++) {
+            int depth = 0;
+
+            expected.reset();
+
+            for (Mapping mapping : mappings) {
+                if (mapping.getContigStart() <= cpos
+                        && mapping.getContigFinish() >= cpos)
+                    depth++;
+
+                addBase(expected, mapping, cpos);
+            }
+
+            assertEquals("Depth at " + cpos, depth, columns.advanceTo(cpos));
+
+            RecordingAlgorithm actual = new RecordingAlgorithm();
+
+            columns.addBasesAt(cpos, actual);
+
+            assertEquals("Bases at " + cpos, expected.calls, actual.calls);
+        }
+    }
+
+    private void addBase(ConsensusAlgorithm algorithm, Mapping mapping, int cpos) {
+        int rpos = mapping.getReadOffset(cpos);
+
+        int qual = rpos >= 0 ? mapping.getQuality(rpos) : mapping
+                .getPadQuality(cpos);
+
+        if (qual <= 0)
+            return;
+
+        Read read = mapping.getSequence().getRead();
+
+        int strand = mapping.isForward() ? Read.FORWARD : Read.REVERSE;
+
+        int chemistry = read == null ? Read.UNKNOWN : read.getChemistry();
+
+        char base = rpos >= 0 ? mapping.getBase(rpos) : '*';
+
+        algorithm.addBase(base, qual, strand, chemistry);
+    }
+
+    private List<String> basesAt(ConsensusColumns columns, int cpos) {
+        RecordingAlgorithm algorithm = new RecordingAlgorithm();
+
+        columns.advanceTo(cpos);
+        columns.addBasesAt(cpos, algorithm);
+
+        return algorithm.calls;
+    }
+
+    /**
+     * Makes a read of between one and four segments, separated by pads of
+     * up to three bases, which may also skip bases of the read. The mapping
+     * may be clipped at either end, including past the ends of the contig,
+     * and the last segment may run past the end of the DNA.
+     */
+
+    private Mapping randomMapping(Random random, int id, int contigLength) {
+        boolean forward = random.nextBoolean();
+
+        int nsegs = 1 + random.nextInt(4);
+
+        int[] cstarts = new int[nsegs];
+        int[] lengths = new int[nsegs];
+        int[] rskips = new int[nsegs];
+
+        int cpos = 1 + random.nextInt(contigLength) - 10;
+        int readLength = 0;
+
+        for (int j = 0; j < nsegs; j++) {
+            if (j > 0) {
+                cpos += random.nextInt(4);
+                rskips[j] = random.nextInt(3);
+            }
+
+            cstarts[j] = cpos;
+            lengths[j] = 1 + random.nextInt(30);
+
+            cpos += lengths[j];
+            readLength += rskips[j] + lengths[j];
+        }
+
+        Segment[] segments = new Segment[nsegs];
+
+        int rpos = forward ? 1 : readLength;
+
+        for (int j = 0; j < nsegs; j++) {
+            rpos += forward ? rskips[j] : -rskips[j];
+
+            segments[j] = new Segment(cstarts[j], rpos, lengths[j]);
+
+            rpos += forward ? lengths[j] : -lengths[j];
+        }
+
+        // Only the read positions beyond the last segment may be missing,
+        // because Mapping.getPadQuality does not check the flanking bases.
+        int dnaLength = readLength;
+
+        if (forward && random.nextInt(4) == 0)
+            dnaLength = Math.max(readLength - random.nextInt(lengths[nsegs - 1]), 1);
+
+        byte[] dna = new byte[dnaLength];
+        byte[] quality = new byte[dnaLength];
+
+        String alphabet = "ACGTACGTacgtN*";
+
+        for (int i = 0; i < dnaLength; i++) {
+            dna[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+            quality[i] = (byte) (random.nextInt(8) == 0 ? 0 : random.nextInt(60));
+        }
+
+        int cfirst = cstarts[0] + random.nextInt(3);
+        int clast = segments[nsegs - 1].getContigFinish() - random.nextInt(3);
+
+        if (clast < cfirst)
+            clast = cfirst;
+
+        int chemistry = random.nextInt(3) - 1;
+
+        return mapping(id, chemistry, new String(dna), quality, forward,
+                cfirst, clast, segments);
+    }
+
+    private Mapping mapping(int id, int chemistry, String dna, byte[] quality,
+            boolean forward, int cstart, int cfinish, Segment... segments) {
+        Read read = chemistry < 0 ? null : new Read("READ" + id, id, null,
+                null, Read.FORWARD, Read.UNKNOWN, chemistry, null);
+
+        Sequence sequence = new Sequence(id, read, dna.getBytes(), quality, 0);
+
+        return new Mapping(sequence, cstart, cfinish, forward, segments);
+    }
+
+    private byte[] constant(int length, int value) {
+        byte[] quality = new byte[length];
+        Arrays.fill(quality, (byte) value);
+        return quality;
+    }
+
+    private static class RecordingAlgorithm implements ConsensusAlgorithm {
+        private List<String> calls = new ArrayList<String>();
+
+        public boolean reset() {
+            calls.clear();
+            return true;
+        }
+
+        public boolean addBase(char base, int quality, int strand, int chemistry) {
+            calls.add(base + " " + quality + " " + strand + " " + chemistry);
+            return true;
+        }
+
+        public char getBestBase() {
+            return 'N';
+        }
+
+        public int getBestScore() {
+            return 0;
+        }
+
+        public int getScoreForBase(char base) {
+            return 0;
+        }
+
+        public int getReadCount() {
+            return calls.size();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.data.*;
+import uk.ac.sanger.arcturus.snapshot.ContigSnapshot;
+import uk.ac.sanger.arcturus.snapshot.ContigSnapshotWriter;
+
+
+public class ContigSnapshotTest {
+    private File file;
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ContigSnapshotTest.class);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("snapshot", ".dat");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Ligation ligation = new Ligation("lig1", 7, null, -1, 4000, null);
+        Template template = new Template("tmpl1", 12, ligation, null);
+
+        Read read1 = new Read("read1.p1k", 100, template, null,
+                Read.FORWARD, Read.UNIVERSAL_PRIMER, Read.DYE_TERMINATOR, null);
+        Read read2 = new Read("read2.q1k", 0, null, null, -1, -1, -1, null);
+
+        Sequence seq1 = new Sequence(500, read1, bytes("ACGTnNacgt*ACG"),
+                new byte[] { 30, 30, 30, -1, -1, 0, 99, 99, 12, 12, 12, 12, 1, 2 }, 3);
+        Sequence seq2 = new Sequence(-1, read2, bytes("NNNNN"),
+                new byte[] { -1, -1, -1, -1, -1 }, -1);
+        Sequence seq3 = new Sequence(42, null, bytes("ggcc"), null, 0);
+
+        Segment[] segments = {
+            new Segment(10, 1, 5),
+            new Segment(16, 6, 9)
+        };
+
+        Mapping[] mappings = {
+            new Mapping(seq1, 10, 24, true, segments),
+            new Mapping(seq2, 3, 7, false, null),
+            new Mapping(seq3, -1, 2, true, null)
+        };
+
+        Contig contig1 = new Contig("contig00001", 1, 30, null, null, null,
+                mappings, null);
+        contig1.setConsensus(bytes("ACGTACGTNNacgt-*ACGTACGTACGTAC"), new byte[30]);
+
+        Contig contig2 = new Contig("contig00002", 2, 5, null, null, null,
+                new Mapping[] { new Mapping(seq3, 1, 4, false, null) }, null);
+
+        ContigSnapshotWriter writer = new ContigSnapshotWriter(file);
+        writer.addContig(contig1);
+        writer.addContig(contig2);
+        writer.finish();
+
+        ContigSnapshot snapshot = ContigSnapshot.open(file);
+
+        try {
+            assertEquals(2, snapshot.getContigCount());
+            assertTrue(snapshot.contains(1));
+            assertTrue(snapshot.contains(2));
+            assertFalse(snapshot.contains(3));
+
+            assertContigEquals(contig1, snapshot.getContig(1));
+            assertContigEquals(contig2, snapshot.getContig(2));
+            assertContigEquals(contig1, snapshot.getContigByIndex(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testContigWithoutMappings() throws IOException {
+        ContigSnapshotWriter writer = new ContigSnapshotWriter(file);
+
+        try {
+            writer.addContig(new Contig("contig00003", 3, 10, null, null, null,
+                    null, null));
+        } finally {
+            writer.abort();
+        }
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes();
+    }
+
+    private void assertContigEquals(Contig expected, Contig actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getID(), actual.getID());
+        assertEquals(expected.getLength(), actual.getLength());
+        assertArrayEquals(expected.getDNA(), actual.getDNA());
+        assertArrayEquals(expected.getQuality(), actual.getQuality());
+
+        Mapping[] expectedMappings = expected.getMappings();
+        Mapping[] actualMappings = actual.getMappings();
+
+        assertEquals(expectedMappings.length, actualMappings.length);
+
+        for (int i = 0; i < expectedMappings.length; i++)
+            assertMappingEquals(expectedMappings[i], actualMappings[i]);
+    }
+
+    private void assertMappingEquals(Mapping expected, Mapping actual) {
+        assertEquals(expected.getContigStart(), actual.getContigStart());
+        assertEquals(expected.getContigFinish(), actual.getContigFinish());
+        assertEquals(expected.isForward(), actual.isForward());
+
+        Segment[] expectedSegments = expected.getSegments();
+        Segment[] actualSegments = actual.getSegments();
+
+        if (expectedSegments == null)
+            assertNull(actualSegments);
+        else {
+            assertEquals(expectedSegments.length, actualSegments.length);
+
+            for (int j = 0; j < expectedSegments.length; j++) {
+                assertEquals(expectedSegments[j].getContigStart(),
+                        actualSegments[j].getContigStart());
+                assertEquals(expectedSegments[j].getReadStart(),
+                        actualSegments[j].getReadStart());
+                assertEquals(expectedSegments[j].getLength(),
+                        actualSegments[j].getLength());
+            }
+        }
+
+        Sequence expectedSequence = expected.getSequence();
+        Sequence actualSequence = actual.getSequence();
+
+        assertEquals(expectedSequence.getID(), actualSequence.getID());
+        assertEquals(expectedSequence.getVersion(), actualSequence.getVersion());
+        assertArrayEquals(expectedSequence.getDNA(), actualSequence.getDNA());
+        assertArrayEquals(expectedSequence.getQuality(),
+                actualSequence.getQuality());
+
+        assertReadEquals(expectedSequence.getRead(), actualSequence.getRead());
+    }
+
+    private void assertReadEquals(Read expected, Read actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.getID(), actual.getID());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getStrand(), actual.getStrand());
+        assertEquals(expected.getPrimer(), actual.getPrimer());
+        assertEquals(expected.getChemistry(), actual.getChemistry());
+
+        Template expectedTemplate = expected.getTemplate();
+        Template actualTemplate = actual.getTemplate();
+
+        if (expectedTemplate == null) {
+            assertNull(actualTemplate);
+            return;
+        }
+
+        assertEquals(expectedTemplate.getID(), actualTemplate.getID());
+        assertEquals(expectedTemplate.getName(), actualTemplate.getName());
+
+        Ligation expectedLigation = expectedTemplate.getLigation();
+        Ligation actualLigation = actualTemplate.getLigation();
+
+        assertEquals(expectedLigation.getID(), actualLigation.getID());
+        assertEquals(expectedLigation.getName(), actualLigation.getName());
+        assertEquals(expectedLigation.getInsertSizeLow(),
+                actualLigation.getInsertSizeLow());
+        assertEquals(expectedLigation.getInsertSizeHigh(),
+                actualLigation.getInsertSizeHigh());
+    }
+}
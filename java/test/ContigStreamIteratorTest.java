@@ -0,0 +1,273 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.data.Contig;
+import uk.ac.sanger.arcturus.database.ArcturusDatabase;
+import uk.ac.sanger.arcturus.database.ContigIterator;
+import uk.ac.sanger.arcturus.jdbc.ArcturusDatabaseImpl;
+
+
+/*
+ * Runs a contig stream over a fake JDBC driver, whilst other threads make
+ * contig manager calls on the same database object. The driver records any
+ * call on a connection's statements which starts whilst another thread is
+ * still inside a call on the same connection.
+ */
+
+public class ContigStreamIteratorTest {
+    private static final int CONTIGS = 500;
+
+    private static final String STREAM_QUERY = "select contig_id,gap4name,length,nreads,created,updated,project_id"
+            + " from CURRENTCONTIGS where length > ?";
+
+    private final AtomicInteger overlaps = new AtomicInteger();
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ContigStreamIteratorTest.class);
+    }
+
+    @Test
+    public void testStreamExcludesOtherContigCalls() throws Exception {
+        final ArcturusDatabase adb = new ArcturusDatabaseImpl(createDataSource(),
+                "Test", "TEST", null);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Vector<Thread> workers = new Vector<Thread>();
+
+        final boolean[] streaming = { true };
+
+        for (int i = 0; i < 3; i++) {
+            final int offset = i;
+
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        for (int id = 1 + offset; isStreaming(); id += 3) {
+                            adb.getContigByID(id, ArcturusDatabase.CONTIG_BASIC_DATA);
+                            adb.updateContig(new Contig("contig" + id, id, 100, 1,
+                                    null, null, null, adb), ArcturusDatabase.CONTIG_TAGS);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+
+                private boolean isStreaming() {
+                    synchronized (streaming) {
+                        return streaming[0];
+                    }
+                }
+            };
+
+            workers.add(worker);
+            worker.start();
+        }
+
+        int count = 0;
+
+        try {
+            ContigIterator iter = adb.iterateCurrentContigs(
+                    ArcturusDatabase.CONTIG_MAPPING_RELATED_DATA
+                            | ArcturusDatabase.CONTIG_CONSENSUS
+                            | ArcturusDatabase.CONTIG_TAGS, 0);
+
+            while (iter.hasNext()) {
+                Contig contig = iter.next();
+                assertEquals(++count, contig.getID());
+            }
+        } finally {
+            synchronized (streaming) {
+                streaming[0] = false;
+            }
+
+            for (Thread worker : workers)
+                worker.join();
+        }
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        assertEquals(CONTIGS, count);
+        assertEquals(0, overlaps.get());
+    }
+
+    private DataSource createDataSource() {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { DataSource.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getConnection"))
+                            return createConnection();
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private Connection createConnection() {
+        final AtomicReference<Thread> user = new AtomicReference<Thread>();
+
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    private boolean closed = false;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+
+                        if (name.equals("prepareStatement"))
+                            return createStatement(PreparedStatement.class,
+                                    (String) args[0], user);
+
+                        if (name.equals("createStatement"))
+                            return createStatement(Statement.class, null, user);
+
+                        if (name.equals("close")) {
+                            closed = true;
+                            return null;
+                        }
+
+                        if (name.equals("isClosed"))
+                            return closed;
+
+                        if (name.equals("isValid") || name.equals("getAutoCommit"))
+                            return true;
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private Object createStatement(Class<?> type, final String sql,
+            final AtomicReference<Thread> user) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { type }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws InterruptedException {
+                        Thread thread = Thread.currentThread();
+
+                        if (!user.compareAndSet(null, thread)
+                                && user.get() != thread)
+                            overlaps.incrementAndGet();
+
+                        try {
+                            String name = method.getName();
+
+                            if (name.equals("executeQuery")) {
+                                // Widen the window in which an unsynchronized
+                                // caller would be caught.
+                                Thread.sleep(1);
+
+                                String query = args == null ? sql : (String) args[0];
+
+                                return createResultSet(STREAM_QUERY.equals(query) ? CONTIGS : 0);
+                            }
+
+                            if (name.equals("getResultSet"))
+                                return createResultSet(0);
+
+                            return defaultValue(method.getReturnType());
+                        } finally {
+                            user.compareAndSet(thread, null);
+                        }
+                    }
+                });
+    }
+
+    private ResultSet createResultSet(final int rows) {
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                    private int row = 0;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+
+                        if (name.equals("next"))
+                            return ++row <= rows;
+
+                        if (name.equals("getInt"))
+                            return ((Integer) args[0]).intValue() == 1 ? row : 1000;
+
+                        if (name.equals("getString"))
+                            return "contig" + row;
+
+                        if (name.equals("getTimestamp"))
+                            return new Timestamp(0L);
+
+                        if (name.equals("getMetaData"))
+                            return Proxy.newProxyInstance(getClass().getClassLoader(),
+                                    new Class<?>[] { ResultSetMetaData.class },
+                                    new InvocationHandler() {
+                                        public Object invoke(Object proxy, Method method,
+                                                Object[] args) {
+                                            return defaultValue(method.getReturnType());
+                                        }
+                                    });
+
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class)
+            return false;
+
+        if (type == int.class)
+            return 0;
+
+        if (type == long.class)
+            return 0L;
+
+        if (type == short.class)
+            return (short) 0;
+
+        if (type == byte.class)
+            return (byte) 0;
+
+        if (type == double.class)
+            return 0.0;
+
+        if (type == float.class)
+            return 0.0f;
+
+        return null;
+    }
+}
@@ -0,0 +1,679 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.oligo.KmerIndex;
+import uk.ac.sanger.arcturus.oligo.KmerIndexWriter;
+import uk.ac.sanger.arcturus.oligo.Oligo;
+import uk.ac.sanger.arcturus.oligo.OligoMatcher;
+
+
+public class KmerIndexTest {
+    private final Random random = new Random(1131071L);
+
+    private File dir;
+    private File file;
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(KmerIndexTest.class);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("kmerindex", ".dir");
+        dir.delete();
+        dir.mkdir();
+
+        file = new File(dir, "test.kmi");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+
+        if (files != null)
+            for (File f : files)
+                f.delete();
+
+        dir.delete();
+    }
+
+    @Test
+    public void testHeaderAndPostingsLayout() throws IOException {
+        Map<Integer, byte[]> sequences = randomSequences(20);
+
+        KmerIndexWriter writer = new KmerIndexWriter(file);
+
+        for (Map.Entry<Integer, byte[]> entry : sequences.entrySet())
+            writer.addSequence(entry.getKey(), entry.getValue());
+
+        writer.addAbsentSequence(999);
+        writer.setTimestamp(1234567890123L);
+        writer.finish();
+
+        ByteBuffer buffer = map(file);
+
+        int nseqs = sequences.size() + 1;
+
+        assertEquals(KmerIndex.MAGIC, buffer.getInt(0));
+        assertEquals(KmerIndex.VERSION, buffer.getInt(4));
+        assertEquals(KmerIndex.K, buffer.getInt(8));
+        assertEquals(KmerIndex.STEP, buffer.getInt(12));
+        assertEquals(nseqs, buffer.getInt(16));
+        assertEquals(1234567890123L, buffer.getLong(32));
+
+        long dataLength = buffer.getLong(20);
+        int npostings = buffer.getInt(28);
+
+        int tableOffset = KmerIndex.HEADER_SIZE + (int) dataLength;
+        int offsetsOffset = tableOffset + nseqs * KmerIndex.TABLE_ENTRY_SIZE;
+        int postingsOffset = offsetsOffset + 4 * (KmerIndex.KMER_COUNT + 1);
+
+        assertEquals(postingsOffset + 4 * npostings, buffer.capacity());
+
+        // The sequence table lists the sequences in the order in which they
+        // were added, with their data stored contiguously.
+        List<List<Integer>> expected = new ArrayList<List<Integer>>();
+
+        for (int code = 0; code < KmerIndex.KMER_COUNT; code++)
+            expected.add(null);
+
+        long start = 0;
+        int i = 0;
+        int expectedPostings = 0;
+
+        for (Map.Entry<Integer, byte[]> entry : sequences.entrySet()) {
+            byte[] dna = entry.getValue();
+            int entryOffset = tableOffset + i * KmerIndex.TABLE_ENTRY_SIZE;
+
+            assertEquals(entry.getKey().intValue(), buffer.getInt(entryOffset));
+            assertEquals(start, buffer.getLong(entryOffset + 4));
+            assertEquals(dna.length, buffer.getInt(entryOffset + 12));
+
+            boolean padded = new String(dna).indexOf('-') >= 0;
+
+            assertEquals(padded ? KmerIndex.FLAG_PADDED : 0, buffer
+                    .getInt(entryOffset + 16));
+            assertEquals(KmerIndexWriter.getChecksum(dna), buffer
+                    .getLong(entryOffset + 20));
+
+            for (int j = 0; j < dna.length; j++)
+                assertEquals(dna[j], buffer.get(KmerIndex.HEADER_SIZE
+                        + (int) start + j));
+
+            if (!padded) {
+                for (int pos = 0; pos + KmerIndex.K <= dna.length; pos += KmerIndex.STEP) {
+                    int code = encode(dna, pos);
+
+                    if (code < 0)
+                        continue;
+
+                    if (expected.get(code) == null)
+                        expected.set(code, new ArrayList<Integer>());
+
+                    expected.get(code).add((int) start + pos);
+                    expectedPostings++;
+                }
+            }
+
+            start += dna.length;
+            i++;
+        }
+
+        int absentOffset = tableOffset + i * KmerIndex.TABLE_ENTRY_SIZE;
+
+        assertEquals(999, buffer.getInt(absentOffset));
+        assertEquals(0, buffer.getInt(absentOffset + 12));
+        assertEquals(KmerIndex.FLAG_ABSENT, buffer.getInt(absentOffset + 16));
+
+        assertEquals(dataLength, start);
+        assertEquals(expectedPostings, npostings);
+
+        // Each postings list holds the positions of one k-mer, in the order
+        // of the sequences and then of the positions within them.
+        for (int code = 0; code < KmerIndex.KMER_COUNT; code++) {
+            int first = buffer.getInt(offsetsOffset + 4 * code);
+            int last = buffer.getInt(offsetsOffset + 4 * (code + 1));
+
+            List<Integer> positions = expected.get(code);
+
+            assertEquals(positions == null ? 0 : positions.size(), last - first);
+
+            for (int j = first; j < last; j++)
+                assertEquals(positions.get(j - first).intValue(), buffer
+                        .getInt(postingsOffset + 4 * j));
+        }
+    }
+
+    @Test
+    public void testHandWrittenSequences() throws IOException {
+        String oligo = "ACGTTGCAAGGCTTA";
+
+        KmerIndexWriter writer = new KmerIndexWriter(file);
+
+        // A match at the very start, so that its k-mer is at position 0, and
+        // one which ends at the last base.
+        writer.addSequence(1, (oligo + "TTTTTTTTTTTTTTTTTTTT").getBytes());
+        writer.addSequence(2, ("TTTTTTTTTTTTTTTTTTTTT" + oligo).getBytes());
+
+        // A match split between two sequences which are adjacent in the data.
+        writer.addSequence(3, "TTTTTTTTTTACGTTGCA".getBytes());
+        writer.addSequence(4, "AGGCTTATTTTTTTTTT".getBytes());
+
+        // A pad inside a match, and an N where the oligo has one.
+        writer.addSequence(5, "TTACGTTGC-AAGGCTTATT".getBytes());
+        writer.addSequence(6, "TTACGTTNCAAGGCTTATT".getBytes());
+
+        writer.addSequence(7, "TTGAATTCGGCCGAATTCTT".getBytes());
+
+        writer.addSequence(8, new byte[0]);
+        writer.addSequence(9, "TACGT".getBytes());
+
+        writer.finish();
+
+        KmerIndex index = KmerIndex.open(file);
+
+        assertEquals(9, index.getSequenceCount());
+        assertTrue(index.hasSequence(8));
+        assertEquals(0, index.getSequenceLength(8));
+
+        assertEquals(Arrays.asList("1 PLAIN 0 +", "2 PLAIN 21 +", "5 PLAIN 2 +"),
+                search(index, new Oligo("PLAIN", oligo)));
+
+        // N matches only N, so this oligo cannot be found through the
+        // postings lists.
+        assertEquals(Arrays.asList("6 WITHN 2 +"), search(index, new Oligo(
+                "WITHN", "ACGTTNCAAGGCTTA")));
+
+        // A palindrome is reported once, in the forward sense.
+        assertEquals(Arrays.asList("7 PALINDROME 2 +"), search(index,
+                new Oligo("PALINDROME", "GAATTCGGCCGAATTC")));
+
+        // An oligo shorter than MIN_INDEXED_OLIGO_LENGTH.
+        assertEquals(Arrays.asList("1 SHORT 10 +", "2 SHORT 31 +",
+                "4 SHORT 2 +", "5 SHORT 13 +", "6 SHORT 12 +"), search(index,
+                new Oligo("SHORT", "GCTTA")));
+    }
+
+    @Test
+    public void testReopenedIndexMatchesScan() throws IOException {
+        Map<Integer, byte[]> sequences = randomSequences(40);
+
+        KmerIndexWriter writer = new KmerIndexWriter(file);
+
+        for (Map.Entry<Integer, byte[]> entry : sequences.entrySet())
+            writer.addSequence(entry.getKey(), entry.getValue());
+
+        writer.addAbsentSequence(999);
+        writer.finish();
+
+        KmerIndex index = KmerIndex.open(file);
+
+        assertEquals(sequences.size() + 1, index.getSequenceCount());
+
+        for (Map.Entry<Integer, byte[]> entry : sequences.entrySet()) {
+            int id = entry.getKey();
+
+            assertTrue(index.contains(id));
+            assertTrue(index.hasSequence(id));
+            assertArrayEquals(entry.getValue(), index.getSequence(id));
+            assertEquals(entry.getValue().length, index.getSequenceLength(id));
+            assertEquals(KmerIndexWriter.getChecksum(entry.getValue()), index
+                    .getSequenceChecksum(id));
+        }
+
+        assertTrue(index.contains(999));
+        assertFalse(index.hasSequence(999));
+        assertNull(index.getSequence(999));
+        assertEquals(-1, index.getSequenceLength(999));
+
+        assertFalse(index.contains(1000));
+
+        for (int trial = 0; trial < 30; trial++) {
+            Oligo[] oligos = randomOligos(sequences);
+
+            assertSearchMatchesScan(index, oligos, sequences, sequences.keySet());
+
+            // A search may be restricted to some of the sequences.
+            Set<Integer> scope = new HashSet<Integer>();
+
+            for (int id : sequences.keySet())
+                if (random.nextBoolean())
+                    scope.add(id);
+
+            assertSearchMatchesScan(index, oligos, sequences, scope);
+        }
+    }
+
+    @Test
+    public void testUpdateCopiesUnchangedSequences() throws IOException {
+        Map<Integer, byte[]> database = randomSequences(30);
+
+        // The source has no sequence for this ID, like a contig which has no
+        // consensus.
+        database.remove(7);
+
+        RecordingSource source = new RecordingSource(database);
+
+        Set<Integer> ids = new TreeSet<Integer>();
+
+        for (int id = 0; id < 20; id++)
+            ids.add(id);
+
+        KmerIndex index = KmerIndexWriter.update(file, null, ids,
+                new HashSet<Integer>(), 100L, source);
+
+        assertEquals(ids, source.requested);
+        assertEquals(20, index.getSequenceCount());
+        assertEquals(100L, index.getTimestamp());
+        assertTrue(index.contains(7));
+        assertFalse(index.hasSequence(7));
+        assertNoTemporaryFiles();
+
+        // Drop some sequences, add new ones, and change the data of others.
+        Set<Integer> newIDs = new TreeSet<Integer>();
+
+        for (int id = 5; id < 30; id++)
+            newIDs.add(id);
+
+        Set<Integer> changedIDs = new TreeSet<Integer>();
+        changedIDs.add(10);
+        changedIDs.add(12);
+
+        database.put(10, randomSequence(500));
+        database.put(12, randomSequence(0));
+
+        // A sequence which changed without being reported must be copied
+        // from the old index unchanged.
+        byte[] stale = index.getSequence(15);
+        database.put(15, randomSequence(200));
+
+        source.requested.clear();
+
+        KmerIndex oldIndex = index;
+
+        index = KmerIndexWriter.update(file, oldIndex, newIDs, changedIDs,
+                200L, source);
+
+        Set<Integer> expectedRequests = new TreeSet<Integer>(changedIDs);
+
+        for (int id = 20; id < 30; id++)
+            expectedRequests.add(id);
+
+        assertEquals(expectedRequests, source.requested);
+
+        assertEquals(newIDs.size(), index.getSequenceCount());
+        assertEquals(200L, index.getTimestamp());
+        assertNoTemporaryFiles();
+
+        for (int id = 0; id < 5; id++)
+            assertFalse(index.contains(id));
+
+        assertTrue(index.contains(7));
+        assertFalse(index.hasSequence(7));
+
+        assertArrayEquals(stale, index.getSequence(15));
+
+        Map<Integer, byte[]> expected = new TreeMap<Integer, byte[]>();
+
+        for (int id : newIDs) {
+            if (id == 7)
+                continue;
+
+            byte[] dna = id == 15 ? stale : database.get(id);
+
+            assertArrayEquals("Sequence " + id, dna, index.getSequence(id));
+
+            expected.put(id, dna);
+        }
+
+        // The file has been replaced, so the index must be re-opened from it.
+        KmerIndex reopened = KmerIndex.open(file);
+
+        assertEquals(index.getSequenceCount(), reopened.getSequenceCount());
+        assertEquals(200L, reopened.getTimestamp());
+
+        for (int trial = 0; trial < 20; trial++)
+            assertSearchMatchesScan(reopened, randomOligos(expected), expected,
+                    expected.keySet());
+    }
+
+    @Test
+    public void testFailedUpdateKeepsOldFile() throws IOException {
+        Map<Integer, byte[]> database = randomSequences(10);
+
+        Set<Integer> ids = new TreeSet<Integer>(database.keySet());
+
+        KmerIndex index = KmerIndexWriter.update(file, null, ids,
+                new HashSet<Integer>(), 1L, new RecordingSource(database));
+
+        long length = file.length();
+
+        ids.add(100);
+
+        try {
+            KmerIndexWriter.update(file, index, ids, new HashSet<Integer>(), 2L,
+                    new KmerIndexWriter.SequenceSource() {
+                        public void addSequences(Set<Integer> ids,
+                                KmerIndexWriter writer) throws IOException {
+                            throw new IOException("The database went away");
+                        }
+                    });
+
+            fail("The update should have failed");
+        } catch (IOException ioe) {
+            // This is expected.
+        }
+
+        assertNoTemporaryFiles();
+        assertEquals(length, file.length());
+
+        KmerIndex reopened = KmerIndex.open(file);
+
+        assertEquals(1L, reopened.getTimestamp());
+        assertFalse(reopened.contains(100));
+    }
+
+    @Test
+    public void testOpenMissingFile() throws IOException {
+        assertNull(KmerIndex.open(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenTruncatedFile() throws IOException {
+        KmerIndexWriter writer = new KmerIndexWriter(file);
+        writer.addSequence(1, randomSequence(100));
+        writer.finish();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+
+        KmerIndex.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenIncompatibleVersion() throws IOException {
+        KmerIndexWriter writer = new KmerIndexWriter(file);
+        writer.addSequence(1, randomSequence(100));
+        writer.finish();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.writeInt(KmerIndex.VERSION - 1);
+        raf.close();
+
+        KmerIndex.open(file);
+    }
+
+    private List<String> search(KmerIndex index, Oligo oligo) {
+        Set<Integer> ids = new TreeSet<Integer>();
+
+        for (int id = 1; id <= index.getSequenceCount(); id++)
+            ids.add(id);
+
+        Oligo[] oligos = { oligo };
+
+        KmerIndex.Search search = index.search(oligos, ids);
+
+        OligoMatcher matcher = new OligoMatcher(oligos);
+
+        List<String> hits = new ArrayList<String>();
+
+        for (int id : ids) {
+            Recorder recorder = new Recorder();
+
+            search.reportMatches(id, recorder);
+
+            byte[] dna = index.getSequence(id);
+
+            // The index must agree with a scan of each sequence.
+            Recorder scan = new Recorder();
+
+            matcher.findMatches(new String(dna), scan);
+
+            assertEquals("Sequence " + id, scan.hits, recorder.hits);
+
+            for (String hit : recorder.hits)
+                hits.add(id + " " + hit);
+        }
+
+        return hits;
+    }
+
+    private void assertSearchMatchesScan(KmerIndex index, Oligo[] oligos,
+            Map<Integer, byte[]> sequences, Set<Integer> scope) {
+        KmerIndex.Search search = index.search(oligos, scope);
+
+        OligoMatcher matcher = new OligoMatcher(oligos);
+
+        for (Map.Entry<Integer, byte[]> entry : sequences.entrySet()) {
+            int id = entry.getKey();
+
+            Recorder expected = new Recorder();
+
+            if (scope.contains(id))
+                matcher.findMatches(new String(entry.getValue()), expected);
+
+            Recorder actual = new Recorder();
+
+            int count = search.reportMatches(id, actual);
+
+            assertEquals("Sequence " + id, expected.hits, actual.hits);
+            assertEquals(expected.hits.size(), count);
+        }
+    }
+
+    private void assertNoTemporaryFiles() {
+        String[] names = dir.list();
+
+        for (String name : names)
+            assertFalse(name, name.endsWith(".tmp"));
+    }
+
+    /*
+     * Random sequences, mostly of plain bases, but with some runs of N,
+     * some pads, some repeats and some empty or very short sequences.
+     */
+
+    private Map<Integer, byte[]> randomSequences(int count) {
+        Map<Integer, byte[]> sequences = new TreeMap<Integer, byte[]>();
+
+        byte[] repeat = randomSequence(60);
+
+        for (int id = 0; id < count; id++) {
+            int type = random.nextInt(10);
+
+            byte[] dna;
+
+            switch (type) {
+                case 0:
+                    dna = randomSequence(random.nextInt(KmerIndex.K + 2));
+                    break;
+
+                case 1:
+                    dna = insert(randomSequence(300), repeat);
+                    break;
+
+                case 2:
+                    dna = sprinkle(randomSequence(300), (byte) '-');
+                    break;
+
+                case 3:
+                    dna = sprinkle(randomSequence(300), (byte) 'N');
+                    break;
+
+                default:
+                    dna = randomSequence(200 + random.nextInt(400));
+                    break;
+            }
+
+            sequences.put(id, dna);
+        }
+
+        return sequences;
+    }
+
+    /*
+     * Oligos taken from the sequences, in both senses, so that there are
+     * plenty of hits, plus random oligos, short oligos and oligos which
+     * contain N.
+     */
+
+    private Oligo[] randomOligos(Map<Integer, byte[]> sequences) {
+        List<byte[]> candidates = new ArrayList<byte[]>();
+
+        for (byte[] dna : sequences.values())
+            if (dna.length >= 30)
+                candidates.add(dna);
+
+        Oligo[] oligos = new Oligo[1 + random.nextInt(8)];
+
+        for (int i = 0; i < oligos.length; i++) {
+            int type = random.nextInt(5);
+
+            int length = type == 0 ? 4 + random.nextInt(KmerIndex.MIN_INDEXED_OLIGO_LENGTH - 4)
+                    : KmerIndex.MIN_INDEXED_OLIGO_LENGTH + random.nextInt(12);
+
+            String sequence;
+
+            if (type == 4 || candidates.isEmpty())
+                sequence = new String(randomSequence(length));
+            else {
+                byte[] dna = candidates.get(random.nextInt(candidates.size()));
+                int start = random.nextInt(dna.length - length + 1);
+                sequence = new String(dna, start, length).replace("-", "");
+
+                if (sequence.length() == 0)
+                    sequence = "ACGT";
+
+                if (type == 2)
+                    sequence = new Oligo(sequence).getReverseSequence();
+            }
+
+            oligos[i] = new Oligo("OLIGO." + i, sequence);
+        }
+
+        return oligos;
+    }
+
+    private byte[] randomSequence(int length) {
+        byte[] dna = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            dna[i] = (byte) "ACGT".charAt(random.nextInt(4));
+
+        return dna;
+    }
+
+    private byte[] insert(byte[] dna, byte[] repeat) {
+        for (int copy = 0; copy < 3; copy++) {
+            int start = random.nextInt(dna.length - repeat.length);
+            System.arraycopy(repeat, 0, dna, start, repeat.length);
+        }
+
+        return dna;
+    }
+
+    private byte[] sprinkle(byte[] dna, byte c) {
+        for (int i = 0; i < 5; i++)
+            dna[random.nextInt(dna.length)] = c;
+
+        return dna;
+    }
+
+    private static int encode(byte[] dna, int offset) {
+        int code = 0;
+
+        for (int i = 0; i < KmerIndex.K; i++) {
+            int base = "ACGT".indexOf(dna[offset + i]);
+
+            if (base < 0)
+                return -1;
+
+            code = (code << 2) | base;
+        }
+
+        return code;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static class RecordingSource implements KmerIndexWriter.SequenceSource {
+        final Map<Integer, byte[]> database;
+        final Set<Integer> requested = new TreeSet<Integer>();
+
+        RecordingSource(Map<Integer, byte[]> database) {
+            this.database = database;
+        }
+
+        public void addSequences(Set<Integer> ids, KmerIndexWriter writer)
+                throws IOException {
+            requested.addAll(ids);
+
+            for (int id : ids) {
+                byte[] dna = database.get(id);
+
+                if (dna != null)
+                    writer.addSequence(id, dna);
+            }
+        }
+    }
+
+    private static class Recorder implements OligoMatcher.MatchHandler {
+        final List<String> hits = new ArrayList<String>();
+
+        public void foundMatch(Oligo oligo, int offset, boolean forward) {
+            hits.add(oligo.getName() + " " + offset + (forward ? " +" : " -"));
+        }
+    }
+}
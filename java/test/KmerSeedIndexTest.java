@@ -0,0 +1,302 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.smithwaterman.KmerSeedIndex;
+
+
+public class KmerSeedIndexTest {
+    private final Random random = new Random(3141592L);
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(KmerSeedIndexTest.class);
+    }
+
+    @Test
+    public void testHandWrittenSequences() {
+        byte[][] sequences = { "ACGTAC".getBytes(), new byte[0],
+                "NNACGT".getBytes(), "acgtNACGT".getBytes(), "AC".getBytes() };
+
+        KmerSeedIndex index = new KmerSeedIndex(sequences, 4, 1);
+
+        // Lower-case bases are indexed as upper case, k-mers containing N are
+        // skipped, and no k-mer spans two sequences, such as CGTA at offset 9
+        // or GTAC at offset 19.
+        assertEquals(3, index.getDistinctKmerCount());
+        assertEquals(6, index.getPostingsCount());
+
+        assertEquals(Arrays.asList(0, 8, 12, 17), postings(index, "ACGT"));
+        assertEquals(Arrays.asList(1), postings(index, "CGTA"));
+        assertEquals(Arrays.asList(2), postings(index, "GTAC"));
+        assertTrue(index.lookup(pack("TACG")) < 0);
+
+        // The empty sequence starts at the same offset as the next one, which
+        // owns that offset.
+        assertEquals(6, index.getSequenceStart(1));
+        assertEquals(0, index.getSequenceLength(1));
+        assertEquals(6, index.getSequenceStart(2));
+        assertEquals(2, index.getSequenceIndex(6));
+        assertEquals(3, index.getSequenceIndex(20));
+        assertEquals(4, index.getSequenceIndex(21));
+
+        // The step is counted from the start of each sequence.
+        index = new KmerSeedIndex(sequences, 4, 2);
+
+        assertEquals(Arrays.asList(0, 8, 12), postings(index, "ACGT"));
+        assertEquals(Arrays.asList(2), postings(index, "GTAC"));
+        assertTrue(index.lookup(pack("CGTA")) < 0);
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        // A cross-check of the layout against a brute-force scan of random
+        // sequences.
+        byte[][] sequences = randomSequences();
+
+        int[] kmerSizes = { 1, 4, 11, KmerSeedIndex.MAX_KMER_SIZE };
+
+        for (int k = 0; k < kmerSizes.length; k++)
+            for (int step = 1; step <= 3; step++)
+                assertIndexMatches(sequences, kmerSizes[k], step,
+                        new KmerSeedIndex(sequences, kmerSizes[k], step));
+    }
+
+    @Test
+    public void testParallelBuild() {
+        byte[][] sequences = randomSequences();
+
+        KmerSeedIndex serial = new KmerSeedIndex(sequences, 8, 2, 1);
+
+        for (int threads = 2; threads <= 5; threads++) {
+            KmerSeedIndex parallel = new KmerSeedIndex(sequences, 8, 2, threads);
+
+            assertIndexMatches(sequences, 8, 2, parallel);
+            assertIndexEquals(serial, parallel);
+        }
+    }
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        byte[][] sequences = randomSequences();
+
+        KmerSeedIndex index = new KmerSeedIndex(sequences, 9, 1, 3);
+
+        File file = File.createTempFile("kmerindex", ".dat");
+
+        try {
+            index.write(file);
+
+            KmerSeedIndex mapped = KmerSeedIndex.open(file);
+
+            assertEquals(9, mapped.getKmerSize());
+            assertEquals(1, mapped.getStep());
+            assertIndexMatches(sequences, 9, 1, mapped);
+            assertIndexEquals(index, mapped);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenTruncatedFile() throws IOException {
+        KmerSeedIndex index = new KmerSeedIndex(randomSequences(), 5, 1);
+
+        File file = File.createTempFile("kmerindex", ".dat");
+
+        try {
+            index.write(file);
+
+            java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 4);
+            raf.close();
+
+            KmerSeedIndex.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDecodeKmer() {
+        String kmer = "GATTACA";
+
+        assertEquals(kmer, KmerSeedIndex.decodeKmer(pack(kmer), kmer.length()));
+    }
+
+    /*
+     * Random sequences with lowercase bases, runs of N, and an empty
+     * sequence, with one sequence repeated so that some k-mers occur many
+     * times.
+     */
+
+    private byte[][] randomSequences() {
+        byte[][] sequences = new byte[12][];
+
+        for (int i = 0; i < sequences.length; i++) {
+            int length = i == 3 ? 0 : random.nextInt(300);
+
+            StringBuilder sb = new StringBuilder();
+
+            for (int j = 0; j < length; j++) {
+                int r = random.nextInt(100);
+
+                if (r < 2)
+                    sb.append('N');
+                else if (r < 6)
+                    sb.append("acgt".charAt(random.nextInt(4)));
+                else
+                    sb.append("ACGT".charAt(random.nextInt(4)));
+            }
+
+            sequences[i] = sb.toString().getBytes();
+        }
+
+        sequences[7] = sequences[5].clone();
+
+        return sequences;
+    }
+
+    private void assertIndexMatches(byte[][] sequences, int kmerSize,
+            int step, KmerSeedIndex index) {
+        Map<String, List<Integer>> expected = new TreeMap<String, List<Integer>>();
+
+        int total = 0;
+        int offset = 0;
+
+        for (int i = 0; i < sequences.length; i++) {
+            String dna = new String(sequences[i]).toUpperCase();
+
+            for (int pos = 0; pos + kmerSize <= dna.length(); pos += step) {
+                String kmer = dna.substring(pos, pos + kmerSize);
+
+                if (!kmer.matches("[ACGT]+"))
+                    continue;
+
+                List<Integer> postings = expected.get(kmer);
+
+                if (postings == null) {
+                    postings = new ArrayList<Integer>();
+                    expected.put(kmer, postings);
+                }
+
+                postings.add(offset + pos);
+                total++;
+            }
+
+            assertEquals(offset, index.getSequenceStart(i));
+            assertEquals(dna.length(), index.getSequenceLength(i));
+
+            for (int pos = 0; pos < dna.length(); pos++)
+                assertEquals(i, index.getSequenceIndex(offset + pos));
+
+            offset += dna.length();
+        }
+
+        assertEquals(sequences.length, index.getSequenceCount());
+        assertEquals(expected.size(), index.getDistinctKmerCount());
+        assertEquals(total, index.getPostingsCount());
+
+        long lastKmer = -1;
+
+        for (Map.Entry<String, List<Integer>> entry : expected.entrySet()) {
+            long kmer = pack(entry.getKey());
+
+            int id = index.lookup(kmer);
+
+            assertTrue(id >= 0);
+            assertTrue(kmer > lastKmer);
+            assertEquals(kmer, index.getKmer(id));
+            assertEquals(entry.getKey(), KmerSeedIndex.decodeKmer(kmer, kmerSize));
+
+            List<Integer> postings = entry.getValue();
+
+            assertEquals(postings.size(), index.getOccurrenceCount(id));
+
+            for (int j = 0; j < postings.size(); j++)
+                assertEquals(postings.get(j).intValue(),
+                        index.getPosting(index.getPostingsStart(id) + j));
+
+            assertEquals(index.getPostingsStart(id) + postings.size(),
+                    index.getPostingsEnd(id));
+
+            lastKmer = kmer;
+        }
+
+        for (int trial = 0; trial < 200; trial++) {
+            StringBuilder sb = new StringBuilder();
+
+            for (int j = 0; j < kmerSize; j++)
+                sb.append("ACGT".charAt(random.nextInt(4)));
+
+            if (!expected.containsKey(sb.toString()))
+                assertTrue(index.lookup(pack(sb.toString())) < 0);
+        }
+    }
+
+    private void assertIndexEquals(KmerSeedIndex expected, KmerSeedIndex actual) {
+        assertEquals(expected.getDistinctKmerCount(), actual.getDistinctKmerCount());
+        assertEquals(expected.getPostingsCount(), actual.getPostingsCount());
+
+        for (int i = 0; i < expected.getDistinctKmerCount(); i++) {
+            assertEquals(expected.getKmer(i), actual.getKmer(i));
+            assertEquals(expected.getPostingsStart(i), actual.getPostingsStart(i));
+        }
+
+        for (int i = 0; i < expected.getPostingsCount(); i++)
+            assertEquals(expected.getPosting(i), actual.getPosting(i));
+    }
+
+    private List<Integer> postings(KmerSeedIndex index, String kmer) {
+        int id = index.lookup(pack(kmer));
+
+        assertTrue(kmer, id >= 0);
+
+        List<Integer> postings = new ArrayList<Integer>();
+
+        for (int p = index.getPostingsStart(id); p < index.getPostingsEnd(id); p++)
+            postings.add(index.getPosting(p));
+
+        return postings;
+    }
+
+    private static long pack(String kmer) {
+        long value = 0;
+
+        for (int i = 0; i < kmer.length(); i++)
+            value = (value << 2) | KmerSeedIndex.encodeBase((byte) kmer.charAt(i));
+
+        return value;
+    }
+}
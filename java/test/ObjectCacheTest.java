@@ -0,0 +1,236 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.cache.ObjectCache;
+import uk.ac.sanger.arcturus.cache.Weigher;
+
+
+public class ObjectCacheTest {
+    private static final Weigher<String> LENGTH_WEIGHER = new Weigher<String>() {
+        public long getWeight(String value) {
+            return value.length();
+        }
+    };
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ObjectCacheTest.class);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "lru", 3);
+
+        for (int i = 1; i <= 5; i++)
+            cache.put(i, "value" + i);
+
+        assertEquals(3, cache.getSize());
+        assertEquals(2, cache.getEvictionCount());
+
+        assertFalse(cache.containsKey(1));
+        assertFalse(cache.containsKey(2));
+
+        for (int i = 3; i <= 5; i++)
+            assertEquals("value" + i, cache.get(i));
+
+        assertNull(cache.get(1));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testGetRefreshesRecency() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "recency", 3);
+
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+
+        assertEquals("one", cache.get(1));
+
+        cache.put(4, "four");
+
+        assertTrue(cache.containsKey(1));
+        assertFalse(cache.containsKey(2));
+
+        assertEquals("three", cache.get(3));
+
+        cache.put(5, "five");
+
+        assertFalse(cache.containsKey(1));
+        assertTrue(cache.containsKey(3));
+        assertTrue(cache.containsKey(4));
+        assertTrue(cache.containsKey(5));
+    }
+
+    @Test
+    public void testPutOfExistingKeyRefreshesRecency() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "replace", 2);
+
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(1, "uno");
+
+        cache.put(3, "three");
+
+        assertEquals("uno", cache.get(1));
+        assertFalse(cache.containsKey(2));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testEvictsByWeight() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "weight", ObjectCache.UNLIMITED, 10, LENGTH_WEIGHER, false);
+
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+
+        assertEquals(8, cache.getWeight());
+
+        cache.put(3, "cccc");
+
+        assertFalse(cache.containsKey(1));
+        assertEquals(8, cache.getWeight());
+
+        cache.get(2);
+
+        cache.put(4, "dddddddd");
+
+        assertFalse(cache.containsKey(2));
+        assertFalse(cache.containsKey(3));
+        assertTrue(cache.containsKey(4));
+        assertEquals(8, cache.getWeight());
+
+        cache.put(4, "dd");
+
+        assertEquals(2, cache.getWeight());
+
+        assertEquals("dd", cache.remove(4));
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testKeepsSingleEntryHeavierThanLimit() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "heavy", ObjectCache.UNLIMITED, 5, LENGTH_WEIGHER, false);
+
+        cache.put(1, "aa");
+        cache.put(2, "bbbbbbbbbb");
+
+        assertFalse(cache.containsKey(1));
+        assertEquals("bbbbbbbbbb", cache.get(2));
+        assertEquals(10, cache.getWeight());
+    }
+
+    @Test
+    public void testWeightLimitIgnoredWithoutWeigher() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "noweigher", ObjectCache.UNLIMITED, 1, null, false);
+
+        for (int i = 0; i < 100; i++)
+            cache.put(i, "value" + i);
+
+        assertEquals(100, cache.getSize());
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testZeroOrNegativeCapacityIsUnlimited() {
+        int[] limits = { ObjectCache.UNLIMITED, -1 };
+
+        for (int j = 0; j < limits.length; j++) {
+            ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                    "unlimited", limits[j], limits[j], LENGTH_WEIGHER, false);
+
+            for (int i = 0; i < 10000; i++)
+                cache.put(i, "value" + i);
+
+            assertEquals(10000, cache.getSize());
+            assertEquals(0, cache.getEvictionCount());
+
+            for (int i = 0; i < 10000; i++)
+                assertEquals("value" + i, cache.get(i));
+        }
+    }
+
+    @Test
+    public void testSetLimitsEvictsEldest() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "limits", ObjectCache.UNLIMITED);
+
+        for (int i = 1; i <= 10; i++)
+            cache.put(i, "value" + i);
+
+        cache.get(1);
+
+        cache.setMaxSize(3);
+
+        assertEquals(3, cache.getSize());
+        assertTrue(cache.containsKey(1));
+        assertTrue(cache.containsKey(9));
+        assertTrue(cache.containsKey(10));
+
+        cache.setMaxSize(ObjectCache.UNLIMITED);
+
+        for (int i = 11; i <= 20; i++)
+            cache.put(i, "value" + i);
+
+        assertEquals(13, cache.getSize());
+    }
+
+    @Test
+    public void testSoftReferencesPromoteEvictedEntries() {
+        ObjectCache<Integer, String> cache = new ObjectCache<Integer, String>(
+                "soft", 2, ObjectCache.UNLIMITED, null, true);
+
+        String one = new String("one");
+
+        cache.put(1, one);
+        cache.put(2, "two");
+        cache.put(3, "three");
+
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getDemotedSize());
+        assertFalse(cache.values().contains(one));
+        assertTrue(cache.containsKey(1));
+
+        // The strong reference held here stops the collector from clearing
+        // the demoted entry, so it must be promoted back into the cache.
+        assertSame(one, cache.get(1));
+
+        assertEquals(1, cache.getSoftHitCount());
+        assertTrue(cache.values().contains(one));
+        assertFalse(cache.values().contains("two"));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getDemotedSize());
+    }
+}
@@ -0,0 +1,309 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.oligo.Oligo;
+import uk.ac.sanger.arcturus.oligo.OligoMatcher;
+
+
+public class OligoMatcherTest {
+    private final Random random = new Random(6021023L);
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OligoMatcherTest.class);
+    }
+
+    @Test
+    public void testSkipsPadsBetweenBases() {
+        Oligo[] oligos = { new Oligo("PADDED", "ACGTT") };
+
+        // Leading and trailing pads are not part of a match, so the offset
+        // is that of the first base.
+        List<String> hits = findMatches(oligos, "--A-C--G---TT-GGACGTT-");
+
+        assertEquals(2, hits.size());
+        assertEquals("PADDED 2 +", hits.get(0));
+        assertEquals("PADDED 16 +", hits.get(1));
+    }
+
+    @Test
+    public void testOtherCharactersBreakMatch() {
+        Oligo[] oligos = { new Oligo("BROKEN", "AACCGGA") };
+
+        assertEquals(0, findMatches(oligos, "AACxCGGA").size());
+        assertEquals(0, findMatches(oligos, "AAC*CGGA").size());
+        assertEquals(0, findMatches(oligos, "AACcCGGA").size());
+        assertEquals(0, findMatches(oligos, "AAC CGGA").size());
+
+        List<String> hits = findMatches(oligos, "AAC*AACCGGA");
+
+        assertEquals(1, hits.size());
+        assertEquals("BROKEN 4 +", hits.get(0));
+    }
+
+    @Test
+    public void testSuccessiveMatchesDoNotOverlap() {
+        Oligo[] oligos = { new Oligo("REPEAT", "AAA") };
+
+        List<String> hits = findMatches(oligos, "AAAAAAA");
+
+        assertEquals(2, hits.size());
+        assertEquals("REPEAT 0 +", hits.get(0));
+        assertEquals("REPEAT 3 +", hits.get(1));
+
+        // The reverse complement is found independently of the forward
+        // matches, again without overlaps.
+        hits = findMatches(oligos, "AAAATTTTTT");
+
+        assertEquals(3, hits.size());
+        assertEquals("REPEAT 0 +", hits.get(0));
+        assertEquals("REPEAT 4 -", hits.get(1));
+        assertEquals("REPEAT 7 -", hits.get(2));
+
+        Oligo[] periodic = { new Oligo("PERIODIC", "ACAC") };
+
+        hits = findMatches(periodic, "ACACACACAC");
+
+        assertEquals(2, hits.size());
+        assertEquals("PERIODIC 0 +", hits.get(0));
+        assertEquals("PERIODIC 4 +", hits.get(1));
+    }
+
+    @Test
+    public void testOligosContainingN() {
+        Oligo[] oligos = { new Oligo("WITHN", "ACNGG") };
+
+        // N in an oligo matches only an N in the sequence, as it did in the
+        // regular expression search.
+        assertEquals(0, findMatches(oligos, "ACAGGCCAGT").size());
+
+        List<String> hits = findMatches(oligos, "TTACNGGTTCCNGTA");
+
+        assertEquals(2, hits.size());
+        assertEquals("WITHN 2 +", hits.get(0));
+        assertEquals("WITHN 9 -", hits.get(1));
+
+        Oligo[] mixed = { new Oligo("WITHN", "ACNGT"),
+                new Oligo("PREFIX", "ACN"), new Oligo("PLAIN", "CGTA") };
+
+        assertMatchesRegex(new OligoMatcher(mixed), mixed,
+                "ACNGTACGTACN-GTNNACGTACNGTTACG");
+    }
+
+    @Test
+    public void testPalindromeReportedOnce() {
+        Oligo[] oligos = { new Oligo("PALINDROME", "ACGT") };
+
+        List<String> hits = findMatches(oligos, "TTACGTTT");
+
+        assertEquals(1, hits.size());
+        assertEquals("PALINDROME 2 +", hits.get(0));
+    }
+
+    @Test
+    public void testMatchOrder() {
+        Oligo[] oligos = { new Oligo("FIRST", "GGAT"),
+                new Oligo("SECOND", "CCA"), new Oligo("THIRD", "GGATCC") };
+
+        // Reverse matches of FIRST (ATCC) occur before its forward matches in
+        // the sequence, but must still be reported after them. THIRD is a
+        // palindrome, so it has no reverse matches.
+        String sequence = "ATCCGGATTTTGGATCCCA";
+
+        List<String> hits = findMatches(oligos, sequence);
+
+        String[] expected = { "FIRST 4 +", "FIRST 11 +", "FIRST 0 -",
+                "FIRST 13 -", "SECOND 16 +", "SECOND 10 -", "THIRD 11 +" };
+
+        assertEquals(expected.length, hits.size());
+
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], hits.get(i));
+
+        assertMatchesRegex(new OligoMatcher(oligos), oligos, sequence);
+    }
+
+    @Test
+    public void testNullAndEmptySequences() {
+        Oligo[] oligos = { new Oligo("ANY", "ACGT") };
+
+        OligoMatcher matcher = new OligoMatcher(oligos);
+
+        assertEquals(0, matcher.findMatches(null, null));
+        assertEquals(0, matcher.findMatches("", null));
+        assertEquals(0, matcher.findMatches("----", null));
+    }
+
+    @Test
+    public void testMatcherIsReusable() {
+        Oligo[] oligos = { new Oligo("REUSED", "GATTACA") };
+
+        OligoMatcher matcher = new OligoMatcher(oligos);
+
+        assertEquals(2, matcher.findMatches("GATTACAGATTACA", null));
+        assertEquals(1, matcher.findMatches("TTGATTACA", null));
+        assertEquals(0, matcher.findMatches("GATTAC", null));
+    }
+
+    @Test
+    public void testPadsAndNAdjacentToMatch() {
+        Oligo[] oligos = { new Oligo("EDGE", "ACGTT") };
+
+        assertEquals(Arrays.asList("EDGE 1 +"), findMatches(oligos, "NACGTTN"));
+        assertEquals(Arrays.asList("EDGE 2 +"), findMatches(oligos, "NNACGTTNN"));
+        assertEquals(Arrays.asList("EDGE 2 +"), findMatches(oligos, "N-ACGTT-N"));
+
+        // An N inside the match breaks it, with or without pads around it.
+        assertEquals(0, findMatches(oligos, "ACGNTT").size());
+        assertEquals(0, findMatches(oligos, "ACG-N-TT").size());
+
+        // The forward match and the reverse complement (AACGT) overlap.
+        assertEquals(Arrays.asList("EDGE 1 +", "EDGE 0 -"), findMatches(
+                oligos, "AACGTT"));
+    }
+
+    @Test
+    public void testPaddedAndRepeatedPalindromes() {
+        Oligo[] oligos = { new Oligo("ECORI", "GAATTC") };
+
+        assertEquals(Arrays.asList("ECORI 0 +"), findMatches(oligos, "G-AA-TTC"));
+        assertEquals(Arrays.asList("ECORI 0 +", "ECORI 6 +"), findMatches(
+                oligos, "GAATTCGAATTC"));
+
+        // N is its own complement, so an oligo with an N at its centre can
+        // be a palindrome too.
+        Oligo[] withN = { new Oligo("PALN", "ACNGT") };
+
+        assertTrue(withN[0].isPalindrome());
+        assertEquals(Arrays.asList("PALN 1 +"), findMatches(withN, "TACNGTA"));
+    }
+
+    @Test
+    public void testMatchesRegexSearchOnRandomData() {
+        // A cross-check of the cases above on random data. A small alphabet
+        // with plenty of pads and breaking characters makes short oligos hit
+        // often, so that every branch of the automaton is exercised.
+        String oligoAlphabet = "ACGTACGTACGTN";
+        String sequenceAlphabet = "ACGTACGTACGTACGT--Nx*a";
+
+        for (int trial = 0; trial < 200; trial++) {
+            Oligo[] oligos = new Oligo[1 + random.nextInt(12)];
+
+            for (int i = 0; i < oligos.length; i++)
+                oligos[i] = new Oligo("OLIGO." + i, randomString(oligoAlphabet,
+                        1 + random.nextInt(8)));
+
+            OligoMatcher matcher = new OligoMatcher(oligos);
+
+            for (int j = 0; j < 20; j++) {
+                String sequence = randomString(sequenceAlphabet,
+                        random.nextInt(400));
+
+                assertMatchesRegex(matcher, oligos, sequence);
+            }
+        }
+    }
+
+    private void assertMatchesRegex(OligoMatcher matcher, Oligo[] oligos,
+            String sequence) {
+        List<String> expected = findRegexMatches(oligos, sequence);
+
+        Recorder recorder = new Recorder();
+
+        int found = matcher.findMatches(sequence, recorder);
+
+        assertEquals("Sequence " + sequence, expected, recorder.hits);
+        assertEquals(expected.size(), found);
+    }
+
+    private List<String> findMatches(Oligo[] oligos, String sequence) {
+        Recorder recorder = new Recorder();
+
+        int found = new OligoMatcher(oligos).findMatches(sequence, recorder);
+
+        assertEquals(recorder.hits.size(), found);
+        assertEquals(findRegexMatches(oligos, sequence), recorder.hits);
+
+        return recorder.hits;
+    }
+
+    /*
+     * The regular expression search which OligoFinder used before the
+     * automaton was introduced.
+     */
+
+    private List<String> findRegexMatches(Oligo[] oligos, String sequence) {
+        List<String> hits = new ArrayList<String>();
+
+        for (Oligo oligo : oligos) {
+            findRegexMatches(oligo, true, sequence, hits);
+
+            if (!oligo.isPalindrome())
+                findRegexMatches(oligo, false, sequence, hits);
+        }
+
+        return hits;
+    }
+
+    private void findRegexMatches(Oligo oligo, boolean forward,
+            String sequence, List<String> hits) {
+        Pattern pattern = forward ? oligo.getForwardPattern() : oligo
+                .getReversePattern();
+
+        Matcher matcher = pattern.matcher(sequence);
+
+        while (matcher.find())
+            hits.add(describe(oligo, matcher.start(), forward));
+    }
+
+    private static String describe(Oligo oligo, int offset, boolean forward) {
+        return oligo.getName() + " " + offset + (forward ? " +" : " -");
+    }
+
+    private String randomString(String alphabet, int length) {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++)
+            chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+
+        return new String(chars);
+    }
+
+    private static class Recorder implements OligoMatcher.MatchHandler {
+        final List<String> hits = new ArrayList<String>();
+
+        public void foundMatch(Oligo oligo, int offset, boolean forward) {
+            hits.add(describe(oligo, offset, forward));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import uk.ac.sanger.arcturus.pooledconnection.ConnectionPool;
+import static org.mockito.Mockito.*;
+import org.mockito.*;
+
+
+public class PooledConnectionTest {
+    private static final String SQL = "select readname from READINFO where read_id = ?";
+
+    @Mock private DataSource dataSource;
+    @Mock private Connection conn;
+    @Mock private Statement stmt;
+    @Mock private ResultSet connectionIDResultSet;
+    @Mock private PreparedStatement pstmt;
+    @Mock private ResultSet rs;
+
+    private ConnectionPool pool;
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PooledConnectionTest.class);
+    }
+
+    @Before
+    public void setUp() throws SQLException {
+        MockitoAnnotations.initMocks(this);
+
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.createStatement()).thenReturn(stmt);
+        when(stmt.executeQuery(anyString())).thenReturn(connectionIDResultSet);
+        when(conn.prepareStatement(SQL)).thenReturn(pstmt);
+        when(pstmt.executeQuery()).thenReturn(rs);
+        when(pstmt.getResultSet()).thenReturn(rs);
+
+        pool = new ConnectionPool(dataSource);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testClosingStatementClosesResultSet() throws SQLException {
+        Connection pc = pool.getConnection(this);
+
+        PreparedStatement ps = pc.prepareStatement(SQL);
+
+        // The caller reads part of a streaming result set, then closes the
+        // statement without closing the result set.
+        ps.executeQuery().next();
+        ps.close();
+
+        verify(rs).close();
+        verify(pstmt, never()).close();
+
+        pc.close();
+
+        assertSame(pc, pool.getConnection(this));
+        assertEquals(1, pool.getCreatedConnectionCount());
+    }
+
+    @Test
+    public void testReturningConnectionClosesResultSetOfOpenStatement()
+            throws SQLException {
+        Connection pc = pool.getConnection(this);
+
+        PreparedStatement ps = pc.prepareStatement(SQL);
+
+        ps.executeQuery();
+
+        // The statement is never closed, e.g. because an exception was thrown
+        // whilst the result set was being read.
+        pc.close();
+
+        verify(rs).close();
+
+        assertSame(pc, pool.getConnection(this));
+    }
+
+    @Test
+    public void testReusedStatementIsCached() throws SQLException {
+        Connection pc = pool.getConnection(this);
+
+        PreparedStatement ps = pc.prepareStatement(SQL);
+        ps.executeQuery();
+        ps.close();
+
+        assertTrue(ps.isClosed());
+
+        PreparedStatement again = pc.prepareStatement(SQL);
+
+        assertSame(ps, again);
+        assertFalse(again.isClosed());
+
+        verify(conn, times(1)).prepareStatement(SQL);
+    }
+
+    @Test
+    public void testFailureToCloseResultSetDropsStatement() throws SQLException {
+        doThrow(new SQLException("Streaming result set is still active")).when(
+                rs).close();
+
+        Connection pc = pool.getConnection(this);
+
+        PreparedStatement ps = pc.prepareStatement(SQL);
+        ps.executeQuery();
+        ps.close();
+
+        verify(pstmt).close();
+
+        // The statement cannot be handed out again, so a new one is prepared.
+        assertNotSame(ps, pc.prepareStatement(SQL));
+        verify(conn, times(2)).prepareStatement(SQL);
+
+        // The connection itself is discarded when it is returned to the pool.
+        pc.close();
+
+        assertNotSame(pc, pool.getConnection(this));
+        assertEquals(2, pool.getCreatedConnectionCount());
+    }
+
+    @Test
+    public void testFailureToCloseResultSetOnReturnDiscardsConnection()
+            throws SQLException {
+        doThrow(new SQLException("Streaming result set is still active")).when(
+                rs).close();
+
+        Connection pc = pool.getConnection(this);
+
+        pc.prepareStatement(SQL).executeQuery();
+
+        pc.close();
+
+        assertNotSame(pc, pool.getConnection(this));
+        assertEquals(2, pool.getCreatedConnectionCount());
+    }
+}
@@ -0,0 +1,206 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+package test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import uk.ac.sanger.arcturus.cache.ObjectCache;
+import uk.ac.sanger.arcturus.data.Read;
+import uk.ac.sanger.arcturus.data.Template;
+import uk.ac.sanger.arcturus.database.ArcturusDatabase;
+import uk.ac.sanger.arcturus.database.ArcturusDatabaseException;
+import uk.ac.sanger.arcturus.jdbc.ReadManager;
+import uk.ac.sanger.arcturus.jdbc.TemplateManager;
+import static org.mockito.Mockito.*;
+import org.mockito.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+
+public class ReadManagerCacheTest {
+    @Mock private ArcturusDatabase adb;
+    @Mock private Connection conn;
+    @Mock private PreparedStatement pstmtByID;
+    @Mock private PreparedStatement pstmtByName;
+
+    // The key which was last bound to each statement.
+    private int boundID;
+    private String boundName;
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadManagerCacheTest.class);
+    }
+
+    @Before
+    public void setUp() throws SQLException, ArcturusDatabaseException {
+        MockitoAnnotations.initMocks(this);
+
+        when(adb.getName()).thenReturn("CACHETEST");
+        when(adb.getDefaultConnection()).thenReturn(conn);
+
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                boundID = (Integer) invocation.getArguments()[1];
+                return null;
+            }
+        }).when(pstmtByID).setInt(anyInt(), anyInt());
+
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                boundName = (String) invocation.getArguments()[1];
+                return null;
+            }
+        }).when(pstmtByName).setString(anyInt(), anyString());
+    }
+
+    @Test
+    public void testReadLookupsShareObjectsAfterEviction()
+            throws SQLException, ArcturusDatabaseException {
+        when(conn.prepareStatement(contains("from READINFO where read_id"))).thenReturn(pstmtByID);
+        when(conn.prepareStatement(contains("from READINFO where readname"))).thenReturn(pstmtByName);
+
+        // A row of READINFO: readname or read_id, then template_id, asped,
+        // strand, primer and chemistry.
+        when(pstmtByID.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+            public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+                ResultSet rs = row();
+                when(rs.getString(1)).thenReturn("READ" + boundID);
+                return rs;
+            }
+        });
+
+        when(pstmtByName.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+            public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+                ResultSet rs = row();
+                when(rs.getInt(1)).thenReturn(Integer.parseInt(boundName.substring(4)));
+                return rs;
+            }
+        });
+
+        ReadManager manager = new ReadManager(adb);
+
+        manager.setCacheLimits(2, ObjectCache.UNLIMITED);
+
+        Read read1 = manager.getReadByID(1);
+
+        assertEquals("READ1", read1.getName());
+
+        // The name lookup is served from the cache.
+        assertSame(read1, manager.getReadByName("READ1"));
+        verify(pstmtByName, never()).executeQuery();
+
+        manager.getReadByID(2);
+
+        assertSame(read1, manager.getReadByName("READ1"));
+
+        // Read 1 is now the least recently used read, so it is evicted, but
+        // its name was looked up more recently than that of read 2, so the
+        // name is still cached.
+        manager.getReadByID(2);
+        manager.getReadByID(3);
+
+        Read byName = manager.getReadByName("READ1");
+        Read byID = manager.getReadByID(1);
+
+        assertNotSame(read1, byName);
+        assertSame(byName, byID);
+        assertEquals(1, byName.getID());
+
+        // Loading a cached read by name finds the existing object.
+        manager.setCacheLimits(10, ObjectCache.UNLIMITED);
+
+        Read read4 = manager.getReadByID(4);
+
+        assertSame(read4, manager.getReadByName("READ4"));
+        assertSame(read4, manager.findOrCreateRead(4, "READ4", null, null,
+                null, null, null));
+    }
+
+    @Test
+    public void testTemplateLookupsShareObjectsAfterEviction()
+            throws SQLException, ArcturusDatabaseException {
+        when(conn.prepareStatement(contains("from TEMPLATE where template_id"))).thenReturn(pstmtByID);
+        when(conn.prepareStatement(contains("from TEMPLATE where name"))).thenReturn(pstmtByName);
+
+        // A row of TEMPLATE: name or template_id, then ligation_id.
+        when(pstmtByID.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+            public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+                ResultSet rs = row();
+                when(rs.getString(1)).thenReturn("TEMPLATE" + boundID);
+                return rs;
+            }
+        });
+
+        when(pstmtByName.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+            public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+                ResultSet rs = row();
+                when(rs.getInt(1)).thenReturn(Integer.parseInt(boundName.substring(8)));
+                return rs;
+            }
+        });
+
+        TemplateManager manager = new TemplateManager(adb);
+
+        manager.setCacheLimits(2, ObjectCache.UNLIMITED);
+
+        Template template1 = manager.getTemplateByName("TEMPLATE1");
+
+        assertSame(template1, manager.getTemplateByID(1));
+        verify(pstmtByID, never()).executeQuery();
+
+        manager.getTemplateByName("TEMPLATE2");
+
+        assertSame(template1, manager.getTemplateByID(1));
+
+        // The name of template 1 is now the least recently used name, so it
+        // is evicted, but the template itself is still cached by ID, and a
+        // lookup by name must find it rather than create a second object.
+        manager.getTemplateByName("TEMPLATE3");
+
+        assertSame(template1, manager.getTemplateByName("TEMPLATE1"));
+        assertSame(template1, manager.getTemplateByID(1));
+        verify(pstmtByName, times(4)).executeQuery();
+
+        // Once the template has been evicted by ID, it is re-created as a new
+        // object, which both lookups then share.
+        manager.getTemplateByName("TEMPLATE2");
+        manager.getTemplateByName("TEMPLATE3");
+
+        Template byID = manager.getTemplateByID(1);
+        Template byName = manager.getTemplateByName("TEMPLATE1");
+
+        assertNotSame(template1, byID);
+        assertSame(byID, byName);
+    }
+
+    private static ResultSet row() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true, false);
+        return rs;
+    }
+}
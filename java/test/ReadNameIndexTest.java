@@ -0,0 +1,303 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.readfinder.ReadNameIndex;
+
+
+public class ReadNameIndexTest {
+    private final Random random = new Random(2718281L);
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadNameIndexTest.class);
+    }
+
+    @Test
+    public void testNamesContainingUnderscore() {
+        ReadNameIndex.Builder builder = new ReadNameIndex.Builder();
+
+        builder.add("abc_01.p1k", 1);
+        builder.add("abcx01.p1k", 2);
+        builder.add("abc__1.p1k", 3);
+        builder.add("abc01.p1k", 4);
+        builder.add("abc_01.p1kx", 5);
+
+        ReadNameIndex index = builder.build();
+
+        // There is no escape character, so a literal '_' in a name is still
+        // a wildcard, just as it is in a LIKE query on READINFO.
+        assertTrue(ReadNameIndex.containsWildcards("abc_01.p1k"));
+        assertArrayEquals(new int[] { 1, 2 }, index.find("abc_01.p1k"));
+        assertArrayEquals(new int[] { 1, 2 }, index.find("ABC_01.P1K"));
+        assertArrayEquals(new int[] { 1, 3, 2 }, index.find("abc__1.p1k"));
+
+        // Wildcards at the start and at the end of the pattern.
+        assertArrayEquals(new int[] { 4 }, index.find("_bc01.p1k"));
+        assertArrayEquals(new int[] { 5 }, index.find("abc_01.p1k_"));
+
+        // '_' sorts after the digits and before the lower-case letters.
+        assertArrayEquals(new int[] { 4, 1, 5, 3, 2 }, index.find("abc%"));
+
+        // Names which have been added since the index was built are matched
+        // in the same way.
+        index = index.add("abc_02", 6);
+
+        assertArrayEquals(new int[] { 6 }, index.find("abc_0_"));
+        assertArrayEquals(new int[] { 1, 5, 6, 2 }, index.find("abc_0%"));
+    }
+
+    @Test
+    public void testBuiltIndexMatchesScan() {
+        List<Entry> entries = randomEntries(2000, 1);
+
+        ReadNameIndex index = build(entries);
+
+        assertEquals(entries.size(), index.size());
+        assertEquals(entries.size(), index.getMaxReadID());
+
+        assertQueriesMatch(entries, index);
+    }
+
+    @Test
+    public void testAddedReadsMatchScan() {
+        List<Entry> entries = randomEntries(1000, 1);
+
+        ReadNameIndex index = build(entries);
+
+        List<Entry> added = randomEntries(300, entries.size() + 1);
+
+        // Repeat some existing names, with different IDs and case.
+        for (int i = 0; i < 20; i++)
+            added.add(new Entry(entries.get(random.nextInt(entries.size())).name
+                    .toUpperCase(Locale.ENGLISH), 5000 + i));
+
+        for (Entry entry : added)
+            assertSame(index, index.add(entry.name, entry.readID));
+
+        entries.addAll(added);
+
+        assertEquals(entries.size(), index.size());
+        assertEquals(5019, index.getMaxReadID());
+
+        assertQueriesMatch(entries, index);
+    }
+
+    @Test
+    public void testMergeMatchesScan() {
+        List<Entry> entries = randomEntries(100, 1);
+
+        ReadNameIndex index = build(entries);
+        ReadNameIndex original = index;
+
+        List<Entry> added = randomEntries(5000, entries.size() + 1);
+
+        for (Entry entry : added)
+            index = index.add(entry.name, entry.readID);
+
+        assertNotSame(original, index);
+
+        entries.addAll(added);
+
+        assertEquals(entries.size(), index.size());
+        assertEquals(entries.size(), index.getMaxReadID());
+
+        assertQueriesMatch(entries, index);
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        ReadNameIndex index = new ReadNameIndex.Builder().build();
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.find("abc").length);
+        assertEquals(0, index.find("%").length);
+
+        index = index.add("abc01a01.p1k", 7);
+
+        assertArrayEquals(new int[] { 7 }, index.find("ABC01A01.P1K"));
+        assertArrayEquals(new int[] { 7 }, index.find("abc%"));
+    }
+
+    @Test
+    public void testContainsWildcards() {
+        assertTrue(ReadNameIndex.containsWildcards("abc%"));
+        assertTrue(ReadNameIndex.containsWildcards("ab_c"));
+        assertFalse(ReadNameIndex.containsWildcards("abc01a01.p1k"));
+    }
+
+    private ReadNameIndex build(List<Entry> entries) {
+        ReadNameIndex.Builder builder = new ReadNameIndex.Builder();
+
+        // The builder must not depend on the order in which names arrive.
+        List<Entry> shuffled = new ArrayList<Entry>(entries);
+        Collections.shuffle(shuffled, random);
+
+        for (Entry entry : shuffled)
+            builder.add(entry.name, entry.readID);
+
+        assertEquals(entries.size(), builder.size());
+
+        return builder.build();
+    }
+
+    /*
+     * Names resemble capillary read names, such as abc12d07.p1k, drawn from
+     * a small alphabet so that many names share long prefixes. Some names
+     * are repeated with different IDs.
+     */
+
+    private List<Entry> randomEntries(int count, int firstID) {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for (int i = 0; i < count; i++) {
+            String name;
+
+            if (i > 0 && random.nextInt(20) == 0)
+                name = entries.get(random.nextInt(i)).name;
+            else {
+                StringBuilder sb = new StringBuilder();
+
+                sb.append(random.nextBoolean() ? "abc" : "AbD");
+                sb.append(random.nextInt(3));
+                sb.append(random.nextInt(10));
+                sb.append((char) ('a' + random.nextInt(4)));
+                sb.append(random.nextInt(10));
+
+                if (random.nextInt(4) > 0)
+                    sb.append(random.nextBoolean() ? ".p1k" : ".Q1k");
+
+                name = sb.toString();
+            }
+
+            entries.add(new Entry(name, firstID + i));
+        }
+
+        return entries;
+    }
+
+    private void assertQueriesMatch(List<Entry> entries, ReadNameIndex index) {
+        List<String> patterns = new ArrayList<String>();
+
+        patterns.add("%");
+        patterns.add("%.p1k");
+        patterns.add("abc1%");
+        patterns.add("ABD2_a%");
+        patterns.add("%c0_b%k");
+        patterns.add("abc");
+        patterns.add("zzz%");
+        patterns.add("");
+
+        for (int i = 0; i < 300; i++) {
+            String name = entries.get(random.nextInt(entries.size())).name;
+
+            switch (i % 5) {
+                case 0:
+                    patterns.add(name);
+                    break;
+
+                case 1:
+                    patterns.add(name.toUpperCase(Locale.ENGLISH));
+                    break;
+
+                case 2:
+                    patterns.add(name.substring(0, random.nextInt(name.length() + 1)) + "%");
+                    break;
+
+                default:
+                    char[] chars = name.toCharArray();
+
+                    for (int j = 0; j < 2; j++)
+                        chars[random.nextInt(chars.length)] = random.nextBoolean() ? '_' : '%';
+
+                    patterns.add(new String(chars));
+                    break;
+            }
+        }
+
+        for (String pattern : patterns)
+            assertArrayEquals(pattern, scan(entries, pattern), index.find(pattern));
+    }
+
+    /*
+     * Returns the IDs of the entries whose names match the LIKE pattern, in
+     * order of folded name and then of ID.
+     */
+
+    private int[] scan(List<Entry> entries, String pattern) {
+        StringBuilder regex = new StringBuilder();
+
+        for (char c : pattern.toCharArray()) {
+            if (c == '%')
+                regex.append(".*");
+            else if (c == '_')
+                regex.append('.');
+            else
+                regex.append(Pattern.quote(String.valueOf(c)));
+        }
+
+        Pattern p = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE
+                | Pattern.DOTALL);
+
+        List<Entry> matches = new ArrayList<Entry>();
+
+        for (Entry entry : entries)
+            if (p.matcher(entry.name).matches())
+                matches.add(entry);
+
+        Collections.sort(matches);
+
+        int[] ids = new int[matches.size()];
+
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = matches.get(i).readID;
+
+        return ids;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final String name;
+        private final int readID;
+
+        Entry(String name, int readID) {
+            this.name = name;
+            this.readID = readID;
+        }
+
+        public int compareTo(Entry that) {
+            int diff = name.toLowerCase(Locale.ENGLISH).compareTo(
+                    that.name.toLowerCase(Locale.ENGLISH));
+
+            return diff != 0 ? diff : readID - that.readID;
+        }
+    }
+}
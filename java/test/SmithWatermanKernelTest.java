@@ -0,0 +1,483 @@
+// Copyright (c) 2001-2014 Genome Research Ltd.
+//
+// Authors: David Harper
+//          Ed Zuiderwijk
+//          Kate Taylor
+//
+// This file is part of Arcturus.
+//
+// Arcturus is free software: you can redistribute it and/or modify it under
+// the terms of the GNU General Public License as published by the Free Software
+// Foundation; either version 3 of the License, or (at your option) any later
+// version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+// details.
+//
+// You should have received a copy of the GNU General Public License along with
+// this program. If not, see <http://www.gnu.org/licenses/>.
+
+
+package test;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.arcturus.smithwaterman.*;
+
+
+public class SmithWatermanKernelTest {
+    private static final int NEGATIVE_INFINITY = Integer.MIN_VALUE / 4;
+
+    private static final byte[] BASES = "ACGTN".getBytes();
+
+    private final ScoringMatrix smat = new ScoringMatrix(2, -3, -5, -2);
+
+    private final Random random = new Random(918273L);
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SmithWatermanKernelTest.class);
+    }
+
+    @Test
+    public void testSingleGap() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        String left = "ACGTGCATGCAAGC";
+        String right = "CAGTCCGATGAGCA";
+
+        // The TT can only be deleted in one place, between the two C's.
+        byte[] longer = (left + "TT" + right).getBytes();
+        byte[] shorter = (left + right).getBytes();
+
+        int expected = 28 * smat.getMatchScore() + gapScore(2);
+
+        Alignment alignment = kernel.calculateAlignment(longer, shorter, 0);
+
+        assertEquals(expected, kernel.getBestScore());
+        assertEdits(alignment, EditEntry.MATCH, 14, EditEntry.DELETION, 2,
+                EditEntry.MATCH, 14);
+
+        alignment = kernel.calculateAlignment(shorter, longer, 0);
+
+        assertEquals(expected, kernel.getBestScore());
+        assertEdits(alignment, EditEntry.MATCH, 14, EditEntry.INSERTION, 2,
+                EditEntry.MATCH, 14);
+    }
+
+    @Test
+    public void testNScoresZero() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        byte[] subject = "ACGTTNGCAT".getBytes();
+        byte[] query = "ACGTTAGCAT".getBytes();
+
+        Alignment alignment = kernel.calculateAlignment(subject, query, 0);
+
+        assertEquals(9 * smat.getMatchScore(), kernel.getBestScore());
+        assertEquals(0, alignment.getRow());
+        assertEquals(0, alignment.getColumn());
+        assertEquals(kernel.getBestScore(), alignmentScore(kernel, subject,
+                query, alignment));
+
+        // An N at the end of a sequence adds nothing, so the alignment stops
+        // before it.
+        assertEquals(4 * smat.getMatchScore(), kernel.calculateScore(
+                "ACGTN".getBytes(), "ACGTN".getBytes(), 0));
+        assertEquals(3, kernel.getBestRow());
+    }
+
+    @Test
+    public void testBandExcludesOffDiagonalMatch() {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        // The match lies on the diagonal 20, wholly outside a band of three
+        // around the main diagonal, and the query has no T to match the
+        // flanking sequence.
+        byte[] subject = "TTTTTTTTTTTTTTTTTTTTACGCAGGCACGA".getBytes();
+        byte[] query = "ACGCAGGCACGA".getBytes();
+
+        assertEquals(0, kernel.calculateScore(subject, 0, subject.length,
+                query, 0, query.length, 0, 3));
+        assertEquals(24, kernel.calculateScore(subject, 0, subject.length,
+                query, 0, query.length, 20, 3));
+        assertEquals(31, kernel.getBestRow());
+        assertEquals(11, kernel.getBestColumn());
+
+        assertEquals(24, kernel.calculateScore(subject, query, 0));
+    }
+
+    @Test
+    public void testEmptySequences() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        byte[] empty = new byte[0];
+        byte[] sequence = "ACGT".getBytes();
+
+        assertEquals(0, kernel.calculateScore(empty, sequence, 0));
+        assertEquals(0, kernel.calculateScore(sequence, empty, 0));
+        assertEquals(0, kernel.calculateScore(sequence, empty, 3));
+        assertNull(kernel.calculateAlignment(empty, sequence, 0));
+        assertNull(kernel.calculateAlignment(sequence, empty, 2));
+    }
+
+    private void assertEdits(Alignment alignment, int... expected) {
+        assertNotNull(alignment);
+        assertEquals(0, alignment.getRow());
+        assertEquals(0, alignment.getColumn());
+
+        EditEntry[] edits = alignment.getEdits();
+
+        assertEquals(expected.length / 2, edits.length);
+
+        for (int i = 0; i < edits.length; i++) {
+            assertEquals("Type of edit " + i, expected[2 * i], edits[i].getType());
+            assertEquals("Length of edit " + i, expected[2 * i + 1], edits[i].getCount());
+        }
+    }
+
+    @Test
+    public void testScoreMatchesFullMatrix() {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        for (int trial = 0; trial < 200; trial++) {
+            byte[] subject = randomSequence(1 + random.nextInt(80));
+            byte[] query = mutate(subject);
+
+            int expected = oracleScore(subject, query, 0, 0);
+
+            assertEquals(expected, kernel.calculateScore(subject, query, 0));
+
+            if (expected > 0)
+                assertEquals(expected, cellScore(subject, query,
+                        kernel.getBestRow(), kernel.getBestColumn(), 0, 0));
+        }
+    }
+
+    @Test
+    public void testBandedScoreMatchesBandedMatrix() {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        for (int trial = 0; trial < 200; trial++) {
+            byte[] subject = randomSequence(1 + random.nextInt(80));
+            byte[] query = mutate(subject);
+
+            int diagonal = random.nextInt(11) - 5;
+            int bandwidth = 1 + random.nextInt(8);
+
+            assertEquals(oracleScore(subject, query, diagonal, bandwidth),
+                    kernel.calculateScore(subject, 0, subject.length, query, 0,
+                            query.length, diagonal, bandwidth));
+        }
+    }
+
+    @Test
+    public void testAlignmentHasBestScore() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        for (int trial = 0; trial < 200; trial++) {
+            byte[] subject = randomSequence(1 + random.nextInt(80));
+            byte[] query = mutate(subject);
+
+            int bandwidth = trial % 2 == 0 ? 0 : 4 + random.nextInt(8);
+
+            Alignment alignment = kernel.calculateAlignment(subject, query,
+                    bandwidth);
+
+            int expected = oracleScore(subject, query, 0, bandwidth);
+
+            if (expected == 0) {
+                assertNull(alignment);
+                continue;
+            }
+
+            assertNotNull(alignment);
+
+            assertEquals(expected, alignmentScore(kernel, subject, query,
+                    alignment));
+        }
+    }
+
+    @Test
+    public void testLongBandedAlignment() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        // A consensus read against a contig: long enough that the rectangle
+        // spanned by the alignment has more cells than an int can count.
+        Random bases = new Random(1804L);
+
+        byte[] subject = new byte[120000];
+
+        for (int i = 0; i < subject.length; i++)
+            subject[i] = BASES[bases.nextInt(4)];
+
+        // Alternate single-base insertions and deletions every 500 bases, so
+        // that the alignment wanders no more than one cell from the diagonal.
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < subject.length; i++) {
+            if (i % 1000 == 500)
+                sb.append('A').append((char) subject[i]);
+            else if (i % 1000 != 0 || i == 0)
+                sb.append((char) subject[i]);
+        }
+
+        byte[] query = sb.toString().getBytes();
+
+        assertTrue((long) subject.length * query.length > Integer.MAX_VALUE);
+
+        int bandwidth = 8;
+
+        // The banded traceback needs one band-width of cells per row.
+        kernel.setMaxTraceSize((long) subject.length * (2 * bandwidth + 1));
+
+        Alignment alignment = kernel.calculateAlignment(subject, query,
+                bandwidth);
+
+        assertNotNull(alignment);
+        assertEquals(0, alignment.getRow());
+        assertEquals(0, alignment.getColumn());
+        assertEquals(subject.length - 1, kernel.getBestRow());
+        assertEquals(query.length - 1, kernel.getBestColumn());
+
+        assertEquals(kernel.getBestScore(), alignmentScore(kernel, subject,
+                query, alignment));
+
+        int insertions = 0;
+        int deletions = 0;
+
+        for (EditEntry edit : alignment.getEdits()) {
+            if (edit.getType() == EditEntry.INSERTION)
+                insertions += edit.getCount();
+            else if (edit.getType() == EditEntry.DELETION)
+                deletions += edit.getCount();
+        }
+
+        assertEquals(120, insertions);
+        assertEquals(119, deletions);
+    }
+
+    @Test
+    public void testTracebackLimit() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        byte[] subject = new byte[100];
+
+        for (int i = 0; i < subject.length; i++)
+            subject[i] = BASES[i % 4];
+
+        kernel.setMaxTraceSize(1000);
+
+        try {
+            kernel.calculateAlignment(subject, subject, 0);
+            fail("An unbanded 100 by 100 traceback should exceed the limit");
+        } catch (SmithWatermanException swe) {
+            // This is expected.
+        }
+
+        // A band of five cells per row fits within the limit.
+        Alignment alignment = kernel.calculateAlignment(subject, subject, 2);
+
+        assertNotNull(alignment);
+        assertEquals(1, alignment.getEdits().length);
+        assertEquals(EditEntry.MATCH, alignment.getEdits()[0].getType());
+        assertEquals(100, alignment.getEdits()[0].getCount());
+
+        kernel.setMaxTraceSize(Long.MAX_VALUE);
+
+        assertEquals(SmithWatermanKernel.MAX_TRACE_SIZE, kernel
+                .getMaxTraceSize());
+    }
+
+    /*
+     * Scores an alignment by walking its edits, checking that each match and
+     * substitution is what it claims to be and that the alignment ends at
+     * the best cell found by the kernel.
+     */
+
+    private int alignmentScore(SmithWatermanKernel kernel, byte[] subject,
+            byte[] query, Alignment alignment) {
+        int row = alignment.getRow();
+        int col = alignment.getColumn();
+        int score = 0;
+
+        EditEntry[] edits = alignment.getEdits();
+
+        for (int i = 0; i < edits.length; i++) {
+            int count = edits[i].getCount();
+
+            switch (edits[i].getType()) {
+                case EditEntry.MATCH:
+                case EditEntry.SUBSTITUTION:
+                    for (int k = 0; k < count; k++) {
+                        boolean isMatch = subject[row] == query[col];
+                        assertEquals(edits[i].getType() == EditEntry.MATCH, isMatch);
+                        score += score(subject[row++], query[col++]);
+                    }
+                    break;
+
+                case EditEntry.DELETION:
+                    score += gapScore(count);
+                    row += count;
+                    break;
+
+                case EditEntry.INSERTION:
+                    score += gapScore(count);
+                    col += count;
+                    break;
+
+                default:
+                    fail("Unexpected edit type " + edits[i].getType());
+            }
+        }
+
+        assertEquals(kernel.getBestRow(), row - 1);
+        assertEquals(kernel.getBestColumn(), col - 1);
+
+        return score;
+    }
+
+    @Test
+    public void testOffsets() {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        byte[] subject = SmithWatermanKernel.encode("ttttACGTACGTACGTtttt");
+        byte[] query = SmithWatermanKernel.encode("ggACGTACGTACGTgg".toCharArray(), 2, 12);
+
+        assertEquals(24, kernel.calculateScore(subject, 4, 12, query, 0, 12, 0));
+        assertEquals(11, kernel.getBestRow());
+        assertEquals(11, kernel.getBestColumn());
+    }
+
+    @Test
+    public void testNoAlignment() throws SmithWatermanException {
+        SmithWatermanKernel kernel = new SmithWatermanKernel(smat);
+
+        byte[] subject = "AAAAAAAA".getBytes();
+        byte[] query = "CCCCCC".getBytes();
+
+        assertEquals(0, kernel.calculateScore(subject, query, 0));
+        assertNull(kernel.calculateAlignment(subject, query, 0));
+    }
+
+    private byte[] randomSequence(int length) {
+        byte[] sequence = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            sequence[i] = random.nextInt(50) == 0 ? (byte) 'N'
+                    : BASES[random.nextInt(4)];
+
+        return sequence;
+    }
+
+    /*
+     * Copies a random stretch of the sequence, with substitutions and short
+     * insertions and deletions, and random flanking sequence.
+     */
+
+    private byte[] mutate(byte[] sequence) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(new String(randomSequence(random.nextInt(10))));
+
+        int start = random.nextInt(sequence.length);
+        int finish = start + random.nextInt(sequence.length - start) + 1;
+
+        for (int i = start; i < finish; i++) {
+            int r = random.nextInt(100);
+
+            if (r < 5)
+                sb.append((char) BASES[random.nextInt(4)]);
+            else if (r < 8)
+                i += random.nextInt(3);
+            else if (r < 11)
+                sb.append(new String(randomSequence(1 + random.nextInt(3))))
+                        .append((char) sequence[i]);
+            else
+                sb.append((char) sequence[i]);
+        }
+
+        sb.append(new String(randomSequence(1 + random.nextInt(10))));
+
+        return sb.toString().getBytes();
+    }
+
+    private int score(byte a, byte b) {
+        if (a == 'N' || b == 'N')
+            return 0;
+
+        return a == b ? smat.getMatchScore() : smat.getMismatchPenalty();
+    }
+
+    private int gapScore(int length) {
+        return smat.getGapInitPenalty() + (length - 1)
+                * smat.getGapExtendPenalty();
+    }
+
+    private int oracleScore(byte[] subject, byte[] query, int diagonal,
+            int bandwidth) {
+        int[][] h = fillMatrix(subject, query, diagonal, bandwidth);
+
+        int best = 0;
+
+        for (int i = 1; i <= subject.length; i++)
+            for (int j = 1; j <= query.length; j++)
+                best = Math.max(best, h[i][j]);
+
+        return best;
+    }
+
+    private int cellScore(byte[] subject, byte[] query, int row, int col,
+            int diagonal, int bandwidth) {
+        return fillMatrix(subject, query, diagonal, bandwidth)[row + 1][col + 1];
+    }
+
+    /*
+     * The full Gotoh matrix. Cells outside the band score zero, and no gap
+     * may be extended from them.
+     */
+
+    private int[][] fillMatrix(byte[] subject, byte[] query, int diagonal,
+            int bandwidth) {
+        int rows = subject.length;
+        int cols = query.length;
+
+        int[][] h = new int[rows + 1][cols + 1];
+        int[][] e = new int[rows + 1][cols + 1];
+        int[][] f = new int[rows + 1][cols + 1];
+
+        for (int i = 0; i <= rows; i++)
+            for (int j = 0; j <= cols; j++)
+                e[i][j] = f[i][j] = NEGATIVE_INFINITY;
+
+        int gapInit = smat.getGapInitPenalty();
+        int gapExtend = smat.getGapExtendPenalty();
+
+        for (int i = 1; i <= rows; i++) {
+            for (int j = 1; j <= cols; j++) {
+                if (bandwidth > 0
+                        && Math.abs((i - 1) - (j - 1) - diagonal) > bandwidth)
+                    continue;
+
+                e[i][j] = Math.max(h[i - 1][j] + gapInit, e[i - 1][j]
+                        + gapExtend);
+                f[i][j] = Math.max(h[i][j - 1] + gapInit, f[i][j - 1]
+                        + gapExtend);
+
+                int score = h[i - 1][j - 1]
+                        + score(subject[i - 1], query[j - 1]);
+
+                score = Math.max(score, e[i][j]);
+                score = Math.max(score, f[i][j]);
+
+                h[i][j] = Math.max(score, 0);
+            }
+        }
+
+        return h;
+    }
+}